@@ -0,0 +1,58 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+
+/**
+ * Implemented by resources which can be moved over an existing resource in
+ * a single, atomic operation, such as a rename in a file system.
+ *
+ * If a MOVE with overwrite would replace an existing resource, and this
+ * resource says it can replace it, MoveHandler uses moveToReplacing rather
+ * then deleting the existing resource and then moving. So there is no moment
+ * where the destination does not exist, and the cost doesnt depend on the
+ * size of what is being replaced.
+ *
+ * @author brad
+ */
+public interface AtomicReplaceMoveableResource extends MoveableResource {
+
+    /**
+     * Check if this resource can atomically replace the given resource. This
+     * should be a cheap check, and should not change anything.
+     *
+     * @param existing - the resource currently at the destination
+     * @return - true if moveToReplacing can be used, otherwise the existing
+     * resource will be deleted and then moveTo called
+     */
+    boolean canReplace(Resource existing);
+
+    /**
+     * Move this resource to the destination, replacing the existing resource
+     * in one step
+     *
+     * @param rDest is the destination folder to move to.
+     * @param name is the new name of the moved resource
+     */
+    void moveToReplacing(CollectionResource rDest, String name) throws ConflictException, NotAuthorizedException, BadRequestException;
+}
@@ -17,25 +17,19 @@
 * under the License.
 */
 
-package com.ettrema.hashsplit;
-
-import java.io.File;
-import java.io.InputStream;
+package com.bradmcevoy.http;
 
 /**
- * Generate a list of deltas - ie changed blocks
+ * Marks a ReplaceableResource whose replaceContent is atomic: if it fails,
+ * eg because the input stream throws part way through, the previous content
+ * is left in place and no partial content is ever visible.
+ *
+ * Callers which can only verify new content as it is streamed, such as a
+ * zsync upload checking its SHA1 at the end, can stream straight into such a
+ * resource. For other resources they must assemble the content somewhere
+ * else first.
  *
  * @author brad
  */
-public class HashSplitDeltaGenerator {
-    
-    private final HashNodeProvider hashNodeProvider;
-
-    public HashSplitDeltaGenerator(HashNodeProvider hashNodeProvider) {
-        this.hashNodeProvider = hashNodeProvider;
-    }
-          
-    public void generateDeltas(InputStream modified, File dest) {
-        
-    }
+public interface AtomicReplaceableResource extends ReplaceableResource {
 }
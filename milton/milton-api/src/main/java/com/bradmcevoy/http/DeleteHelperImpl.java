@@ -19,13 +19,19 @@
 
 package com.bradmcevoy.http;
 
+import com.bradmcevoy.http.Response.Status;
 import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.LockedException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.common.DaemonThreadFactory;
 import com.ettrema.event.DeleteEvent;
 import com.ettrema.event.EventManager;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,11 +42,30 @@ import org.slf4j.LoggerFactory;
  * otherwise it will walk the collection if its a CollectionResource, and finally
  * will just call handlerHelper.isLockedOut otherwise
  *
+ * Both delete methods fire the DeleteEvent for a resource after it has been
+ * deleted, so listeners dont discard the state of a resource which couldnt be.
+ *
+ * The delete(Request, String, DeletableResource, EventManager) method, as used
+ * by the DeleteHandler, walks the tree once to check locks and find the members
+ * to delete. Members are then deleted from the leaves up, a level at a time,
+ * in batches of batchSize. Once a batch has been deleted, events are fired on
+ * the request thread for the members which were actually deleted, so a member
+ * which couldnt be deleted keeps its properties etc. Finally the resource
+ * itself is deleted, unless a member couldnt be, and any exception from
+ * deleting it is thrown as for a single resource. If parallelism is greater then 1 the members in
+ * a batch are deleted concurrently on a pool of that many threads. This is off
+ * by default because resources are often bound to a transaction or session
+ * on the request thread, so only enable it if your resources can be deleted
+ * from any thread.
+ *
  */
-public class DeleteHelperImpl implements DeleteHelper {
+public class DeleteHelperImpl implements MultiStatusDeleteHelper {
 
 	private Logger log = LoggerFactory.getLogger(DeleteHelperImpl.class);
 	private final HandlerHelper handlerHelper;
+	private int parallelism = 1;
+	private int batchSize = 1000;
+	private ExecutorService executor;
 
 	public DeleteHelperImpl(HandlerHelper handlerHelper) {
 		this.handlerHelper = handlerHelper;
@@ -89,6 +114,17 @@ public class DeleteHelperImpl implements DeleteHelper {
 
 	@Override
 	public void delete(DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
+		deleteTree(r, eventManager);
+		if (eventManager != null) {
+			eventManager.fireEvent(new DeleteEvent(r));
+		}
+	}
+
+	/**
+	 * Delete the resource and its children, firing events for the children as
+	 * each is deleted. The event for the resource itself is left to the caller
+	 */
+	private void deleteTree(DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException {
 		if (r instanceof DeletableCollectionResource) {
 			r.delete();
 
@@ -102,10 +138,10 @@ public class DeleteHelperImpl implements DeleteHelper {
 				} else {
 					if (rChild instanceof DeletableResource) {
 						DeletableResource rChildDel = (DeletableResource) rChild;
+						deleteTree(rChildDel, eventManager);
 						if (eventManager != null) {
 							eventManager.fireEvent(new DeleteEvent(rChildDel));
 						}
-						delete(rChildDel, eventManager);
 					} else {
 						log.warn("Couldnt delete child resource: " + rChild.getName() + " of type; " + rChild.getClass().getName() + " because it does not implement: " + DeletableResource.class.getCanonicalName());
 						throw new ConflictException(rChild);
@@ -118,4 +154,215 @@ public class DeleteHelperImpl implements DeleteHelper {
 			r.delete();
 		}
 	}
+
+	@Override
+	public List<HrefStatus> delete(Request req, String href, DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException, LockedException {
+		List<List<Node>> levels = new ArrayList<List<Node>>();
+		collect(req, r, href, null, levels);
+		if (log.isDebugEnabled()) {
+			int count = 0;
+			for (List<Node> level : levels) {
+				count += level.size();
+			}
+			log.debug("delete: found " + count + " resources in " + levels.size() + " levels");
+		}
+		List<HrefStatus> errors = Collections.synchronizedList(new ArrayList<HrefStatus>());
+		// the resource is the only node at the top level, so delete everything below it
+		for (List<Node> level : levels.subList(0, levels.size() - 1)) {
+			List<Node> batch = new ArrayList<Node>();
+			for (Node n : level) {
+				if (!n.failed) {
+					batch.add(n);
+				}
+				if (batch.size() >= batchSize) {
+					deleteBatch(batch, eventManager, errors);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				deleteBatch(batch, eventManager, errors);
+			}
+		}
+		Node root = levels.get(levels.size() - 1).get(0);
+		if (root.failed) {
+			log.info("Not deleting: " + href + " because " + errors.size() + " members couldnt be deleted");
+			return errors;
+		}
+		r.delete();
+		if (eventManager != null) {
+			eventManager.fireEvent(new DeleteEvent(r));
+		}
+		return errors;
+	}
+
+	/**
+	 * Walk the tree, checking locks and adding each resource to the list for its
+	 * height, ie how far it is above the leaves
+	 *
+	 * @return - the height of the resource
+	 */
+	private int collect(Request req, DeletableResource r, String href, Node parent, List<List<Node>> levels) throws NotAuthorizedException, BadRequestException, LockedException {
+		Node n = new Node(r, href, parent);
+		int height = 0;
+		if (r instanceof DeletableCollectionResource) {
+			DeletableCollectionResource dcr = (DeletableCollectionResource) r;
+			if (dcr.isLockedOutRecursive(req)) {
+				log.info("isLocked, as reported by DeletableCollectionResource: " + dcr.getName());
+				throw new LockedException(r);
+			}
+		} else {
+			if (handlerHelper.isLockedOut(req, r)) {
+				log.info("isLocked, as reported by handlerHelper on resource: " + r.getName());
+				throw new LockedException(r);
+			}
+			if (r instanceof CollectionResource) {
+				String base = href.endsWith("/") ? href : href + "/";
+				for (Resource rChild : ((CollectionResource) r).getChildren()) {
+					if (rChild == null) {
+						log.warn("got a null item in list");
+					} else if (rChild instanceof DeletableResource) {
+						String childHref = base + Utils.percentEncode(rChild.getName());
+						if (rChild instanceof CollectionResource) {
+							childHref += "/";
+						}
+						int h = collect(req, (DeletableResource) rChild, childHref, n, levels);
+						if (h + 1 > height) {
+							height = h + 1;
+						}
+					} else {
+						log.info("a child resource is not deletable: " + rChild.getName() + " type: " + rChild.getClass());
+						throw new LockedException(rChild);
+					}
+				}
+			}
+		}
+		while (levels.size() <= height) {
+			levels.add(new ArrayList<Node>());
+		}
+		levels.get(height).add(n);
+		return height;
+	}
+
+	private void deleteBatch(List<Node> batch, EventManager eventManager, List<HrefStatus> errors) throws NotAuthorizedException, ConflictException, BadRequestException {
+		if (parallelism <= 1 || batch.size() == 1) {
+			for (Node n : batch) {
+				deleteNode(n, errors);
+			}
+		} else {
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(batch.size());
+			for (final Node n : batch) {
+				tasks.add(new DeleteTask(n, errors));
+			}
+			try {
+				getExecutor().invokeAll(tasks);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while deleting", ex);
+			}
+		}
+		if (eventManager != null) {
+			for (Node n : batch) {
+				if (n.deleted) {
+					eventManager.fireEvent(new DeleteEvent(n.resource));
+				}
+			}
+		}
+	}
+
+	private void deleteNode(Node n, List<HrefStatus> errors) {
+		Status status;
+		try {
+			n.resource.delete();
+			n.deleted = true;
+			return;
+		} catch (NotAuthorizedException e) {
+			status = Status.SC_FORBIDDEN;
+		} catch (ConflictException e) {
+			status = Status.SC_CONFLICT;
+		} catch (BadRequestException e) {
+			status = Status.SC_BAD_REQUEST;
+		} catch (RuntimeException e) {
+			log.warn("Exception deleting: " + n.href, e);
+			status = Status.SC_INTERNAL_SERVER_ERROR;
+		}
+		log.info("Couldnt delete: " + n.href + " status: " + status);
+		errors.add(new HrefStatus(n.href, status));
+		// none of the ancestors of a member which couldnt be deleted can be deleted
+		for (Node p = n.parent; p != null && !p.failed; p = p.parent) {
+			p.failed = true;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = DaemonThreadFactory.newPool(DeleteHelperImpl.class, parallelism);
+		}
+		return executor;
+	}
+
+	/**
+	 * The number of threads to delete members of a collection with. If 1, the
+	 * default, members are deleted on the request thread
+	 *
+	 * @return
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * The maximum number of resources to fire events for before deleting them
+	 *
+	 * @return
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	private static class Node {
+
+		private final DeletableResource resource;
+		private final String href;
+		private final Node parent;
+		/**
+		 * Set when a member couldnt be deleted, so this cant be either
+		 */
+		private volatile boolean failed;
+		private volatile boolean deleted;
+
+		Node(DeletableResource resource, String href, Node parent) {
+			this.resource = resource;
+			this.href = href;
+			this.parent = parent;
+		}
+	}
+
+	private class DeleteTask implements Callable<Object> {
+
+		private final Node node;
+		private final List<HrefStatus> errors;
+
+		DeleteTask(Node node, List<HrefStatus> errors) {
+			this.node = node;
+			this.errors = errors;
+		}
+
+		@Override
+		public Object call() {
+			deleteNode(node, errors);
+			return null;
+		}
+	}
 }
@@ -140,6 +140,10 @@ public class HandlerHelper {
 	/**
 	 * TODO: move to webdav
 	 * 
+	 * If the resource is a SharedLockableResource the request is only locked
+	 * out if it holds none of the locks, since any holder of a shared lock
+	 * can change the resource
+	 *
 	 * @param inRequest
 	 * @param inResource
 	 * @return
@@ -148,37 +152,61 @@ public class HandlerHelper {
 		if (inResource == null || !(inResource instanceof LockableResource)) {
 			return false;
 		}
-		LockableResource lr = (LockableResource) inResource;
-		LockToken token = lr.getCurrentLock();
-		if (token != null ) {
-			Auth auth = inRequest.getAuthorization();
-			Object sUser = null;
-			if (auth != null) {
-				sUser = auth.getUser();
-			}
-			if( token.info == null ) {
-				log.warn("Found a lock on this resource, but it has no info property so is ignored");
-				return false;
-			}
-			String lockedByUser = token.info.lockedByUser;
-			if (lockedByUser == null) {
-				log.warn("Resource is locked with a null user. Ignoring the lock");
-				return false;
-			} else if (!lockedByUser.equals(sUser)) {
-				if (log.isInfoEnabled()) {
-					if (auth == null) {
-						log.trace("lock owned by: " + lockedByUser);
-					} else {
-						log.trace("lock owned by: " + lockedByUser + " not by " + auth.getUser());
-					}
-				}
-				String value = inRequest.getIfHeader();
-				if (value != null) {
-					if (value.contains("opaquelocktoken:" + token.tokenId + ">")) {
-						log.trace("Request contains valid token so operation is permitted");
+		if (inResource instanceof SharedLockableResource) {
+			boolean locked = false;
+			for (LockToken token : ((SharedLockableResource) inResource).getCurrentLocks()) {
+				if (isValidLock(token)) {
+					if (isLockHeld(inRequest, token)) {
 						return false;
 					}
+					locked = true;
 				}
+			}
+			return locked;
+		}
+		LockableResource lr = (LockableResource) inResource;
+		LockToken token = lr.getCurrentLock();
+		return token != null && isValidLock(token) && !isLockHeld(inRequest, token);
+	}
+
+	private boolean isValidLock(LockToken token) {
+		if( token.info == null ) {
+			log.warn("Found a lock on this resource, but it has no info property so is ignored");
+			return false;
+		}
+		if (token.info.lockedByUser == null) {
+			log.warn("Resource is locked with a null user. Ignoring the lock");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return - true if the lock is owned by the current user, or the request
+	 * has the lock's token in its If header
+	 */
+	private boolean isLockHeld(Request inRequest, LockToken token) {
+		Auth auth = inRequest.getAuthorization();
+		Object sUser = null;
+		if (auth != null) {
+			sUser = auth.getUser();
+		}
+		String lockedByUser = token.info.lockedByUser;
+		if (lockedByUser.equals(sUser)) {
+			return true;
+		}
+		if (log.isTraceEnabled()) {
+			if (auth == null) {
+				log.trace("lock owned by: " + lockedByUser);
+			} else {
+				log.trace("lock owned by: " + lockedByUser + " not by " + auth.getUser());
+			}
+		}
+		String value = inRequest.getIfHeader();
+		if (value != null) {
+			if (value.contains("opaquelocktoken:" + token.tokenId + ">")) {
+				log.trace("Request contains valid token so operation is permitted");
 				return true;
 			}
 		}
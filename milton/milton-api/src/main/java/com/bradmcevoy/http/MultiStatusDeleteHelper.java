@@ -0,0 +1,60 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.LockedException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.event.EventManager;
+import java.util.List;
+
+/**
+ * A DeleteHelper which can report members which couldnt be deleted, for a 207
+ * response. The DeleteHandler uses this when its DeleteHelper implements it,
+ * otherwise it uses isLockedOut and delete(r, eventManager).
+ *
+ * @author brad
+ */
+public interface MultiStatusDeleteHelper extends DeleteHelper {
+
+    /**
+     * Check locks on the resource and its members, and delete them.
+     *
+     * If the resource or any member is locked, or a member is not deletable,
+     * nothing is deleted and a LockedException is thrown.
+     *
+     * Otherwise members which cant be deleted do not stop others from being
+     * deleted. They are returned with a status for each, as for a 207 response.
+     * Their ancestors, including the resource itself, are not deleted, and are
+     * not returned. Delete events are fired after each resource is deleted,
+     * and only for what was deleted.
+     *
+     * If only the resource itself cant be deleted the exception is thrown, as
+     * for deleting a single resource.
+     *
+     * @param req
+     * @param href - the href of the resource, used to form the hrefs of members
+     * @param r
+     * @param eventManager
+     * @return - the members which couldnt be deleted, empty if all were deleted
+     */
+    List<HrefStatus> delete(Request req, String href, DeletableResource r, EventManager eventManager) throws NotAuthorizedException, ConflictException, BadRequestException, LockedException;
+}
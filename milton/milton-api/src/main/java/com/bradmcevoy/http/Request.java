@@ -64,6 +64,11 @@ public interface Request {
         CONTENT_LENGTH( "Content-Length" ),
         CONTENT_TYPE( "Content-Type" ),
         CONTENT_RANGE( "Content-Range" ),
+        CONTENT_MD5( "Content-MD5" ),
+        /**
+         * RFC 3230 instance digest
+         */
+        DIGEST( "Digest" ),
         DEPTH( "Depth" ),
         HOST( "Host" ),
         DESTINATION( "Destination" ),
@@ -0,0 +1,46 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by resources whose content can be read from any position,
+ * without reading what comes before it, such as a file.
+ *
+ * This lets callers which only need scattered parts of the content, like a
+ * zsync upload which reuses blocks of the existing file, read just those
+ * parts rather then copying the whole content first.
+ *
+ * @author brad
+ */
+public interface SeekableResource extends GetableResource {
+
+    /**
+     * Open the current content for reading. The caller must close the channel
+     *
+     * @return - a channel to read the content with, or null if the content
+     * can't currently be read this way, in which case callers should use
+     * sendContent
+     * @throws IOException
+     */
+    FileChannel openContentChannel() throws IOException;
+}
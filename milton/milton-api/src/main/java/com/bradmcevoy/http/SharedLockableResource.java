@@ -0,0 +1,41 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+import java.util.List;
+
+/**
+ * A LockableResource which can have more then one lock at a time, ie shared
+ * locks held by different users. HandlerHelper.isLockedOut uses this when the
+ * resource implements it, so that a request holding any of the locks can
+ * change the resource, not only one holding the lock returned by
+ * getCurrentLock.
+ *
+ * @author brad
+ */
+public interface SharedLockableResource extends LockableResource {
+
+    /**
+     *
+     * @return - all current locks on the resource, including those inherited
+     * from depth infinity locks on its parents. Empty if not locked
+     */
+    List<LockToken> getCurrentLocks();
+}
@@ -0,0 +1,42 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+/**
+ * Implemented by resources which can identify the current version of their
+ * content more precisely then getModifiedDate, which is often only accurate to
+ * the second.
+ *
+ * getUniqueId should then identify the resource itself, and not change when
+ * its content changes, since lock managers key locks by it. The ETag is made
+ * from the unique id and the version token.
+ *
+ * @author brad
+ */
+public interface VersionedResource extends Resource {
+
+    /**
+     * A strong validator for the current content. Must change whenever the
+     * content changes, and should not change otherwise
+     *
+     * @return - a short string, safe to use in a quoted ETag, or null if not known
+     */
+    String getVersionToken();
+}
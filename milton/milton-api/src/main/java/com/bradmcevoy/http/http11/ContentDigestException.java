@@ -17,20 +17,27 @@
 * under the License.
 */
 
-package com.ettrema.hashsplit;
+package com.bradmcevoy.http.http11;
 
-import java.io.InputStream;
-import java.util.List;
+import java.io.IOException;
 
 /**
- * Service to generate HashTree's based on file content
+ * Thrown by a VerifyingInputStream when the content read doesnt match the
+ * digest given by the client
  *
  * @author brad
  */
-public class HashSplitService {
-        
-    public List<HashNode> parse(InputStream inOrig) {
-        throw new UnsupportedOperationException("Not yet implemented");
+public class ContentDigestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private final String algorithm;
+
+    public ContentDigestException( String algorithm ) {
+        super( "Content does not match the " + algorithm + " digest given in the request" );
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
     }
-    
 }
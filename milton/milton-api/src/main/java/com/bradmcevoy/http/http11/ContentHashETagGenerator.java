@@ -0,0 +1,163 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.VersionedResource;
+import java.io.File;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates ETags from a SHA-256 hash of the content, so resources with the
+ * same content have the same ETag, and a change to the modified date alone
+ * doesnt change it.
+ *
+ * The hash is calculated once for each version of a resource and kept in a
+ * DigestStore, keyed by the unique id and the version, which is the
+ * VersionedResource token if available, otherwise the modified date. When
+ * this is given to the Http11Protocol, the PutHandler calculates the hash
+ * as content is uploaded, so it doesnt need to be read back. Otherwise the
+ * content is read, with sendContent, the first time an ETag is needed for that
+ * version, unless it is larger then maxHashLength.
+ *
+ * Collections, resources without a version and resources which are too large
+ * get their ETag from the fallback generator.
+ *
+ * @author brad
+ */
+public class ContentHashETagGenerator implements ETagGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger( ContentHashETagGenerator.class );
+    public static final String ALGORITHM = "SHA-256";
+    private final DigestStore digestStore;
+    private final ETagGenerator fallback;
+    private long maxHashLength = 100 * 1024 * 1024;
+
+    public ContentHashETagGenerator( DigestStore digestStore, ETagGenerator fallback ) {
+        this.digestStore = digestStore;
+        this.fallback = fallback;
+    }
+
+    /**
+     *
+     * @param storeFile - file to persist hashes to
+     */
+    public ContentHashETagGenerator( File storeFile ) {
+        this( new DigestStore( storeFile, 100000 ), new DefaultETagGenerator() );
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance( ALGORITHM );
+        } catch( NoSuchAlgorithmException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    @Override
+    public String generateEtag( Resource r ) {
+        if( r instanceof CollectionResource || !( r instanceof GetableResource ) ) {
+            return fallback.generateEtag( r );
+        }
+        String id = r.getUniqueId();
+        String version = getVersion( r );
+        if( id == null || version == null ) {
+            return fallback.generateEtag( r );
+        }
+        String hash = digestStore.get( id, version );
+        if( hash == null ) {
+            hash = calculate( (GetableResource) r );
+            if( hash == null ) {
+                return fallback.generateEtag( r );
+            }
+            digestStore.put( id, version, hash );
+        }
+        return hash;
+    }
+
+    /**
+     * Record the hash of the content just written to the resource
+     *
+     * @param r
+     * @param digest - from a MessageDigest created by newDigest
+     */
+    public void recordDigest( Resource r, byte[] digest ) {
+        String id = r.getUniqueId();
+        String version = getVersion( r );
+        if( id != null && version != null ) {
+            digestStore.put( id, version, new String( Hex.encodeHex( digest ) ) );
+        }
+    }
+
+    private String getVersion( Resource r ) {
+        if( r instanceof VersionedResource ) {
+            String v = ( (VersionedResource) r ).getVersionToken();
+            if( v != null ) {
+                return v;
+            }
+        }
+        Date dt = r.getModifiedDate();
+        return dt == null ? null : Long.toString( dt.getTime() );
+    }
+
+    private String calculate( GetableResource r ) {
+        Long length = r.getContentLength();
+        if( length == null || length > maxHashLength ) {
+            log.trace( "not hashing content, length is unknown or too large" );
+            return null;
+        }
+        MessageDigest md = newDigest();
+        DigestOutputStream out = new DigestOutputStream( new NullOutputStream(), md );
+        try {
+            r.sendContent( out, null, null, null );
+        } catch( Exception ex ) {
+            log.warn( "Couldnt read content to hash: " + r.getName(), ex );
+            return null;
+        }
+        return new String( Hex.encodeHex( md.digest() ) );
+    }
+
+    public DigestStore getDigestStore() {
+        return digestStore;
+    }
+
+    /**
+     * Resources larger then this, in bytes, are not read to calculate a hash.
+     * Their hash is still recorded if they are uploaded with PUT
+     *
+     * @return
+     */
+    public long getMaxHashLength() {
+        return maxHashLength;
+    }
+
+    public void setMaxHashLength( long maxHashLength ) {
+        this.maxHashLength = maxHashLength;
+    }
+}
@@ -20,6 +20,7 @@
 package com.bradmcevoy.http.http11;
 
 import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.VersionedResource;
 import java.util.Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +29,9 @@ import org.slf4j.LoggerFactory;
  * Generates the ETag as follows:
  *
  * - if the resource has a null unique id, returns null
- * - if the resource has a modified date it's hashcode is appended to the unique id
+ * - if the resource is a VersionedResource with a version token, the token is
+ * appended to the unique id
+ * - otherwise if the resource has a modified date it's hashcode is appended to the unique id
  * - the result is returned
  *
  * @author brad
@@ -49,6 +52,13 @@ public class DefaultETagGenerator implements ETagGenerator {
             log.trace("no uniqueId, so no etag");
             return null;
         } else {
+            if( r instanceof VersionedResource ) {
+                String version = ( (VersionedResource) r ).getVersionToken();
+                if( version != null ) {
+                    log.trace("combine uniqueId with version token to make etag");
+                    return s + "_" + version;
+                }
+            }
             Date dt = r.getModifiedDate();
             if( dt != null ) {
                 log.trace("combine uniqueId with modDate to make etag");
@@ -28,7 +28,10 @@ import org.slf4j.LoggerFactory;
 import com.bradmcevoy.http.Request.Method;
 import com.bradmcevoy.http.Response.Status;
 import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.LockedException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.http.webdav.WebDavResponseHandler;
+import java.util.List;
 
 public class DeleteHandler implements ExistingEntityHandler {
 
@@ -77,15 +80,35 @@ public class DeleteHandler implements ExistingEntityHandler {
 
         DeletableResource r = (DeletableResource) resource;
 
-        if (deleteHelper.isLockedOut(request, r)) {
+        if (!(deleteHelper instanceof MultiStatusDeleteHelper)) {
+            if (deleteHelper.isLockedOut(request, r)) {
+                log.info("Could not delete. Is locked");
+                responseHandler.respondDeleteFailed(request, response, r, Status.SC_LOCKED);
+                return;
+            }
+            deleteHelper.delete(r, manager.getEventManager());
+            log.debug("deleted ok");
+            responseHandler.respondNoContent(resource, response, request);
+            return;
+        }
+
+        List<HrefStatus> errors;
+        try {
+            errors = ((MultiStatusDeleteHelper) deleteHelper).delete(request, request.getAbsoluteUrl(), r, manager.getEventManager());
+        } catch (LockedException e) {
             log.info("Could not delete. Is locked");
             responseHandler.respondDeleteFailed(request, response, r, Status.SC_LOCKED);
             return;
         }
-
-        deleteHelper.delete(r, manager.getEventManager());
-        log.debug("deleted ok");
-        responseHandler.respondNoContent(resource, response, request);
+        if (errors.isEmpty()) {
+            log.debug("deleted ok");
+            responseHandler.respondNoContent(resource, response, request);
+        } else if (responseHandler instanceof WebDavResponseHandler) {
+            log.info("Could not delete " + errors.size() + " members");
+            ((WebDavResponseHandler) responseHandler).responseMultiStatus(resource, response, request, errors);
+        } else {
+            responseHandler.respondDeleteFailed(request, response, r, errors.get(0).status);
+        }
 
     }
 
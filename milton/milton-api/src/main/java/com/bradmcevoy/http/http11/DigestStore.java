@@ -0,0 +1,214 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11;
+
+import com.bradmcevoy.io.FileReplacer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the digest of the content of resources, keyed by the resource's
+ * unique id and the version of the content the digest was calculated from.
+ * Only the latest version of each resource is kept.
+ *
+ * If a file is given, entries are appended to it as they are added, and read
+ * back when the store is first used, so digests survive a restart. A truncated
+ * last entry, eg from a crash, is ignored. The file is rewritten with only the
+ * current entries when it is loaded and when it holds twice as many entries
+ * as are current.
+ *
+ * The least recently used entries are discarded once there are more then
+ * maxEntries.
+ *
+ * @author brad
+ */
+public class DigestStore {
+
+    private static final Logger log = LoggerFactory.getLogger( DigestStore.class );
+    private final File file;
+    private final int maxEntries;
+    private Map<String, Entry> entries;
+    private DataOutputStream out;
+    private int records;
+
+    /**
+     *
+     * @param file - the file to persist digests to, or null to only hold them
+     * in memory
+     * @param maxEntries - the maximum number of resources to remember digests for
+     */
+    public DigestStore( File file, int maxEntries ) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     *
+     * @param id - the unique id of the resource
+     * @param version - identifies the version of the content
+     * @return - the digest, as a hex string, or null if not known for this version
+     */
+    public synchronized String get( String id, String version ) {
+        Entry e = getEntries().get( id );
+        if( e == null || !e.version.equals( version ) ) {
+            return null;
+        }
+        return e.digest;
+    }
+
+    public synchronized void put( String id, String version, String digest ) {
+        Entry e = new Entry( version, digest );
+        Entry previous = getEntries().put( id, e );
+        if( previous != null && previous.version.equals( version ) && previous.digest.equals( digest ) ) {
+            return;
+        }
+        if( file == null ) {
+            return;
+        }
+        try {
+            if( out == null ) {
+                out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+            }
+            write( out, id, e );
+            out.flush();
+            records++;
+            if( records > 2 * entries.size() + 100 ) {
+                compact();
+            }
+        } catch( IOException ex ) {
+            // the digest can always be calculated again
+            log.error( "Couldnt write to digest store: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    public synchronized void remove( String id ) {
+        getEntries().remove( id );
+    }
+
+    public synchronized int size() {
+        return getEntries().size();
+    }
+
+    public synchronized void close() throws IOException {
+        if( out != null ) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private Map<String, Entry> getEntries() {
+        if( entries == null ) {
+            final int max = maxEntries;
+            entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true ) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest ) {
+                    return size() > max;
+                }
+            };
+            if( file != null ) {
+                try {
+                    load();
+                    compact();
+                } catch( IOException ex ) {
+                    log.error( "Couldnt load digest store: " + file.getAbsolutePath(), ex );
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void load() throws IOException {
+        FileReplacer.recover( file );
+        if( !file.exists() ) {
+            return;
+        }
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            while( true ) {
+                String id = in.readUTF();
+                String version = in.readUTF();
+                String digest = in.readUTF();
+                entries.put( id, new Entry( version, digest ) );
+            }
+        } catch( EOFException e ) {
+            // end of the file, or a truncated entry
+        } catch( UTFDataFormatException e ) {
+            log.warn( "corrupt entry in digest store, ignoring remainder" );
+        } finally {
+            in.close();
+        }
+        log.debug( "loaded " + entries.size() + " digests from: " + file.getAbsolutePath() );
+    }
+
+    private void compact() throws IOException {
+        close();
+        File tmp = new File( file.getAbsolutePath() + ".tmp" );
+        DataOutputStream dout = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        try {
+            for( Map.Entry<String, Entry> e : entries.entrySet() ) {
+                write( dout, e.getKey(), e.getValue() );
+            }
+        } finally {
+            dout.close();
+        }
+        FileReplacer.replace( tmp, file );
+        records = entries.size();
+    }
+
+    private void write( DataOutputStream dout, String id, Entry e ) throws IOException {
+        dout.writeUTF( id );
+        dout.writeUTF( e.version );
+        dout.writeUTF( e.digest );
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private static class Entry {
+
+        private final String version;
+        private final String digest;
+
+        Entry( String version, String digest ) {
+            this.version = version;
+            this.digest = digest;
+        }
+    }
+}
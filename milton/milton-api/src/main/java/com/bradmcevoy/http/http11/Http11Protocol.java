@@ -80,7 +80,11 @@ public class Http11Protocol implements HttpExtension{
         handlers.add(new GetHandler(responseHandler, handlerHelper, matchHelper));
         handlers.add(new PostHandler(responseHandler, handlerHelper));
         handlers.add(new DeleteHandler(responseHandler, handlerHelper));
-        handlers.add(new PutHandler(responseHandler, handlerHelper, contentTypeService, matchHelper));
+        PutHandler putHandler = new PutHandler(responseHandler, handlerHelper, contentTypeService, matchHelper);
+		if( eTagGenerator instanceof ContentHashETagGenerator ) {
+			putHandler.setContentHashETagGenerator((ContentHashETagGenerator) eTagGenerator);
+		}
+        handlers.add(putHandler);
     }
 
 	@Override
@@ -57,8 +57,11 @@ public class MatchHelper {
 		}
 		List<String> etags = splitToList(h);
 		for (String requestedEtag : etags) {
-			String sanitized = requestedEtag.replaceAll("\"", "");
-			if (sanitized.equals(currentEtag)) {
+			if (requestedEtag.equals("*")) {
+				return true;
+			}
+			// If-Match uses the strong comparison, so weak etags never match
+			if (!requestedEtag.startsWith("W/") && unquote(requestedEtag).equals(currentEtag)) {
 				return true;
 			}
 		}
@@ -85,13 +88,25 @@ public class MatchHelper {
 		}
 		List<String> etags = splitToList(h);
 		for (String requestedEtag : etags) {
-			if (requestedEtag.equals(currentEtag)) {
+			if (requestedEtag.equals("*")) {
+				return true;
+			}
+			// If-None-Match uses the weak comparison
+			String tag = requestedEtag.startsWith("W/") ? requestedEtag.substring(2) : requestedEtag;
+			if (unquote(tag).equals(currentEtag)) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	private String unquote(String etag) {
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			return etag.substring(1, etag.length() - 1);
+		}
+		return etag;
+	}
+
 	private List<String> splitToList(String s) {
 		String[] arr = s.split(",");
 		List<String> list = new ArrayList<String>();
@@ -36,15 +36,16 @@ import com.bradmcevoy.http.exceptions.ConflictException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.webdav.WebDavResponseHandler;
 import com.bradmcevoy.io.FileUtils;
-import com.bradmcevoy.io.RandomFileOutputStream;
 import com.ettrema.common.LogUtils;
 import com.ettrema.event.NewFolderEvent;
 import com.ettrema.event.PutEvent;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 
 public class PutHandler implements Handler {
 
@@ -53,6 +54,7 @@ public class PutHandler implements Handler {
 	private final HandlerHelper handlerHelper;
 	private final PutHelper putHelper;
 	private final MatchHelper matchHelper;
+	private ContentHashETagGenerator contentHashETagGenerator;
 
 	public PutHandler(Http11ResponseHandler responseHandler, HandlerHelper handlerHelper, ContentTypeService contentTypeService, MatchHelper matchHelper) {
 		this.responseHandler = responseHandler;
@@ -190,23 +192,39 @@ public class PutHandler implements Handler {
 		}
 
 		LogUtils.debug(log, "process: putting to: ", folder.getName());
+		VerifyingInputStream vin = null;
 		try {
 			Long l = putHelper.getContentLength(request);
 			String ct = putHelper.findContentTypes(request, newName);
 			LogUtils.debug(log, "PutHandler: creating resource of type: ", ct);
-			Resource newlyCreated = folder.createNew(newName, request.getInputStream(), l, ct);
+			vin = createVerifyingStream(request);
+			Resource newlyCreated = folder.createNew(newName, vin == null ? request.getInputStream() : vin, l, ct);
 			if (newlyCreated != null) {
 				if (newName != null && !newName.equals(newlyCreated.getName())) {
 					log.warn("getName on the created resource does not match the name requested by the client! requested: " + newName + " - created: " + newlyCreated.getName());
 				}
+				if (!checkDigests(request, response, newlyCreated, vin, true)) {
+					return;
+				}
 				manager.getEventManager().fireEvent(new PutEvent(newlyCreated));
 				manager.getResponseHandler().respondCreated(newlyCreated, response, request);
 			} else {
 				throw new RuntimeException("createNew method on: " + folder.getClass() + " returned a null resource. Must return a reference to the newly created or modified resource");
 			}			
 		} catch (IOException ex) {
+			if (vin != null && vin.isMismatch()) {
+				respondDigestMismatch(request, response, folder, ex);
+				return;
+			}
 			throw new RuntimeException("IOException reading input stream. Probably interrupted upload", ex);
-		}		
+		} catch (RuntimeException ex) {
+			// the resource might have wrapped the ContentDigestException
+			if (vin != null && vin.isMismatch()) {
+				respondDigestMismatch(request, response, folder, ex);
+				return;
+			}
+			throw ex;
+		}
 	}
 
 	private CollectionResource findOrCreateFolders(HttpManager manager, String host, Path path) throws NotAuthorizedException, ConflictException, BadRequestException {
@@ -268,6 +286,7 @@ public class PutHandler implements Handler {
 			responseHandler.respondUnauthorised(replacee, response, request);
 			return;
 		}
+		VerifyingInputStream vin = null;
 		try {
 			Range range = putHelper.parseContentRange(replacee, request);
 			if (range != null) {
@@ -278,55 +297,59 @@ public class PutHandler implements Handler {
 					partialllyUpdateableResource.replacePartialContent(range, request.getInputStream());
 				} else if (replacee instanceof GetableResource) {
 					log.debug("doing partial put on a GetableResource");
+					// The existing content is read once, with the update inserted as it
+					// passes, then the result is given to the resource as a regular put
 					File tempFile = File.createTempFile("milton-partial", null);
-					RandomAccessFile randomAccessFile = null;
-
-					// The new length of the resource
-					long length;
 					try {
-						randomAccessFile = new RandomAccessFile(tempFile, "rw");
-						RandomFileOutputStream tempOut = new RandomFileOutputStream(tempFile);
-						GetableResource gr = (GetableResource) replacee;
-						// Update the content with the supplied partial content, and get the result as an inputstream
-						gr.sendContent(tempOut, null, null, null);
-
-						// Calculate new length, if the partial put is extending it
-						length = randomAccessFile.length();
-						if (range.getFinish() + 1 > length) {
-							length = range.getFinish() + 1;
+						OutputStream tempOut = new BufferedOutputStream(new FileOutputStream(tempFile), PutHelper.BUFFER_SIZE);
+						try {
+							putHelper.applyPartialUpdate((GetableResource) replacee, request, range, tempOut);
+						} finally {
+							tempOut.close();
 						}
-
-						randomAccessFile.setLength(length);
-						randomAccessFile.seek(range.getStart());
-
-						int numBytesRead;
-						byte[] copyBuffer = new byte[1024];
-						InputStream newContent = request.getInputStream();
-
-						while ((numBytesRead = newContent.read(copyBuffer)) != -1) {
-							randomAccessFile.write(copyBuffer, 0, numBytesRead);
+						long length = tempFile.length();
+						InputStream updatedContent = new BufferedInputStream(new FileInputStream(tempFile), PutHelper.BUFFER_SIZE);
+						try {
+							replacee.replaceContent(updatedContent, length);
+						} finally {
+							FileUtils.close(updatedContent);
 						}
 					} finally {
-						FileUtils.close(randomAccessFile);
+						if (!tempFile.delete()) {
+							log.warn("Couldnt delete temp file: " + tempFile.getAbsolutePath());
+						}
 					}
-
-					InputStream updatedContent = new FileInputStream(tempFile);
-					BufferedInputStream bufin = new BufferedInputStream(updatedContent);
-
-					// Now, finally, we can just do a normal update
-					replacee.replaceContent(bufin, length);
 				} else {
 					throw new BadRequestException(replacee, "Cant apply partial update. Resource does not support PartialllyUpdateableResource or GetableResource");
 				}
 			} else {
 				// Not a partial update, but resource implements Replaceable, so give it the new data
 				Long l = putHelper.getContentLength(request);
-				replacee.replaceContent(request.getInputStream(), l);
+				vin = createVerifyingStream(request);
+				if (vin != null && vin.isVerifying() && !(replacee instanceof AtomicReplaceableResource)) {
+					replaceVerified(replacee, vin);
+				} else {
+					replacee.replaceContent(vin == null ? request.getInputStream() : vin, l);
+				}
+				if (!checkDigests(request, response, replacee, vin, false)) {
+					return;
+				}
 			}
 		} catch (IOException ex) {
+			if (vin != null && vin.isMismatch()) {
+				respondDigestMismatch(request, response, replacee, ex);
+				return;
+			}
 			log.warn("IOException reading input stream. Probably interrupted upload: " + ex.getMessage());
 			return;
+		} catch (RuntimeException ex) {
+			if (vin != null && vin.isMismatch()) {
+				respondDigestMismatch(request, response, replacee, ex);
+				return;
+			}
+			throw ex;
 		}
+		manager.getEventManager().fireEvent(new PutEvent(replacee));
 		// Respond with a 204
 		responseHandler.respondNoContent(replacee, response, request);
 
@@ -390,6 +413,113 @@ public class PutHandler implements Handler {
 
 	}
 
+	/**
+	 * Give the resource the uploaded content only once it has been verified.
+	 * A resource which isnt an AtomicReplaceableResource might keep whatever
+	 * it had read when the digest mismatch is found, so the content is spooled
+	 * to a temporary file first, which throws the ContentDigestException
+	 * before the resource is touched.
+	 */
+	private void replaceVerified(ReplaceableResource replacee, VerifyingInputStream vin) throws IOException, BadRequestException, ConflictException, NotAuthorizedException {
+		File tempFile = File.createTempFile("milton-put", null);
+		try {
+			OutputStream tempOut = new BufferedOutputStream(new FileOutputStream(tempFile), PutHelper.BUFFER_SIZE);
+			try {
+				byte[] buf = new byte[PutHelper.BUFFER_SIZE];
+				int n;
+				while ((n = vin.read(buf, 0, buf.length)) != -1) {
+					tempOut.write(buf, 0, n);
+				}
+			} finally {
+				tempOut.close();
+			}
+			InputStream verified = new BufferedInputStream(new FileInputStream(tempFile), PutHelper.BUFFER_SIZE);
+			try {
+				replacee.replaceContent(verified, tempFile.length());
+			} finally {
+				FileUtils.close(verified);
+			}
+		} finally {
+			if (!tempFile.delete()) {
+				log.warn("Couldnt delete temp file: " + tempFile.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Wrap the request stream to verify any digests given by the client, and
+	 * to calculate the content hash if content hash etags are enabled
+	 *
+	 * @return - null if there is nothing to verify or calculate
+	 */
+	private VerifyingInputStream createVerifyingStream(Request request) throws IOException {
+		if (contentHashETagGenerator == null) {
+			return putHelper.createVerifyingStream(request);
+		}
+		return putHelper.createVerifyingStream(request, ContentHashETagGenerator.ALGORITHM);
+	}
+
+	/**
+	 * Verify the digests of any content the resource didnt read, and record
+	 * the content hash. If the content doesnt match a digest given by the client
+	 * a newly created resource is deleted, if possible, and a 400 is sent.
+	 *
+	 * @return - false if the content didnt match, in which case the response has
+	 * been sent
+	 */
+	private boolean checkDigests(Request request, Response response, Resource r, VerifyingInputStream vin, boolean created) throws IOException {
+		if (vin == null) {
+			return true;
+		}
+		long unread;
+		try {
+			unread = vin.drain();
+		} catch (ContentDigestException ex) {
+			if (created && r instanceof DeletableResource) {
+				log.info("rolling back resource created with bad content: " + r.getName());
+				try {
+					((DeletableResource) r).delete();
+				} catch (Exception e) {
+					log.error("Couldnt delete resource created with bad content: " + r.getName(), e);
+				}
+			} else {
+				log.warn("content which doesnt match the digest has been stored, couldnt roll back: " + r.getName());
+			}
+			respondDigestMismatch(request, response, r, ex);
+			return false;
+		}
+		if (contentHashETagGenerator != null) {
+			byte[] hash = vin.getDigest(ContentHashETagGenerator.ALGORITHM);
+			// the hash is only of the content written if the resource read all of it
+			if (unread > 0 || hash == null) {
+				log.debug("resource didnt read all of the content, so not recording its hash");
+			} else {
+				contentHashETagGenerator.recordDigest(r, hash);
+			}
+		}
+		return true;
+	}
+
+	private void respondDigestMismatch(Request request, Response response, Resource r, Exception ex) {
+		log.warn("uploaded content doesnt match the digest in the request: " + ex.getMessage());
+		responseHandler.respondBadRequest(r, response, request);
+	}
+
+	/**
+	 * If set, the hash of the uploaded content is calculated and recorded
+	 * as it is uploaded. Set by Http11Protocol if its ETagGenerator is a
+	 * ContentHashETagGenerator
+	 *
+	 * @return
+	 */
+	public ContentHashETagGenerator getContentHashETagGenerator() {
+		return contentHashETagGenerator;
+	}
+
+	public void setContentHashETagGenerator(ContentHashETagGenerator contentHashETagGenerator) {
+		this.contentHashETagGenerator = contentHashETagGenerator;
+	}
+
 	private void respondLocked(Request request, Response response, Resource existingResource) {
 		if (responseHandler instanceof WebDavResponseHandler) {
 			WebDavResponseHandler rh = (WebDavResponseHandler) responseHandler;
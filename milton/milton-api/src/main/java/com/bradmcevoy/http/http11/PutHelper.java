@@ -28,8 +28,11 @@ import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.exceptions.NotFoundException;
 import com.ettrema.common.LogUtils;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +43,10 @@ import org.slf4j.LoggerFactory;
 public class PutHelper {
 
     private static final Logger log = LoggerFactory.getLogger( PutHelper.class );
+    /**
+     * Buffer size for copying content when applying partial updates
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
 
 	private final ContentTypeService contentTypeService;
 	
@@ -193,10 +200,80 @@ public class PutHelper {
         return parent;
     }
 
+    /**
+     * Wrap the request stream so that the digests given in the Content-MD5
+     * and RFC 3230 Digest headers are verified as the content is read. Digest
+     * algorithms which arent supported are ignored, as required by RFC 3230
+     *
+     * @param request
+     * @param calculate - algorithms to calculate, whether or not the client gave a digest
+     * @return - a VerifyingInputStream, or null if there are no digests to
+     * verify or calculate
+     * @throws IOException
+     */
+    public VerifyingInputStream createVerifyingStream( Request request, String... calculate ) throws IOException {
+        VerifyingInputStream vin = new VerifyingInputStream( request.getInputStream() );
+        boolean any = false;
+        for( String algorithm : calculate ) {
+            any = addDigest( vin, algorithm, null ) || any;
+        }
+        String md5 = request.getRequestHeader( Request.Header.CONTENT_MD5 );
+        if( md5 != null && md5.trim().length() > 0 ) {
+            any = addDigest( vin, "MD5", Base64.decodeBase64( md5.trim().getBytes( "US-ASCII" ) ) ) || any;
+        }
+        String digest = request.getRequestHeader( Request.Header.DIGEST );
+        if( digest != null ) {
+            for( String part : digest.split( "," ) ) {
+                int pos = part.indexOf( '=' );
+                if( pos <= 0 ) {
+                    continue;
+                }
+                String algorithm = toMessageDigestAlgorithm( part.substring( 0, pos ).trim() );
+                if( algorithm != null ) {
+                    byte[] value = Base64.decodeBase64( part.substring( pos + 1 ).trim().getBytes( "US-ASCII" ) );
+                    any = addDigest( vin, algorithm, value ) || any;
+                }
+            }
+        }
+        return any ? vin : null;
+    }
+
+    private boolean addDigest( VerifyingInputStream vin, String algorithm, byte[] expected ) {
+        try {
+            vin.addDigest( algorithm, expected );
+            return true;
+        } catch( NoSuchAlgorithmException ex ) {
+            log.warn( "digest algorithm is not available: " + algorithm );
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param digestAlgorithm - an algorithm name from the RFC 3230 registry
+     * @return - the equivalent MessageDigest algorithm, or null if not supported
+     */
+    private String toMessageDigestAlgorithm( String digestAlgorithm ) {
+        String s = digestAlgorithm.toUpperCase();
+        if( s.equals( "MD5" ) ) {
+            return "MD5";
+        } else if( s.equals( "SHA" ) ) {
+            return "SHA-1";
+        } else if( s.equals( "SHA-256" ) || s.equals( "SHA-512" ) ) {
+            return s;
+        } else {
+            log.debug( "ignoring unsupported digest algorithm: " + digestAlgorithm );
+            return null;
+        }
+    }
+
     /**
      * Copy the current content of the resource to the outputstream, except
      * writing the new partial update for the given range.
      *
+     * The content is read once, and the bytes in the range are replaced by
+     * the request content as they pass. If the range starts beyond the end of
+     * the current content the gap is filled with zeros.
      *
      * @param replacee - the resource to get the content for and to update
      * @param request
@@ -205,9 +282,97 @@ public class PutHelper {
      */
     public void applyPartialUpdate(GetableResource replacee, Request request, Range range, OutputStream tempOut) throws NotAuthorizedException, BadRequestException, NotFoundException {
         try {
-            replacee.sendContent(tempOut, null, null, null);
+            PatchingOutputStream out = new PatchingOutputStream( tempOut, range, request.getInputStream() );
+            replacee.sendContent(out, null, null, null);
+            out.finish();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Passes the existing content through, replacing the bytes in the range
+     * with the new content
+     */
+    private static class PatchingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Range range;
+        private final InputStream newContent;
+        private long pos;
+        private boolean inserted;
+
+        PatchingOutputStream( OutputStream out, Range range, InputStream newContent ) {
+            this.out = out;
+            this.range = range;
+            this.newContent = newContent;
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[]{(byte) b}, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            while( len > 0 ) {
+                int n;
+                if( pos < range.getStart() ) {
+                    // before the range, keep the existing content
+                    n = (int) Math.min( len, range.getStart() - pos );
+                    out.write( b, off, n );
+                } else {
+                    if( !inserted ) {
+                        insert();
+                    }
+                    if( pos <= range.getFinish() ) {
+                        // replaced by the new content, so discard
+                        n = (int) Math.min( len, range.getFinish() + 1 - pos );
+                    } else {
+                        n = len;
+                        out.write( b, off, n );
+                    }
+                }
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Called once the existing content has been written, in case the range is
+         * at or beyond its end
+         */
+        void finish() throws IOException {
+            byte[] zeros = new byte[BUFFER_SIZE];
+            while( pos < range.getStart() ) {
+                int n = (int) Math.min( zeros.length, range.getStart() - pos );
+                out.write( zeros, 0, n );
+                pos += n;
+            }
+            if( !inserted ) {
+                insert();
+            }
+            out.flush();
+        }
+
+        private void insert() throws IOException {
+            inserted = true;
+            byte[] buf = new byte[BUFFER_SIZE];
+            long remaining = range.getFinish() - range.getStart() + 1;
+            while( remaining > 0 ) {
+                int n = newContent.read( buf, 0, (int) Math.min( buf.length, remaining ) );
+                if( n < 0 ) {
+                    throw new IOException( "Content ended " + remaining + " bytes before the end of the range" );
+                }
+                out.write( buf, 0, n );
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
 }
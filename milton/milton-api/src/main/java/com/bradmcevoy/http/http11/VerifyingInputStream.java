@@ -0,0 +1,198 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Calculates digests of the content as it is read, and checks them against
+ * the expected values once the end of the stream is reached.
+ *
+ * If a digest doesnt match, reading the end of the stream throws a
+ * ContentDigestException rather then returning -1. So a resource which writes
+ * the content somewhere temporary and only commits it once the stream is
+ * exhausted, like the file system resources, never commits bad content.
+ *
+ * The PutHandler gives this stream to resources when the client sent a
+ * Content-MD5 or Digest header, so resources can get the calculated digests
+ * with getDigest once they have read the content.
+ *
+ * @author brad
+ */
+public class VerifyingInputStream extends FilterInputStream {
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private final Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+    private Map<String, byte[]> results;
+    private String failedAlgorithm;
+
+    public VerifyingInputStream( InputStream in ) {
+        super( in );
+    }
+
+    /**
+     * Calculate a digest of the content, and optionally check it
+     *
+     * @param algorithm - a MessageDigest algorithm name
+     * @param expectedDigest - the expected digest, or null to just calculate it
+     * @throws NoSuchAlgorithmException
+     */
+    public void addDigest( String algorithm, byte[] expectedDigest ) throws NoSuchAlgorithmException {
+        if( !digests.containsKey( algorithm ) ) {
+            digests.put( algorithm, MessageDigest.getInstance( algorithm ) );
+        }
+        if( expectedDigest != null ) {
+            expected.put( algorithm, expectedDigest );
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if( b == -1 ) {
+            finish();
+        } else {
+            for( MessageDigest md : digests.values() ) {
+                md.update( (byte) b );
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        int n = in.read( b, off, len );
+        if( n == -1 ) {
+            finish();
+        } else {
+            for( MessageDigest md : digests.values() ) {
+                md.update( b, off, n );
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+        // skipped content must still be digested
+        byte[] buf = new byte[(int) Math.min( n, 8192 )];
+        long skipped = 0;
+        while( skipped < n ) {
+            int i = read( buf, 0, (int) Math.min( n - skipped, buf.length ) );
+            if( i < 0 ) {
+                break;
+            }
+            skipped += i;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark( int readlimit ) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException( "mark/reset not supported" );
+    }
+
+    /**
+     * Read and digest whatever content hasnt been read yet, and verify it
+     *
+     * @return - the number of bytes which hadnt been read
+     * @throws ContentDigestException - if a digest does not match
+     */
+    public long drain() throws IOException {
+        long count = 0;
+        byte[] buf = new byte[8192];
+        int n;
+        while( ( n = read( buf, 0, buf.length ) ) != -1 ) {
+            count += n;
+        }
+        return count;
+    }
+
+    private void finish() throws ContentDigestException {
+        if( results == null ) {
+            results = new LinkedHashMap<String, byte[]>();
+            for( Map.Entry<String, MessageDigest> e : digests.entrySet() ) {
+                results.put( e.getKey(), e.getValue().digest() );
+            }
+            for( Map.Entry<String, byte[]> e : expected.entrySet() ) {
+                if( !MessageDigest.isEqual( e.getValue(), results.get( e.getKey() ) ) ) {
+                    failedAlgorithm = e.getKey();
+                    break;
+                }
+            }
+        }
+        if( failedAlgorithm != null ) {
+            throw new ContentDigestException( failedAlgorithm );
+        }
+    }
+
+    /**
+     *
+     * @return - true once the end of the stream has been read
+     */
+    public boolean isComplete() {
+        return results != null;
+    }
+
+    /**
+     *
+     * @return - true if the end of the stream has been read and a digest did
+     * not match
+     */
+    public boolean isMismatch() {
+        return failedAlgorithm != null;
+    }
+
+    /**
+     *
+     * @return - true if there are any expected digests to verify
+     */
+    public boolean isVerifying() {
+        return !expected.isEmpty();
+    }
+
+    /**
+     *
+     * @param algorithm
+     * @return - the digest of the content, or null if the end of the stream has
+     * not been reached or the digest was not calculated
+     */
+    public byte[] getDigest( String algorithm ) {
+        if( results == null ) {
+            return null;
+        }
+        return results.get( algorithm );
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11.auth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches a1md5 (HA1) values loaded from an A1Md5Source, keyed by user and realm.
+ *
+ * Entries are discarded after a configurable number of seconds so that
+ * password changes take effect, and the whole cache is cleared if it grows
+ * beyond its maximum size. When a digest doesnt match the cached value it is
+ * reloaded, in case the password has changed, but no more often than every
+ * minReloadSeconds for each user, so that repeated wrong passwords dont go to
+ * the source on every request.
+ *
+ * @author brad
+ */
+public class A1Md5Cache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private int maxAgeSeconds = 300;
+    private int maxEntries = 10000;
+    private int minReloadSeconds = 5;
+
+    /**
+     * Get the a1md5 from the cache, or from the source if not present or expired
+     *
+     * @return - the a1md5, or null if the user is not known
+     */
+    public String get( A1Md5Source source, String user, String realm ) {
+        String key = key( user, realm );
+        Entry e = entries.get( key );
+        if( e != null && !e.isExpired() ) {
+            return e.a1Md5;
+        }
+        return load( source, user, realm );
+    }
+
+    /**
+     * Get the current value from the source, replacing any cached value.
+     */
+    public String load( A1Md5Source source, String user, String realm ) {
+        String a1Md5 = source.getA1Md5( user, realm );
+        String key = key( user, realm );
+        if( a1Md5 == null ) {
+            entries.remove( key );
+        } else {
+            if( entries.size() >= maxEntries ) {
+                entries.clear();
+            }
+            long now = System.currentTimeMillis();
+            entries.put( key, new Entry( a1Md5, now, now + maxAgeSeconds * 1000l ) );
+        }
+        return a1Md5;
+    }
+
+    /**
+     * Get the current value from the source after a digest didnt match the
+     * cached value, unless it was loaded less then minReloadSeconds ago
+     *
+     * @return - the a1md5, or null if the user is not known
+     */
+    public String reload( A1Md5Source source, String user, String realm ) {
+        Entry e = entries.get( key( user, realm ) );
+        if( e != null && !e.isExpired() && System.currentTimeMillis() - e.loadedAt < minReloadSeconds * 1000l ) {
+            return e.a1Md5;
+        }
+        return load( source, user, realm );
+    }
+
+    /**
+     * Call this when a user's password has been changed
+     */
+    public void remove( String user, String realm ) {
+        entries.remove( key( user, realm ) );
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private String key( String user, String realm ) {
+        return user + ":" + realm;
+    }
+
+    public int getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    public void setMaxAgeSeconds( int maxAgeSeconds ) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries( int maxEntries ) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * The least time between reloads of a user's value after a digest didnt
+     * match it. A changed password can be rejected for this long after the
+     * old one was loaded, unless remove is called when it changes
+     *
+     * @return
+     */
+    public int getMinReloadSeconds() {
+        return minReloadSeconds;
+    }
+
+    public void setMinReloadSeconds( int minReloadSeconds ) {
+        this.minReloadSeconds = minReloadSeconds;
+    }
+
+    private static class Entry {
+
+        private final String a1Md5;
+        private final long loadedAt;
+        private final long expiresAt;
+
+        Entry( String a1Md5, long loadedAt, long expiresAt ) {
+            this.a1Md5 = a1Md5;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11.auth;
+
+/**
+ * May be implemented by a SecurityManager or DigestResource which stores (or
+ * can cheaply compute) the one way hash of user:realm:password, referred to
+ * as HA1 or a1md5 in RFC 2617.
+ *
+ * Where available milton will check digest responses itself using this value,
+ * caching it per user and realm, so the user store is not consulted on every
+ * request and never needs to hold cleartext passwords.
+ *
+ * @author brad
+ */
+public interface A1Md5Source {
+
+    /**
+     * Use DigestGenerator.encodePasswordInA1Format to calculate this value
+     * when storing credentials.
+     *
+     * @param user
+     * @param realm
+     * @return - md5 hex of user:realm:password, or null if the user is not known
+     */
+    String getA1Md5( String user, String realm );
+
+    /**
+     * Called once a digest response has been verified.
+     *
+     * @param user
+     * @param realm
+     * @return - some object representing the user to associate with the request
+     */
+    Object getUser( String user, String realm );
+}
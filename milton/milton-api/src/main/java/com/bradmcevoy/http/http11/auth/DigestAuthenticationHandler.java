@@ -74,7 +74,12 @@ public class DigestAuthenticationHandler implements AuthenticationHandler {
             log.info("requested digest authentication is invalid or incorrectly formatted");
             return null;
         } else {
-            Object o = digestResource.authenticate( resp );
+            Object o;
+            if( digestResource instanceof A1Md5Source ) {
+                o = digestHelper.authenticate( resp, (A1Md5Source) digestResource );
+            } else {
+                o = digestResource.authenticate( resp );
+            }
 			if( o == null ) {
 				log.info("digest authentication failed from resource: " + digestResource.getClass() + " - " + digestResource.getName() + " for user: " + resp.getUser());
 			}
@@ -19,17 +19,26 @@
 
 package com.bradmcevoy.http.http11.auth;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Calculates digest authentication hashes.
+ *
+ * Hashes are computed into a MessageDigest which is reused per thread, with
+ * hex values fed directly into the digest as bytes rather then building up
+ * intermediate strings.
  *
  * @author brad
  */
 public class DigestGenerator {
 
     private static final Logger log = LoggerFactory.getLogger( DigestGenerator.class );
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final ThreadLocal<MessageDigest> tlMd5 = new ThreadLocal<MessageDigest>();
 
     /**
      * Computes the <code>response</code> portion of a Digest authentication header. Both the server and user
@@ -42,7 +51,9 @@ public class DigestGenerator {
      * @throws IllegalArgumentException if the supplied qop value is unsupported.
      */
     public String generateDigest( DigestResponse dr, String password ) throws IllegalArgumentException {
-        log.debug( "user:" + dr.getUser() + ":realm:" + dr.getRealm() + ":" + password );
+        if( log.isTraceEnabled() ) {
+            log.trace( "user:" + dr.getUser() + ":realm:" + dr.getRealm() );
+        }
         String p = password == null ? "" : password;
         String a1Md5 = encodePasswordInA1Format( dr.getUser(), dr.getRealm(), p );
         return generateDigestWithEncryptedPassword( dr, a1Md5 );
@@ -58,45 +69,130 @@ public class DigestGenerator {
      * @throws IllegalArgumentException
      */
     public String generateDigestWithEncryptedPassword( DigestResponse dr, String a1Md5 ) throws IllegalArgumentException {
-        String httpMethod = dr.getMethod().code;
-        String a2Md5 = encodeMethodAndUri( httpMethod, dr.getUri() );
+        return new String( toHex( responseDigest( dr, a1Md5 ) ) );
+    }
 
-        String qop = dr.getQop();
-        String nonce = dr.getNonce();
-
-        //String digest;
-        if( qop == null ) {
-            // as per RFC 2069 compliant clients (also reaffirmed by RFC 2617)
-            //digest = a1Md5 + ":" + dr.getNonce() + ":" + a2Md5;
-            return md5( a1Md5, dr.getNonce(), a2Md5 );
-        } else if( "auth".equals( qop ) ) {
-            // As per RFC 2617 compliant clients
-            return md5( a1Md5, nonce, dr.getNc(), dr.getCnonce(), dr.getQop(), a2Md5 );
-            //digest = a1Md5 + ":" + nonce + ":" + dr.getNc() + ":" + dr.getCnonce() + ":" + qop + ":" + a2Md5;
-        } else {
-            throw new IllegalArgumentException( "This method does not support a qop '" + qop + "'" );
+    /**
+     * Check the response given by the client against that calculated from
+     * a1Md5, without hex encoding the calculated value. The comparison is
+     * case insensitive and takes the same time regardless of where the values
+     * differ.
+     *
+     * @param dr
+     * @param a1Md5 - md5 hex of user:realm:password
+     * @return - true if the client's response matches
+     * @throws IllegalArgumentException if the supplied qop value is unsupported.
+     */
+    public boolean isDigestCorrect( DigestResponse dr, String a1Md5 ) throws IllegalArgumentException {
+        String clientResponse = dr.getResponseDigest();
+        if( clientResponse == null || a1Md5 == null ) {
+            return false;
+        }
+        byte[] expected = responseDigest( dr, a1Md5 );
+        if( clientResponse.length() != expected.length * 2 ) {
+            return false;
+        }
+        int dif = 0;
+        for( int i = 0; i < expected.length; i++ ) {
+            int b = expected[i];
+            dif |= HEX[( b >> 4 ) & 0x0F] ^ Character.toLowerCase( clientResponse.charAt( i * 2 ) );
+            dif |= HEX[b & 0x0F] ^ Character.toLowerCase( clientResponse.charAt( i * 2 + 1 ) );
         }
+        return dif == 0;
     }
 
     public String encodePasswordInA1Format( String username, String realm, String password ) {
-        String a1 = username + ":" + realm + ":" + password;
-        String a1Md5 = new String( DigestUtils.md5Hex( a1 ) );
-
-        return a1Md5;
+        return md5( username, realm, password );
     }
 
     String encodeMethodAndUri( String httpMethod, String uri ) {
-        String a2 = httpMethod + ":" + uri;
-        String a2Md5 = new String( DigestUtils.md5Hex( a2 ) );
-        return a2Md5;
+        return md5( httpMethod, uri );
     }
 
     String md5( String... ss ) {
-        String d = "";
+        MessageDigest md = md5Digest();
+        update( md, ss );
+        return new String( toHex( md.digest() ) );
+    }
+
+    private byte[] responseDigest( DigestResponse dr, String a1Md5 ) throws IllegalArgumentException {
+        String qop = dr.getQop();
+        if( qop != null && !"auth".equals( qop ) ) {
+            throw new IllegalArgumentException( "This method does not support a qop '" + qop + "'" );
+        }
+        MessageDigest md = md5Digest();
+        update( md, dr.getMethod().code, dr.getUri() );
+        byte[] a2Md5 = toHexBytes( md.digest() );
+
+        update( md, a1Md5, dr.getNonce() );
+        if( qop != null ) {
+            // As per RFC 2617 compliant clients
+            // digest = a1Md5 + ":" + nonce + ":" + dr.getNc() + ":" + dr.getCnonce() + ":" + qop + ":" + a2Md5;
+            md.update( (byte) ':' );
+            update( md, dr.getNc(), dr.getCnonce(), qop );
+        }
+        // as per RFC 2069 compliant clients (also reaffirmed by RFC 2617)
+        // digest = a1Md5 + ":" + dr.getNonce() + ":" + a2Md5;
+        md.update( (byte) ':' );
+        md.update( a2Md5 );
+        return md.digest();
+    }
+
+    /**
+     * Feed the given values into the digest, separated by colons. Nulls are
+     * written as "null" to be consistent with string concatenation
+     */
+    private static void update( MessageDigest md, String... ss ) {
         for( int i = 0; i < ss.length; i++ ) {
-            if( i > 0 ) d += ":";
-            d = d + ss[i];
+            if( i > 0 ) {
+                md.update( (byte) ':' );
+            }
+            md.update( utf8( String.valueOf( ss[i] ) ) );
+        }
+    }
+
+    private static byte[] utf8( String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch( UnsupportedEncodingException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    private static byte[] toHexBytes( byte[] data ) {
+        byte[] out = new byte[data.length * 2];
+        for( int i = 0; i < data.length; i++ ) {
+            out[i * 2] = HEX[( data[i] >> 4 ) & 0x0F];
+            out[i * 2 + 1] = HEX[data[i] & 0x0F];
+        }
+        return out;
+    }
+
+    private static char[] toHex( byte[] data ) {
+        char[] out = new char[data.length * 2];
+        for( int i = 0; i < data.length; i++ ) {
+            out[i * 2] = (char) HEX[( data[i] >> 4 ) & 0x0F];
+            out[i * 2 + 1] = (char) HEX[data[i] & 0x0F];
+        }
+        return out;
+    }
+
+    /**
+     * MessageDigest instances are not thread safe, and looking them up from
+     * the security providers is relatively expensive, so keep one per thread
+     */
+    private static MessageDigest md5Digest() {
+        MessageDigest md = tlMd5.get();
+        if( md == null ) {
+            try {
+                md = MessageDigest.getInstance( "MD5" );
+            } catch( NoSuchAlgorithmException ex ) {
+                throw new RuntimeException( ex );
+            }
+            tlMd5.set( md );
+        } else {
+            md.reset();
         }
-        return new String( DigestUtils.md5Hex( d ) );
+        return md;
     }
 }
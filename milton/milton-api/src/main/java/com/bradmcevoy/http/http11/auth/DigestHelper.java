@@ -34,10 +34,38 @@ public class DigestHelper {
     private static final Logger log = LoggerFactory.getLogger( DigestHelper.class );
 
     private final NonceProvider nonceProvider;
+    private final DigestGenerator digestGenerator = new DigestGenerator();
+    private A1Md5Cache a1Md5Cache = new A1Md5Cache();
 
     public DigestHelper(NonceProvider nonceProvider) {
         this.nonceProvider = nonceProvider;
     }
+
+    /**
+     * Verify the response against the a1md5 given by the source, using a cached
+     * value if available. If the cached value doesnt match the source is
+     * checked again, in case the password has changed, unless the cached value
+     * was loaded very recently (see A1Md5Cache.getMinReloadSeconds).
+     *
+     * @param resp
+     * @param source
+     * @return - the user object from the source if the response is correct, otherwise null
+     */
+    public Object authenticate( DigestResponse resp, A1Md5Source source ) {
+        String a1Md5 = a1Md5Cache.get( source, resp.getUser(), resp.getRealm() );
+        if( a1Md5 == null ) {
+            log.debug( "user not found: " + resp.getUser() );
+            return null;
+        }
+        if( !digestGenerator.isDigestCorrect( resp, a1Md5 ) ) {
+            String reloaded = a1Md5Cache.reload( source, resp.getUser(), resp.getRealm() );
+            if( reloaded == null || reloaded.equals( a1Md5 ) || !digestGenerator.isDigestCorrect( resp, reloaded ) ) {
+                log.debug( "digest response is not correct for user: " + resp.getUser() );
+                return null;
+            }
+        }
+        return source.getUser( resp.getUser(), resp.getRealm() );
+    }
                 
     public DigestResponse calculateResponse( Auth auth, String expectedRealm, Method method ) {
         // Check all required parameters were supplied (ie RFC 2069)
@@ -129,4 +157,12 @@ public class DigestHelper {
         return dr;
 
     }
+
+    public A1Md5Cache getA1Md5Cache() {
+        return a1Md5Cache;
+    }
+
+    public void setA1Md5Cache( A1Md5Cache a1Md5Cache ) {
+        this.a1Md5Cache = a1Md5Cache;
+    }
 }
@@ -0,0 +1,243 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11.auth;
+
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stateless nonce provider, suitable for a cluster of servers behind a load
+ * balancer.
+ *
+ * Each nonce carries its own issue time and a random salt, signed with an
+ * HMAC under a secret key. Any server configured with the same key can validate
+ * a nonce issued by any other server, so no map of issued nonces needs to
+ * be shared or replicated.
+ *
+ * The format of the nonce is: issuedMillis(hex) ":" salt(hex) ":" hmac(hex)
+ *
+ * Nonce-count checking is optional. If enabled, the highest nonce-count seen
+ * for each nonce is recorded in a small, bounded, per-server cache. A nonce
+ * which is not in the cache (eg because it was issued or last used on another
+ * server, or was evicted) is accepted and its nonce-count recorded, so this
+ * gives replay protection within a server rather than across the cluster.
+ *
+ * @author brad
+ */
+public class HmacNonceProvider implements NonceProvider {
+
+    private static final Logger log = LoggerFactory.getLogger( HmacNonceProvider.class );
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SALT_BYTES = 8;
+    private final SecretKeySpec key;
+    private final int nonceValiditySeconds;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> tlMac = new ThreadLocal<Mac>();
+    private boolean enableNonceCountChecking;
+    private int maxNonceCountEntries = 10000;
+    private Map<String, Long> nonceCounts;
+
+    /**
+     *
+     * @param sharedSecret - the key used to sign nonces. Must be the same on
+     * all servers in the cluster, and should be at least 32 bytes
+     * @param nonceValiditySeconds - how long a nonce remains valid after it was
+     * issued
+     */
+    public HmacNonceProvider( byte[] sharedSecret, int nonceValiditySeconds ) {
+        if( sharedSecret == null || sharedSecret.length == 0 ) {
+            throw new IllegalArgumentException( "sharedSecret is required" );
+        }
+        this.key = new SecretKeySpec( sharedSecret, ALGORITHM );
+        this.nonceValiditySeconds = nonceValiditySeconds;
+        getMac(); // fail fast if the algorithm is not available
+        if( log.isTraceEnabled() ) {
+            log.trace( "Created HmacNonceProvider: nonceValiditySeconds: " + nonceValiditySeconds );
+        }
+    }
+
+    public HmacNonceProvider( String sharedSecret, int nonceValiditySeconds ) {
+        this( toBytes( sharedSecret ), nonceValiditySeconds );
+    }
+
+    @Override
+    public String createNonce( Resource resource, Request request ) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes( salt );
+        String payload = Long.toHexString( System.currentTimeMillis() ) + ":" + new String( Hex.encodeHex( salt ) );
+        String n = payload + ":" + new String( Hex.encodeHex( sign( payload ) ) );
+        if( log.isTraceEnabled() ) {
+            log.trace( "Created nonce: " + n );
+        }
+        return n;
+    }
+
+    @Override
+    public NonceValidity getNonceValidity( String nonce, Long nc ) {
+        if( log.isTraceEnabled() ) {
+            log.trace( "getNonceValidity: " + nonce );
+        }
+        if( nonce == null ) {
+            return NonceValidity.INVALID;
+        }
+        int pos = nonce.lastIndexOf( ':' );
+        if( pos <= 0 ) {
+            log.warn( "couldnt parse nonce" );
+            return NonceValidity.INVALID;
+        }
+        String payload = nonce.substring( 0, pos );
+        byte[] given;
+        long issued;
+        try {
+            given = Hex.decodeHex( nonce.substring( pos + 1 ).toCharArray() );
+            int timePos = payload.indexOf( ':' );
+            if( timePos <= 0 ) {
+                log.warn( "couldnt parse nonce" );
+                return NonceValidity.INVALID;
+            }
+            issued = Long.parseLong( payload.substring( 0, timePos ), 16 );
+        } catch( Exception e ) {
+            log.warn( "couldnt parse nonce" );
+            return NonceValidity.INVALID;
+        }
+        if( !MessageDigest.isEqual( sign( payload ), given ) ) {
+            log.warn( "nonce signature is not valid" );
+            return NonceValidity.INVALID;
+        }
+        if( isExpired( issued ) ) {
+            log.debug( "nonce has expired" );
+            return NonceValidity.EXPIRED;
+        }
+        if( nc == null || !enableNonceCountChecking ) {
+            log.trace( "nonce ok" );
+            return NonceValidity.OK;
+        }
+        Map<String, Long> counts = getNonceCounts();
+        synchronized( counts ) {
+            Long previous = counts.get( nonce );
+            if( previous != null && nc <= previous ) {
+                log.warn( "nonce-count was not greater then previous, possible replay attack. new: " + nc + " old:" + previous );
+                return NonceValidity.INVALID;
+            }
+            counts.put( nonce, nc );
+        }
+        log.trace( "nonce and nonce-count ok" );
+        return NonceValidity.OK;
+    }
+
+    private boolean isExpired( long issued ) {
+        long dif = ( System.currentTimeMillis() - issued ) / 1000;
+        return dif > nonceValiditySeconds || dif < -nonceValiditySeconds;
+    }
+
+    private byte[] sign( String payload ) {
+        try {
+            return getMac().doFinal( payload.getBytes( "UTF-8" ) );
+        } catch( UnsupportedEncodingException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * Mac instances are not thread safe, so keep one per thread rather then
+     * creating one (which involves a provider lookup) per request
+     */
+    private Mac getMac() {
+        Mac mac = tlMac.get();
+        if( mac == null ) {
+            try {
+                mac = Mac.getInstance( ALGORITHM );
+                mac.init( key );
+            } catch( GeneralSecurityException ex ) {
+                throw new RuntimeException( ex );
+            }
+            tlMac.set( mac );
+        }
+        return mac;
+    }
+
+    private synchronized Map<String, Long> getNonceCounts() {
+        if( nonceCounts == null ) {
+            final int max = maxNonceCountEntries;
+            nonceCounts = new LinkedHashMap<String, Long>( 16, 0.75f, true ) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<String, Long> eldest ) {
+                    return size() > max;
+                }
+            };
+        }
+        return nonceCounts;
+    }
+
+    private static byte[] toBytes( String s ) {
+        if( s == null ) {
+            return null;
+        }
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch( UnsupportedEncodingException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+
+    /**
+     * See SimpleMemoryNonceProvider for why this is disabled by default. When
+     * enabled nonce-counts are only checked against those recorded on this
+     * server.
+     *
+     * @return
+     */
+    public boolean isEnableNonceCountChecking() {
+        return enableNonceCountChecking;
+    }
+
+    public void setEnableNonceCountChecking( boolean enableNonceCountChecking ) {
+        this.enableNonceCountChecking = enableNonceCountChecking;
+    }
+
+    /**
+     * The maximum number of nonces for which the last nonce-count is remembered.
+     * The least recently used are discarded first. Must be set before the
+     * first request is checked
+     *
+     * @return
+     */
+    public int getMaxNonceCountEntries() {
+        return maxNonceCountEntries;
+    }
+
+    public void setMaxNonceCountEntries( int maxNonceCountEntries ) {
+        this.maxNonceCountEntries = maxNonceCountEntries;
+    }
+}
@@ -72,7 +72,12 @@ public class SecurityManagerDigestAuthenticationHandler implements Authenticatio
             log.debug("requested digest authentication is invalid or incorrectly formatted");
             return null;
         } else {
-            Object o = securityManager.authenticate( resp );
+            Object o;
+            if( securityManager instanceof A1Md5Source ) {
+                o = digestHelper.authenticate( resp, (A1Md5Source) securityManager );
+            } else {
+                o = securityManager.authenticate( resp );
+            }
             return o;
         }
 
@@ -86,5 +91,14 @@ public class SecurityManagerDigestAuthenticationHandler implements Authenticatio
     public boolean isCompatible( Resource resource ) {
         return true;
     }
+
+    /**
+     * The cache of a1md5 values, used if the SecurityManager implements A1Md5Source
+     *
+     * @return
+     */
+    public A1Md5Cache getA1Md5Cache() {
+        return digestHelper.getA1Md5Cache();
+    }
 }
 
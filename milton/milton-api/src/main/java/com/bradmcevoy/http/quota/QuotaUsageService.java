@@ -0,0 +1,554 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.quota;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.Resource;
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.common.Service;
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManager;
+import com.ettrema.event.MoveEvent;
+import com.ettrema.event.PutEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a running total of the bytes used by each collection and each user,
+ * so that quota checks are a map lookup rather then a walk of the tree.
+ *
+ * The totals are maintained from PutEvent, DeleteEvent, MoveEvent and
+ * CopyEvent, which must be registered with the EventManager (see the
+ * constructor). The size of every file is also recorded, so that replacing a
+ * file only adds the difference, and a collection can be deleted, moved or
+ * copied in one step.
+ *
+ * The usage of a collection includes everything beneath it. Limits can be set
+ * on any collection, and on any user. The quota available to a collection is
+ * the least of what remains under its own limit, the limits of the collections
+ * above it, and the limit of its owner.
+ *
+ * Because events are fired around the operation rather then as part of it
+ * (eg MoveEvent is fired before a plain move, and a move can fail) the totals can
+ * drift from what is actually stored. So they are periodically rebuilt by
+ * walking the tree, see reconcileIntervalSeconds. Changes made while the
+ * tree is being walked might not be counted until the next reconciliation.
+ *
+ * Paths are slash separated and relative to the root, so the root itself is
+ * the empty string, and its children are like "/docs".
+ *
+ * This implements QuotaDataAccessor so can be given to WebDavProtocol to
+ * provide the quota properties. Resources can implement QuotaResource by
+ * delegating to getQuotaUsed(Resource) and getQuotaAvailable(Resource)
+ *
+ * @author brad
+ */
+public abstract class QuotaUsageService implements EventListener, QuotaDataAccessor, Service {
+
+    private static final Logger log = LoggerFactory.getLogger( QuotaUsageService.class );
+    private volatile Usage usage = new Usage();
+    private final Map<String, Long> collectionLimits = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> userLimits = new ConcurrentHashMap<String, Long>();
+    private Long defaultUserLimit;
+    private int reconcileIntervalSeconds = 3600;
+    private ScheduledExecutorService scheduler;
+
+    public QuotaUsageService() {
+    }
+
+    /**
+     * Creates the service and registers it for the events it needs
+     *
+     * @param eventManager
+     */
+    public QuotaUsageService( EventManager eventManager ) {
+        eventManager.registerEventListener( this, PutEvent.class );
+        eventManager.registerEventListener( this, DeleteEvent.class );
+        eventManager.registerEventListener( this, MoveEvent.class );
+        eventManager.registerEventListener( this, CopyEvent.class );
+    }
+
+    /**
+     *
+     * @param r
+     * @return - the path of the resource relative to the root, or null if it
+     * is not within the root
+     */
+    protected abstract String getPath( Resource r );
+
+    /**
+     *
+     * @return - the root collection, which is walked to reconcile the totals
+     */
+    protected abstract CollectionResource getRoot();
+
+    /**
+     * Override to account for usage by user
+     *
+     * @param path - the path of a file or collection
+     * @return - the user who owns the given path, or null if not owned by a user
+     */
+    protected String getOwner( String path ) {
+        return null;
+    }
+
+    /**
+     * Reconciles the totals, and then schedules reconciliation
+     * every reconcileIntervalSeconds
+     */
+    @Override
+    public synchronized void start() {
+        reconcile();
+        if( reconcileIntervalSeconds > 0 ) {
+            scheduler = Executors.newScheduledThreadPool( 1, new DaemonThreadFactory( QuotaUsageService.class ) );
+            scheduler.scheduleWithFixedDelay( new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        reconcile();
+                    } catch( Throwable e ) {
+                        log.error( "exception reconciling quota usage", e );
+                    }
+                }
+            }, reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS );
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if( scheduler != null ) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void onEvent( Event e ) {
+        if( e instanceof PutEvent ) {
+            Resource r = ( (PutEvent) e ).getResource();
+            if( r instanceof CollectionResource ) {
+                return;
+            }
+            String path = getPath( r );
+            if( path != null ) {
+                usage.put( path, contentLength( r ) );
+            }
+        } else if( e instanceof DeleteEvent ) {
+            String path = getPath( ( (DeleteEvent) e ).getResource() );
+            if( path != null ) {
+                usage.delete( path );
+            }
+        } else if( e instanceof MoveEvent ) {
+            MoveEvent me = (MoveEvent) e;
+            String path = getPath( me.getResource() );
+            String destPath = getPath( me.getDestCollection() );
+            if( path == null ) {
+                return;
+            }
+            if( destPath == null ) {
+                usage.delete( path );
+            } else {
+                usage.move( path, destPath + "/" + me.getNewName() );
+            }
+        } else if( e instanceof CopyEvent ) {
+            CopyEvent ce = (CopyEvent) e;
+            String destPath = getPath( ce.getDestCollection() );
+            if( destPath == null ) {
+                return;
+            }
+            destPath = destPath + "/" + ce.getNewName();
+            String path = getPath( ce.getResource() );
+            if( path != null ) {
+                usage.copy( path, destPath );
+            } else {
+                // the source isnt in the totals, so count the copy itself
+                copiedFromOutside( ce.getResource(), destPath );
+            }
+        }
+    }
+
+    private void copiedFromOutside( Resource r, String destPath ) {
+        usage.delete( destPath );
+        if( r instanceof CollectionResource ) {
+            try {
+                walk( (CollectionResource) r, destPath, usage );
+            } catch( Exception ex ) {
+                log.warn( "couldnt count copy to: " + destPath + ", will be counted on reconcile", ex );
+            }
+        } else {
+            usage.put( destPath, contentLength( r ) );
+        }
+    }
+
+    /**
+     * Rebuild the totals by walking the tree from the root. The new totals
+     * replace the old in one step, so lookups are not affected by a
+     * reconciliation in progress
+     */
+    public synchronized void reconcile() {
+        long tm = System.currentTimeMillis();
+        Usage newUsage = new Usage();
+        CollectionResource root = getRoot();
+        if( root != null ) {
+            try {
+                walk( root, "", newUsage );
+            } catch( Exception e ) {
+                log.error( "couldnt reconcile quota usage, keeping existing totals", e );
+                return;
+            }
+        }
+        Usage old = usage;
+        usage = newUsage;
+        if( log.isDebugEnabled() ) {
+            tm = System.currentTimeMillis() - tm;
+            log.debug( "reconciled quota usage in " + tm + "ms. files: " + newUsage.files.size() + " total: " + newUsage.getCollectionUsage( "" ) + " previous: " + old.getCollectionUsage( "" ) );
+        }
+    }
+
+    private void walk( CollectionResource col, String path, Usage u ) throws Exception {
+        for( Resource r : col.getChildren() ) {
+            String childPath = path + "/" + r.getName();
+            if( r instanceof CollectionResource ) {
+                walk( (CollectionResource) r, childPath, u );
+            } else {
+                u.put( childPath, contentLength( r ) );
+            }
+        }
+    }
+
+    private long contentLength( Resource r ) {
+        if( r instanceof GetableResource ) {
+            Long l = ( (GetableResource) r ).getContentLength();
+            if( l != null ) {
+                return l;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     *
+     * @param path - a collection path
+     * @return - the total bytes used by files beneath the collection
+     */
+    public long getCollectionUsage( String path ) {
+        return usage.getCollectionUsage( path );
+    }
+
+    /**
+     *
+     * @param user
+     * @return - the total bytes used by files owned by the user
+     */
+    public long getUserUsage( String user ) {
+        return usage.getUserUsage( user );
+    }
+
+    /**
+     *
+     * @param path - the path of a collection
+     * @return - the bytes which can be added to the collection without exceeding
+     * any limit, or null if there are no limits which apply
+     */
+    public Long getAvailable( String path ) {
+        Usage u = usage;
+        Long avail = null;
+        if( !collectionLimits.isEmpty() ) {
+            String p = path;
+            while( p != null ) {
+                Long limit = collectionLimits.get( p );
+                if( limit != null ) {
+                    avail = min( avail, limit - u.getCollectionUsage( p ) );
+                }
+                p = parent( p );
+            }
+        }
+        String owner = getOwner( path );
+        if( owner != null ) {
+            Long limit = userLimits.get( owner );
+            if( limit == null ) {
+                limit = defaultUserLimit;
+            }
+            if( limit != null ) {
+                avail = min( avail, limit - u.getUserUsage( owner ) );
+            }
+        }
+        return avail;
+    }
+
+    @Override
+    public Long getQuotaUsed( Resource r ) {
+        String path = getPath( r );
+        if( path == null ) {
+            return null;
+        }
+        if( r instanceof CollectionResource ) {
+            return usage.getCollectionUsage( path );
+        } else {
+            return usage.getFileUsage( path );
+        }
+    }
+
+    @Override
+    public Long getQuotaAvailable( Resource r ) {
+        String path = getPath( r );
+        if( path == null ) {
+            return null;
+        }
+        if( !( r instanceof CollectionResource ) ) {
+            path = parent( path );
+            if( path == null ) {
+                return null;
+            }
+        }
+        return getAvailable( path );
+    }
+
+    private static Long min( Long a, long b ) {
+        if( a == null || b < a ) {
+            return b;
+        }
+        return a;
+    }
+
+    /**
+     *
+     * @param path
+     * @return - the parent path, or null if this is the root
+     */
+    private static String parent( String path ) {
+        if( path.length() == 0 ) {
+            return null;
+        }
+        int pos = path.lastIndexOf( '/' );
+        return pos <= 0 ? "" : path.substring( 0, pos );
+    }
+
+    /**
+     * Set the maximum number of bytes which can be stored beneath the
+     * collection with the given path
+     *
+     * @param path
+     * @param limit - the maximum bytes, or null to remove the limit
+     */
+    public void setCollectionLimit( String path, Long limit ) {
+        if( limit == null ) {
+            collectionLimits.remove( path );
+        } else {
+            collectionLimits.put( path, limit );
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes which can be owned by the given user
+     *
+     * @param user
+     * @param limit - the maximum bytes, or null to use the default
+     */
+    public void setUserLimit( String user, Long limit ) {
+        if( limit == null ) {
+            userLimits.remove( user );
+        } else {
+            userLimits.put( user, limit );
+        }
+    }
+
+    /**
+     * The limit for users which have not had a limit set. Null means unlimited
+     *
+     * @return
+     */
+    public Long getDefaultUserLimit() {
+        return defaultUserLimit;
+    }
+
+    public void setDefaultUserLimit( Long defaultUserLimit ) {
+        this.defaultUserLimit = defaultUserLimit;
+    }
+
+    /**
+     * How often to rebuild the totals from the tree, 0 to only do so on start
+     *
+     * @return
+     */
+    public int getReconcileIntervalSeconds() {
+        return reconcileIntervalSeconds;
+    }
+
+    public void setReconcileIntervalSeconds( int reconcileIntervalSeconds ) {
+        this.reconcileIntervalSeconds = reconcileIntervalSeconds;
+    }
+
+    private static class FileUsage {
+
+        private final long size;
+        private final String owner;
+
+        FileUsage( long size, String owner ) {
+            this.size = size;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The totals. File sizes are kept sorted by path so that everything beneath
+     * a collection can be found by a range lookup
+     */
+    private class Usage {
+
+        private final ConcurrentSkipListMap<String, FileUsage> files = new ConcurrentSkipListMap<String, FileUsage>();
+        private final ConcurrentHashMap<String, AtomicLong> collections = new ConcurrentHashMap<String, AtomicLong>();
+        private final ConcurrentHashMap<String, AtomicLong> users = new ConcurrentHashMap<String, AtomicLong>();
+
+        long getCollectionUsage( String path ) {
+            AtomicLong l = collections.get( path );
+            return l == null ? 0 : l.get();
+        }
+
+        long getUserUsage( String user ) {
+            AtomicLong l = users.get( user );
+            return l == null ? 0 : l.get();
+        }
+
+        Long getFileUsage( String path ) {
+            FileUsage fu = files.get( path );
+            return fu == null ? null : fu.size;
+        }
+
+        void put( String path, long size ) {
+            FileUsage fu = new FileUsage( size, getOwner( path ) );
+            FileUsage old = files.put( path, fu );
+            if( old != null ) {
+                removed( path, old );
+            }
+            added( path, fu );
+        }
+
+        void delete( String path ) {
+            move( path, null );
+        }
+
+        /**
+         * Add the file or collection at path again at dest, replacing anything
+         * which was at dest
+         */
+        void copy( String path, String dest ) {
+            if( path.equals( dest ) ) {
+                return;
+            }
+            Map<String, FileUsage> copied = new HashMap<String, FileUsage>();
+            FileUsage fu = files.get( path );
+            if( fu != null ) {
+                copied.put( path, fu );
+            }
+            copied.putAll( files.subMap( path + "/", path + "0" ) );
+            delete( dest );
+            for( Map.Entry<String, FileUsage> entry : copied.entrySet() ) {
+                put( dest + entry.getKey().substring( path.length() ), entry.getValue().size );
+            }
+        }
+
+        /**
+         * Move the file or collection at path to dest, or remove it if dest
+         * is null
+         */
+        void move( String path, String dest ) {
+            if( path.equals( dest ) ) {
+                return;
+            }
+            List<String> paths = new ArrayList<String>();
+            paths.add( path );
+            // '0' is the character after '/'
+            paths.addAll( files.subMap( path + "/", path + "0" ).keySet() );
+            Set<String> emptied = new HashSet<String>();
+            for( String p : paths ) {
+                FileUsage old = files.remove( p );
+                if( old != null ) {
+                    removed( p, old );
+                    if( dest != null ) {
+                        put( dest + p.substring( path.length() ), old.size );
+                    }
+                    String parent = parent( p );
+                    while( parent != null && parent.length() >= path.length() && emptied.add( parent ) ) {
+                        parent = parent( parent );
+                    }
+                }
+            }
+            // collections which were moved or deleted no longer need a total
+            for( String p : emptied ) {
+                AtomicLong l = collections.get( p );
+                if( l != null && l.get() == 0 ) {
+                    collections.remove( p, l );
+                }
+            }
+        }
+
+        private void added( String path, FileUsage fu ) {
+            adjust( path, fu, fu.size );
+        }
+
+        private void removed( String path, FileUsage fu ) {
+            adjust( path, fu, -fu.size );
+        }
+
+        private void adjust( String path, FileUsage fu, long delta ) {
+            if( delta == 0 ) {
+                return;
+            }
+            String p = parent( path );
+            while( p != null ) {
+                counter( collections, p ).addAndGet( delta );
+                p = parent( p );
+            }
+            if( fu.owner != null ) {
+                counter( users, fu.owner ).addAndGet( delta );
+            }
+        }
+
+        private AtomicLong counter( ConcurrentHashMap<String, AtomicLong> map, String key ) {
+            AtomicLong l = map.get( key );
+            if( l == null ) {
+                l = new AtomicLong();
+                AtomicLong prev = map.putIfAbsent( key, l );
+                if( prev != null ) {
+                    l = prev;
+                }
+            }
+            return l;
+        }
+    }
+}
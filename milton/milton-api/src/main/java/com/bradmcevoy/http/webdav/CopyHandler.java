@@ -21,9 +21,11 @@ package com.bradmcevoy.http.webdav;
 
 import com.bradmcevoy.http.*;
 import com.bradmcevoy.http.Request.Method;
+import com.bradmcevoy.http.Response.Status;
 import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.ConflictException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.event.CopyEvent;
 import com.ettrema.event.DeleteEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +40,8 @@ public class CopyHandler implements ExistingEntityHandler {
     private DeleteHelper deleteHelper;
     private UserAgentHelper userAgentHelper = new DefaultUserAgentHelper();
     private boolean deleteExistingBeforeCopy = true;
+    private TreeCopier treeCopier;
+    private boolean asyncCopy;
 
     public CopyHandler(WebDavResponseHandler responseHandler, HandlerHelper handlerHelper, ResourceHandlerHelper resourceHandlerHelper) {
         this.responseHandler = responseHandler;
@@ -80,6 +84,10 @@ public class CopyHandler implements ExistingEntityHandler {
         } else if (!(rDest instanceof CollectionResource)) {
             log.debug("process: destination exists but is not a collection");
             responseHandler.respondConflict(resource, response, request, "Destination exists but is not a collection: " + dest);
+        } else if (isSelfOrDescendant(request, r, dest)) {
+            // Copying onto itself, or a collection into its own subtree, would never terminate - http://www.webdav.org/specs/rfc4918.html#rfc.section.9.8.5
+            log.debug("process: destination is the source or inside it: " + dest);
+            responseHandler.respondForbidden(resource, response, request);
         } else {
             log.debug("process: copy resource to: " + rDest.getName());
 
@@ -118,7 +126,26 @@ public class CopyHandler implements ExistingEntityHandler {
                         }
                     }
                 }
-                r.copyTo(colDest, dest.name);
+                if (treeCopier != null && treeCopier.canCopy(r, colDest)) {
+                    String destHref = request.getDestinationHeader();
+                    MakeCollectionableResource mkcol = (MakeCollectionableResource) colDest;
+                    // A replaced destination must get its 204 (MIL-87), so only new destinations are copied in the background
+                    if (asyncCopy && !wasDeleted) {
+                        TreeCopier.Job job = treeCopier.copyAsync((CollectionResource) r, mkcol, dest.name, destHref, manager.getEventManager());
+                        log.debug("started background copy: " + job.getId());
+                        response.setLocationHeader(serverUrl(request) + CopyStatusResourceFactory.URI_PREFIX + "/" + job.getId());
+                        response.setStatus(Status.SC_ACCEPTED);
+                        return;
+                    }
+                    TreeCopier.Job job = treeCopier.copy((CollectionResource) r, mkcol, dest.name, destHref, manager.getEventManager());
+                    if (!job.getErrors().isEmpty()) {
+                        responseHandler.responseMultiStatus(resource, response, request, job.getErrors());
+                        return;
+                    }
+                } else {
+                    r.copyTo(colDest, dest.name);
+                    manager.getEventManager().fireEvent(new CopyEvent(r, colDest, dest.name));
+                }
 
                 // See http://www.ettrema.com:8080/browse/MIL-87
                 if (wasDeleted) {
@@ -139,6 +166,64 @@ public class CopyHandler implements ExistingEntityHandler {
         return deleteExistingBeforeCopy;
     }
 
+    /**
+     * Is the destination the source itself or, for a collection, somewhere
+     * beneath it
+     */
+    private boolean isSelfOrDescendant( Request request, Resource source, Dest dest ) {
+        String sourcePath = trimSlash( HttpManager.decodeUrl( request.getAbsolutePath() ) );
+        String destPath = trimSlash( dest.url ) + "/" + dest.name;
+        if( destPath.equals( sourcePath ) ) {
+            return true;
+        }
+        return ( source instanceof CollectionResource ) && destPath.startsWith( sourcePath + "/" );
+    }
+
+    private String trimSlash( String path ) {
+        return path.endsWith( "/" ) ? path.substring( 0, path.length() - 1 ) : path;
+    }
+
+    /**
+     *
+     * @return - the scheme, host and port of the request url
+     */
+    private String serverUrl( Request request ) {
+        String url = request.getAbsoluteUrl();
+        int pos = url.indexOf( "://" );
+        pos = pos < 0 ? -1 : url.indexOf( '/', pos + 3 );
+        return pos < 0 ? "" : url.substring( 0, pos );
+    }
+
+    /**
+     * If set, collections are copied by the TreeCopier rather then by
+     * CopyableResource.copyTo, where the TreeCopier supports the destination
+     *
+     * @return
+     */
+    public TreeCopier getTreeCopier() {
+        return treeCopier;
+    }
+
+    public void setTreeCopier( TreeCopier treeCopier ) {
+        this.treeCopier = treeCopier;
+    }
+
+    /**
+     * If true, collections copied by the TreeCopier are copied in the background.
+     * The response is then a 202 Accepted, with a Location header giving the
+     * status resource for the copy. This requires the resource factory to be
+     * wrapped in a CopyStatusResourceFactory
+     *
+     * @return
+     */
+    public boolean isAsyncCopy() {
+        return asyncCopy;
+    }
+
+    public void setAsyncCopy( boolean asyncCopy ) {
+        this.asyncCopy = asyncCopy;
+    }
+
     private boolean canOverwrite( Request request ) {
         Boolean ow = request.getOverwriteHeader();
         boolean bHasOverwriteHeader = ( ow != null && request.getOverwriteHeader().booleanValue() );
@@ -0,0 +1,104 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.webdav;
+
+import com.bradmcevoy.common.Path;
+import com.bradmcevoy.http.Auth;
+import com.bradmcevoy.http.HrefStatus;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.ResourceFactory;
+import com.bradmcevoy.http.SimpleResource;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+/**
+ * Decorates a resource factory to provide a status resource for each copy
+ * being run in the background by a TreeCopier. The CopyHandler responds to
+ * such copies with a 202 and a Location header giving the status resource,
+ * which is at URI_PREFIX/{job id}
+ *
+ * The status is a plain text document with a line for each of the state,
+ * progress counts, and any errors. Access is authorised as for the collection
+ * being copied.
+ *
+ * @author brad
+ */
+public class CopyStatusResourceFactory implements ResourceFactory {
+
+    public static final String URI_PREFIX = "/.copy-status";
+    private final ResourceFactory wrapped;
+    private final TreeCopier treeCopier;
+
+    public CopyStatusResourceFactory( ResourceFactory wrapped, TreeCopier treeCopier ) {
+        this.wrapped = wrapped;
+        this.treeCopier = treeCopier;
+    }
+
+    @Override
+    public Resource getResource( String host, String sPath ) throws NotAuthorizedException, BadRequestException {
+        if( sPath.startsWith( URI_PREFIX + "/" ) ) {
+            Path path = Path.path( sPath );
+            TreeCopier.Job job = treeCopier.getJob( path.getName() );
+            if( job == null ) {
+                return null;
+            }
+            return new SimpleResource( job.getId(), new Date(), toBytes( status( job ) ), "text/plain", null, job.getSource() ) {
+
+                @Override
+                public Long getMaxAgeSeconds( Auth auth ) {
+                    return null; // the status changes, so must not be cached
+                }
+            };
+        }
+        return wrapped.getResource( host, sPath );
+    }
+
+    private String status( TreeCopier.Job job ) {
+        StringBuilder sb = new StringBuilder();
+        String state;
+        if( !job.isFinished() ) {
+            state = "running";
+        } else if( job.isFailed() ) {
+            state = "failed";
+        } else {
+            state = "complete";
+        }
+        sb.append( "state: " ).append( state ).append( "\n" );
+        sb.append( "destination: " ).append( job.getDestHref() ).append( "\n" );
+        sb.append( "folders-created: " ).append( job.getFoldersCreated() ).append( "\n" );
+        sb.append( "files-found: " ).append( job.getFilesFound() ).append( "\n" );
+        sb.append( "files-copied: " ).append( job.getFilesCopied() ).append( "\n" );
+        sb.append( "bytes-copied: " ).append( job.getBytesCopied() ).append( "\n" );
+        for( HrefStatus hs : job.getErrors() ) {
+            sb.append( "error: " ).append( hs.status.code ).append( " " ).append( hs.href ).append( "\n" );
+        }
+        return sb.toString();
+    }
+
+    private byte[] toBytes( String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch( UnsupportedEncodingException ex ) {
+            throw new RuntimeException( ex );
+        }
+    }
+}
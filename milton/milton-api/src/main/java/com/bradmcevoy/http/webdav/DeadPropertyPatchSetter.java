@@ -0,0 +1,89 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.webdav;
+
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.Response.Status;
+import com.bradmcevoy.http.values.ValueAndType;
+import com.bradmcevoy.http.webdav.PropFindResponse.NameAndError;
+import com.bradmcevoy.http.webdav.PropPatchRequestParser.ParseResult;
+import com.bradmcevoy.property.DeadPropertySource;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps another PropPatchSetter, usually a PropertySourcePatchSetter, and
+ * stores any properties which it doesnt know about as dead properties. Removing
+ * a property which doesnt exist is not an error.
+ *
+ * @author brad
+ */
+public class DeadPropertyPatchSetter implements PropPatchSetter {
+
+	private static final Logger log = LoggerFactory.getLogger(DeadPropertyPatchSetter.class);
+	private final PropPatchSetter wrapped;
+	private final DeadPropertySource deadPropertySource;
+
+	public DeadPropertyPatchSetter(PropPatchSetter wrapped, DeadPropertySource deadPropertySource) {
+		this.wrapped = wrapped;
+		this.deadPropertySource = deadPropertySource;
+	}
+
+	@Override
+	public boolean supports(Resource r) {
+		return wrapped.supports(r) || deadPropertySource.supports(r);
+	}
+
+	@Override
+	public PropFindResponse setProperties(String href, ParseResult parseResult, Resource r) {
+		PropFindResponse resp = wrapped.setProperties(href, parseResult, r);
+		List<NameAndError> notFound = resp.getErrorProperties().get(Status.SC_NOT_FOUND);
+		if (notFound == null || notFound.isEmpty() || !deadPropertySource.supports(r)) {
+			return resp;
+		}
+		Map<QName, String> toSet = new LinkedHashMap<QName, String>();
+		List<QName> toRemove = new ArrayList<QName>();
+		for (NameAndError ne : notFound) {
+			QName name = ne.getName();
+			if (parseResult.getFieldsToSet().containsKey(name)) {
+				toSet.put(name, parseResult.getFieldsToSet().get(name));
+			} else {
+				toRemove.add(name);
+			}
+		}
+		log.trace("setProperties: dead properties to set: {} to remove: {}", toSet.size(), toRemove.size());
+		deadPropertySource.setProperties(r, toSet, toRemove);
+
+		Map<QName, ValueAndType> knownProps = new LinkedHashMap<QName, ValueAndType>(resp.getKnownProperties());
+		for (NameAndError ne : notFound) {
+			knownProps.put(ne.getName(), new ValueAndType(null, String.class));
+		}
+		Map<Status, List<NameAndError>> errorProps = new EnumMap<Status, List<NameAndError>>(Status.class);
+		errorProps.putAll(resp.getErrorProperties());
+		errorProps.remove(Status.SC_NOT_FOUND);
+		return new PropFindResponse(href, knownProps, errorProps);
+	}
+}
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import com.bradmcevoy.http.Request.Method;
 import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.event.DeleteEvent;
 import com.ettrema.event.MoveEvent;
 
 public class MoveHandler implements ExistingEntityHandler {
@@ -101,6 +102,26 @@ public class MoveHandler implements ExistingEntityHandler {
 					log.debug("destination resource exists, and overwrite header is not set");
 					responseHandler.respondPreconditionFailed(request, response, rExisting);
 					return;
+				} else if (r instanceof AtomicReplaceMoveableResource && ((AtomicReplaceMoveableResource) r).canReplace(rExisting)) {
+					if (deleteHelper.isLockedOut(request, rExisting)) {
+						log.debug("destination resource exists but is locked");
+						responseHandler.respondLocked(request, response, rExisting);
+						return;
+					}
+					log.debug("replacing existing destination resource with atomic move");
+					// the events are fired once the move has succeeded, but listeners find where
+					// the resource was moved from using the resource, which moving can change
+					Resource source = findSourceBeforeMove(manager, request, resource);
+					try {
+						((AtomicReplaceMoveableResource) r).moveToReplacing(colDest, dest.name);
+						manager.getEventManager().fireEvent(new DeleteEvent(rExisting));
+						manager.getEventManager().fireEvent(new MoveEvent(source, colDest, dest.name));
+						responseHandler.respondNoContent(resource, response, request);
+					} catch (ConflictException ex) {
+						log.warn("conflict", ex);
+						responseHandler.respondConflict(resource, response, request, dest.toString());
+					}
+					return;
 				} else {
 					if (deleteExistingBeforeMove) {
 						if (rExisting instanceof DeletableResource) {
@@ -140,6 +161,17 @@ public class MoveHandler implements ExistingEntityHandler {
 		log.debug("process: finished");
 	}
 
+	/**
+	 * Find the source resource again, to give to events fired after it has been moved
+	 *
+	 * @return - a resource for the source, as it is before the move
+	 */
+	private Resource findSourceBeforeMove(HttpManager manager, Request request, Resource resource) throws NotAuthorizedException, BadRequestException {
+		String url = resourceHandlerHelper != null ? resourceHandlerHelper.getUrlAdapter().getUrl(request) : request.getAbsolutePath();
+		Resource source = manager.getResourceFactory().getResource(request.getHostHeader(), url);
+		return source != null ? source : resource;
+	}
+
 	private boolean canOverwrite(Request request) {
 		Boolean ow = request.getOverwriteHeader();
 		boolean bHasOverwriteHeader = (ow != null && request.getOverwriteHeader().booleanValue());
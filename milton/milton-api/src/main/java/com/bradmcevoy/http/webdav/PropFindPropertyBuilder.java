@@ -28,6 +28,7 @@ import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.values.ValueAndType;
 import com.bradmcevoy.http.webdav.PropFindResponse.NameAndError;
+import com.bradmcevoy.property.BatchPropertySource;
 import com.bradmcevoy.property.PropertySource;
 import com.bradmcevoy.property.PropertySource.PropertyMetaData;
 import com.ettrema.common.LogUtils;
@@ -179,6 +180,11 @@ public class PropFindPropertyBuilder {
 			CollectionResource col = (CollectionResource) resource;
 			List<? extends Resource> list = col.getChildren();
 			list = new ArrayList<Resource>(list);
+			for (PropertySource source : propertySources) {
+				if (source instanceof BatchPropertySource) {
+					((BatchPropertySource) source).prefetch(list);
+				}
+			}
 			for (Resource child : list) {
 				if (child instanceof PropFindableResource) {
 					String childName = child.getName();
@@ -0,0 +1,511 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.webdav;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.HrefStatus;
+import com.bradmcevoy.http.MakeCollectionableResource;
+import com.bradmcevoy.http.PutableResource;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.Response.Status;
+import com.bradmcevoy.http.Utils;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.io.FileUtils;
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.CopyProgressEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventManager;
+import com.ettrema.event.NewFolderEvent;
+import com.ettrema.event.PutEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies a collection and everything in it, for any source collection which
+ * can list its children and give their content, to any destination which
+ * supports MakeCollectionableResource and PutableResource.
+ *
+ * Collections are created in order, parent before child, on the thread doing
+ * the copy. Files are copied concurrently, on a pool of parallelism threads,
+ * as they are found. Each copy has at most parallelism * 2 files queued or
+ * in progress, and waits for some to finish before finding more, so copying a
+ * large tree doesnt queue a task for every file in it. Content is buffered
+ * in memory for files up to memoryThreshold bytes, and in a temporary file
+ * otherwise.
+ *
+ * Events are fired on the thread doing the copy: NewFolderEvent and PutEvent
+ * for each collection and file created, a CopyProgressEvent every
+ * progressInterval files and when finished, and a CopyEvent for the source
+ * once everything has been copied without errors.
+ *
+ * A copy can also be run in the background, see copyAsync. Its progress can
+ * then be found with getJob, using the id of the returned job, which is what
+ * CopyStatusResourceFactory does to provide a status resource for each copy.
+ *
+ * @author brad
+ */
+public class TreeCopier {
+
+    private static final Logger log = LoggerFactory.getLogger( TreeCopier.class );
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private int parallelism = 4;
+    private int maxAsyncJobs = 2;
+    private int memoryThreshold = 1024 * 1024;
+    private int progressInterval = 100;
+    private int jobExpirySeconds = 3600;
+    private ExecutorService fileExecutor;
+    private ExecutorService jobExecutor;
+
+    /**
+     *
+     * @param source
+     * @param destCollection
+     * @return - true if this can copy the source into the destination collection
+     */
+    public boolean canCopy( Resource source, CollectionResource destCollection ) {
+        return source instanceof CollectionResource && destCollection instanceof MakeCollectionableResource;
+    }
+
+    /**
+     * Copy the source into the destination, on the current thread
+     *
+     * @param source
+     * @param destCollection - the collection to create the copy in
+     * @param name - the name of the copy
+     * @param destHref - the href of the copy, used to report errors
+     * @param eventManager - may be null
+     * @return - the completed job
+     */
+    public Job copy( CollectionResource source, MakeCollectionableResource destCollection, String name, String destHref, EventManager eventManager ) {
+        Job job = new Job( source, destCollection, name, destHref, eventManager );
+        job.run();
+        return job;
+    }
+
+    /**
+     * Start copying the source into the destination in the background
+     *
+     * @return - the job, which can be found again with getJob until
+     * jobExpirySeconds after it finishes
+     */
+    public Job copyAsync( CollectionResource source, MakeCollectionableResource destCollection, String name, String destHref, EventManager eventManager ) {
+        removeExpiredJobs();
+        final Job job = new Job( source, destCollection, name, destHref, eventManager );
+        jobs.put( job.getId(), job );
+        getJobExecutor().submit( job );
+        return job;
+    }
+
+    /**
+     *
+     * @param id
+     * @return - the async job with the given id, or null if there is no such
+     * job or it finished more then jobExpirySeconds ago
+     */
+    public Job getJob( String id ) {
+        return jobs.get( id );
+    }
+
+    private void removeExpiredJobs() {
+        long expiredBefore = System.currentTimeMillis() - jobExpirySeconds * 1000l;
+        Iterator<Job> it = jobs.values().iterator();
+        while( it.hasNext() ) {
+            Job job = it.next();
+            if( job.finished > 0 && job.finished < expiredBefore ) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized ExecutorService getFileExecutor() {
+        if( fileExecutor == null ) {
+            fileExecutor = newExecutor( parallelism );
+        }
+        return fileExecutor;
+    }
+
+    private synchronized ExecutorService getJobExecutor() {
+        if( jobExecutor == null ) {
+            jobExecutor = newExecutor( maxAsyncJobs );
+        }
+        return jobExecutor;
+    }
+
+    private ExecutorService newExecutor( int threads ) {
+        return DaemonThreadFactory.newPool( TreeCopier.class, threads );
+    }
+
+    /**
+     * The number of files to copy at the same time. The file threads are shared
+     * by all copies in progress, so this is a limit for the whole server, not
+     * for each copy
+     *
+     * @return
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public synchronized void setParallelism( int parallelism ) {
+        this.parallelism = parallelism;
+        if( fileExecutor != null ) {
+            fileExecutor.shutdown();
+            fileExecutor = null;
+        }
+    }
+
+    /**
+     * The number of background copies to run at the same time. Others wait
+     * until one finishes
+     *
+     * @return
+     */
+    public int getMaxAsyncJobs() {
+        return maxAsyncJobs;
+    }
+
+    public synchronized void setMaxAsyncJobs( int maxAsyncJobs ) {
+        this.maxAsyncJobs = maxAsyncJobs;
+        if( jobExecutor != null ) {
+            jobExecutor.shutdown();
+            jobExecutor = null;
+        }
+    }
+
+    /**
+     * Files with a known length up to this size are buffered in memory,
+     * otherwise in a temporary file
+     *
+     * @return
+     */
+    public int getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    public void setMemoryThreshold( int memoryThreshold ) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * The number of files copied between each CopyProgressEvent
+     *
+     * @return
+     */
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    public void setProgressInterval( int progressInterval ) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * How long a background copy can be looked up after it finishes
+     *
+     * @return
+     */
+    public int getJobExpirySeconds() {
+        return jobExpirySeconds;
+    }
+
+    public void setJobExpirySeconds( int jobExpirySeconds ) {
+        this.jobExpirySeconds = jobExpirySeconds;
+    }
+
+    /**
+     * A single copy of a collection
+     */
+    public class Job implements Runnable {
+
+        private final String id = UUID.randomUUID().toString();
+        private final CollectionResource source;
+        private final MakeCollectionableResource destCollection;
+        private final String name;
+        private final String destHref;
+        private final EventManager eventManager;
+        private final List<HrefStatus> errors = Collections.synchronizedList( new ArrayList<HrefStatus>() );
+        private final CompletionService<FileCopy> completionService = new ExecutorCompletionService<FileCopy>( getFileExecutor() );
+        private final Semaphore inFlight = new Semaphore( getParallelism() * 2 );
+        private volatile int foldersCreated;
+        private volatile int filesFound;
+        private volatile int filesCopied;
+        private volatile long bytesCopied;
+        private volatile boolean failed;
+        private volatile long finished;
+        private int pending;
+
+        Job( CollectionResource source, MakeCollectionableResource destCollection, String name, String destHref, EventManager eventManager ) {
+            this.source = source;
+            this.destCollection = destCollection;
+            this.name = name;
+            this.destHref = destHref.endsWith( "/" ) ? destHref.substring( 0, destHref.length() - 1 ) : destHref;
+            this.eventManager = eventManager;
+        }
+
+        @Override
+        public void run() {
+            log.debug( "copying: " + source.getName() + " to: " + destHref );
+            try {
+                copyCollection( source, destCollection, name, destHref );
+                while( pending > 0 ) {
+                    completed( completionService.take() );
+                }
+                if( errors.isEmpty() ) {
+                    fire( new CopyEvent( source, destCollection, name ) );
+                }
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            } catch( Throwable e ) {
+                log.error( "exception copying: " + destHref, e );
+                error( destHref + "/", Status.SC_INTERNAL_SERVER_ERROR );
+                failed = true;
+            } finally {
+                finished = System.currentTimeMillis();
+                fire( new CopyProgressEvent( source, destHref, filesFound, filesCopied, bytesCopied, errors.size(), true ) );
+                log.debug( "finished copy to: " + destHref + " files: " + filesCopied + " bytes: " + bytesCopied + " errors: " + errors.size() );
+            }
+        }
+
+        private void copyCollection( CollectionResource from, MakeCollectionableResource toParent, String newName, String href ) throws InterruptedException, NotAuthorizedException, BadRequestException {
+            CollectionResource newCol;
+            try {
+                newCol = toParent.createCollection( newName );
+            } catch( NotAuthorizedException e ) {
+                error( href + "/", Status.SC_FORBIDDEN );
+                return;
+            } catch( ConflictException e ) {
+                error( href + "/", Status.SC_CONFLICT );
+                return;
+            } catch( RuntimeException e ) {
+                log.warn( "exception creating collection: " + href, e );
+                error( href + "/", Status.SC_INTERNAL_SERVER_ERROR );
+                return;
+            }
+            foldersCreated++;
+            fire( new NewFolderEvent( newCol ) );
+            for( Resource child : from.getChildren() ) {
+                String childHref = href + "/" + Utils.percentEncode( child.getName() );
+                if( child instanceof CollectionResource ) {
+                    if( newCol instanceof MakeCollectionableResource ) {
+                        copyCollection( (CollectionResource) child, (MakeCollectionableResource) newCol, child.getName(), childHref );
+                    } else {
+                        error( childHref + "/", Status.SC_CONFLICT );
+                    }
+                } else if( child instanceof GetableResource && newCol instanceof PutableResource ) {
+                    filesFound++;
+                    while( !inFlight.tryAcquire() ) {
+                        completed( completionService.take() );
+                    }
+                    pending++;
+                    completionService.submit( new FileCopy( (GetableResource) child, (PutableResource) newCol, childHref ) );
+                } else {
+                    error( childHref, Status.SC_CONFLICT );
+                }
+                // report on files copied so far, without waiting
+                Future<FileCopy> f;
+                while( ( f = completionService.poll() ) != null ) {
+                    completed( f );
+                }
+            }
+        }
+
+        private void completed( Future<FileCopy> f ) throws InterruptedException {
+            pending--;
+            inFlight.release();
+            FileCopy fc;
+            try {
+                fc = f.get();
+            } catch( ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            }
+            if( fc.created != null ) {
+                filesCopied++;
+                bytesCopied += fc.bytes;
+                fire( new PutEvent( fc.created ) );
+                if( progressInterval > 0 && filesCopied % progressInterval == 0 ) {
+                    fire( new CopyProgressEvent( source, destHref, filesFound, filesCopied, bytesCopied, errors.size(), false ) );
+                }
+            }
+        }
+
+        private void error( String href, Status status ) {
+            log.info( "couldnt copy: " + href + " status: " + status );
+            errors.add( new HrefStatus( href, status ) );
+        }
+
+        private void fire( Event e ) {
+            if( eventManager == null ) {
+                return;
+            }
+            try {
+                eventManager.fireEvent( e );
+            } catch( Exception ex ) {
+                log.warn( "exception firing event: " + e.getClass(), ex );
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public CollectionResource getSource() {
+            return source;
+        }
+
+        public String getDestHref() {
+            return destHref;
+        }
+
+        /**
+         *
+         * @return - files and collections which could not be copied, with
+         * their status
+         */
+        public List<HrefStatus> getErrors() {
+            synchronized( errors ) {
+                return new ArrayList<HrefStatus>( errors );
+            }
+        }
+
+        public int getFoldersCreated() {
+            return foldersCreated;
+        }
+
+        public int getFilesFound() {
+            return filesFound;
+        }
+
+        public int getFilesCopied() {
+            return filesCopied;
+        }
+
+        public long getBytesCopied() {
+            return bytesCopied;
+        }
+
+        public boolean isFinished() {
+            return finished > 0;
+        }
+
+        /**
+         *
+         * @return - true if the copy was aborted by an unexpected exception
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Copies the content of one file, on a pool thread
+         */
+        private class FileCopy implements Callable<FileCopy> {
+
+            private final GetableResource from;
+            private final PutableResource toCol;
+            private final String href;
+            private Resource created;
+            private long bytes;
+
+            FileCopy( GetableResource from, PutableResource toCol, String href ) {
+                this.from = from;
+                this.toCol = toCol;
+                this.href = href;
+            }
+
+            @Override
+            public FileCopy call() {
+                Status status;
+                try {
+                    copy();
+                    return this;
+                } catch( NotAuthorizedException e ) {
+                    status = Status.SC_FORBIDDEN;
+                } catch( ConflictException e ) {
+                    status = Status.SC_CONFLICT;
+                } catch( Exception e ) {
+                    log.warn( "exception copying: " + href, e );
+                    status = Status.SC_INTERNAL_SERVER_ERROR;
+                }
+                error( href, status );
+                return this;
+            }
+
+            private void copy() throws Exception {
+                String ct = from.getContentType( null );
+                Long length = from.getContentLength();
+                if( length != null && length <= memoryThreshold ) {
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream( length.intValue() );
+                    from.sendContent( bout, null, null, ct );
+                    bytes = bout.size();
+                    created = toCol.createNew( from.getName(), new ByteArrayInputStream( bout.toByteArray() ), bytes, ct );
+                } else {
+                    File tmp = File.createTempFile( "milton-copy", null );
+                    try {
+                        OutputStream out = new BufferedOutputStream( new FileOutputStream( tmp ) );
+                        try {
+                            from.sendContent( out, null, null, ct );
+                        } finally {
+                            FileUtils.close( out );
+                        }
+                        bytes = tmp.length();
+                        InputStream in = new BufferedInputStream( new FileInputStream( tmp ) );
+                        try {
+                            created = toCol.createNew( from.getName(), in, bytes, ct );
+                        } finally {
+                            FileUtils.close( in );
+                        }
+                    } finally {
+                        if( !tmp.delete() ) {
+                            log.warn( "couldnt delete temporary file: " + tmp.getAbsolutePath() );
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
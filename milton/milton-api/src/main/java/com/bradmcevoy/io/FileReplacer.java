@@ -0,0 +1,215 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces a file with another, eg a newly written temporary file, so that
+ * readers see either the old or the new file and never nothing.
+ *
+ * With Java 7 or later this is Files.move with ATOMIC_MOVE and
+ * REPLACE_EXISTING, which is atomic on all common platforms. Otherwise
+ * File.renameTo is tried, which atomically replaces an existing file on unix
+ * like platforms. If that fails, because the platform wont rename over an
+ * existing file, the existing file is first renamed to a backup, and the
+ * backup is deleted once the new file is in place.
+ *
+ * A crash part way through that leaves the backup behind. Call recover(file)
+ * before reading a file which is replaced like this, to complete or undo an
+ * interrupted replace.
+ *
+ * @author brad
+ */
+public class FileReplacer {
+
+    private static final Logger log = LoggerFactory.getLogger( FileReplacer.class );
+    /**
+     * Backups of replaced files start with this
+     */
+    public static final String BACKUP_PREFIX = ".milton-replacing-";
+    private static Method toPath;
+    private static Method move;
+    private static Object moveOptions;
+    private static Class<?> atomicMoveNotSupported;
+
+    static {
+        try {
+            Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+            Class<?> optionClass = Class.forName( "java.nio.file.CopyOption" );
+            Class<?> stdOptionClass = Class.forName( "java.nio.file.StandardCopyOption" );
+            Object options = Array.newInstance( optionClass, 2 );
+            Array.set( options, 0, stdOptionClass.getField( "ATOMIC_MOVE" ).get( null ) );
+            Array.set( options, 1, stdOptionClass.getField( "REPLACE_EXISTING" ).get( null ) );
+            atomicMoveNotSupported = Class.forName( "java.nio.file.AtomicMoveNotSupportedException" );
+            move = Class.forName( "java.nio.file.Files" ).getMethod( "move", pathClass, pathClass, options.getClass() );
+            toPath = File.class.getMethod( "toPath" );
+            moveOptions = options;
+        } catch( Exception e ) {
+            log.info( "Atomic moves are not supported on this platform: " + e );
+            move = null;
+        }
+    }
+
+    /**
+     *
+     * @return - true if the Java 7 file API is available, so moveAtomically
+     * can be tried
+     */
+    public static boolean isAtomicMoveSupported() {
+        return move != null;
+    }
+
+    /**
+     * Move source to target, replacing target if it exists, so that readers
+     * see either the old or the new target
+     *
+     * @param source
+     * @param target
+     * @throws IOException - if the move failed, in which case the original
+     * target is still in place
+     */
+    public static void replace( File source, File target ) throws IOException {
+        if( moveAtomically( source, target ) ) {
+            return;
+        }
+        renameReplacing( source, target );
+    }
+
+    /**
+     * Move source to target in a single step using the Java 7 file API,
+     * replacing target if it exists
+     *
+     * @return - false if atomic moves are not supported, either because this
+     * is not Java 7 or later, or by the file system. Nothing has been changed
+     * @throws IOException - if the move was attempted but failed
+     */
+    public static boolean moveAtomically( File source, File target ) throws IOException {
+        if( move == null ) {
+            return false;
+        }
+        try {
+            move.invoke( null, toPath.invoke( source ), toPath.invoke( target ), moveOptions );
+            return true;
+        } catch( InvocationTargetException e ) {
+            Throwable cause = e.getCause();
+            if( atomicMoveNotSupported.isInstance( cause ) ) {
+                log.debug( "atomic move not supported: " + cause );
+                return false;
+            } else if( cause instanceof IOException ) {
+                throw (IOException) cause;
+            } else if( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException( cause );
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Replace target with source using only File.renameTo. The rename is
+     * atomic where the platform will rename over an existing file, otherwise
+     * the existing file is moved to a backup first, and recover will complete
+     * or undo the replace if it is interrupted.
+     *
+     * This is what replace does when the Java 7 file API is not available
+     *
+     * @param source
+     * @param target
+     * @throws IOException - if the rename failed, in which case the original
+     * target is still in place
+     */
+    public static void renameReplacing( File source, File target ) throws IOException {
+        if( source.renameTo( target ) ) {
+            return;
+        }
+        if( !target.exists() ) {
+            throw new IOException( "Couldnt rename " + source.getAbsolutePath() + " to " + target.getAbsolutePath() );
+        }
+        File backup = getBackupFile( target );
+        if( backup.exists() && !backup.delete() ) {
+            throw new IOException( "Couldnt delete old backup: " + backup.getAbsolutePath() );
+        }
+        if( !target.renameTo( backup ) ) {
+            throw new IOException( "Couldnt move existing file to backup: " + target.getAbsolutePath() );
+        }
+        if( !source.renameTo( target ) ) {
+            if( !backup.renameTo( target ) ) {
+                log.error( "Couldnt restore " + target.getAbsolutePath() + " from backup: " + backup.getAbsolutePath() );
+            }
+            throw new IOException( "Couldnt rename " + source.getAbsolutePath() + " to " + target.getAbsolutePath() );
+        }
+        if( !backup.delete() ) {
+            log.warn( "Couldnt delete backup: " + backup.getAbsolutePath() );
+        }
+    }
+
+    /**
+     * Complete or undo a replace of target which was interrupted, eg by a
+     * crash. If the new file is in place the backup is deleted, otherwise the
+     * backup is restored. Does nothing if there is no backup.
+     *
+     * @param target
+     * @return - true if the target was restored from its backup
+     */
+    public static boolean recover( File target ) {
+        File backup = getBackupFile( target );
+        if( !backup.exists() ) {
+            return false;
+        }
+        if( target.exists() ) {
+            if( !backup.delete() ) {
+                log.warn( "Couldnt delete backup: " + backup.getAbsolutePath() );
+            }
+            return false;
+        }
+        if( backup.renameTo( target ) ) {
+            log.warn( "Restored interrupted replace of: " + target.getAbsolutePath() );
+            return true;
+        }
+        log.error( "Couldnt restore " + target.getAbsolutePath() + " from backup: " + backup.getAbsolutePath() );
+        return false;
+    }
+
+    /**
+     *
+     * @param target
+     * @return - the file the target is moved to while being replaced, in the
+     * same directory
+     */
+    public static File getBackupFile( File target ) {
+        File abs = target.getAbsoluteFile();
+        return new File( abs.getParentFile(), BACKUP_PREFIX + abs.getName() );
+    }
+
+    public static boolean isBackupFile( String name ) {
+        return name.startsWith( BACKUP_PREFIX );
+    }
+
+    private FileReplacer() {
+    }
+}
@@ -0,0 +1,44 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.property;
+
+import com.bradmcevoy.http.Resource;
+import java.util.List;
+
+/**
+ * A PropertySource which can load the properties of many resources at once,
+ * which is much cheaper then one at a time for some sources, eg those backed
+ * by a database.
+ *
+ * PropFindPropertyBuilder calls prefetch with the members of a collection
+ * before reading their properties.
+ *
+ * @author brad
+ */
+public interface BatchPropertySource extends PropertySource {
+
+    /**
+     * Load the properties of the given resources, for the current request.
+     * Properties of resources not in the list must still be returned when asked for
+     *
+     * @param resources
+     */
+    void prefetch( List<? extends Resource> resources );
+}
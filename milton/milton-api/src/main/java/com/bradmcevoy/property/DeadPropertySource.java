@@ -0,0 +1,239 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.property;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.HttpManager;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.Response;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManager;
+import com.ettrema.event.MoveEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A PropertySource for dead properties, ie arbitrary properties set by clients,
+ * held in a DeadPropertyStore.
+ *
+ * This source only knows about properties which have been set, so it should
+ * be the last property source. Use a DeadPropertyPatchSetter so that PROPPATCH
+ * can create properties which no source knows about.
+ *
+ * Register with the EventManager so properties are moved, copied and deleted
+ * along with their resources.
+ *
+ * Implementations must say how resources are identified in the store by
+ * implementing getKey. Members of a collection must have keys which start with
+ * the key of the collection followed by a slash.
+ *
+ * @author brad
+ */
+public abstract class DeadPropertySource implements BatchPropertySource, EventListener {
+
+    private static final Logger log = LoggerFactory.getLogger( DeadPropertySource.class );
+    private final String attributeName = DeadPropertySource.class.getName() + ".prefetched." + System.identityHashCode( this );
+    private final DeadPropertyStore store;
+
+    public DeadPropertySource( DeadPropertyStore store ) {
+        this.store = store;
+    }
+
+    /**
+     *
+     * @param r
+     * @return - the key of the resource in the store, or null if it cannot
+     * have dead properties
+     */
+    protected abstract String getKey( Resource r );
+
+    /**
+     *
+     * @param parent
+     * @param name
+     * @return - the key of the resource with the given name in the collection.
+     * By default the key of the collection, a slash, then the name
+     */
+    protected String getKey( CollectionResource parent, String name ) {
+        String key = getKey( parent );
+        return key == null ? null : key + "/" + name;
+    }
+
+    public void register( EventManager eventManager ) {
+        eventManager.registerEventListener( this, MoveEvent.class );
+        eventManager.registerEventListener( this, CopyEvent.class );
+        eventManager.registerEventListener( this, DeleteEvent.class );
+    }
+
+    /**
+     *
+     * @param r
+     * @return - true if the resource can have dead properties
+     */
+    public boolean supports( Resource r ) {
+        return getKey( r ) != null;
+    }
+
+    /**
+     * Set and remove properties in one operation
+     */
+    public void setProperties( Resource r, Map<QName, String> toSet, List<QName> toRemove ) {
+        String key = getKey( r );
+        if( key == null ) {
+            throw new PropertySetException( Response.Status.SC_FORBIDDEN, "Resource cannot have dead properties" );
+        }
+        store.setProperties( key, toSet, toRemove );
+    }
+
+    @Override
+    public Object getProperty( QName name, Resource r ) throws NotAuthorizedException {
+        Map<QName, String> props = getProperties( r );
+        return props == null ? null : props.get( name );
+    }
+
+    @Override
+    public void setProperty( QName name, Object value, Resource r ) throws PropertySetException, NotAuthorizedException {
+        setProperties( r, Collections.singletonMap( name, value == null ? "" : value.toString() ), null );
+    }
+
+    @Override
+    public PropertyMetaData getPropertyMetaData( QName name, Resource r ) {
+        Map<QName, String> props = getProperties( r );
+        if( props != null && props.containsKey( name ) ) {
+            return new PropertyMetaData( PropertyAccessibility.WRITABLE, String.class );
+        }
+        return PropertyMetaData.UNKNOWN;
+    }
+
+    @Override
+    public void clearProperty( QName name, Resource r ) throws PropertySetException, NotAuthorizedException {
+        setProperties( r, null, Collections.singletonList( name ) );
+    }
+
+    @Override
+    public List<QName> getAllPropertyNames( Resource r ) {
+        Map<QName, String> props = getProperties( r );
+        if( props == null ) {
+            return new ArrayList<QName>();
+        }
+        return new ArrayList<QName>( props.keySet() );
+    }
+
+    /**
+     * Loads the properties of all the resources in one call to the store, and
+     * keeps them in the current request
+     */
+    @Override
+    public void prefetch( List<? extends Resource> resources ) {
+        Request request = HttpManager.request();
+        if( request == null ) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>( resources.size() );
+        for( Resource r : resources ) {
+            String key = getKey( r );
+            if( key != null ) {
+                keys.add( key );
+            }
+        }
+        Map<String, Map<QName, String>> found = store.getProperties( keys );
+        Map<String, Map<QName, String>> prefetched = new HashMap<String, Map<QName, String>>( found );
+        for( String key : keys ) {
+            if( !prefetched.containsKey( key ) ) {
+                prefetched.put( key, Collections.<QName, String>emptyMap() );
+            }
+        }
+        request.getAttributes().put( attributeName, new Prefetched( prefetched ) );
+    }
+
+    /**
+     *
+     * @param r
+     * @return - the dead properties of the resource, or null if it has none
+     */
+    public Map<QName, String> getProperties( Resource r ) {
+        String key = getKey( r );
+        if( key == null ) {
+            return null;
+        }
+        Request request = HttpManager.request();
+        if( request != null ) {
+            Prefetched prefetched = (Prefetched) request.getAttributes().get( attributeName );
+            if( prefetched != null && prefetched.properties.containsKey( key ) ) {
+                return prefetched.properties.get( key );
+            }
+        }
+        return store.getProperties( key );
+    }
+
+    @Override
+    public void onEvent( Event e ) {
+        if( e instanceof MoveEvent ) {
+            MoveEvent me = (MoveEvent) e;
+            String key = getKey( me.getResource() );
+            String destKey = getKey( me.getDestCollection(), me.getNewName() );
+            if( key != null && destKey != null ) {
+                log.trace( "move dead properties: " + key + " -> " + destKey );
+                store.move( key, destKey );
+            }
+        } else if( e instanceof CopyEvent ) {
+            CopyEvent ce = (CopyEvent) e;
+            String key = getKey( ce.getResource() );
+            String destKey = getKey( ce.getDestCollection(), ce.getNewName() );
+            if( key != null && destKey != null ) {
+                log.trace( "copy dead properties: " + key + " -> " + destKey );
+                store.copy( key, destKey );
+            }
+        } else if( e instanceof DeleteEvent ) {
+            String key = getKey( ( (DeleteEvent) e ).getResource() );
+            if( key != null ) {
+                store.delete( key );
+            }
+        }
+    }
+
+    public DeadPropertyStore getStore() {
+        return store;
+    }
+
+    /**
+     * Holds the prefetched properties in the request attributes, so they can
+     * be read back without an unchecked cast
+     */
+    private static class Prefetched {
+
+        private final Map<String, Map<QName, String>> properties;
+
+        Prefetched( Map<String, Map<QName, String>> properties ) {
+            this.properties = properties;
+        }
+    }
+}
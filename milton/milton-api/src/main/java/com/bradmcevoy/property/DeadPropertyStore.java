@@ -0,0 +1,79 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.property;
+
+import java.util.Collection;
+import java.util.Map;
+import javax.xml.namespace.QName;
+
+/**
+ * Stores dead properties, ie arbitrary properties set by clients with
+ * PROPPATCH, as text values keyed by a string which identifies the resource.
+ *
+ * Keys are hierarchical, with members of a collection having keys which start
+ * with the collection's key followed by a slash. So moving, copying or
+ * deleting a collection's properties also applies to its members.
+ *
+ * @author brad
+ */
+public interface DeadPropertyStore {
+
+    /**
+     *
+     * @param key
+     * @return - the properties of the resource, or null if it has none
+     */
+    Map<QName, String> getProperties( String key );
+
+    /**
+     * Get the properties of many resources at once, eg all the members of a
+     * collection for a depth 1 PROPFIND
+     *
+     * @param keys
+     * @return - the properties of each resource which has any, keyed by key
+     */
+    Map<String, Map<QName, String>> getProperties( Collection<String> keys );
+
+    /**
+     * Set and remove properties of a resource
+     *
+     * @param key
+     * @param toSet - properties to add or replace, may be null
+     * @param toRemove - names of properties to remove, may be null
+     */
+    void setProperties( String key, Map<QName, String> toSet, Collection<QName> toRemove );
+
+    /**
+     * Move the properties of the resource, and its members, to the destination,
+     * replacing any already there
+     */
+    void move( String key, String destKey );
+
+    /**
+     * Copy the properties of the resource, and its members, to the destination,
+     * replacing any already there
+     */
+    void copy( String key, String destKey );
+
+    /**
+     * Remove the properties of the resource and its members
+     */
+    void delete( String key );
+}
@@ -0,0 +1,399 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.property;
+
+import com.bradmcevoy.io.FileReplacer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import javax.xml.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DeadPropertyStore which holds all properties in memory, and persists them
+ * to a file.
+ *
+ * Each change is appended to the file as a record holding the new properties
+ * of a resource, or that it no longer has any. Records are framed as in
+ * LockJournal: length, payload, CRC32 of the payload. The file is read when
+ * the store is first used, and rewritten with only the current properties then
+ * and when more then half of its records are obsolete.
+ *
+ * Reading stops at a truncated or corrupt record, eg from a crash. If the
+ * whole file wasn't read it is renamed aside, with a .corrupt- suffix, before
+ * being rewritten, so that whatever follows the bad record is not lost.
+ *
+ * @author brad
+ */
+public class FileDeadPropertyStore implements DeadPropertyStore {
+
+    private static final Logger log = LoggerFactory.getLogger( FileDeadPropertyStore.class );
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private final File file;
+    private TreeMap<String, Map<QName, String>> properties;
+    private DataOutputStream out;
+    private int records;
+
+    public FileDeadPropertyStore( File file ) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized Map<QName, String> getProperties( String key ) {
+        Map<QName, String> props = getMap().get( key );
+        return props == null ? null : Collections.unmodifiableMap( props );
+    }
+
+    @Override
+    public synchronized Map<String, Map<QName, String>> getProperties( Collection<String> keys ) {
+        Map<String, Map<QName, String>> result = new HashMap<String, Map<QName, String>>();
+        TreeMap<String, Map<QName, String>> map = getMap();
+        for( String key : keys ) {
+            Map<QName, String> props = map.get( key );
+            if( props != null ) {
+                result.put( key, Collections.unmodifiableMap( props ) );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void setProperties( String key, Map<QName, String> toSet, Collection<QName> toRemove ) {
+        Map<QName, String> props = getMap().get( key );
+        props = props == null ? new LinkedHashMap<QName, String>() : new LinkedHashMap<QName, String>( props );
+        if( toSet != null ) {
+            props.putAll( toSet );
+        }
+        if( toRemove != null ) {
+            for( QName name : toRemove ) {
+                props.remove( name );
+            }
+        }
+        put( key, props );
+        flush();
+    }
+
+    @Override
+    public synchronized void move( String key, String destKey ) {
+        if( key.equals( destKey ) ) {
+            return;
+        }
+        Map<String, Map<QName, String>> moving = tree( key );
+        deleteTree( destKey );
+        for( Map.Entry<String, Map<QName, String>> e : moving.entrySet() ) {
+            put( e.getKey(), null );
+        }
+        for( Map.Entry<String, Map<QName, String>> e : moving.entrySet() ) {
+            put( destKey + e.getKey().substring( key.length() ), e.getValue() );
+        }
+        flush();
+    }
+
+    @Override
+    public synchronized void copy( String key, String destKey ) {
+        if( key.equals( destKey ) ) {
+            return;
+        }
+        Map<String, Map<QName, String>> copying = tree( key );
+        deleteTree( destKey );
+        for( Map.Entry<String, Map<QName, String>> e : copying.entrySet() ) {
+            put( destKey + e.getKey().substring( key.length() ), new LinkedHashMap<QName, String>( e.getValue() ) );
+        }
+        flush();
+    }
+
+    @Override
+    public synchronized void delete( String key ) {
+        deleteTree( key );
+        flush();
+    }
+
+    public synchronized int size() {
+        return getMap().size();
+    }
+
+    public synchronized void close() throws IOException {
+        if( out != null ) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * The properties of the resource and its members
+     */
+    private Map<String, Map<QName, String>> tree( String key ) {
+        TreeMap<String, Map<QName, String>> map = getMap();
+        Map<String, Map<QName, String>> result = new LinkedHashMap<String, Map<QName, String>>();
+        Map<QName, String> props = map.get( key );
+        if( props != null ) {
+            result.put( key, props );
+        }
+        // '0' is the character after '/'
+        result.putAll( map.subMap( key + "/", key + "0" ) );
+        return result;
+    }
+
+    private void deleteTree( String key ) {
+        List<String> keys = new ArrayList<String>( tree( key ).keySet() );
+        for( String k : keys ) {
+            put( k, null );
+        }
+    }
+
+    /**
+     * Update the map and append a record to the file
+     *
+     * @param props - null or empty to remove the resource's properties
+     */
+    private void put( String key, Map<QName, String> props ) {
+        TreeMap<String, Map<QName, String>> map = getMap();
+        if( props == null || props.isEmpty() ) {
+            if( map.remove( key ) == null ) {
+                return;
+            }
+            props = null;
+        } else {
+            map.put( key, props );
+        }
+        if( file == null ) {
+            return;
+        }
+        try {
+            if( out == null ) {
+                out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+            }
+            out.write( record( key, props ) );
+            records++;
+        } catch( IOException ex ) {
+            throw new RuntimeException( "Couldnt write to dead property store: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    private void flush() {
+        if( out == null ) {
+            return;
+        }
+        try {
+            out.flush();
+            if( records > 2 * properties.size() + 100 ) {
+                compact();
+            }
+        } catch( IOException ex ) {
+            throw new RuntimeException( "Couldnt write to dead property store: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    private TreeMap<String, Map<QName, String>> getMap() {
+        if( properties == null ) {
+            properties = new TreeMap<String, Map<QName, String>>();
+            if( file != null ) {
+                try {
+                    if( !load() ) {
+                        setAside();
+                    }
+                    compact();
+                } catch( IOException ex ) {
+                    throw new RuntimeException( "Couldnt load dead property store: " + file.getAbsolutePath(), ex );
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     *
+     * @return - false if reading stopped before the end of the file, at a
+     * truncated or corrupt record
+     */
+    private boolean load() throws IOException {
+        FileReplacer.recover( file );
+        if( !file.exists() ) {
+            return true;
+        }
+        long size = file.length();
+        long read = 0;
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            byte[] payload;
+            while( ( payload = readRecord( in ) ) != null ) {
+                if( !apply( new DataInputStream( new ByteArrayInputStream( payload ) ) ) ) {
+                    break;
+                }
+                read += payload.length + 12;
+            }
+        } finally {
+            in.close();
+        }
+        log.debug( "loaded dead properties for " + properties.size() + " resources from: " + file.getAbsolutePath() );
+        return read == size;
+    }
+
+    /**
+     * Keep the file, including what couldnt be read, for manual recovery
+     */
+    private void setAside() throws IOException {
+        File aside = new File( file.getAbsolutePath() + ".corrupt-" + System.currentTimeMillis() );
+        if( !file.renameTo( aside ) ) {
+            throw new IOException( "Couldnt rename corrupt dead property store to: " + aside.getAbsolutePath() );
+        }
+        log.error( "dead property store has a truncated or corrupt record, properties after it are missing. The original is kept as: " + aside.getAbsolutePath() );
+    }
+
+    /**
+     *
+     * @return - false if the record is not understood
+     */
+    private boolean apply( DataInputStream in ) throws IOException {
+        byte op = in.readByte();
+        String key = readString( in );
+        if( op == OP_DELETE ) {
+            properties.remove( key );
+        } else if( op == OP_PUT ) {
+            int count = in.readInt();
+            Map<QName, String> props = new LinkedHashMap<QName, String>();
+            for( int i = 0; i < count; i++ ) {
+                String ns = readString( in );
+                String local = readString( in );
+                props.put( new QName( ns, local ), readString( in ) );
+            }
+            properties.put( key, props );
+        } else {
+            log.warn( "unknown operation in dead property store: " + op );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return - the payload of the next record, or null if at the end of the
+     * file or the record is incomplete or corrupt
+     */
+    private byte[] readRecord( DataInputStream in ) throws IOException {
+        try {
+            int length = in.readInt();
+            if( length <= 0 || length > MAX_RECORD_LENGTH ) {
+                log.warn( "invalid record length in dead property store: " + length );
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully( payload );
+            long expected = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update( payload );
+            if( crc.getValue() != expected ) {
+                log.warn( "corrupt record in dead property store" );
+                return null;
+            }
+            return payload;
+        } catch( EOFException e ) {
+            return null;
+        }
+    }
+
+    private void compact() throws IOException {
+        close();
+        File tmp = new File( file.getAbsolutePath() + ".tmp" );
+        FileOutputStream fout = new FileOutputStream( tmp );
+        DataOutputStream dout = new DataOutputStream( new BufferedOutputStream( fout ) );
+        try {
+            for( Map.Entry<String, Map<QName, String>> e : properties.entrySet() ) {
+                dout.write( record( e.getKey(), e.getValue() ) );
+            }
+            dout.flush();
+            fout.getFD().sync();
+        } finally {
+            dout.close();
+        }
+        FileReplacer.replace( tmp, file );
+        records = properties.size();
+    }
+
+    private byte[] record( String key, Map<QName, String> props ) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream( bout );
+        if( props == null ) {
+            dout.writeByte( OP_DELETE );
+            writeString( dout, key );
+        } else {
+            dout.writeByte( OP_PUT );
+            writeString( dout, key );
+            dout.writeInt( props.size() );
+            for( Map.Entry<QName, String> e : props.entrySet() ) {
+                writeString( dout, e.getKey().getNamespaceURI() );
+                writeString( dout, e.getKey().getLocalPart() );
+                writeString( dout, e.getValue() == null ? "" : e.getValue() );
+            }
+        }
+        byte[] payload = bout.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        bout = new ByteArrayOutputStream( payload.length + 12 );
+        dout = new DataOutputStream( bout );
+        dout.writeInt( payload.length );
+        dout.write( payload );
+        dout.writeLong( crc.getValue() );
+        return bout.toByteArray();
+    }
+
+    /**
+     * writeUTF is limited to 64k, which property values might exceed
+     */
+    private void writeString( DataOutputStream dout, String s ) throws IOException {
+        byte[] arr = s.getBytes( "UTF-8" );
+        dout.writeInt( arr.length );
+        dout.write( arr );
+    }
+
+    private String readString( DataInputStream in ) throws IOException {
+        int length = in.readInt();
+        if( length < 0 || length > MAX_RECORD_LENGTH ) {
+            throw new IOException( "invalid length: " + length );
+        }
+        byte[] arr = new byte[length];
+        in.readFully( arr );
+        return new String( arr, "UTF-8" );
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates daemon threads, named for the class which uses them, so that
+ * background work never stops the JVM from exiting.
+ *
+ * @author brad
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * Create a fixed size pool of daemon threads. Threads are only started
+     * when there is work, and are stopped again after being idle for 60
+     * seconds, so an unused pool costs nothing
+     *
+     * @param owner - the class using the pool, which names its threads
+     * @param threads - the maximum number of threads
+     * @return
+     */
+    public static ExecutorService newPool( Class<?> owner, int threads ) {
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory( owner ) );
+        tpe.allowCoreThreadTimeOut( true );
+        return tpe;
+    }
+    private final String name;
+
+    public DaemonThreadFactory( Class<?> owner ) {
+        this( owner.getCanonicalName() );
+    }
+
+    public DaemonThreadFactory( String name ) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, name );
+        t.setDaemon( true );
+        return t;
+    }
+}
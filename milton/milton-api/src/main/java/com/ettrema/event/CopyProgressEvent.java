@@ -0,0 +1,89 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.event;
+
+import com.bradmcevoy.http.Resource;
+
+/**
+ * Fired periodically while a collection is being copied by a TreeCopier, and
+ * once when the copy has finished.
+ *
+ * The number of files found increases as the source tree is walked, so is
+ * only the total once the walk is complete
+ *
+ * @author brad
+ */
+public class CopyProgressEvent implements ResourceEvent {
+
+    private final Resource res;
+    private final String destHref;
+    private final int filesFound;
+    private final int filesCopied;
+    private final long bytesCopied;
+    private final int errors;
+    private final boolean finished;
+
+    public CopyProgressEvent( Resource res, String destHref, int filesFound, int filesCopied, long bytesCopied, int errors, boolean finished ) {
+        this.res = res;
+        this.destHref = destHref;
+        this.filesFound = filesFound;
+        this.filesCopied = filesCopied;
+        this.bytesCopied = bytesCopied;
+        this.errors = errors;
+        this.finished = finished;
+    }
+
+    /**
+     *
+     * @return - the collection being copied
+     */
+    @Override
+    public Resource getResource() {
+        return res;
+    }
+
+    public String getDestHref() {
+        return destHref;
+    }
+
+    public int getFilesFound() {
+        return filesFound;
+    }
+
+    public int getFilesCopied() {
+        return filesCopied;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     *
+     * @return - the number of files and collections which could not be copied
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -24,7 +24,9 @@ import com.bradmcevoy.http.Resource;
 
 
 /**
- * Fired just before the resource is moved.
+ * Fired just before the resource is moved, or when the move replaces an
+ * existing resource, just after, along with a DeleteEvent for the replaced
+ * resource. Then the resource is the source as it was before the move.
  *
  * @author brad
  */
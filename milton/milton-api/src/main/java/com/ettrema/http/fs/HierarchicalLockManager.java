@@ -0,0 +1,721 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.LockInfo;
+import com.bradmcevoy.http.LockResult;
+import com.bradmcevoy.http.LockTimeout;
+import com.bradmcevoy.http.LockToken;
+import com.bradmcevoy.http.LockableResource;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.common.Service;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A lock manager which supports shared and exclusive locks, and depth infinity
+ * locks which apply to all members of a locked collection.
+ *
+ * Locks are held in a tree of path nodes, which is also indexed by full path.
+ * Checking a resource for locks is a single map lookup, plus a walk up its
+ * ancestors when there are depth infinity locks. Checking for locks is lock
+ * free. Changes are serialised per stripe, where the stripe is selected by the
+ * first stripeDepth segments of the path, so that LOCK and UNLOCK requests on
+ * unrelated trees don't contend with each other. Locking a resource nearer the
+ * root than stripeDepth takes all stripes.
+ *
+ * Expired locks are removed by a background hashed timer wheel, which
+ * must be started by calling start(). Locks which have expired but not yet
+ * been removed are ignored. While the timer is running the time used to check
+ * for expiry is the time of its last tick, rather then reading the clock on
+ * every check, so a lock can outlive its timeout by up to tickSeconds. Until
+ * start() is called the clock is read on each check. The timer also prunes
+ * nodes left empty by unlocking, so that a resource which is repeatedly locked
+ * and unlocked doesnt create its nodes each time.
+ *
+ * All the locks on a resource, shared locks being held by several users, are
+ * available from getCurrentTokens.
+ *
+ * If a LockJournal is set, locks are recorded in it and reloaded by start(),
+ * so they survive a restart.
+ *
+ * Subclasses provide the path of a resource, which must be consistent for
+ * the lifetime of the lock and must be hierarchical, ie the path of a member
+ * of a collection must begin with the path of the collection.
+ *
+ * @author brad
+ */
+public abstract class HierarchicalLockManager implements SharedLockManager, Service {
+
+    private static final Logger log = LoggerFactory.getLogger( HierarchicalLockManager.class );
+    private static final CurrentLock[] NO_LOCKS = new CurrentLock[0];
+    /**
+     * Locks with longer timeouts than this are never expired by the timer wheel
+     */
+    private static final long MAX_EXPIRING_SECONDS = 60l * 60 * 24 * 365;
+    private static final String ROOT = "";
+    private final Node root = new Node( ROOT, null );
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+    private final ReentrantLock[] stripes;
+    private final int stripeDepth;
+    private final Map<String, CurrentLock> locksByToken = new ConcurrentHashMap<String, CurrentLock>();
+    private final AtomicInteger infiniteLocks = new AtomicInteger();
+    private final ExpiryWheel wheel;
+    private final ScheduledExecutorService scheduler;
+    private LockJournal journal;
+
+    public HierarchicalLockManager() {
+        this( 64, 1, 1, 512 );
+    }
+
+    /**
+     *
+     * @param numStripes - the number of locks used to serialise changes
+     * @param stripeDepth - the number of leading path segments used to select a stripe
+     * @param tickSeconds - the resolution of the expiry timer
+     * @param wheelSize - the number of slots in the expiry timer. Locks with
+     * timeouts longer then tickSeconds * wheelSize are checked once per revolution
+     */
+    public HierarchicalLockManager( int numStripes, int stripeDepth, int tickSeconds, int wheelSize ) {
+        stripes = new ReentrantLock[numStripes];
+        for( int i = 0; i < numStripes; i++ ) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.stripeDepth = stripeDepth;
+        nodes.put( ROOT, root );
+        wheel = new ExpiryWheel( tickSeconds, wheelSize );
+        scheduler = Executors.newScheduledThreadPool( 1, new DaemonThreadFactory( HierarchicalLockManager.class ) );
+    }
+
+    /**
+     * Get the path of the given resource, with segments separated by a slash,
+     * eg /folder/file.doc
+     *
+     * This is called on every check for locks, so should avoid allocating a
+     * new string if possible.
+     *
+     * @param r
+     * @return
+     */
+    protected abstract String getPath( LockableResource r );
+
+    @Override
+    public void start() {
+        if( journal != null ) {
+            try {
+                List<LockJournal.Entry> entries = journal.load();
+                for( LockJournal.Entry e : entries ) {
+                    restore( e.getPath(), e.getToken() );
+                }
+                log.info( "restored " + entries.size() + " locks from: " + journal.getFile().getAbsolutePath() );
+            } catch( IOException ex ) {
+                throw new RuntimeException( "Couldnt load lock journal: " + journal.getFile().getAbsolutePath(), ex );
+            }
+        }
+        log.debug( "starting lock expiry timer, ticking every " + wheel.tickSeconds + "s" );
+        wheel.clock = System.currentTimeMillis();
+        scheduler.scheduleAtFixedRate( wheel, wheel.tickSeconds, wheel.tickSeconds, TimeUnit.SECONDS );
+    }
+
+    @Override
+    public void stop() {
+        scheduler.shutdown();
+        wheel.clock = 0;
+        wheel.pruneEmptied();
+        if( journal != null ) {
+            try {
+                journal.close();
+            } catch( IOException ex ) {
+                log.warn( "Exception closing lock journal", ex );
+            }
+        }
+    }
+
+    @Override
+    public LockResult lock( LockTimeout timeout, LockInfo lockInfo, LockableResource r ) {
+        String path = normalise( getPath( r ) );
+        boolean exclusive = isExclusive( lockInfo );
+        boolean infinite = lockInfo.depth == LockInfo.LockDepth.INFINITY;
+        acquire( path );
+        try {
+            // check for conflicts with ancestors, the resource itself, and if depth infinity, its members
+            Node n = nodes.get( path );
+            for( Node a = ( n != null ? n.parent : nearestAncestor( path ) ); a != null; a = a.parent ) {
+                if( conflicts( a, exclusive, true ) ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+            }
+            if( n != null ) {
+                if( conflicts( n, exclusive, false ) ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+                if( infinite && memberConflicts( n, exclusive ) ) {
+                    return LockResult.failed( LockResult.FailureReason.ALREADY_LOCKED );
+                }
+            } else {
+                n = getOrCreate( path );
+            }
+
+            LockToken newToken = new LockToken( UUID.randomUUID().toString(), lockInfo, timeout );
+            CurrentLock newLock = new CurrentLock( n, newToken, exclusive, infinite );
+            n.add( newLock );
+            if( infinite ) {
+                infiniteLocks.incrementAndGet();
+            }
+            locksByToken.put( newToken.tokenId, newLock );
+            wheel.schedule( newLock );
+            if( journal != null ) {
+                journal.locked( path, newToken );
+            }
+            return LockResult.success( newToken );
+        } finally {
+            release( path );
+        }
+    }
+
+    @Override
+    public LockResult refresh( String tokenId, LockableResource resource ) {
+        CurrentLock curLock = locksByToken.get( tokenId );
+        if( curLock == null || isExpired( curLock ) ) {
+            log.debug( "can't refresh because no lock" );
+            return LockResult.failed( LockResult.FailureReason.PRECONDITION_FAILED );
+        } else {
+            // the wheel will reschedule the lock when its current slot is processed
+            curLock.token.setFrom( new Date() );
+            curLock.expiresAt = expiresAt( curLock.token );
+            if( journal != null ) {
+                journal.refreshed( curLock.token );
+            }
+            return LockResult.success( curLock.token );
+        }
+    }
+
+    @Override
+    public void unlock( String tokenId, LockableResource r ) throws NotAuthorizedException {
+        CurrentLock curLock = locksByToken.get( tokenId );
+        if( curLock == null ) {
+            log.debug( "not locked" );
+            return;
+        }
+        // the resource must be within the scope of the lock
+        String path = normalise( getPath( r ) );
+        String lockPath = curLock.node.path;
+        boolean inScope = path.equals( lockPath )
+            || ( curLock.infinite && ( lockPath.length() == 0 || ( path.startsWith( lockPath ) && path.charAt( lockPath.length() ) == '/' ) ) );
+        if( !inScope ) {
+            throw new NotAuthorizedException( r );
+        }
+        removeLock( curLock );
+    }
+
+    @Override
+    public LockToken getCurrentToken( LockableResource r ) {
+        String path = normalise( getPath( r ) );
+        Node n = nodes.get( path );
+        CurrentLock found = null;
+        if( n != null ) {
+            found = pick( found, n.locks, false );
+        }
+        if( infiniteLocks.get() > 0 ) {
+            for( Node a = ( n != null ? n.parent : nearestAncestor( path ) ); a != null; a = a.parent ) {
+                found = pick( found, a.locks, true );
+            }
+        }
+        return found == null ? null : copy( found );
+    }
+
+    @Override
+    public List<LockToken> getCurrentTokens( LockableResource r ) {
+        String path = normalise( getPath( r ) );
+        Node n = nodes.get( path );
+        List<LockToken> tokens = new ArrayList<LockToken>();
+        if( n != null ) {
+            addTokens( tokens, n.locks, false );
+        }
+        if( infiniteLocks.get() > 0 ) {
+            for( Node a = ( n != null ? n.parent : nearestAncestor( path ) ); a != null; a = a.parent ) {
+                addTokens( tokens, a.locks, true );
+            }
+        }
+        return tokens;
+    }
+
+    private void addTokens( List<LockToken> tokens, CurrentLock[] locks, boolean infiniteOnly ) {
+        for( CurrentLock l : locks ) {
+            if( ( !infiniteOnly || l.infinite ) && !isExpired( l ) ) {
+                tokens.add( copy( l ) );
+            }
+        }
+    }
+
+    private static LockToken copy( CurrentLock l ) {
+        LockToken token = new LockToken();
+        LockInfo info = l.token.info;
+        token.info = new LockInfo( info.scope, info.type, info.lockedByUser, info.depth );
+        token.timeout = l.token.timeout;
+        token.tokenId = l.token.tokenId;
+        token.setFrom( l.token.getFrom() );
+        return token;
+    }
+
+    /**
+     * Prefer exclusive locks, since they are the ones which lock out other users
+     */
+    private CurrentLock pick( CurrentLock found, CurrentLock[] locks, boolean infiniteOnly ) {
+        for( CurrentLock l : locks ) {
+            if( ( !infiniteOnly || l.infinite ) && !isExpired( l ) ) {
+                if( found == null || ( l.exclusive && !found.exclusive ) ) {
+                    found = l;
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean conflicts( Node n, boolean exclusive, boolean infiniteOnly ) {
+        for( CurrentLock l : n.locks ) {
+            if( ( !infiniteOnly || l.infinite ) && ( exclusive || l.exclusive ) && !isExpired( l ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uses the counts maintained on each node to avoid walking the subtree
+     * unless there is possibly a conflicting lock.
+     */
+    private boolean memberConflicts( Node n, boolean exclusive ) {
+        int ownExclusive = 0;
+        CurrentLock[] own = n.locks;
+        for( CurrentLock l : own ) {
+            if( l.exclusive ) {
+                ownExclusive++;
+            }
+        }
+        int members = n.subtreeLocks.get() - own.length;
+        int memberExclusive = n.subtreeExclusive.get() - ownExclusive;
+        if( members <= 0 || ( !exclusive && memberExclusive <= 0 ) ) {
+            return false;
+        }
+        for( Node child : n.children.values() ) {
+            if( conflicts( child, exclusive, false ) || memberConflicts( child, exclusive ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeLock( CurrentLock curLock ) {
+        log.debug( "removeLock: " + curLock.token.tokenId );
+        Node n = curLock.node;
+        acquire( n.path );
+        try {
+            if( curLock.removed ) {
+                return;
+            }
+            curLock.removed = true;
+            wheel.cancel( curLock );
+            locksByToken.remove( curLock.token.tokenId );
+            n.remove( curLock );
+            if( curLock.infinite ) {
+                infiniteLocks.decrementAndGet();
+            }
+            if( journal != null ) {
+                journal.unlocked( curLock.token.tokenId );
+            }
+            // While the wheel is running empty nodes are pruned on its next
+            // tick, so that a resource which is locked and unlocked repeatedly
+            // keeps its node rather then creating it again each time
+            if( wheel.clock > 0 ) {
+                wheel.queuePrune( n );
+            } else {
+                prune( n );
+            }
+        } finally {
+            release( curLock.node.path );
+        }
+    }
+
+    /**
+     * Remove the node and then its ancestors while they are empty. Nodes within
+     * stripeDepth of the root may be shared between stripes, so are never
+     * pruned. Must hold the stripe for the node's path
+     */
+    private void prune( Node n ) {
+        while( n.depth > stripeDepth && n.subtreeLocks.get() == 0 && n.children.isEmpty() ) {
+            if( !nodes.remove( n.path, n ) ) {
+                // already pruned
+                return;
+            }
+            n.parent.children.remove( n.path, n );
+            n = n.parent;
+        }
+    }
+
+    private void pruneQueued( Node n ) {
+        acquire( n.path );
+        try {
+            prune( n );
+        } finally {
+            release( n.path );
+        }
+    }
+
+    /**
+     * Add a lock loaded from the journal, without checking for conflicts
+     */
+    private void restore( String path, LockToken token ) {
+        path = normalise( path );
+        acquire( path );
+        try {
+            Node n = getOrCreate( path );
+            boolean infinite = token.info.depth == LockInfo.LockDepth.INFINITY;
+            CurrentLock l = new CurrentLock( n, token, isExclusive( token.info ), infinite );
+            n.add( l );
+            if( infinite ) {
+                infiniteLocks.incrementAndGet();
+            }
+            locksByToken.put( token.tokenId, l );
+            wheel.schedule( l );
+        } finally {
+            release( path );
+        }
+    }
+
+    private void expire( CurrentLock curLock ) {
+        if( isExpired( curLock ) ) {
+            removeLock( curLock );
+        } else {
+            // refreshed since it was checked
+            wheel.schedule( curLock );
+        }
+    }
+
+    private Node getOrCreate( String path ) {
+        Node n = nodes.get( path );
+        if( n == null ) {
+            Node parent = getOrCreate( parentPath( path ) );
+            Node created = new Node( path, parent );
+            // nodes near the root may be created concurrently from different stripes
+            synchronized( parent ) {
+                n = nodes.get( path );
+                if( n == null ) {
+                    n = created;
+                    parent.children.put( path, n );
+                    nodes.put( path, n );
+                }
+            }
+        }
+        return n;
+    }
+
+    private Node nearestAncestor( String path ) {
+        while( path.length() > 0 ) {
+            path = parentPath( path );
+            Node n = nodes.get( path );
+            if( n != null ) {
+                return n;
+            }
+        }
+        return root;
+    }
+
+    private String parentPath( String path ) {
+        int pos = path.lastIndexOf( '/' );
+        return pos <= 0 ? ROOT : path.substring( 0, pos );
+    }
+
+    private String normalise( String path ) {
+        if( path == null || path.equals( "/" ) ) {
+            return ROOT;
+        } else if( path.endsWith( "/" ) ) {
+            return path.substring( 0, path.length() - 1 );
+        } else {
+            return path;
+        }
+    }
+
+    private boolean isExpired( CurrentLock l ) {
+        return l.removed || wheel.now() > l.expiresAt;
+    }
+
+    /**
+     * Consistent with LockToken.isExpired, which only considers a lock expired
+     * once a whole second has elapsed past its timeout
+     */
+    private static long expiresAt( LockToken token ) {
+        if( token.timeout == null ) {
+            return Long.MAX_VALUE;
+        }
+        Long seconds = token.timeout.getSeconds();
+        if( seconds == null || seconds > MAX_EXPIRING_SECONDS ) {
+            return Long.MAX_VALUE;
+        }
+        return token.getFrom().getTime() + ( seconds + 1 ) * 1000;
+    }
+
+    private boolean isExclusive( LockInfo lockInfo ) {
+        return lockInfo.scope != LockInfo.LockScope.SHARED;
+    }
+
+    private void acquire( String path ) {
+        ReentrantLock stripe = stripe( path );
+        if( stripe == null ) {
+            for( ReentrantLock l : stripes ) {
+                l.lock();
+            }
+        } else {
+            stripe.lock();
+        }
+    }
+
+    private void release( String path ) {
+        ReentrantLock stripe = stripe( path );
+        if( stripe == null ) {
+            for( int i = stripes.length - 1; i >= 0; i-- ) {
+                stripes[i].unlock();
+            }
+        } else {
+            stripe.unlock();
+        }
+    }
+
+    public LockJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * If set, locks are recorded in the journal and reloaded by start(). Must
+     * be set before start() is called.
+     *
+     * @param journal
+     */
+    public void setJournal( LockJournal journal ) {
+        this.journal = journal;
+    }
+
+    /**
+     * Hashes the first stripeDepth segments of the path
+     *
+     * @return - the stripe for the path, or null if the path is too short, in
+     * which case all stripes must be taken
+     */
+    private ReentrantLock stripe( String path ) {
+        int h = 0;
+        int segments = 0;
+        for( int i = 0; i < path.length(); i++ ) {
+            char c = path.charAt( i );
+            if( c == '/' ) {
+                if( i > 0 && ++segments == stripeDepth ) {
+                    return stripes[( h & 0x7fffffff ) % stripes.length];
+                }
+            }
+            h = 31 * h + c;
+        }
+        if( path.length() > 0 && ++segments == stripeDepth ) {
+            return stripes[( h & 0x7fffffff ) % stripes.length];
+        }
+        return null;
+    }
+
+    /**
+     * A node in the tree of locked paths. The locks array is replaced, never
+     * modified, so that it can be read without locking. The locks array is
+     * only changed while holding the stripe for this node's path.
+     */
+    private static class Node {
+
+        final String path;
+        final Node parent;
+        final int depth;
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>( 4 );
+        /**
+         * Set while the node is waiting for the expiry wheel to prune it
+         */
+        volatile boolean pruneQueued;
+        volatile CurrentLock[] locks = NO_LOCKS;
+        /**
+         * The number of locks on this node and all its descendants
+         */
+        final AtomicInteger subtreeLocks = new AtomicInteger();
+        final AtomicInteger subtreeExclusive = new AtomicInteger();
+
+        Node( String path, Node parent ) {
+            this.path = path;
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        void add( CurrentLock l ) {
+            CurrentLock[] newLocks = new CurrentLock[locks.length + 1];
+            System.arraycopy( locks, 0, newLocks, 0, locks.length );
+            newLocks[locks.length] = l;
+            locks = newLocks;
+            count( l, 1 );
+        }
+
+        void remove( CurrentLock l ) {
+            List<CurrentLock> list = new ArrayList<CurrentLock>( locks.length );
+            for( CurrentLock cl : locks ) {
+                if( cl != l ) {
+                    list.add( cl );
+                }
+            }
+            locks = list.isEmpty() ? NO_LOCKS : list.toArray( new CurrentLock[list.size()] );
+            count( l, -1 );
+        }
+
+        private void count( CurrentLock l, int delta ) {
+            for( Node n = this; n != null; n = n.parent ) {
+                n.subtreeLocks.addAndGet( delta );
+                if( l.exclusive ) {
+                    n.subtreeExclusive.addAndGet( delta );
+                }
+            }
+        }
+    }
+
+    private static class CurrentLock {
+
+        final Node node;
+        final LockToken token;
+        final boolean exclusive;
+        final boolean infinite;
+        volatile long expiresAt;
+        volatile boolean removed;
+        /**
+         * The slot of the expiry wheel the lock is in, or -1
+         */
+        volatile int slot = -1;
+
+        CurrentLock( Node node, LockToken token, boolean exclusive, boolean infinite ) {
+            this.node = node;
+            this.token = token;
+            this.exclusive = exclusive;
+            this.infinite = infinite;
+            this.expiresAt = expiresAt( token );
+        }
+    }
+
+    /**
+     * A hashed timer wheel. Each slot holds the locks due to expire in that
+     * tick. Locks due beyond one revolution, or which have been refreshed,
+     * are simply rescheduled when their slot comes around. Unlocked locks are
+     * taken out of their slot, so that only current locks are held on to.
+     */
+    private class ExpiryWheel implements Runnable {
+
+        private final int tickSeconds;
+        private final List<Set<CurrentLock>> slots;
+        private volatile long tick;
+        /**
+         * The time of the last tick, or 0 if the wheel isnt running
+         */
+        private volatile long clock;
+        private final Queue<Node> emptied = new ConcurrentLinkedQueue<Node>();
+
+        ExpiryWheel( int tickSeconds, int wheelSize ) {
+            this.tickSeconds = tickSeconds;
+            slots = new ArrayList<Set<CurrentLock>>( wheelSize );
+            for( int i = 0; i < wheelSize; i++ ) {
+                slots.add( Collections.newSetFromMap( new ConcurrentHashMap<CurrentLock, Boolean>() ) );
+            }
+        }
+
+        long now() {
+            long c = clock;
+            return c > 0 ? c : System.currentTimeMillis();
+        }
+
+        void schedule( CurrentLock l ) {
+            if( l.expiresAt == Long.MAX_VALUE ) {
+                return;
+            }
+            long ticks = ( l.expiresAt - now() ) / ( tickSeconds * 1000l ) + 1;
+            ticks = Math.max( 1, Math.min( ticks, slots.size() - 1 ) );
+            int slot = (int) ( ( tick + ticks ) % slots.size() );
+            l.slot = slot;
+            slots.get( slot ).add( l );
+        }
+
+        void queuePrune( Node n ) {
+            if( !n.pruneQueued ) {
+                n.pruneQueued = true;
+                emptied.add( n );
+            }
+        }
+
+        void pruneEmptied() {
+            Node n;
+            while( ( n = emptied.poll() ) != null ) {
+                n.pruneQueued = false;
+                pruneQueued( n );
+            }
+        }
+
+        void cancel( CurrentLock l ) {
+            int slot = l.slot;
+            if( slot >= 0 ) {
+                slots.get( slot ).remove( l );
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                clock = System.currentTimeMillis();
+                long t = tick + 1;
+                tick = t;
+                Iterator<CurrentLock> it = slots.get( (int) ( t % slots.size() ) ).iterator();
+                while( it.hasNext() ) {
+                    CurrentLock l = it.next();
+                    it.remove();
+                    if( !l.removed ) {
+                        expire( l );
+                    }
+                }
+                pruneEmptied();
+            } catch( Throwable e ) {
+                // dont let an exception cancel the scheduled task
+                log.error( "Exception expiring locks", e );
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.LockInfo;
+import com.bradmcevoy.http.LockTimeout;
+import com.bradmcevoy.http.LockToken;
+import com.bradmcevoy.io.FileReplacer;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only journal of lock changes, so that locks survive a restart.
+ *
+ * Each record is written as: length, payload, CRC32 of the payload. Records
+ * are flushed to the operating system as they are written, so they survive
+ * the process crashing. If syncOnWrite is set they are also forced to disk,
+ * so they survive the machine crashing, at the cost of a disk sync on every
+ * LOCK, refresh and UNLOCK.
+ *
+ * When loading, a truncated or corrupt record (eg from a crash part way
+ * through a write) ends the journal, and everything before it is kept.
+ *
+ * The journal is compacted, by writing the live locks to a new file and
+ * renaming it over the journal, when loaded and whenever the number of
+ * obsolete records exceeds compactThreshold.
+ *
+ * @author brad
+ */
+public class LockJournal {
+
+    private static final Logger log = LoggerFactory.getLogger( LockJournal.class );
+    private static final byte OP_LOCK = 1;
+    private static final byte OP_REFRESH = 2;
+    private static final byte OP_UNLOCK = 3;
+    private final File file;
+    /**
+     * The live locks, in the order they were taken, keyed by token id
+     */
+    private final Map<String, Entry> live = new LinkedHashMap<String, Entry>();
+    private FileOutputStream out;
+    private int obsoleteRecords;
+    private int compactThreshold = 1000;
+    private boolean syncOnWrite;
+
+    public LockJournal( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * Read the journal, discarding expired locks, and compact it so that
+     * it only contains the returned locks.
+     *
+     * @return - the locks which were held and have not expired
+     * @throws IOException
+     */
+    public synchronized List<Entry> load() throws IOException {
+        close();
+        live.clear();
+        FileReplacer.recover( file );
+        if( file.exists() ) {
+            DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try {
+                int count = 0;
+                byte[] payload;
+                while( ( payload = readRecord( in ) ) != null ) {
+                    apply( new DataInputStream( new ByteArrayInputStream( payload ) ) );
+                    count++;
+                }
+                log.debug( "read " + count + " lock journal records from: " + file.getAbsolutePath() );
+            } finally {
+                in.close();
+            }
+        }
+        List<Entry> list = new ArrayList<Entry>();
+        for( Entry e : new ArrayList<Entry>( live.values() ) ) {
+            if( e.token.timeout != null && e.token.isExpired() ) {
+                live.remove( e.token.tokenId );
+            } else {
+                list.add( e );
+            }
+        }
+        compact();
+        return list;
+    }
+
+    public synchronized void locked( String path, LockToken token ) {
+        live.put( token.tokenId, new Entry( path, token ) );
+        append( lockRecord( path, token ) );
+    }
+
+    public synchronized void refreshed( LockToken token ) {
+        if( live.containsKey( token.tokenId ) ) {
+            obsoleteRecords++;
+        }
+        append( refreshRecord( token.tokenId, token.getFrom().getTime() ) );
+    }
+
+    public synchronized void unlocked( String tokenId ) {
+        if( live.remove( tokenId ) != null ) {
+            obsoleteRecords += 2;
+        }
+        append( unlockRecord( tokenId ) );
+    }
+
+    /**
+     * Rewrite the journal so it contains only the live locks
+     *
+     */
+    public synchronized void compact() throws IOException {
+        close();
+        File tmp = new File( file.getAbsolutePath() + ".tmp" );
+        FileOutputStream fout = new FileOutputStream( tmp );
+        try {
+            for( Entry e : live.values() ) {
+                fout.write( lockRecord( e.path, e.token ) );
+            }
+            fout.flush();
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        FileReplacer.replace( tmp, file );
+        obsoleteRecords = 0;
+        log.debug( "compacted lock journal to " + live.size() + " locks" );
+    }
+
+    public synchronized void close() throws IOException {
+        if( out != null ) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void append( byte[] record ) {
+        try {
+            if( out == null ) {
+                out = new FileOutputStream( file, true );
+            }
+            out.write( record );
+            if( syncOnWrite ) {
+                out.getFD().sync();
+            }
+            if( obsoleteRecords > compactThreshold && obsoleteRecords > live.size() ) {
+                compact();
+            }
+        } catch( IOException ex ) {
+            // the lock is still held in memory, so dont fail the request
+            log.error( "Couldnt write to lock journal: " + file.getAbsolutePath(), ex );
+        }
+    }
+
+    private void apply( DataInputStream in ) throws IOException {
+        byte op = in.readByte();
+        String tokenId = in.readUTF();
+        switch( op ) {
+            case OP_LOCK:
+                String path = in.readUTF();
+                LockInfo info = new LockInfo();
+                info.scope = LockInfo.LockScope.values()[in.readByte()];
+                info.type = LockInfo.LockType.values()[in.readByte()];
+                info.depth = LockInfo.LockDepth.values()[in.readByte()];
+                info.lockedByUser = in.readBoolean() ? in.readUTF() : null;
+                long seconds = in.readLong();
+                LockTimeout timeout = seconds < 0 ? null : new LockTimeout( seconds );
+                LockToken token = new LockToken( tokenId, info, timeout );
+                token.setFrom( new Date( in.readLong() ) );
+                live.put( tokenId, new Entry( path, token ) );
+                break;
+            case OP_REFRESH:
+                Entry e = live.get( tokenId );
+                long from = in.readLong();
+                if( e != null ) {
+                    e.token.setFrom( new Date( from ) );
+                }
+                break;
+            case OP_UNLOCK:
+                live.remove( tokenId );
+                break;
+            default:
+                throw new IOException( "Unknown lock journal operation: " + op );
+        }
+    }
+
+    private byte[] lockRecord( String path, LockToken token ) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream( bout );
+        try {
+            dout.writeByte( OP_LOCK );
+            dout.writeUTF( token.tokenId );
+            dout.writeUTF( path );
+            LockInfo info = token.info;
+            dout.writeByte( info.scope == null ? LockInfo.LockScope.EXCLUSIVE.ordinal() : info.scope.ordinal() );
+            dout.writeByte( info.type == null ? LockInfo.LockType.WRITE.ordinal() : info.type.ordinal() );
+            dout.writeByte( info.depth == null ? LockInfo.LockDepth.ZERO.ordinal() : info.depth.ordinal() );
+            dout.writeBoolean( info.lockedByUser != null );
+            if( info.lockedByUser != null ) {
+                dout.writeUTF( info.lockedByUser );
+            }
+            Long seconds = token.timeout == null ? null : token.timeout.getSeconds();
+            dout.writeLong( seconds == null ? -1 : seconds );
+            dout.writeLong( token.getFrom().getTime() );
+        } catch( IOException ex ) {
+            throw new RuntimeException( ex );
+        }
+        return frame( bout.toByteArray() );
+    }
+
+    private byte[] refreshRecord( String tokenId, long from ) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream( bout );
+        try {
+            dout.writeByte( OP_REFRESH );
+            dout.writeUTF( tokenId );
+            dout.writeLong( from );
+        } catch( IOException ex ) {
+            throw new RuntimeException( ex );
+        }
+        return frame( bout.toByteArray() );
+    }
+
+    private byte[] unlockRecord( String tokenId ) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream( bout );
+        try {
+            dout.writeByte( OP_UNLOCK );
+            dout.writeUTF( tokenId );
+        } catch( IOException ex ) {
+            throw new RuntimeException( ex );
+        }
+        return frame( bout.toByteArray() );
+    }
+
+    private byte[] frame( byte[] payload ) {
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        ByteArrayOutputStream bout = new ByteArrayOutputStream( payload.length + 12 );
+        DataOutputStream dout = new DataOutputStream( bout );
+        try {
+            dout.writeInt( payload.length );
+            dout.write( payload );
+            dout.writeLong( crc.getValue() );
+        } catch( IOException ex ) {
+            throw new RuntimeException( ex );
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     *
+     * @return - the payload of the next record, or null if at the end of the
+     * journal or the record is incomplete or corrupt
+     */
+    private byte[] readRecord( DataInputStream in ) throws IOException {
+        try {
+            int length = in.readInt();
+            if( length < 0 || length > 65536 ) {
+                log.warn( "invalid record length in lock journal, ignoring remainder: " + length );
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully( payload );
+            long expected = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update( payload );
+            if( crc.getValue() != expected ) {
+                log.warn( "corrupt record in lock journal, ignoring remainder" );
+                return null;
+            }
+            return payload;
+        } catch( EOFException e ) {
+            return null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Compact the journal once it has this many obsolete records, and at least
+     * as many obsolete records as live locks
+     *
+     * @return
+     */
+    public int getCompactThreshold() {
+        return compactThreshold;
+    }
+
+    public void setCompactThreshold( int compactThreshold ) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * If true each change is forced to disk before the request completes.
+     * Otherwise changes are written to the operating system, but might be lost
+     * if the machine (rather then just the process) crashes
+     *
+     * @return
+     */
+    public boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+    public void setSyncOnWrite( boolean syncOnWrite ) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * A lock as recorded in the journal
+     */
+    public static class Entry {
+
+        private final String path;
+        private final LockToken token;
+
+        public Entry( String path, LockToken token ) {
+            this.path = path;
+            this.token = token;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public LockToken getToken() {
+            return token;
+        }
+    }
+}
@@ -17,28 +17,24 @@
 * under the License.
 */
 
-package com.ettrema.hashsplit;
+package com.ettrema.http.fs;
 
-import java.io.File;
+import com.bradmcevoy.http.LockToken;
+import com.bradmcevoy.http.LockableResource;
 import java.util.List;
 
 /**
+ * A LockManager which supports shared locks, so can return all of the locks
+ * on a resource rather then only one of them
  *
  * @author brad
  */
-public class LocalHashNodeProvider implements HashNodeProvider{
-
-    private List<HashNode> hashNodes;
-
-    public LocalHashNodeProvider(List<HashNode> hashNodes) {
-        this.hashNodes = hashNodes;
-    }
-
-    @Override
-    public List<Long> getHashNodes(File file, Long[] roots) {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-       
-
-
+public interface SharedLockManager extends LockManager {
+
+    /**
+     *
+     * @param resource
+     * @return - all current locks which apply to the resource, empty if none
+     */
+    List<LockToken> getCurrentTokens(LockableResource resource);
 }
@@ -0,0 +1,254 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http;
+
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManagerImpl;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class DeleteHelperImplTest extends TestCase {
+
+    EventManagerImpl eventManager;
+    List<String> deleted;
+    List<StubResource> all;
+
+    @Override
+    protected void setUp() throws Exception {
+        eventManager = new EventManagerImpl();
+        deleted = Collections.synchronizedList( new ArrayList<String>() );
+        all = new ArrayList<StubResource>();
+        eventManager.registerEventListener( new EventListener() {
+
+            @Override
+            public void onEvent( Event e ) {
+                deleted.add( e.getClass().getSimpleName() + ":" + ( (DeleteEvent) e ).getResource().getName() );
+            }
+        }, DeleteEvent.class );
+    }
+
+    public void testDelete() throws Exception {
+        DeleteHelperImpl deleteHelper = new DeleteHelperImpl( new HandlerHelper( null ) );
+        StubResource folder = tree();
+        List<HrefStatus> errors = deleteHelper.delete( null, "http://localhost/folder", folder, eventManager );
+        assertTrue( errors.isEmpty() );
+        assertAllDeleted();
+        // 100 files, 10 folders and the folder itself
+        assertEquals( 111, deleted.size() );
+        assertEquals( "DeleteEvent:folder", deleted.get( deleted.size() - 1 ) );
+    }
+
+    public void testDeleteParallel() throws Exception {
+        DeleteHelperImpl deleteHelper = new DeleteHelperImpl( new HandlerHelper( null ) );
+        deleteHelper.setParallelism( 4 );
+        deleteHelper.setBatchSize( 7 );
+        StubResource folder = tree();
+        List<HrefStatus> errors = deleteHelper.delete( null, "http://localhost/folder", folder, eventManager );
+        assertTrue( errors.isEmpty() );
+        assertAllDeleted();
+        assertEquals( 111, deleted.size() );
+        assertEquals( "DeleteEvent:folder", deleted.get( deleted.size() - 1 ) );
+    }
+
+    public void testMemberFailureIsReported() throws Exception {
+        DeleteHelperImpl deleteHelper = new DeleteHelperImpl( new HandlerHelper( null ) );
+        StubResource bad = new StubResource( "bad", new ConflictException() );
+        StubResource sub = new StubResource( "sub", null, bad, new StubResource( "good", null ) );
+        StubResource other = new StubResource( "other", null );
+        StubResource folder = new StubResource( "folder", null, sub, other );
+        List<HrefStatus> errors = deleteHelper.delete( null, "http://localhost/folder", folder, eventManager );
+        assertEquals( 1, errors.size() );
+        assertEquals( "http://localhost/folder/sub/bad/", errors.get( 0 ).href );
+        assertEquals( Response.Status.SC_CONFLICT, errors.get( 0 ).status );
+        // the failed member and its ancestors are not deleted, and get no events
+        assertFalse( bad.deleted );
+        assertFalse( sub.deleted );
+        assertFalse( folder.deleted );
+        assertTrue( other.deleted );
+        assertEquals( Arrays.asList( "DeleteEvent:good", "DeleteEvent:other" ), deleted );
+    }
+
+    public void testRootFailureIsThrown() throws Exception {
+        DeleteHelperImpl deleteHelper = new DeleteHelperImpl( new HandlerHelper( null ) );
+        StubResource child = new StubResource( "child", null );
+        StubResource folder = new StubResource( "folder", new NotAuthorizedException( null ), child );
+        try {
+            deleteHelper.delete( null, "http://localhost/folder", folder, eventManager );
+            fail( "should have thrown" );
+        } catch( NotAuthorizedException e ) {
+            // expected, so the handler can issue an auth challenge
+        }
+        assertTrue( child.deleted );
+        assertEquals( Arrays.asList( "DeleteEvent:child" ), deleted );
+
+        StubResource file = new StubResource( "file", new ConflictException() );
+        try {
+            deleteHelper.delete( null, "http://localhost/file", file, eventManager );
+            fail( "should have thrown" );
+        } catch( ConflictException e ) {
+            // expected
+        }
+        assertEquals( 1, deleted.size() );
+    }
+
+    public void testSimpleDeleteFiresEventsAfterDeleting() throws Exception {
+        DeleteHelperImpl deleteHelper = new DeleteHelperImpl( new HandlerHelper( null ) );
+        StubResource good = new StubResource( "good", null );
+        StubResource bad = new StubResource( "bad", new ConflictException() );
+        StubResource folder = new StubResource( "folder", null, good, bad );
+        try {
+            deleteHelper.delete( folder, eventManager );
+            fail( "should have thrown" );
+        } catch( ConflictException e ) {
+            // expected
+        }
+        assertTrue( good.deleted );
+        assertFalse( folder.deleted );
+        assertEquals( Arrays.asList( "DeleteEvent:good" ), deleted );
+
+        deleted.clear();
+        folder = new StubResource( "folder", null, new StubResource( "a", null ) );
+        deleteHelper.delete( folder, eventManager );
+        assertEquals( Arrays.asList( "DeleteEvent:a", "DeleteEvent:folder" ), deleted );
+    }
+
+    /**
+     * folder/sub0..4/subsub, with 10 files in each sub and subsub
+     */
+    private StubResource tree() {
+        Resource[] subs = new Resource[5];
+        for( int i = 0; i < subs.length; i++ ) {
+            StubResource subsub = stub( "subsub", files() );
+            Resource[] members = files();
+            Resource[] subMembers = Arrays.copyOf( members, members.length + 1 );
+            subMembers[members.length] = subsub;
+            subs[i] = stub( "sub" + i, subMembers );
+        }
+        return stub( "folder", subs );
+    }
+
+    private Resource[] files() {
+        Resource[] files = new Resource[10];
+        for( int j = 0; j < files.length; j++ ) {
+            files[j] = stub( "file" + j + ".txt" );
+        }
+        return files;
+    }
+
+    private StubResource stub( String name, Resource... children ) {
+        StubResource r = new StubResource( name, null, children );
+        all.add( r );
+        return r;
+    }
+
+    private void assertAllDeleted() {
+        assertEquals( 111, all.size() );
+        for( StubResource r : all ) {
+            assertTrue( r.getName(), r.deleted );
+        }
+    }
+
+    private static class StubResource implements DeletableResource, CollectionResource {
+
+        private final String name;
+        private final Exception failure;
+        private final List<Resource> children;
+        private volatile boolean deleted;
+
+        StubResource( String name, Exception failure, Resource... children ) {
+            this.name = name;
+            this.failure = failure;
+            this.children = Arrays.asList( children );
+        }
+
+        @Override
+        public void delete() throws NotAuthorizedException, ConflictException, BadRequestException {
+            if( failure instanceof NotAuthorizedException ) {
+                throw (NotAuthorizedException) failure;
+            } else if( failure instanceof ConflictException ) {
+                throw (ConflictException) failure;
+            }
+            deleted = true;
+        }
+
+        @Override
+        public Resource child( String childName ) {
+            for( Resource r : children ) {
+                if( r.getName().equals( childName ) ) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<? extends Resource> getChildren() {
+            return children;
+        }
+
+        @Override
+        public String getUniqueId() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Object authenticate( String user, String password ) {
+            return user;
+        }
+
+        @Override
+        public boolean authorise( Request request, Request.Method method, Auth auth ) {
+            return true;
+        }
+
+        @Override
+        public String getRealm() {
+            return null;
+        }
+
+        @Override
+        public Date getModifiedDate() {
+            return null;
+        }
+
+        @Override
+        public String checkRedirect( Request request ) {
+            return null;
+        }
+    }
+}
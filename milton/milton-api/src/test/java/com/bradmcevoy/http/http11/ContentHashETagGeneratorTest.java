@@ -0,0 +1,190 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11;
+
+import com.bradmcevoy.http.Auth;
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.Range;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class ContentHashETagGeneratorTest extends TestCase {
+
+    File storeFile;
+    StubFolder dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        storeFile = new File( "target/etagtest/digests" );
+        FileUtils.deleteDirectory( storeFile.getParentFile() );
+        storeFile.getParentFile().mkdirs();
+        dir = new StubFolder();
+    }
+
+    public void testEtagIsContentHash() throws Exception {
+        ContentHashETagGenerator gen = new ContentHashETagGenerator( storeFile );
+        Resource a = new StubFile( "a.txt", "hello", 1000 );
+        Resource b = new StubFile( "b.txt", "hello", 1000 );
+        String expected = new String( Hex.encodeHex( ContentHashETagGenerator.newDigest().digest( "hello".getBytes() ) ) );
+        assertEquals( expected, gen.generateEtag( a ) );
+        assertEquals( expected, gen.generateEtag( b ) );
+        // collections use the fallback generator
+        assertEquals( new DefaultETagGenerator().generateEtag( dir ), gen.generateEtag( dir ) );
+    }
+
+    public void testRecordedDigestIsUsedAndPersisted() throws Exception {
+        ContentHashETagGenerator gen = new ContentHashETagGenerator( storeFile );
+        Resource a = new StubFile( "a.txt", "hello", 1000 );
+        byte[] recorded = new byte[32];
+        recorded[0] = 1;
+        gen.recordDigest( a, recorded );
+        String expected = new String( Hex.encodeHex( recorded ) );
+        assertEquals( expected, gen.generateEtag( a ) );
+        gen.getDigestStore().close();
+
+        ContentHashETagGenerator reloaded = new ContentHashETagGenerator( storeFile );
+        assertEquals( expected, reloaded.generateEtag( a ) );
+
+        // a new version is hashed again
+        a = new StubFile( "a.txt", "world", 2000 );
+        String hash = new String( Hex.encodeHex( ContentHashETagGenerator.newDigest().digest( "world".getBytes() ) ) );
+        assertEquals( hash, reloaded.generateEtag( a ) );
+        assertEquals( 1, reloaded.getDigestStore().size() );
+    }
+
+    private static abstract class StubResource implements Resource {
+
+        @Override
+        public Object authenticate( String user, String password ) {
+            return user;
+        }
+
+        @Override
+        public boolean authorise( Request request, Request.Method method, Auth auth ) {
+            return true;
+        }
+
+        @Override
+        public String getRealm() {
+            return null;
+        }
+
+        @Override
+        public String checkRedirect( Request request ) {
+            return null;
+        }
+    }
+
+    private static class StubFolder extends StubResource implements CollectionResource {
+
+        private final Date modified = new Date( 1000 );
+
+        @Override
+        public Resource child( String childName ) {
+            return null;
+        }
+
+        @Override
+        public List<? extends Resource> getChildren() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getUniqueId() {
+            return "dir";
+        }
+
+        @Override
+        public String getName() {
+            return "dir";
+        }
+
+        @Override
+        public Date getModifiedDate() {
+            return modified;
+        }
+    }
+
+    /**
+     * Identified by name, with a version from the modified date like a file
+     */
+    private static class StubFile extends StubResource implements GetableResource {
+
+        private final String name;
+        private final byte[] content;
+        private final Date modified;
+
+        StubFile( String name, String content, long modified ) {
+            this.name = name;
+            this.content = content.getBytes();
+            this.modified = new Date( modified );
+        }
+
+        @Override
+        public void sendContent( OutputStream out, Range range, Map<String, String> params, String contentType ) throws IOException {
+            out.write( content );
+        }
+
+        @Override
+        public Long getMaxAgeSeconds( Auth auth ) {
+            return null;
+        }
+
+        @Override
+        public String getContentType( String accepts ) {
+            return "text/plain";
+        }
+
+        @Override
+        public Long getContentLength() {
+            return (long) content.length;
+        }
+
+        @Override
+        public String getUniqueId() {
+            return name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Date getModifiedDate() {
+            return modified;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11;
+
+import com.bradmcevoy.http.Request;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class VerifyingInputStreamTest extends TestCase {
+
+    static final byte[] CONTENT = "some uploaded content".getBytes();
+    PutHelper putHelper = new PutHelper( null );
+
+    public void testMatchingDigests() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put( "Content-MD5", base64( "MD5", CONTENT ) );
+        headers.put( "Digest", "UNIXsum=123, SHA-256=" + base64( "SHA-256", CONTENT ) );
+        VerifyingInputStream vin = putHelper.createVerifyingStream( request( headers ) );
+        assertTrue( vin.isVerifying() );
+        assertNull( vin.getDigest( "MD5" ) );
+        assertEquals( "some uploaded content", new String( IOUtils.toByteArray( vin ) ) );
+        assertTrue( vin.isComplete() );
+        assertFalse( vin.isMismatch() );
+        assertTrue( MessageDigest.isEqual( MessageDigest.getInstance( "MD5" ).digest( CONTENT ), vin.getDigest( "MD5" ) ) );
+    }
+
+    public void testMismatchThrowsAtEnd() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put( "Content-MD5", base64( "MD5", "other content".getBytes() ) );
+        VerifyingInputStream vin = putHelper.createVerifyingStream( request( headers ) );
+        byte[] buf = new byte[5];
+        assertEquals( 5, vin.read( buf, 0, buf.length ) );
+        assertFalse( vin.isComplete() );
+        try {
+            vin.drain();
+            fail( "should have thrown" );
+        } catch( ContentDigestException e ) {
+            assertEquals( "MD5", e.getAlgorithm() );
+        }
+        assertTrue( vin.isMismatch() );
+        // and keeps throwing, so a caller cant miss it
+        try {
+            vin.read();
+            fail( "should have thrown" );
+        } catch( ContentDigestException e ) {
+            // expected
+        }
+    }
+
+    public void testNothingToVerify() throws Exception {
+        assertNull( putHelper.createVerifyingStream( request( new HashMap<String, String>() ) ) );
+        assertNotNull( putHelper.createVerifyingStream( request( new HashMap<String, String>() ), "SHA-256" ) );
+    }
+
+    private String base64( String algorithm, byte[] data ) throws Exception {
+        return new String( Base64.encodeBase64( MessageDigest.getInstance( algorithm ).digest( data ) ) );
+    }
+
+    private Request request( final Map<String, String> headers ) {
+        return (Request) Proxy.newProxyInstance( Request.class.getClassLoader(), new Class[]{Request.class}, new InvocationHandler() {
+
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                if( method.getName().equals( "getInputStream" ) ) {
+                    return new ByteArrayInputStream( CONTENT );
+                } else if( method.getName().equals( "getRequestHeader" ) ) {
+                    return headers.get( ( (Request.Header) args[0] ).code );
+                }
+                return null;
+            }
+        } );
+    }
+}
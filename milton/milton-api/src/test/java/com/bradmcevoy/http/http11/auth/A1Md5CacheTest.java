@@ -0,0 +1,84 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11.auth;
+
+import com.bradmcevoy.http.Request.Method;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class A1Md5CacheTest extends TestCase {
+
+    DigestGenerator gen = new DigestGenerator();
+    CountingSource source;
+    A1Md5Cache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        source = new CountingSource();
+        cache = new A1Md5Cache();
+    }
+
+    public void testReloadRateLimited() {
+        String a1Md5 = cache.get( source, "user1", "milton" );
+        assertEquals( 1, source.loads );
+        source.password = "changed";
+        assertEquals( a1Md5, cache.reload( source, "user1", "milton" ) );
+        assertEquals( 1, source.loads );
+
+        cache.setMinReloadSeconds( 0 );
+        assertFalse( a1Md5.equals( cache.reload( source, "user1", "milton" ) ) );
+        assertEquals( 2, source.loads );
+    }
+
+    public void testWrongPasswordDoesntReloadEachTime() {
+        DigestHelper helper = new DigestHelper( null );
+        DigestResponse unsigned = response( null );
+        DigestResponse wrong = response( gen.generateDigest( unsigned, "wrong" ) );
+        for( int i = 0; i < 10; i++ ) {
+            assertNull( helper.authenticate( wrong, source ) );
+        }
+        assertEquals( 1, source.loads );
+        assertEquals( "user1", helper.authenticate( response( gen.generateDigest( unsigned, "password1" ) ), source ) );
+    }
+
+    private DigestResponse response( String digest ) {
+        return new DigestResponse( Method.PROPFIND, "user1", "milton", "MTMzNzk5NzQ0NjYxMzoxMjM0", "/webdav/file.txt", digest, "auth", "00000001", "0a4f113b" );
+    }
+
+    private class CountingSource implements A1Md5Source {
+
+        String password = "password1";
+        int loads;
+
+        @Override
+        public String getA1Md5( String user, String realm ) {
+            loads++;
+            return gen.encodePasswordInA1Format( user, realm, password );
+        }
+
+        @Override
+        public Object getUser( String user, String realm ) {
+            return user;
+        }
+    }
+}
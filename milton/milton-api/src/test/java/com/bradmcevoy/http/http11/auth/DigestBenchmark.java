@@ -0,0 +1,130 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.http11.auth;
+
+import com.bradmcevoy.http.Request.Method;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Measures checking a digest auth response. Not run as part of the build, run
+ * the main method with the test classpath, optionally giving the number of
+ * iterations.
+ *
+ * Compares the string concatenation and md5Hex path DigestGenerator used to
+ * have, the current cleartext password path, and the path used for an
+ * A1Md5Source, ie a cached HA1 checked with isDigestCorrect.
+ *
+ * @author brad
+ */
+public class DigestBenchmark {
+
+    private static final String USER = "user1";
+    private static final String REALM = "milton";
+    private static final String PASSWORD = "password1";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final DigestGenerator gen = new DigestGenerator();
+        DigestResponse unsigned = new DigestResponse(Method.PROPFIND, USER, REALM, "MTMzNzk5NzQ0NjYxMzoxMjM0", "/webdav/folder/file.txt", null, "auth", "00000001", "0a4f113b");
+        String response = gen.generateDigest(unsigned, PASSWORD);
+        final DigestResponse dr = new DigestResponse(Method.PROPFIND, USER, REALM, unsigned.getNonce(), unsigned.getUri(), response, "auth", unsigned.getNc(), unsigned.getCnonce());
+        final A1Md5Cache cache = new A1Md5Cache();
+        final A1Md5Source source = new A1Md5Source() {
+
+            @Override
+            public String getA1Md5(String user, String realm) {
+                return gen.encodePasswordInA1Format(user, realm, PASSWORD);
+            }
+
+            @Override
+            public Object getUser(String user, String realm) {
+                return user;
+            }
+        };
+
+        Check[] checks = {
+            new Check("string concatenation") {
+
+                @Override
+                boolean check() {
+                    return oldDigest(dr, PASSWORD).equals(dr.getResponseDigest());
+                }
+            },
+            new Check("cleartext password") {
+
+                @Override
+                boolean check() {
+                    return gen.generateDigest(dr, PASSWORD).equals(dr.getResponseDigest());
+                }
+            },
+            new Check("cached HA1") {
+
+                @Override
+                boolean check() {
+                    return gen.isDigestCorrect(dr, cache.get(source, dr.getUser(), dr.getRealm()));
+                }
+            }
+        };
+        for (Check c : checks) {
+            if (!c.check()) {
+                throw new IllegalStateException("Wrong result from: " + c.name);
+            }
+            c.run(iterations); // warm up
+        }
+        for (Check c : checks) {
+            long t = System.nanoTime();
+            c.run(iterations);
+            t = System.nanoTime() - t;
+            System.out.println(String.format("%s: %d checks, %.0f ns per check", c.name, iterations, (double) t / iterations));
+        }
+    }
+
+    /**
+     * As DigestGenerator.generateDigest was before HA1 caching
+     */
+    private static String oldDigest(DigestResponse dr, String password) {
+        String a1Md5 = DigestUtils.md5Hex(dr.getUser() + ":" + dr.getRealm() + ":" + password);
+        String a2Md5 = DigestUtils.md5Hex(dr.getMethod().code + ":" + dr.getUri());
+        return DigestUtils.md5Hex(a1Md5 + ":" + dr.getNonce() + ":" + dr.getNc() + ":" + dr.getCnonce() + ":" + dr.getQop() + ":" + a2Md5);
+    }
+
+    private static abstract class Check {
+
+        final String name;
+
+        Check(String name) {
+            this.name = name;
+        }
+
+        abstract boolean check();
+
+        void run(int iterations) {
+            int failed = 0;
+            for (int i = 0; i < iterations; i++) {
+                if (!check()) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                throw new IllegalStateException(name + " failed " + failed + " times");
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.http.webdav;
+
+import com.bradmcevoy.http.Auth;
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.MakeCollectionableResource;
+import com.bradmcevoy.http.PutableResource;
+import com.bradmcevoy.http.Range;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.CopyProgressEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManagerImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class TreeCopierTest extends TestCase {
+
+    static final AtomicInteger listings = new AtomicInteger();
+    static volatile CountDownLatch gate;
+
+    Folder root;
+    EventManagerImpl eventManager;
+    List<CopyProgressEvent> progress;
+    TreeCopier treeCopier;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new Folder( "root" );
+        Folder folder = (Folder) root.createCollection( "folder" );
+        for( int i = 0; i < 3; i++ ) {
+            Folder sub = (Folder) folder.createCollection( "sub" + i );
+            Folder subsub = (Folder) sub.createCollection( "subsub" );
+            for( int j = 0; j < 10; j++ ) {
+                subsub.put( "file" + j + ".txt", "hello " + i + " " + j );
+                sub.put( "file" + j + ".txt", "hello there " + i + " " + j );
+            }
+        }
+        root.createCollection( "dest" );
+        eventManager = new EventManagerImpl();
+        progress = new ArrayList<CopyProgressEvent>();
+        eventManager.registerEventListener( new EventListener() {
+
+            @Override
+            public void onEvent( Event e ) {
+                progress.add( (CopyProgressEvent) e );
+            }
+        }, CopyProgressEvent.class );
+        treeCopier = new TreeCopier();
+        treeCopier.setParallelism( 3 );
+        treeCopier.setProgressInterval( 10 );
+        treeCopier.setMemoryThreshold( 10 ); // so some files go through temp files
+    }
+
+    public void testCopy() throws Exception {
+        Folder folder = (Folder) root.child( "folder" );
+        Folder dest = (Folder) root.child( "dest" );
+        final List<Boolean> copied = new ArrayList<Boolean>();
+        eventManager.registerEventListener( new EventListener() {
+
+            @Override
+            public void onEvent( Event e ) {
+                // properties etc are copied on this event, so everything must be there
+                copied.add( find( "dest/copy/sub2/subsub/file9.txt" ) != null );
+            }
+        }, CopyEvent.class );
+        TreeCopier.Job job = treeCopier.copy( folder, dest, "copy", "http://localhost/dest/copy", eventManager );
+        assertTrue( job.isFinished() );
+        assertFalse( job.isFailed() );
+        assertTrue( job.getErrors().isEmpty() );
+        assertEquals( 60, job.getFilesCopied() );
+        assertEquals( 7, job.getFoldersCreated() );
+        for( int i = 0; i < 3; i++ ) {
+            for( int j = 0; j < 10; j++ ) {
+                assertEquals( "hello " + i + " " + j, find( "dest/copy/sub" + i + "/subsub/file" + j + ".txt" ).content );
+                assertEquals( "hello there " + i + " " + j, find( "dest/copy/sub" + i + "/file" + j + ".txt" ).content );
+            }
+        }
+        assertEquals( 7, progress.size() );
+        CopyProgressEvent last = progress.get( progress.size() - 1 );
+        assertTrue( last.isFinished() );
+        assertEquals( 60, last.getFilesCopied() );
+        assertEquals( job.getBytesCopied(), last.getBytesCopied() );
+        assertEquals( 1, copied.size() );
+        assertTrue( copied.get( 0 ) );
+    }
+
+    public void testCopyAsync() throws Exception {
+        Folder folder = (Folder) root.child( "folder" );
+        Folder dest = (Folder) root.child( "dest" );
+        TreeCopier.Job job = treeCopier.copyAsync( folder, dest, "copy2", "http://localhost/dest/copy2", eventManager );
+        assertSame( job, treeCopier.getJob( job.getId() ) );
+        for( int i = 0; i < 100 && !job.isFinished(); i++ ) {
+            Thread.sleep( 50 );
+        }
+        assertTrue( job.isFinished() );
+        assertEquals( 60, job.getFilesCopied() );
+        assertNotNull( find( "dest/copy2/sub2/subsub/file9.txt" ) );
+    }
+
+    public void testInFlightIsBounded() throws Exception {
+        treeCopier.setParallelism( 1 );
+        Folder folder = (Folder) root.child( "folder" );
+        Folder dest = (Folder) root.child( "dest" );
+        gate = new CountDownLatch( 1 );
+        try {
+            listings.set( 0 );
+            TreeCopier.Job job = treeCopier.copyAsync( folder, dest, "copy3", "http://localhost/dest/copy3", eventManager );
+            Thread.sleep( 200 );
+            // stuck in folder/sub0/subsub with 2 files in flight, rather than
+            // listing the whole tree
+            assertEquals( 3, listings.get() );
+            gate.countDown();
+            for( int i = 0; i < 100 && !job.isFinished(); i++ ) {
+                Thread.sleep( 50 );
+            }
+            assertTrue( job.isFinished() );
+            assertEquals( 60, job.getFilesCopied() );
+        } finally {
+            gate.countDown();
+            gate = null;
+        }
+    }
+
+    private Doc find( String path ) {
+        Resource r = root;
+        for( String name : path.split( "/" ) ) {
+            if( !( r instanceof Folder ) ) {
+                return null;
+            }
+            r = ( (Folder) r ).child( name );
+        }
+        return (Doc) r;
+    }
+
+    private static abstract class Item implements Resource {
+
+        final String name;
+
+        Item( String name ) {
+            this.name = name;
+        }
+
+        @Override
+        public String getUniqueId() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Object authenticate( String user, String password ) {
+            return user;
+        }
+
+        @Override
+        public boolean authorise( Request request, Request.Method method, Auth auth ) {
+            return true;
+        }
+
+        @Override
+        public String getRealm() {
+            return null;
+        }
+
+        @Override
+        public Date getModifiedDate() {
+            return null;
+        }
+
+        @Override
+        public String checkRedirect( Request request ) {
+            return null;
+        }
+    }
+
+    /**
+     * In memory collection, which files are created in concurrently by the
+     * copier's threads
+     */
+    private static class Folder extends Item implements CollectionResource, MakeCollectionableResource, PutableResource {
+
+        private final Map<String, Item> children = new LinkedHashMap<String, Item>();
+
+        Folder( String name ) {
+            super( name );
+        }
+
+        @Override
+        public synchronized Resource child( String childName ) {
+            return children.get( childName );
+        }
+
+        @Override
+        public synchronized List<? extends Resource> getChildren() {
+            listings.incrementAndGet();
+            return new ArrayList<Item>( children.values() );
+        }
+
+        @Override
+        public synchronized CollectionResource createCollection( String newName ) throws ConflictException {
+            if( children.containsKey( newName ) ) {
+                throw new ConflictException( this );
+            }
+            Folder f = new Folder( newName );
+            children.put( newName, f );
+            return f;
+        }
+
+        @Override
+        public Resource createNew( String newName, InputStream inputStream, Long length, String contentType ) throws IOException {
+            return put( newName, IOUtils.toString( inputStream ) );
+        }
+
+        synchronized Doc put( String newName, String content ) {
+            Doc d = new Doc( newName, content );
+            children.put( newName, d );
+            return d;
+        }
+    }
+
+    private static class Doc extends Item implements GetableResource {
+
+        final String content;
+
+        Doc( String name, String content ) {
+            super( name );
+            this.content = content;
+        }
+
+        @Override
+        public void sendContent( OutputStream out, Range range, Map<String, String> params, String contentType ) throws IOException {
+            CountDownLatch g = gate;
+            if( g != null ) {
+                try {
+                    g.await();
+                } catch( InterruptedException e ) {
+                    throw new IOException( e.toString() );
+                }
+            }
+            out.write( content.getBytes() );
+        }
+
+        @Override
+        public Long getMaxAgeSeconds( Auth auth ) {
+            return null;
+        }
+
+        @Override
+        public String getContentType( String accepts ) {
+            return "text/plain";
+        }
+
+        @Override
+        public Long getContentLength() {
+            return (long) content.length();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.bradmcevoy.io;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FileReplacerTest extends TestCase {
+
+    File dir;
+    File target;
+    File source;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File( "target/replacertest" );
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+        target = new File( dir, "store.dat" );
+        source = new File( dir, "store.dat.tmp" );
+        FileUtils.writeStringToFile( target, "old" );
+        FileUtils.writeStringToFile( source, "new" );
+    }
+
+    public void testReplace() throws IOException {
+        FileReplacer.replace( source, target );
+        assertEquals( "new", FileUtils.readFileToString( target ) );
+        assertFalse( source.exists() );
+        assertEquals( 1, dir.list().length );
+    }
+
+    public void testRenameReplacing() throws IOException {
+        FileReplacer.renameReplacing( source, target );
+        assertEquals( "new", FileUtils.readFileToString( target ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+    public void testFailedReplaceKeepsTarget() {
+        source.delete();
+        try {
+            FileReplacer.replace( source, target );
+            fail( "should have failed" );
+        } catch( IOException e ) {
+            // expected
+        }
+        try {
+            FileReplacer.renameReplacing( source, target );
+            fail( "should have failed" );
+        } catch( IOException e ) {
+            // expected
+        }
+        assertTrue( target.exists() );
+        assertFalse( FileReplacer.getBackupFile( target ).exists() );
+    }
+
+    public void testRecoverRestoresBackup() throws IOException {
+        // crashed after moving the target aside, before renaming the new file
+        File backup = FileReplacer.getBackupFile( target );
+        assertTrue( target.renameTo( backup ) );
+        assertTrue( FileReplacer.recover( target ) );
+        assertEquals( "old", FileUtils.readFileToString( target ) );
+        assertFalse( backup.exists() );
+    }
+
+    public void testRecoverDeletesBackupOnceReplaced() throws IOException {
+        // crashed after renaming the new file, before deleting the backup
+        File backup = FileReplacer.getBackupFile( target );
+        assertTrue( target.renameTo( backup ) );
+        assertTrue( source.renameTo( target ) );
+        assertFalse( FileReplacer.recover( target ) );
+        assertEquals( "new", FileUtils.readFileToString( target ) );
+        assertFalse( backup.exists() );
+    }
+}
@@ -0,0 +1,45 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.IOException;
+
+/**
+ * Receives the chunks found by HashSplitService, with their content, as the
+ * content is parsed
+ *
+ * @author brad
+ */
+public interface ChunkListener {
+
+    /**
+     * Called for each chunk, in the order they occur in the content
+     *
+     * @param chunk - the leaf node for the chunk, with its hash, offset and length
+     * @param sha1 - the SHA1 of the chunk, which the hash of the node is the
+     * first 8 bytes of. This is reused for later chunks
+     * @param buf - contains the content of the chunk. This is reused for later
+     * chunks, so must be copied if it is needed after this call
+     * @param off - the position of the chunk in buf
+     * @param len - the length of the chunk
+     * @throws IOException
+     */
+    void onChunk(HashNode chunk, byte[] sha1, byte[] buf, int off, int len) throws IOException;
+}
@@ -28,11 +28,18 @@ import java.util.List;
  * 
  * https://github.com/apenwarr/bup/blob/master/DESIGN
  *
+ * A leaf node is a chunk of content, and has no child nodes. Other nodes
+ * group the nodes below them, and their hash is computed from the hashes of
+ * their children, so two trees can be compared by descending only into nodes
+ * whose hashes differ.
+ *
  * @author brad
  */
 public class HashNode {
     private long hashValue;
     private List<HashNode> childNodes;
+    private long offset;
+    private long length;
 
     public List<HashNode> getChildNodes() {
         return childNodes;
@@ -49,7 +56,32 @@ public class HashNode {
     public void setHashValue(long hashValue) {
         this.hashValue = hashValue;
     }
-    
-    
-    
+
+    /**
+     *
+     * @return - the position in the content of the first byte covered by this node
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     *
+     * @return - the number of bytes of content covered by this node
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public boolean isLeaf() {
+        return childNodes == null;
+    }
 }
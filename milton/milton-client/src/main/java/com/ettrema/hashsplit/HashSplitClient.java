@@ -0,0 +1,226 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.bradmcevoy.common.Path;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.http.exceptions.NotFoundException;
+import com.ettrema.httpclient.Host;
+import com.ettrema.httpclient.HttpException;
+import com.ettrema.httpclient.HttpResult;
+import com.ettrema.httpclient.ProgressListener;
+import com.ettrema.httpclient.TransferService;
+import com.ettrema.httpclient.Utils;
+import com.ettrema.httpclient.Utils.CancelledException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a file to a server which has a previous version of it, sending only
+ * the chunks the server doesnt already have. The server must have a
+ * HashSplitResourceFactory, from milton-zsync.
+ *
+ * The new content is split into its hash tree, and the server is asked which
+ * of the hashes of the top level it doesnt have, with POST
+ * /somefile/.hashsplit. Only the nodes the server doesnt have are descended
+ * into and asked about, a level at a time, so the server's whole tree isnt
+ * fetched. The deltas are then generated by HashSplitDeltaGenerator, and are
+ * sent with PUT /somefile/.hashsplit
+ *
+ * @author brad
+ */
+public class HashSplitClient {
+
+    private static final Logger log = LoggerFactory.getLogger(HashSplitClient.class);
+    private final TransferService transferService;
+    private HashSplitService hashSplitService = new HashSplitService();
+    private String suffix = ".hashsplit";
+
+    public HashSplitClient(TransferService transferService) {
+        this.transferService = transferService;
+    }
+
+    /**
+     *
+     * @param host
+     * @param localcopy - the new content
+     * @param remotePath - the existing remote file
+     * @param listener
+     * @return - the number of bytes of content uploaded, not including the hash
+     * references to the content the server already has
+     * @throws NotFoundException - if the remote file does not exist
+     */
+    public long upload(final Host host, File localcopy, Path remotePath, final ProgressListener listener) throws IOException, NotFoundException, CancelledException, NotAuthorizedException, ConflictException, BadRequestException, HttpException {
+        final String url = host.getHref(remotePath) + "/" + suffix;
+        Set<Long> known;
+        try {
+            known = findKnownChunks(split(localcopy), new NeededHashes() {
+
+                @Override
+                public Set<Long> getNeeded(List<Long> hashes) throws HttpException, NotAuthorizedException, ConflictException, BadRequestException, NotFoundException {
+                    Map<String, String> params = new HashMap<String, String>();
+                    params.put("hashes", toHex(hashes));
+                    return parseHashes(host.doPost(url, params));
+                }
+            });
+        } catch (BadRequestException e) {
+            throw new NotFoundException(url);
+        }
+
+        HashSplitDeltaGenerator generator = new HashSplitDeltaGenerator();
+        generator.setHashSplitService(hashSplitService);
+        File deltas = File.createTempFile("hashsplit", remotePath.getName());
+        InputStream in = null;
+        try {
+            in = new FileInputStream(localcopy);
+            long included = generator.generateDeltas(new BufferedInputStream(in), deltas, known);
+            IOUtils.closeQuietly(in);
+            log.info("upload: sending " + included + " of " + localcopy.length() + " bytes");
+
+            in = new FileInputStream(deltas);
+            HttpResult result = transferService.put(url, in, deltas.length(), null, listener);
+            Utils.processResultCode(result.getStatusCode(), url);
+            return included;
+        } finally {
+            IOUtils.closeQuietly(in);
+            FileUtils.deleteQuietly(deltas);
+        }
+    }
+
+    /**
+     * Ask the server about the tree a level at a time, starting from the
+     * roots, and only descending into nodes it doesnt have
+     *
+     * @param roots - the root nodes of the tree of the new content
+     * @param server - says which hashes the server doesnt have
+     * @return - the hashes of the chunks the server has
+     */
+    static Set<Long> findKnownChunks(List<HashNode> roots, NeededHashes server) throws HttpException, NotAuthorizedException, ConflictException, BadRequestException, NotFoundException {
+        Set<Long> known = new HashSet<Long>();
+        List<HashNode> level = roots;
+        while (!level.isEmpty()) {
+            List<Long> hashes = new ArrayList<Long>(level.size());
+            for (HashNode n : level) {
+                hashes.add(n.getHashValue());
+            }
+            Set<Long> needed = server.getNeeded(hashes);
+            List<HashNode> next = new ArrayList<HashNode>();
+            for (HashNode n : level) {
+                if (!needed.contains(n.getHashValue())) {
+                    addChunks(n, known);
+                } else if (!n.isLeaf()) {
+                    next.addAll(n.getChildNodes());
+                }
+            }
+            level = next;
+        }
+        return known;
+    }
+
+    private static void addChunks(HashNode n, Set<Long> chunks) {
+        if (n.isLeaf()) {
+            chunks.add(n.getHashValue());
+        } else {
+            for (HashNode child : n.getChildNodes()) {
+                addChunks(child, chunks);
+            }
+        }
+    }
+
+    private List<HashNode> split(File file) throws IOException {
+        HashSplitService.Splitter splitter = hashSplitService.newSplitter(null);
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            splitter.readFrom(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        splitter.close();
+        return splitter.getRootNodes();
+    }
+
+    private static String toHex(List<Long> hashes) {
+        StringBuilder sb = new StringBuilder(hashes.size() * 17);
+        for (Long hash : hashes) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(Long.toHexString(hash));
+        }
+        return sb.toString();
+    }
+
+    private static Set<Long> parseHashes(String s) {
+        Set<Long> hashes = new HashSet<Long>();
+        for (String line : s.split("\n")) {
+            line = line.trim();
+            if (line.length() > 0) {
+                // unsigned, since the top bit is often set
+                hashes.add(new BigInteger(line, 16).longValue());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Must be configured the same as the server's
+     *
+     * @return
+     */
+    public HashSplitService getHashSplitService() {
+        return hashSplitService;
+    }
+
+    public void setHashSplitService(HashSplitService hashSplitService) {
+        this.hashSplitService = hashSplitService;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Asks the server which of the given hashes it doesnt have
+     */
+    interface NeededHashes {
+
+        Set<Long> getNeeded(List<Long> hashes) throws HttpException, NotAuthorizedException, ConflictException, BadRequestException, NotFoundException;
+    }
+}
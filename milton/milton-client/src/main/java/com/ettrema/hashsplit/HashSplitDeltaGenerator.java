@@ -0,0 +1,180 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generate a list of deltas - ie changed blocks
+ *
+ * The new content is split into chunks, and the deltas list every chunk in
+ * order. Chunks which the server already has, as given by the HashNodeProvider,
+ * are referred to by their hash, and only the others are included.
+ *
+ * The format is: MAGIC, the content length (long), then for each chunk a type
+ * byte, the hash value (long) and the length (int), followed for a DATA chunk
+ * by its content. The last entry is the END type byte followed by the SHA1 of
+ * the whole content, which the server checks once the content is assembled.
+ *
+ * The HashSplitService must be configured the same as the server's.
+ *
+ * @author brad
+ */
+public class HashSplitDeltaGenerator {
+
+    public static final byte[] MAGIC = {'M', 'H', 'S', 'P', 'L', 'I', 'T', '1'};
+    public static final byte END = 0;
+    /**
+     * A chunk whose content follows
+     */
+    public static final byte DATA = 1;
+    /**
+     * A chunk the server already has
+     */
+    public static final byte REF = 2;
+    private final HashNodeProvider hashNodeProvider;
+    private HashSplitService hashSplitService = new HashSplitService();
+
+    public HashSplitDeltaGenerator(HashNodeProvider hashNodeProvider) {
+        this.hashNodeProvider = hashNodeProvider;
+    }
+
+    /**
+     * For when the chunks the server has are already known, see
+     * generateDeltas(InputStream, File, Set)
+     */
+    public HashSplitDeltaGenerator() {
+        this(null);
+    }
+
+    /**
+     * Write the deltas to make the modified content from the server's content
+     *
+     * @param modified - the new content. Is not closed
+     * @param dest - the file to write the deltas to
+     * @return - the number of bytes of content included in the deltas, the rest
+     * is referred to
+     * @throws IOException
+     */
+    public long generateDeltas(InputStream modified, File dest) throws IOException {
+        return generateDeltas(modified, dest, findChunks());
+    }
+
+    /**
+     * Write the deltas to make the modified content from the given chunks
+     *
+     * @param modified - the new content. Is not closed
+     * @param dest - the file to write the deltas to
+     * @param known - the hashes of the chunks the server has
+     * @return - the number of bytes of content included in the deltas, the rest
+     * is referred to
+     * @throws IOException
+     */
+    public long generateDeltas(InputStream modified, File dest, final Set<Long> known) throws IOException {
+        final MessageDigest sha1 = sha1();
+        final long[] bytesIncluded = new long[1];
+        FileOutputStream fout = new FileOutputStream(dest);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+            out.write(MAGIC);
+            out.writeLong(0); // the length isnt known yet, see below
+            HashSplitService.Splitter splitter = hashSplitService.newSplitter(new ChunkListener() {
+
+                @Override
+                public void onChunk(HashNode chunk, byte[] chunkSha1, byte[] buf, int off, int len) throws IOException {
+                    sha1.update(buf, off, len);
+                    boolean included = !known.contains(chunk.getHashValue());
+                    out.writeByte(included ? DATA : REF);
+                    out.writeLong(chunk.getHashValue());
+                    out.writeInt(len);
+                    if (included) {
+                        out.write(buf, off, len);
+                        bytesIncluded[0] += len;
+                    }
+                }
+            });
+            splitter.readFrom(modified);
+            splitter.close();
+            out.writeByte(END);
+            out.write(sha1.digest());
+            out.flush();
+
+            ByteBuffer length = ByteBuffer.allocate(8);
+            length.putLong(0, splitter.getLength());
+            fout.getChannel().write(length, MAGIC.length);
+        } finally {
+            fout.close();
+        }
+        return bytesIncluded[0];
+    }
+
+    /**
+     * Walk the whole of the server's tree to find its chunks. The new content
+     * is only read once, so its tree isnt available to prune the walk with
+     */
+    private Set<Long> findChunks() {
+        Set<Long> chunks = new HashSet<Long>();
+        findChunks(new ArrayList<Long>(), chunks);
+        return chunks;
+    }
+
+    private void findChunks(List<Long> path, Set<Long> chunks) {
+        List<Long> hashes = hashNodeProvider.getHashNodes(null, path.toArray(new Long[path.size()]));
+        if (hashes == null) {
+            if (!path.isEmpty()) {
+                chunks.add(path.get(path.size() - 1));
+            }
+            return;
+        }
+        for (Long hash : hashes) {
+            path.add(hash);
+            findChunks(path, chunks);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public HashSplitService getHashSplitService() {
+        return hashSplitService;
+    }
+
+    public void setHashSplitService(HashSplitService hashSplitService) {
+        this.hashSplitService = hashSplitService;
+    }
+}
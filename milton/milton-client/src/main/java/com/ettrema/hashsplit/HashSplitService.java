@@ -0,0 +1,420 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Service to generate HashTree's based on file content
+ *
+ * The content is split into chunks where a rolling hash of the preceding
+ * bytes has its top bits all zero, so the boundaries depend only on the
+ * content near them. Inserting or removing bytes only changes the chunks
+ * around the change, unlike fixed size blocks where everything after it moves.
+ *
+ * The rolling hash is a "gear" hash, ie hash = (hash << 1) + GEAR[byte], so
+ * each byte affects the top bits of the hash for the following 64 bytes. No
+ * boundary is looked for in the first minChunkSize bytes of a chunk, and a
+ * chunk is always ended at maxChunkSize. Beyond minChunkSize a boundary is
+ * found on average every avgChunkSize - minChunkSize bytes.
+ *
+ * As in bup, the number of further zero bits in the hash at a boundary gives
+ * the level of the boundary in the tree. A boundary with fanoutBits more
+ * zero bits also ends the current node above the chunks, and so on up the
+ * tree, so nodes have about 2^fanoutBits children. Like the chunks, the
+ * nodes depend only on nearby content, so a change only changes the nodes
+ * on the path from its chunks to the root.
+ *
+ * Chunk hashes are the first 8 bytes of the SHA1 of the chunk, and node hashes
+ * the first 8 bytes of the SHA1 of the hashes of their children.
+ *
+ * Instances are thread safe, but their configuration must not be changed while
+ * parsing, and must be the same wherever the trees are to be compared.
+ *
+ * @author brad
+ */
+public class HashSplitService {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // a fixed seed, so the same content is always split in the same places
+        Random rnd = new Random(0x6A09E667F3BCC908L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rnd.nextLong();
+        }
+    }
+    private int minChunkSize = 2048;
+    private int avgChunkSize = 8192;
+    private int maxChunkSize = 65536;
+    private int fanoutBits = 4;
+    private int bufferSize = 256 * 1024;
+
+    public List<HashNode> parse(InputStream inOrig) throws IOException {
+        return parse(inOrig, null);
+    }
+
+    /**
+     * Split the content into chunks, and build the tree over them
+     *
+     * @param inOrig - the content. Is not closed
+     * @param listener - if not null, is given each chunk as it is found
+     * @return - the topmost nodes of the tree, in content order. Empty if the
+     * content is empty
+     * @throws IOException
+     */
+    public List<HashNode> parse(InputStream inOrig, ChunkListener listener) throws IOException {
+        Splitter splitter = newSplitter(listener);
+        splitter.readFrom(inOrig);
+        splitter.close();
+        return splitter.getRootNodes();
+    }
+
+    /**
+     * Returns a stream which splits what is written to it, for when the content
+     * is pushed rather then read. The tree is available from getRootNodes once
+     * the stream has been closed
+     *
+     * @param listener - if not null, is given each chunk as it is found
+     * @return
+     */
+    public Splitter newSplitter(ChunkListener listener) {
+        if (minChunkSize < 0 || avgChunkSize <= minChunkSize || maxChunkSize < avgChunkSize || fanoutBits <= 0) {
+            throw new IllegalStateException("Invalid chunk sizes, must have 0 <= min < avg <= max. min: " + minChunkSize + " avg: " + avgChunkSize + " max: " + maxChunkSize);
+        }
+        return new Splitter(listener);
+    }
+
+    /**
+     *
+     * @param sha1 - the SHA1 of a chunk
+     * @return - the hash value of the chunk, ie the first 8 bytes of its SHA1
+     */
+    public static long toHashValue(byte[] sha1) {
+        long v = 0;
+        for (int b = 0; b < 8; b++) {
+            v = (v << 8) | (sha1[b] & 0xff);
+        }
+        return v;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * The smallest chunk, except for the last chunk which can be shorter
+     *
+     * @return
+     */
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public void setMinChunkSize(int minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * The approximate average chunk size. Must be greater then minChunkSize
+     *
+     * @return
+     */
+    public int getAvgChunkSize() {
+        return avgChunkSize;
+    }
+
+    public void setAvgChunkSize(int avgChunkSize) {
+        this.avgChunkSize = avgChunkSize;
+    }
+
+    /**
+     * Chunks are ended at this size even if no boundary has been found
+     *
+     * @return
+     */
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public void setMaxChunkSize(int maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Nodes in the tree have on average 2^fanoutBits children. The default
+     * of 4 gives a fanout of 16
+     *
+     * @return
+     */
+    public int getFanoutBits() {
+        return fanoutBits;
+    }
+
+    public void setFanoutBits(int fanoutBits) {
+        this.fanoutBits = fanoutBits;
+    }
+
+    /**
+     * How much content to read at a time. Is increased to maxChunkSize if
+     * smaller
+     *
+     * @return
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Finds chunks in the content written to it. Content is buffered until at
+     * least a whole max-sized chunk is available, so chunks are always
+     * contiguous in the buffer and are never copied
+     */
+    public class Splitter extends OutputStream {
+
+        private final ChunkListener listener;
+        private final int min = minChunkSize;
+        private final int max = maxChunkSize;
+        private final int levelBits = fanoutBits;
+        private final int splitBits = (int) Math.round(Math.log(avgChunkSize - minChunkSize) / Math.log(2));
+        private final long mask = splitBits == 0 ? 0 : -1L << (64 - splitBits);
+        private final byte[] buf = new byte[Math.max(bufferSize, maxChunkSize)];
+        private final MessageDigest sha1 = sha1();
+        private final byte[] digest = new byte[sha1.getDigestLength()];
+        private final Tree tree = new Tree(sha1, digest);
+        private final byte[] single = new byte[1];
+        private int start;
+        private int filled;
+        private long offset;
+        private List<HashNode> rootNodes;
+
+        Splitter(ChunkListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                makeRoom();
+                int n = Math.min(len, buf.length - filled);
+                System.arraycopy(b, off, buf, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Read all of the content from the stream, straight into the buffer
+         *
+         * @param in - is not closed
+         * @throws IOException
+         */
+        public void readFrom(InputStream in) throws IOException {
+            while (true) {
+                makeRoom();
+                int n = in.read(buf, filled, buf.length - filled);
+                if (n < 0) {
+                    return;
+                }
+                filled += n;
+            }
+        }
+
+        /**
+         * Split the rest of the content, and complete the tree
+         */
+        @Override
+        public void close() throws IOException {
+            if (rootNodes == null) {
+                while (filled > start) {
+                    nextChunk();
+                }
+                rootNodes = tree.finish();
+            }
+        }
+
+        /**
+         *
+         * @return - the topmost nodes of the tree, in content order
+         */
+        public List<HashNode> getRootNodes() {
+            if (rootNodes == null) {
+                throw new IllegalStateException("Not closed");
+            }
+            return rootNodes;
+        }
+
+        /**
+         * The number of bytes split so far
+         */
+        public long getLength() {
+            return offset;
+        }
+
+        private void makeRoom() throws IOException {
+            if (rootNodes != null) {
+                throw new IOException("Closed");
+            }
+            if (filled < buf.length) {
+                return;
+            }
+            while (filled - start >= max) {
+                nextChunk();
+            }
+            System.arraycopy(buf, start, buf, 0, filled - start);
+            filled -= start;
+            start = 0;
+        }
+
+        private void nextChunk() throws IOException {
+            long[] gear = GEAR;
+            byte[] b = buf;
+            int limit = start + Math.min(filled - start, max);
+            int end = limit;
+            int level = 0;
+            long h = 0;
+            for (int i = start + min; i < limit; i++) {
+                h = (h << 1) + gear[b[i] & 0xff];
+                if ((h & mask) == 0) {
+                    end = i + 1;
+                    level = (Long.numberOfLeadingZeros(h) - splitBits) / levelBits;
+                    break;
+                }
+            }
+            int len = end - start;
+            sha1.update(b, start, len);
+            HashNode chunk = new HashNode();
+            chunk.setHashValue(tree.digestToLong());
+            chunk.setOffset(offset);
+            chunk.setLength(len);
+            if (listener != null) {
+                listener.onChunk(chunk, digest, b, start, len);
+            }
+            tree.add(chunk, level);
+            offset += len;
+            start = end;
+        }
+    }
+
+    /**
+     * Builds the tree from the bottom up as chunks are found. levels.get(i)
+     * holds the nodes at level i which dont have a parent yet
+     */
+    private static class Tree {
+
+        private final MessageDigest sha1;
+        private final byte[] digest;
+        private final byte[] hashBytes = new byte[8];
+        private final List<List<HashNode>> levels = new ArrayList<List<HashNode>>();
+
+        Tree(MessageDigest sha1, byte[] digest) {
+            this.sha1 = sha1;
+            this.digest = digest;
+            levels.add(new ArrayList<HashNode>());
+        }
+
+        void add(HashNode chunk, int level) {
+            levels.get(0).add(chunk);
+            for (int i = 0; i < level; i++) {
+                close(i);
+            }
+        }
+
+        List<HashNode> finish() {
+            for (int i = 0; i < levels.size() - 1; i++) {
+                close(i);
+            }
+            return levels.get(levels.size() - 1);
+        }
+
+        /**
+         * Make the pending nodes at level i the children of a new node at
+         * level i + 1. A single node is moved up rather then given a parent
+         * with only one child
+         */
+        private void close(int i) {
+            List<HashNode> nodes = levels.get(i);
+            if (levels.size() == i + 1) {
+                levels.add(new ArrayList<HashNode>());
+            }
+            if (nodes.isEmpty()) {
+                return;
+            }
+            HashNode node;
+            if (nodes.size() == 1) {
+                node = nodes.get(0);
+                nodes.clear();
+            } else {
+                node = new HashNode();
+                long length = 0;
+                for (HashNode child : nodes) {
+                    long v = child.getHashValue();
+                    for (int b = 7; b >= 0; b--) {
+                        hashBytes[b] = (byte) v;
+                        v >>>= 8;
+                    }
+                    sha1.update(hashBytes);
+                    length += child.getLength();
+                }
+                node.setHashValue(digestToLong());
+                node.setOffset(nodes.get(0).getOffset());
+                node.setLength(length);
+                node.setChildNodes(nodes);
+                levels.set(i, new ArrayList<HashNode>());
+            }
+            levels.get(i + 1).add(node);
+        }
+
+        /**
+         * Complete the digest, and return its first 8 bytes
+         */
+        long digestToLong() {
+            try {
+                sha1.digest(digest, 0, digest.length);
+            } catch (DigestException ex) {
+                throw new RuntimeException(ex);
+            }
+            return toHashValue(digest);
+        }
+    }
+}
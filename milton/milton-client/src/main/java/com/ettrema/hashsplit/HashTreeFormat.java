@@ -0,0 +1,106 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes a tree of HashNode's, as sent by the server for the
+ * content of a resource.
+ *
+ * The format is MAGIC, the number of root nodes, and then each node, parents
+ * before their children, as: hash value (long), length (long), number of
+ * children (int, zero for a chunk). Offsets are not written, since they follow
+ * from the lengths.
+ *
+ * @author brad
+ */
+public class HashTreeFormat {
+
+    public static final byte[] MAGIC = {'M', 'H', 'T', 'R', 'E', 'E', '0', '1'};
+
+    public static void write(List<HashNode> rootNodes, OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.write(MAGIC);
+        writeNodes(rootNodes, dout);
+        dout.flush();
+    }
+
+    /**
+     *
+     * @param in - is not closed
+     * @return - the root nodes
+     * @throws IOException - if the content is not a hash tree
+     */
+    public static List<HashNode> read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        din.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a hash tree");
+        }
+        return readNodes(din, 0, 0);
+    }
+
+    private static void writeNodes(List<HashNode> nodes, DataOutputStream dout) throws IOException {
+        dout.writeInt(nodes.size());
+        for (HashNode n : nodes) {
+            dout.writeLong(n.getHashValue());
+            dout.writeLong(n.getLength());
+            if (n.isLeaf()) {
+                dout.writeInt(0);
+            } else {
+                writeNodes(n.getChildNodes(), dout);
+            }
+        }
+    }
+
+    private static List<HashNode> readNodes(DataInputStream din, long offset, int depth) throws IOException {
+        if (depth > 64) {
+            throw new IOException("Hash tree is too deep");
+        }
+        int count = din.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid node count: " + count);
+        }
+        List<HashNode> nodes = new ArrayList<HashNode>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            HashNode n = new HashNode();
+            n.setHashValue(din.readLong());
+            n.setLength(din.readLong());
+            n.setOffset(offset);
+            // a chunk is written as having no children
+            List<HashNode> children = readNodes(din, offset, depth + 1);
+            if (!children.isEmpty()) {
+                n.setChildNodes(children);
+            }
+            nodes.add(n);
+            offset += n.getLength();
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides hash nodes from a tree which has already been parsed, eg by
+ * HashSplitService. The file argument is ignored
+ *
+ * @author brad
+ */
+public class LocalHashNodeProvider implements HashNodeProvider{
+
+    private List<HashNode> hashNodes;
+
+    public LocalHashNodeProvider(List<HashNode> hashNodes) {
+        this.hashNodes = hashNodes;
+    }
+
+    /**
+     *
+     * @return - the hashes of the children of the node at the end of the
+     * path of roots, or null if there is no such node or it is a leaf
+     */
+    @Override
+    public List<Long> getHashNodes(File file, Long[] roots) {
+        List<HashNode> nodes = hashNodes;
+        if (roots != null) {
+            for (Long hash : roots) {
+                nodes = findChildren(nodes, hash);
+                if (nodes == null) {
+                    return null;
+                }
+            }
+        }
+        List<Long> list = new ArrayList<Long>(nodes.size());
+        for (HashNode n : nodes) {
+            list.add(n.getHashValue());
+        }
+        return list;
+    }
+
+    private List<HashNode> findChildren(List<HashNode> nodes, long hash) {
+        for (HashNode n : nodes) {
+            if (n.getHashValue() == hash) {
+                return n.getChildNodes();
+            }
+        }
+        return null;
+    }
+}
@@ -21,53 +21,285 @@ package com.ettrema.httpclient.zsyncclient;
 
 import com.bradmcevoy.http.Range;
 import com.ettrema.httpclient.File;
-import com.ettrema.httpclient.HttpException;
 import com.ettrema.httpclient.ProgressListener;
+import com.ettrema.httpclient.RangedGetMethod;
+import com.ettrema.httpclient.Utils;
 import com.ettrema.httpclient.Utils.CancelledException;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Loads ranges of a remote file with ranged GET's, streaming the response
+ * straight into the destination file, so memory use doesnt depend on the size
+ * of the ranges.
+ *
+ * The response may be any of:
+ * - a multipart/byteranges response, each part written at the offset in its
+ * Content-Range header
+ * - a single part with a Content-Range header
+ * - the ranges concatenated, as returned by milton for multiple ranges
+ * - the whole file, if the server ignored the Range header, which is
+ * recognised by its Content-Length
+ *
+ * Only the requested ranges are written, even if the server returns more.
+ *
+ * Requests are made with a separate HttpClient, which shares the Host's
+ * credentials and parameters, because the Host's client only allows one request
+ * at a time. So batches can be loaded concurrently, up to maxConnections at a
+ * time. Call shutdown when finished to close its connections.
  *
  * @author HP
  */
 public class HttpRangeLoader implements RangeLoader {
 
 	private static final Logger log = LoggerFactory.getLogger(HttpRangeLoader.class);
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/.*");
 	private final File file;
 	private final ProgressListener listener;
-	private long numBytes;
+	private final DefaultHttpClient client;
+	private final AtomicLong numBytes = new AtomicLong();
 
 	public HttpRangeLoader(File file, final ProgressListener listener) {
+		this(file, listener, 4);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param listener - may be called concurrently if batches are loaded concurrently
+	 * @param maxConnections - the maximum number of concurrent requests
+	 */
+	public HttpRangeLoader(File file, final ProgressListener listener, int maxConnections) {
 		this.file = file;
 		this.listener = listener;
+		HttpClient hostClient = file.host().getClient();
+		ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager();
+		cm.setMaxTotal(maxConnections);
+		cm.setDefaultMaxPerRoute(maxConnections);
+		client = new DefaultHttpClient(cm, hostClient.getParams());
+		if (hostClient instanceof DefaultHttpClient) {
+			client.setCredentialsProvider(((DefaultHttpClient) hostClient).getCredentialsProvider());
+		}
 	}
 
 	@Override
-	public byte[] get(List<Range> rangeList) {
+	public void get(List<Range> rangeList, FileChannel dest) throws Exception {
 		log.info("get: rangelist: " + rangeList.size());
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String url = file.encodedUrl();
+		RangedGetMethod m = new RangedGetMethod(url, rangeList);
+		InputStream in = null;
 		try {
-			file.download(out, listener, rangeList);
-		} catch (HttpException ex) {
-			
-		} catch (CancelledException ex) {
-			throw new RuntimeException("Cancelled, which is odd because no progress listener was provided");
+			HttpResponse resp = client.execute(m);
+			int status = resp.getStatusLine().getStatusCode();
+			Utils.processResultCode(status, url);
+			HttpEntity entity = resp.getEntity();
+			if (entity == null) {
+				throw new IOException("No content was returned for ranges from: " + url);
+			}
+			in = new BufferedInputStream(entity.getContent(), 65536);
+			receive(status, header(resp, "Content-Type"), header(resp, "Content-Range"), entity.getContentLength(), in, rangeList, dest);
+		} catch (Exception e) {
+			m.abort();
+			throw e;
+		} finally {
+			Utils.close(in);
+		}
+	}
+
+	/**
+	 * Write the ranges in the response to dest
+	 * 
+	 * @param contentLength - -1 if not known
+	 */
+	void receive(int status, String contentType, String contentRange, long contentLength, InputStream in, List<Range> rangeList, FileChannel dest) throws IOException {
+		List<Range> ranges = sorted(rangeList);
+		if (status == 206 && contentType != null && contentType.toLowerCase().startsWith("multipart/byteranges")) {
+			readMultipart(in, boundary(contentType), ranges, dest);
+		} else if (status == 206 && contentRange != null) {
+			long[] part = parseContentRange(contentRange);
+			write(in, part[0], part[1], ranges, dest);
+		} else if (contentLength >= 0 && contentLength != calcExpectedLength(ranges)) {
+			log.info("server returned the whole file, not the ranges");
+			write(in, 0, contentLength, ranges, dest);
+		} else {
+			for (Range r : ranges) {
+				write(in, r.getStart(), r.getFinish() - r.getStart(), ranges, dest);
+			}
+		}
+	}
+
+	private void readMultipart(InputStream in, String boundary, List<Range> ranges, FileChannel dest) throws IOException {
+		String delimiter = "--" + boundary;
+		String line;
+		// skip the preamble
+		while ((line = readLine(in)) != null && !line.startsWith(delimiter)) {
+		}
+		while (line != null && !line.startsWith(delimiter + "--")) {
+			long[] part = null;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int pos = line.indexOf(':');
+				if (pos > 0 && line.substring(0, pos).trim().equalsIgnoreCase("Content-Range")) {
+					part = parseContentRange(line.substring(pos + 1).trim());
+				}
+			}
+			if (part == null) {
+				throw new IOException("No Content-Range header in part of multipart/byteranges response");
+			}
+			write(in, part[0], part[1], ranges, dest);
+			while ((line = readLine(in)) != null && !line.startsWith(delimiter)) {
+			}
+		}
+	}
+
+	/**
+	 * Read length bytes of the remote file, starting at position, and write
+	 * those which are in the ranges to dest
+	 */
+	private void write(InputStream in, long position, long length, List<Range> ranges, FileChannel dest) throws IOException {
+		byte[] buf = new byte[65536];
+		long end = position + length;
+		for (Range r : ranges) {
+			if (r.getFinish() <= position) {
+				continue;
+			}
+			if (r.getStart() >= end) {
+				break;
+			}
+			if (r.getStart() > position) {
+				skip(in, r.getStart() - position);
+				position = r.getStart();
+			}
+			long finish = Math.min(r.getFinish(), end);
+			while (position < finish) {
+				if (listener != null && listener.isCancelled()) {
+					throw new CancelledException();
+				}
+				int n = in.read(buf, 0, (int) Math.min(buf.length, finish - position));
+				if (n < 0) {
+					throw new EOFException("Response ended at " + position + " before the end of range " + r.getRange());
+				}
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				long p = position;
+				while (bb.hasRemaining()) {
+					p += dest.write(bb, p);
+				}
+				position += n;
+				long total = numBytes.addAndGet(n);
+				if (listener != null) {
+					listener.onProgress(total, null, file.name);
+				}
+			}
+		}
+		if (position < end) {
+			skip(in, end - position);
+		}
+	}
+
+	private void skip(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Response ended while skipping");
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * 
+	 * @return - the line, without the line terminator, or null if at the end
+	 * of the stream
+	 */
+	private String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				break;
+			}
+			if (line.size() > 8192) {
+				throw new IOException("Line too long in multipart/byteranges response");
+			}
+			line.write(b);
+		}
+		if (b < 0 && line.size() == 0) {
+			return null;
+		}
+		String s = line.toString("ISO-8859-1");
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	/**
+	 * 
+	 * @return - the position and length of the content, as given by a
+	 * Content-Range header, where the end position is inclusive
+	 */
+	private static long[] parseContentRange(String contentRange) throws IOException {
+		Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+		if (!matcher.matches()) {
+			throw new IOException("Invalid Content-Range: " + contentRange);
 		}
+		long start = Long.parseLong(matcher.group(1));
+		long finish = Long.parseLong(matcher.group(2));
+		return new long[]{start, finish - start + 1};
+	}
 
-		byte[] bytes = out.toByteArray();
-		int expectedLength = calcExpectedLength(rangeList);
-//		if( expectedLength != bytes.length) {
-//			log.warn("Got an unexpected data size!!");
-//		}
-		numBytes += bytes.length;
-		return bytes;
+	private static String boundary(String contentType) throws IOException {
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.toLowerCase().startsWith("boundary=")) {
+				String b = param.substring(9).trim();
+				if (b.startsWith("\"") && b.endsWith("\"") && b.length() > 1) {
+					b = b.substring(1, b.length() - 1);
+				}
+				return b;
+			}
+		}
+		throw new IOException("No boundary in Content-Type: " + contentType);
 	}
 
-	public static int calcExpectedLength(List<Range> rangeList) {
-		int l = 0;
+	private static String header(HttpResponse resp, String name) {
+		Header h = resp.getFirstHeader(name);
+		return h == null ? null : h.getValue();
+	}
+
+	private static List<Range> sorted(List<Range> rangeList) {
+		List<Range> list = new ArrayList<Range>(rangeList);
+		Collections.sort(list, new Comparator<Range>() {
+
+			@Override
+			public int compare(Range o1, Range o2) {
+				return o1.getStart() < o2.getStart() ? -1 : (o1.getStart() == o2.getStart() ? 0 : 1);
+			}
+		});
+		return list;
+	}
+
+	public static long calcExpectedLength(List<Range> rangeList) {
+		long l = 0;
 		for (Range r : rangeList) {
 			l += (r.getFinish() - r.getStart());
 		}
@@ -75,6 +307,13 @@ public class HttpRangeLoader implements RangeLoader {
 	}
 
 	public long getBytesDownloaded() {
-		return numBytes;
+		return numBytes.get();
+	}
+
+	/**
+	 * Close the connections used to load ranges
+	 */
+	public void shutdown() {
+		client.getConnectionManager().shutdown();
 	}
 }
@@ -20,22 +20,30 @@
 package com.ettrema.httpclient.zsyncclient;
 
 import com.bradmcevoy.http.Range;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 /**
  * Used to load selected range data to satisfy the zsync process
  *
+ * Implementations must be thread safe, as batches of ranges may be loaded
+ * concurrently
+ *
  * @author brad
  */
 public interface RangeLoader {
 
 	/**
-	 * Fetch a set of ranges, usually over HTTP
+	 * Fetch a set of ranges, usually over HTTP, and write the data for each
+	 * range to dest at the range's start position. Ranges are as for Range,
+	 * ie the finish is exclusive, and are in ascending order. The data is
+	 * streamed to dest rather then held in memory
 	 * 
 	 * @param rangeList
-	 * @return
+	 * @param dest - the file being assembled. Only positional writes may be
+	 * used, since other batches may be writing to it at the same time
 	 * @throws Exception 
 	 */
-	public byte[] get(List<Range> rangeList) throws Exception;
+	public void get(List<Range> rangeList, FileChannel dest) throws Exception;
 	
 }
@@ -0,0 +1,94 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures HashSplitService throughput. Not run as part of the build, run
+ * the main method with the test classpath, optionally giving the number of
+ * MB to parse per thread.
+ *
+ * Reports the throughput of one thread, ie of one core, then of a thread
+ * per core, and SHA1 on its own for comparison since that is the bulk of
+ * the work.
+ *
+ * @author brad
+ */
+public class HashSplitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final byte[] data = new byte[mb * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        final HashSplitService service = new HashSplitService();
+
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            service.parse(new ByteArrayInputStream(data));
+        }
+
+        long t = System.nanoTime();
+        List<HashNode> roots = service.parse(new ByteArrayInputStream(data));
+        report("parse, 1 thread", mb, System.nanoTime() - t, 1);
+        System.out.println("  top nodes: " + roots.size());
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        t = System.nanoTime();
+        sha1.update(data);
+        sha1.digest();
+        report("SHA1 only, 1 thread", mb, System.nanoTime() - t, 1);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int i = 0; i < threads; i++) {
+                tasks.add(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        return service.parse(new ByteArrayInputStream(data));
+                    }
+                });
+            }
+            t = System.nanoTime();
+            for (Future<Object> f : exec.invokeAll(tasks)) {
+                f.get();
+            }
+            report("parse, " + threads + " threads", mb * threads, System.nanoTime() - t, threads);
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static void report(String name, long mb, long nanos, int threads) {
+        double secs = nanos / 1e9;
+        System.out.println(String.format("%s: %d MB in %.0f ms, %.0f MB/s, %.0f MB/s per core", name, mb, secs * 1000, mb / secs, mb / secs / threads));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class HashSplitServiceTest extends TestCase {
+
+    HashSplitService service;
+
+    public HashSplitServiceTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        service = new HashSplitService();
+    }
+
+    public void xtestClientUploads() throws IOException {
+        // Get the test data
+        InputStream inOrig = this.getClass().getResourceAsStream("/hashsplit-original.txt");
+        assertNotNull(inOrig);
+        InputStream inMod = this.getClass().getResourceAsStream("/hashsplit-modified.txt");
+        assertNotNull(inMod);
+        
+        // Parse the original
+        List<HashNode> rootNodes = service.parse(inOrig);
+        LocalHashNodeProvider hashNodeProvider = new LocalHashNodeProvider(rootNodes);
+        HashSplitDeltaGenerator deltaGenerator = new HashSplitDeltaGenerator(hashNodeProvider);
+        File dest = File.createTempFile("hashsplit-test", null);
+        deltaGenerator.generateDeltas(inMod, dest);
+        
+        // so we should now have changed blocks in the "dest" file
+        
+    }
+
+    public void testChunkSizes() throws Exception {
+        byte[] data = random(1000000, 1);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        List<HashNode> roots = service.parse(new ByteArrayInputStream(data), new ChunkListener() {
+
+            @Override
+            public void onChunk(HashNode chunk, byte[] sha1, byte[] buf, int off, int len) throws IOException {
+                assertEquals(copy.size(), chunk.getOffset());
+                copy.write(buf, off, len);
+            }
+        });
+        assertTrue(Arrays.equals(data, copy.toByteArray()));
+
+        List<HashNode> leaves = leaves(roots);
+        long pos = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+            HashNode n = leaves.get(i);
+            assertEquals(pos, n.getOffset());
+            assertTrue(n.getLength() <= service.getMaxChunkSize());
+            if (i < leaves.size() - 1) {
+                assertTrue(n.getLength() >= service.getMinChunkSize());
+            }
+            pos += n.getLength();
+        }
+        assertEquals(data.length, pos);
+        long avg = data.length / leaves.size();
+        assertTrue("average chunk size: " + avg, avg > 4000 && avg < 16000);
+        // the first chunk is the SHA1 of its content
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        sha1.update(data, 0, (int) leaves.get(0).getLength());
+        byte[] digest = sha1.digest();
+        long expected = 0;
+        for (int b = 0; b < 8; b++) {
+            expected = (expected << 8) | (digest[b] & 0xff);
+        }
+        assertEquals(expected, leaves.get(0).getHashValue());
+    }
+
+    public void testInsertNearStart() throws IOException {
+        byte[] data = random(2000000, 2);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(data, 0, 100);
+        bout.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+        bout.write(data, 100, data.length - 100);
+        byte[] modified = bout.toByteArray();
+
+        List<HashNode> orig = service.parse(new ByteArrayInputStream(data));
+        List<HashNode> mod = service.parse(new ByteArrayInputStream(modified));
+        Set<Long> origHashes = new HashSet<Long>();
+        for (HashNode n : leaves(orig)) {
+            origHashes.add(n.getHashValue());
+        }
+        List<HashNode> modLeaves = leaves(mod);
+        int changed = 0;
+        for (HashNode n : modLeaves) {
+            if (!origHashes.contains(n.getHashValue())) {
+                changed++;
+            }
+        }
+        // only the chunk with the insertion, and perhaps the next, are different
+        assertTrue("changed chunks: " + changed, changed >= 1 && changed <= 2);
+        assertFalse(orig.get(0).getHashValue() == mod.get(0).getHashValue());
+        // so only the nodes above the changed chunk differ
+        assertEquals(orig.size(), mod.size());
+        for (int i = 1; i < orig.size(); i++) {
+            assertEquals(orig.get(i).getHashValue(), mod.get(i).getHashValue());
+        }
+    }
+
+    public void testTree() throws IOException {
+        byte[] data = random(3000000, 3);
+        List<HashNode> roots = service.parse(new ByteArrayInputStream(data));
+        List<HashNode> again = service.parse(new ByteArrayInputStream(data));
+        assertEquals(roots.size(), again.size());
+        for (int i = 0; i < roots.size(); i++) {
+            assertEquals(roots.get(i).getHashValue(), again.get(i).getHashValue());
+        }
+        // about 360 chunks with a fanout of 16 gives a few dozen nodes above them
+        assertTrue("roots: " + roots.size(), roots.size() < leaves(roots).size() / 4);
+        long total = 0;
+        for (HashNode n : roots) {
+            assertEquals(total, n.getOffset());
+            total += n.getLength();
+            checkLengths(n);
+        }
+        assertEquals(data.length, total);
+
+        HashNode parent = null;
+        for (HashNode n : roots) {
+            if (!n.isLeaf()) {
+                parent = n;
+            }
+        }
+        assertNotNull(parent);
+        LocalHashNodeProvider provider = new LocalHashNodeProvider(roots);
+        assertEquals(roots.size(), provider.getHashNodes(null, new Long[0]).size());
+        List<Long> children = provider.getHashNodes(null, new Long[]{parent.getHashValue()});
+        assertEquals(parent.getChildNodes().size(), children.size());
+        assertEquals((Long) parent.getChildNodes().get(0).getHashValue(), children.get(0));
+        assertNull(provider.getHashNodes(null, new Long[]{parent.getHashValue() + 1}));
+    }
+
+    public void testEmpty() throws IOException {
+        assertTrue(service.parse(new ByteArrayInputStream(new byte[0])).isEmpty());
+        List<HashNode> roots = service.parse(new ByteArrayInputStream(new byte[10]));
+        assertEquals(1, roots.size());
+        assertEquals(10, roots.get(0).getLength());
+    }
+
+    private void checkLengths(HashNode n) {
+        if (n.isLeaf()) {
+            return;
+        }
+        long pos = n.getOffset();
+        for (HashNode child : n.getChildNodes()) {
+            assertEquals(pos, child.getOffset());
+            pos += child.getLength();
+            checkLengths(child);
+        }
+        assertEquals(n.getOffset() + n.getLength(), pos);
+    }
+
+    private List<HashNode> leaves(List<HashNode> nodes) {
+        List<HashNode> list = new ArrayList<HashNode>();
+        for (HashNode n : nodes) {
+            if (n.isLeaf()) {
+                list.add(n);
+            } else {
+                list.addAll(leaves(n.getChildNodes()));
+            }
+        }
+        return list;
+    }
+
+    private byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.httpclient.zsyncclient;
+
+import com.bradmcevoy.http.Range;
+import com.ettrema.httpclient.File;
+import com.ettrema.httpclient.Host;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class HttpRangeLoaderTest extends TestCase {
+
+    private byte[] content;
+    private java.io.File destFile;
+    private RandomAccessFile raf;
+    private FileChannel dest;
+    private HttpRangeLoader loader;
+
+    public HttpRangeLoaderTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new byte[200000];
+        new Random(1).nextBytes(content);
+        destFile = java.io.File.createTempFile("rangeloader", null);
+        raf = new RandomAccessFile(destFile, "rw");
+        dest = raf.getChannel();
+        Host host = new Host("localhost", 8080, null, null, null);
+        loader = new HttpRangeLoader(new File(host, "a.bin", null, null), null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loader.shutdown();
+        raf.close();
+        destFile.delete();
+    }
+
+    public void testMultipart() throws IOException {
+        List<Range> ranges = Arrays.asList(new Range(100, 200), new Range(150000, 160000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "preamble\r\n--XYZ\r\nContent-Type: application/octet-stream\r\n");
+        // inclusive, as in HTTP, so one more byte then asked for
+        write(out, "Content-Range: bytes 100-200/200000\r\n\r\n");
+        out.write(content, 100, 101);
+        write(out, "\r\n--XYZ\r\ncontent-range: bytes 150000-159999/200000\r\n\r\n");
+        out.write(content, 150000, 10000);
+        write(out, "\r\n--XYZ--\r\n");
+        loader.receive(206, "multipart/byteranges; boundary=\"XYZ\"", null, out.size(), new ByteArrayInputStream(out.toByteArray()), ranges, dest);
+        check(ranges);
+        assertEquals(10100, loader.getBytesDownloaded());
+    }
+
+    public void testSingleRange() throws IOException {
+        List<Range> ranges = Arrays.asList(new Range(5000, 6000));
+        loader.receive(206, "application/octet-stream", "bytes 5000-5999/200000", 1000, new ByteArrayInputStream(content, 5000, 1000), ranges, dest);
+        check(ranges);
+    }
+
+    public void testConcatenated() throws IOException {
+        List<Range> ranges = Arrays.asList(new Range(0, 10), new Range(70000, 90000), new Range(199990, 200000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Range r : ranges) {
+            out.write(content, (int) r.getStart(), (int) (r.getFinish() - r.getStart()));
+        }
+        loader.receive(200, "application/octet-stream", null, -1, new ByteArrayInputStream(out.toByteArray()), ranges, dest);
+        check(ranges);
+    }
+
+    public void testWholeFile() throws IOException {
+        List<Range> ranges = Arrays.asList(new Range(1000, 2000), new Range(100000, 100500));
+        loader.receive(200, "application/octet-stream", null, content.length, new ByteArrayInputStream(content), ranges, dest);
+        check(ranges);
+        // only the ranges are written
+        assertEquals(100500, dest.size());
+        byte[] b = new byte[1000];
+        raf.seek(0);
+        raf.readFully(b);
+        assertTrue(Arrays.equals(new byte[1000], b));
+    }
+
+    public void testTruncated() {
+        List<Range> ranges = Arrays.asList(new Range(0, 1000));
+        try {
+            loader.receive(200, "application/octet-stream", null, -1, new ByteArrayInputStream(content, 0, 500), ranges, dest);
+            fail("should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void check(List<Range> ranges) throws IOException {
+        for (Range r : ranges) {
+            int len = (int) (r.getFinish() - r.getStart());
+            byte[] b = new byte[len];
+            raf.seek(r.getStart());
+            raf.readFully(b);
+            byte[] expected = Arrays.copyOfRange(content, (int) r.getStart(), (int) r.getFinish());
+            assertTrue("range: " + r, Arrays.equals(expected, b));
+        }
+    }
+
+    private void write(ByteArrayOutputStream out, String s) throws IOException {
+        out.write(s.getBytes("ISO-8859-1"));
+    }
+}
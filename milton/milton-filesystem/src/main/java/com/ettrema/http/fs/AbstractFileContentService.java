@@ -0,0 +1,200 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A convenience base class for FileContentService's, which implements the
+ * optional StreamingFileContentService, PartialFileContentService and
+ * ContentLengthFileContentService on top of setFileContent and getFileContent.
+ *
+ * The defaults are correct for any service but read or write the whole
+ * content, so override them where the service can do better.
+ *
+ * @author brad
+ */
+public abstract class AbstractFileContentService implements StreamingFileContentService, PartialFileContentService, ContentLengthFileContentService {
+
+    private static final Logger log = LoggerFactory.getLogger(AbstractFileContentService.class);
+
+    /**
+     * Buffers the new content in a temporary file, and passes it to
+     * setFileContent on commit
+     */
+    @Override
+    public FileContentWriter openFileContent(File file) throws IOException {
+        return new BufferingWriter(file);
+    }
+
+    /**
+     * Rewrites the whole content with the range replaced, through
+     * openFileContent, so this is as atomic as that is
+     */
+    @Override
+    public void setPartialFileContent(File file, long position, long length, InputStream in) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        InputStream old = getFileContent(file);
+        FileContentWriter writer = openFileContent(file);
+        try {
+            OutputStream out = writer.getOutputStream();
+            byte[] buf = new byte[8192];
+            long copied = copy(old, out, position, buf);
+            if (copied < position) {
+                // the range is beyond the end of the file
+                Arrays.fill(buf, (byte) 0);
+                copy(null, out, position - copied, buf);
+            }
+            if (copy(in, out, length, buf) < length) {
+                throw new EOFException("Content ended before the end of the range");
+            }
+            long skip = length;
+            while (skip > 0) {
+                long n = old.skip(skip);
+                if (n <= 0) {
+                    break;
+                }
+                skip -= n;
+            }
+            copy(old, out, Long.MAX_VALUE, buf);
+            writer.commit();
+        } finally {
+            old.close();
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the whole content to count it, or if isContentInFile is true
+     * returns the length of the file
+     */
+    @Override
+    public long getFileContentLength(File file) {
+        if (isContentInFile()) {
+            return file.length();
+        }
+        InputStream in = null;
+        try {
+            in = getFileContent(file);
+            long length = 0;
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                length += n;
+            }
+            return length;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new RuntimeException(file.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * False, so FsFileResource only uses the content service to access
+     * content
+     */
+    @Override
+    public boolean isContentInFile() {
+        return false;
+    }
+
+    /**
+     * Copy up to max bytes, or if in is null write max bytes from buf
+     *
+     * @return - the number of bytes copied
+     */
+    private long copy(InputStream in, OutputStream out, long max, byte[] buf) throws IOException {
+        long total = 0;
+        while (total < max) {
+            int n = (int) Math.min(buf.length, max - total);
+            if (in != null) {
+                n = in.read(buf, 0, n);
+                if (n < 0) {
+                    break;
+                }
+            }
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private class BufferingWriter implements FileContentWriter {
+
+        private final File file;
+        private final File temp;
+        private final OutputStream out;
+        private boolean closed;
+
+        BufferingWriter(File file) throws IOException {
+            this.file = file;
+            this.temp = File.createTempFile("milton-content", ".tmp");
+            this.out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException("Already closed: " + file.getAbsolutePath());
+            }
+            out.close();
+            InputStream in = new FileInputStream(temp);
+            try {
+                setFileContent(file, in);
+            } finally {
+                in.close();
+            }
+            close();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                IOUtils.closeQuietly(out);
+                if (!temp.delete()) {
+                    log.warn("Couldnt delete temporary file: " + temp.getAbsolutePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.File;
+
+/**
+ * A FileContentService which can say where the content is stored, and so how
+ * long it is.
+ *
+ * For other services FsFileResource takes the length of the file as the
+ * content length, as it always has, but doesnt give out channels to read the
+ * file directly.
+ *
+ * @author brad
+ */
+public interface ContentLengthFileContentService extends FileContentService {
+
+	/**
+	 * The length of the content of the file, which is not necessarily the
+	 * length of the file if the service stores the content elsewhere
+	 *
+	 * @param file
+	 * @return
+	 */
+	long getFileContentLength(File file);
+
+	/**
+	 * Whether the content is stored in the file itself, so that its length is
+	 * the content length and it can be read directly, eg through a FileChannel
+	 * for a SeekableResource
+	 *
+	 * @return
+	 */
+	boolean isContentInFile();
+}
@@ -0,0 +1,114 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The attributes of a file which identify it and its content.
+ *
+ * With Java 7 or later these are read in one call to Files.readAttributes,
+ * which gives the file key, being the device and inode on unix like platforms,
+ * and the modified time to whatever precision the file system records. On
+ * Java 6 they come from java.io.File, which has no file key and only gives the
+ * modified time in milliseconds.
+ *
+ * @author brad
+ */
+final class FileAttributes {
+
+    private static final Logger log = LoggerFactory.getLogger(FileAttributes.class);
+    private static Method toPath;
+    private static Method readAttributes;
+    private static Class<?> basicAttributes;
+    private static Object noLinkOptions;
+    private static Method isDirectory;
+    private static Method size;
+    private static Method lastModifiedTime;
+    private static Method getFileKey;
+    private static Method to;
+
+    static {
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> attributesClass = Class.forName("java.nio.file.attribute.BasicFileAttributes");
+            Object options = Array.newInstance(Class.forName("java.nio.file.LinkOption"), 0);
+            readAttributes = Class.forName("java.nio.file.Files").getMethod("readAttributes", pathClass, Class.class, options.getClass());
+            isDirectory = attributesClass.getMethod("isDirectory");
+            size = attributesClass.getMethod("size");
+            lastModifiedTime = attributesClass.getMethod("lastModifiedTime");
+            getFileKey = attributesClass.getMethod("fileKey");
+            to = Class.forName("java.nio.file.attribute.FileTime").getMethod("to", TimeUnit.class);
+            basicAttributes = attributesClass;
+            noLinkOptions = options;
+            toPath = File.class.getMethod("toPath");
+        } catch (Exception e) {
+            log.info("File keys and precise modified times are not supported on this platform: " + e);
+            toPath = null;
+        }
+    }
+
+    final boolean exists;
+    final boolean directory;
+    final long length;
+    final long modifiedNanos;
+    /**
+     * Null if not supported by the platform or file system
+     */
+    final Object fileKey;
+
+    FileAttributes(boolean exists, boolean directory, long length, long modifiedNanos, Object fileKey) {
+        this.exists = exists;
+        this.directory = directory;
+        this.length = length;
+        this.modifiedNanos = modifiedNanos;
+        this.fileKey = fileKey;
+    }
+
+    static FileAttributes read(File file) {
+        if (toPath != null) {
+            try {
+                Object attrs = readAttributes.invoke(null, toPath.invoke(file), basicAttributes, noLinkOptions);
+                Object modified = lastModifiedTime.invoke(attrs);
+                return new FileAttributes(true, (Boolean) isDirectory.invoke(attrs), (Long) size.invoke(attrs), (Long) to.invoke(modified, TimeUnit.NANOSECONDS), getFileKey.invoke(attrs));
+            } catch (InvocationTargetException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    throw new RuntimeException(e.getCause());
+                }
+                // most likely doesnt exist, which java.io.File will say
+                log.trace("couldnt read attributes: " + file.getAbsolutePath() + " - " + e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return new FileAttributes(file.exists(), file.isDirectory(), file.length(), file.lastModified() * 1000000l, null);
+    }
+
+    static FileAttributes of(FsListingCache.Entry stat) {
+        return new FileAttributes(true, stat.isDirectory(), stat.getLength(), stat.getModifiedNanos(), stat.getFileKey());
+    }
+}
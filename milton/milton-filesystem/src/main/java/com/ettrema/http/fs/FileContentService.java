@@ -28,9 +28,25 @@ import java.io.InputStream;
 /**
  * Abstraction for storing and retrieving 
  *
+ * Services can also implement StreamingFileContentService,
+ * PartialFileContentService and ContentLengthFileContentService, which
+ * FsFileResource uses where present. AbstractFileContentService implements all
+ * of them with defaults which are correct for any service.
+ *
  * @author brad
  */
 public interface FileContentService {
+
+	/**
+	 * Replace the content of the file, or create it. This must be atomic: if
+	 * it fails, eg because the input stream throws, the previous content must
+	 * be left in place, as FsFileResource is an AtomicReplaceableResource
+	 *
+	 * @param file
+	 * @param in
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
 	void setFileContent(File file, InputStream in) throws FileNotFoundException, IOException;
 	InputStream getFileContent(File file) throws FileNotFoundException;
 }
@@ -0,0 +1,55 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A handle for writing new content for a file, as returned by
+ * StreamingFileContentService.openFileContent
+ *
+ * The new content is written to the output stream, and only replaces the
+ * existing content when commit is called. If the handle is closed without
+ * being committed the new content is discarded and the existing content is
+ * unchanged. So always close the handle in a finally block.
+ *
+ * @author brad
+ */
+public interface FileContentWriter {
+
+    /**
+     *
+     * @return - the stream to write the new content to. Do not close it, that is
+     * done by commit or close
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Make the new content visible, replacing the existing content in a single
+     * step
+     */
+    void commit() throws IOException;
+
+    /**
+     * Release the handle, discarding the new content if not committed
+     */
+    void close();
+}
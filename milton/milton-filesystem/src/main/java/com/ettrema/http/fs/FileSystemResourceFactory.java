@@ -22,6 +22,7 @@ package com.ettrema.http.fs;
 import com.bradmcevoy.common.Path;
 import com.bradmcevoy.http.Resource;
 import com.bradmcevoy.http.ResourceFactory;
+import com.bradmcevoy.http.quota.QuotaUsageService;
 import java.io.File;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +47,9 @@ public final class FileSystemResourceFactory implements ResourceFactory {
     String defaultPage;
     boolean digestAllowed = true;
     private String ssoPrefix;
+    private QuotaUsageService quotaUsageService;
+    private FsListingCache listingCache;
+    final FileVersions fileVersions = new FileVersions();
 
     /**
      * Creates and (optionally) initialises the factory. This looks for a
@@ -106,6 +110,26 @@ public final class FileSystemResourceFactory implements ResourceFactory {
         return root;
     }
 
+    /**
+     *
+     * @param file
+     * @return - the path of the file relative to the root, with forward slashes
+     * and starting with a slash, or an empty string for the root itself. Null if
+     * the file is not within the root
+     */
+    public String getRelativePath(File file) {
+        String rootPath = root.getAbsolutePath();
+        String s = file.getAbsolutePath();
+        if (!s.startsWith(rootPath)) {
+            return null;
+        }
+        s = s.substring(rootPath.length());
+        if (s.length() > 0 && s.charAt(0) != File.separatorChar) {
+            return null; // a sibling of the root with the same prefix
+        }
+        return File.separatorChar == '/' ? s : s.replace(File.separatorChar, '/');
+    }
+
     public final void setRoot(File root) {
         log.debug("root: " + root.getAbsolutePath());
         this.root = root;
@@ -128,6 +152,14 @@ public final class FileSystemResourceFactory implements ResourceFactory {
 
     public FsResource resolveFile(String host, File file) {
         FsResource r;
+        if (listingCache != null && !file.equals(root)) {
+            FsListingCache.Entry stat = listingCache.getEntry(file);
+            if (stat == null) {
+                log.debug("file not found: " + file.getAbsolutePath());
+                return null;
+            }
+            return resolveFile(host, file, stat);
+        }
         if (!file.exists()) {
             log.debug("file not found: " + file.getAbsolutePath());
             return null;
@@ -142,6 +174,32 @@ public final class FileSystemResourceFactory implements ResourceFactory {
         return r;
     }
 
+    /**
+     * Create a resource from cached information, without going to the file system
+     */
+    FsResource resolveFile(String host, File file, FsListingCache.Entry stat) {
+        FsResource r;
+        if (stat.isDirectory()) {
+            r = new FsDirectoryResource(host, this, file, contentService, stat);
+        } else {
+            r = new FsFileResource(host, this, file, contentService);
+            r.stat = stat;
+        }
+        r.ssoPrefix = ssoPrefix;
+        return r;
+    }
+
+    /**
+     * Called after a file or directory has been changed
+     *
+     * @param file
+     */
+    void invalidate(File file) {
+        if (listingCache != null) {
+            listingCache.invalidate(file);
+        }
+    }
+
     public File resolvePath(File root, String url) {
         Path path = Path.path(url);
         File f = root;
@@ -264,4 +322,31 @@ public final class FileSystemResourceFactory implements ResourceFactory {
     public void setContentService(FileContentService contentService) {
         this.contentService = contentService;
     }
+
+    /**
+     * If set, directories report their usage and available quota from it, so
+     * that quota checks dont need to walk the file system. See FsQuotaUsageService
+     *
+     * @return
+     */
+    public QuotaUsageService getQuotaUsageService() {
+        return quotaUsageService;
+    }
+
+    public void setQuotaUsageService(QuotaUsageService quotaUsageService) {
+        this.quotaUsageService = quotaUsageService;
+    }
+
+    /**
+     * If set, directory listings and file attributes are cached
+     *
+     * @return
+     */
+    public FsListingCache getListingCache() {
+        return listingCache;
+    }
+
+    public void setListingCache(FsListingCache listingCache) {
+        this.listingCache = listingCache;
+    }
 }
@@ -0,0 +1,185 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Gives files a unique id and version token, keeping them right across writes
+ * made through milton where the file system alone can't.
+ *
+ * The unique id is a hash of the file key where the platform has one, so it
+ * follows the file when it is moved, otherwise of the path. But new content is
+ * written to a temporary file which is renamed over the old one, which gives
+ * the file a new file key. So the id from before the write is remembered
+ * against the path and new file key, and locks, which are keyed by the unique
+ * id, survive the write. The old file key is then free, and the file system
+ * can give it to another file, so that file gets an id from its key and path
+ * instead, to not share the remembered id.
+ *
+ * The version token is the modified time in nanoseconds and the length. Some
+ * file systems only record the modified time to the second, and Java 6 only
+ * gives it in milliseconds, so two writes of the same length can leave both
+ * unchanged. When that happens the write is counted, and the count added to
+ * the token. Counts start again when this is created, so they are qualified by
+ * the time it was created to not repeat a token from before a restart.
+ *
+ * Only files whose id or token differs from what the file system says are
+ * remembered. Entries are dropped when the file is deleted through milton,
+ * and are ignored once the file is changed outside of milton.
+ *
+ * @author brad
+ */
+final class FileVersions {
+
+    private final String seed = Long.toHexString(System.currentTimeMillis());
+    private final ConcurrentSkipListMap<String, Version> versions = new ConcurrentSkipListMap<String, Version>();
+    /**
+     * The path of each remembered id which no longer comes from the file key
+     */
+    private final ConcurrentHashMap<String, String> claimed = new ConcurrentHashMap<String, String>();
+
+    static String baseUniqueId(File file, FileAttributes attrs) {
+        return DigestUtils.shaHex(attrs.fileKey != null ? attrs.fileKey.toString() : file.getAbsolutePath());
+    }
+
+    static String baseVersionToken(FileAttributes attrs) {
+        return Long.toHexString(attrs.modifiedNanos) + "-" + Long.toHexString(attrs.length);
+    }
+
+    String getUniqueId(File file, FileAttributes attrs) {
+        Version v = versions.get(file.getAbsolutePath());
+        if (v != null && v.sameFile(attrs)) {
+            return v.uniqueId;
+        }
+        String uniqueId = baseUniqueId(file, attrs);
+        String claimedBy = claimed.get(uniqueId);
+        if (claimedBy != null && !claimedBy.equals(file.getAbsolutePath())) {
+            return DigestUtils.shaHex(attrs.fileKey + file.getAbsolutePath());
+        }
+        return uniqueId;
+    }
+
+    String getVersionToken(File file, FileAttributes attrs) {
+        String token = baseVersionToken(attrs);
+        Version v = versions.get(file.getAbsolutePath());
+        if (v != null && v.writes > 0 && v.sameContent(attrs)) {
+            token = token + "-" + seed + "." + Integer.toHexString(v.writes);
+        }
+        return token;
+    }
+
+    /**
+     * Called after the content of the file has been written through milton
+     *
+     * @param file
+     * @param before - the attributes of the file before it was written
+     * @param after - the attributes of the file after it was written
+     */
+    synchronized void written(File file, FileAttributes before, FileAttributes after) {
+        String path = file.getAbsolutePath();
+        String uniqueId = before.exists ? getUniqueId(file, before) : baseUniqueId(file, after);
+        int writes = 0;
+        if (before.exists && before.modifiedNanos == after.modifiedNanos && before.length == after.length) {
+            Version previous = versions.get(path);
+            writes = (previous != null && previous.sameContent(before) ? previous.writes : 0) + 1;
+        }
+        if (writes == 0 && uniqueId.equals(baseUniqueId(file, after))) {
+            remove(path);
+        } else {
+            put(path, new Version(uniqueId, after, writes));
+        }
+    }
+
+    /**
+     * Called after a file or directory has been renamed, so what is remembered
+     * for it, and anything beneath it, follows it
+     */
+    synchronized void moved(File from, File to) {
+        String fromPath = from.getAbsolutePath();
+        String toPath = to.getAbsolutePath();
+        deleted(to);
+        Version v = remove(fromPath);
+        if (v != null) {
+            put(toPath, v);
+        }
+        List<String> beneath = new ArrayList<String>(versions.subMap(fromPath + File.separatorChar, fromPath + (char) (File.separatorChar + 1)).keySet());
+        for (String path : beneath) {
+            v = remove(path);
+            if (v != null) {
+                put(toPath + path.substring(fromPath.length()), v);
+            }
+        }
+    }
+
+    /**
+     * Called after a file or directory has been deleted
+     */
+    synchronized void deleted(File file) {
+        String path = file.getAbsolutePath();
+        remove(path);
+        List<String> beneath = new ArrayList<String>(versions.subMap(path + File.separatorChar, path + (char) (File.separatorChar + 1)).keySet());
+        for (String p : beneath) {
+            remove(p);
+        }
+    }
+
+    private void put(String path, Version v) {
+        remove(path);
+        versions.put(path, v);
+        if (!v.uniqueId.equals(baseUniqueId(new File(path), v.attrs))) {
+            claimed.put(v.uniqueId, path);
+        }
+    }
+
+    private Version remove(String path) {
+        Version v = versions.remove(path);
+        if (v != null) {
+            claimed.remove(v.uniqueId, path);
+        }
+        return v;
+    }
+
+    private static class Version {
+
+        private final String uniqueId;
+        private final FileAttributes attrs;
+        private final int writes;
+
+        Version(String uniqueId, FileAttributes attrs, int writes) {
+            this.uniqueId = uniqueId;
+            this.attrs = attrs;
+            this.writes = writes;
+        }
+
+        boolean sameFile(FileAttributes other) {
+            return attrs.fileKey == null ? other.fileKey == null : attrs.fileKey.equals(other.fileKey);
+        }
+
+        boolean sameContent(FileAttributes other) {
+            return sameFile(other) && attrs.modifiedNanos == other.modifiedNanos && attrs.length == other.length;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.property.DeadPropertySource;
+import com.bradmcevoy.property.DeadPropertyStore;
+
+/**
+ * A DeadPropertySource for FsResource's, which identifies resources by their
+ * path relative to the root of the resource factory.
+ *
+ * To use, add to the property sources after the default ones, wrap the
+ * PropPatchSetter in a DeadPropertyPatchSetter, and register with the
+ * EventManager so properties follow their resources when moved and copied.
+ *
+ */
+public class FsDeadPropertySource extends DeadPropertySource {
+
+    private final FileSystemResourceFactory factory;
+
+    public FsDeadPropertySource( FileSystemResourceFactory factory, DeadPropertyStore store ) {
+        super( store );
+        this.factory = factory;
+    }
+
+    @Override
+    protected String getKey( Resource r ) {
+        if( !( r instanceof FsResource ) ) {
+            return null;
+        }
+        return factory.getRelativePath( ( (FsResource) r ).getFile() );
+    }
+}
@@ -34,7 +34,7 @@ import org.slf4j.LoggerFactory;
  * Represents a directory in a physical file system.
  *
  */
-public class FsDirectoryResource extends FsResource implements MakeCollectionableResource, PutableResource, CopyableResource, DeletableResource, MoveableResource, PropFindableResource, LockingCollectionResource, GetableResource {
+public class FsDirectoryResource extends FsResource implements MakeCollectionableResource, PutableResource, CopyableResource, DeletableResource, MoveableResource, PropFindableResource, LockingCollectionResource, GetableResource, QuotaResource {
 
     private static final Logger log = LoggerFactory.getLogger(FsDirectoryResource.class);
     
@@ -51,10 +51,20 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
         }
     }
 
+    /**
+     * Create from cached information, so dont check the directory
+     */
+    FsDirectoryResource(String host, FileSystemResourceFactory factory, File dir, FileContentService contentService, FsListingCache.Entry stat) {
+        super(host, factory, dir);
+        this.contentService = contentService;
+        this.stat = stat;
+    }
+
     @Override
     public CollectionResource createCollection(String name) {
         File fnew = new File(file, name);
         boolean ok = fnew.mkdir();
+        changed(fnew);
         if (!ok) {
             throw new RuntimeException("Failed to create: " + fnew.getAbsolutePath());
         }
@@ -71,9 +81,24 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
     @Override
     public List<? extends Resource> getChildren() {
         ArrayList<FsResource> list = new ArrayList<FsResource>();
+        FsListingCache cache = factory == null ? null : factory.getListingCache();
+        if (cache != null) {
+            Map<String, FsListingCache.Entry> entries = cache.getListing(file);
+            if (entries != null) {
+                for (Map.Entry<String, FsListingCache.Entry> e : entries.entrySet()) {
+                    if (!SimpleFileContentService.isTempFile(e.getKey())) {
+                        list.add(factory.resolveFile(host, new File(file, e.getKey()), e.getValue()));
+                    }
+                }
+            }
+            return list;
+        }
         File[] files = this.file.listFiles();
         if (files != null) {
             for (File fchild : files) {
+                if (SimpleFileContentService.isTempFile(fchild.getName())) {
+                    continue; // an upload in progress
+                }
                 FsResource res = factory.resolveFile(this.host, fchild);
                 if (res != null) {
                     list.add(res);
@@ -103,13 +128,7 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
     @Override
     public Resource createNew(String name, InputStream in, Long length, String contentType) throws IOException {
         File dest = new File(this.getFile(), name);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(dest);
-            IOUtils.copy(in, out);
-        } finally {
-            IOUtils.closeQuietly(out);
-        }
+        new FsFileResource(host, factory, dest, contentService).setContent(in);
         // todo: ignores contentType
         return factory.resolveFile(this.host, dest);
 
@@ -128,6 +147,7 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
     public LockToken createAndLock(String name, LockTimeout timeout, LockInfo lockInfo) throws NotAuthorizedException {
         File dest = new File(this.getFile(), name);
         createEmptyFile(dest);
+        changed(dest);
         FsFileResource newRes = new FsFileResource(host, factory, dest, contentService);
         LockResult res = newRes.lock(timeout, lockInfo);
         return res.getLockToken();
@@ -229,6 +249,22 @@ public class FsDirectoryResource extends FsResource implements MakeCollectionabl
         return null;
     }
 
+    @Override
+    public Long getQuotaUsed() {
+        if (factory.getQuotaUsageService() == null) {
+            return null;
+        }
+        return factory.getQuotaUsageService().getQuotaUsed(this);
+    }
+
+    @Override
+    public Long getQuotaAvailable() {
+        if (factory.getQuotaUsageService() == null) {
+            return null;
+        }
+        return factory.getQuotaUsageService().getQuotaAvailable(this);
+    }
+
     private String buildHref(String uri, String name) {
         /* TODO: Don't know why this has to be the request's absolute URL and the comment
         doesn't help either. The HttpManager global variables are no longer available in
@@ -20,6 +20,7 @@
 package com.ettrema.http.fs;
 
 import com.bradmcevoy.common.ContentTypeUtils;
+import com.bradmcevoy.http.AtomicReplaceableResource;
 import com.bradmcevoy.http.Auth;
 import com.bradmcevoy.http.CopyableResource;
 import com.bradmcevoy.http.DeletableResource;
@@ -29,12 +30,18 @@ import com.bradmcevoy.http.PropFindableResource;
 import com.bradmcevoy.http.PropPatchableResource;
 import com.bradmcevoy.http.Range;
 import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.SeekableResource;
 import com.bradmcevoy.http.entity.PartialEntity;
+import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.NotFoundException;
+import com.bradmcevoy.http.http11.PartialllyUpdateableResource;
 import com.bradmcevoy.http.webdav.PropPatchHandler.Fields;
 import com.bradmcevoy.io.ReadingException;
 import com.bradmcevoy.io.WritingException;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -44,11 +51,16 @@ import org.slf4j.LoggerFactory;
 /**
  *
  */
-public class FsFileResource extends FsResource implements CopyableResource, DeletableResource, GetableResource, MoveableResource, PropFindableResource, PropPatchableResource {
+public class FsFileResource extends FsResource implements CopyableResource, DeletableResource, GetableResource, MoveableResource, PropFindableResource, PropPatchableResource, PartialllyUpdateableResource, SeekableResource, AtomicReplaceableResource {
 
     private static final Logger log = LoggerFactory.getLogger(FsFileResource.class);
     
     private final FileContentService contentService;
+    /**
+     * Channels given out by openContentChannel, which are closed before new
+     * content is renamed over the file, as windows wont rename over an open file
+     */
+    private final List<FileChannel> contentChannels = new ArrayList<FileChannel>();
 
     /**
      *
@@ -63,7 +75,13 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
 
     @Override
     public Long getContentLength() {
-        return file.length();
+        if (contentService instanceof ContentLengthFileContentService) {
+            ContentLengthFileContentService cs = (ContentLengthFileContentService) contentService;
+            if (!cs.isContentInFile()) {
+                return cs.getFileContentLength(file);
+            }
+        }
+        return length();
     }
 
     @Override
@@ -105,6 +123,122 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
         }
     }
 
+    /**
+     * Only available when the content service stores the content in the file
+     * itself, otherwise returns null.
+     *
+     * The channel is closed when content is next written through this
+     * resource, before it is committed, so it can be used to read the existing
+     * content while the new content is written, eg for a zsync upload
+     */
+    @Override
+    public FileChannel openContentChannel() throws IOException {
+        if (!isContentInFile()) {
+            return null;
+        }
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        synchronized (contentChannels) {
+            contentChannels.add(channel);
+        }
+        return channel;
+    }
+
+    @Override
+    public void replaceContent(InputStream in, Long length) throws BadRequestException {
+        try {
+            setContent(in);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt write to: " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Writes only the given range, in place
+     */
+    @Override
+    public void replacePartialContent(Range range, InputStream in) {
+        FileAttributes before = FileAttributes.read(file);
+        try {
+            partialContentService().setPartialFileContent(file, range.getStart(), range.getFinish() - range.getStart() + 1, in);
+            written(before);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt write to: " + file.getAbsolutePath(), ex);
+        } finally {
+            changed(file);
+        }
+    }
+
+    /**
+     * Replace the content of the file, or create it
+     */
+    void setContent(InputStream in) throws IOException {
+        FileAttributes before = FileAttributes.read(file);
+        try {
+            if (hasContentChannels()) {
+                FileContentWriter writer = streamingContentService().openFileContent(file);
+                try {
+                    IOUtils.copy(in, writer.getOutputStream());
+                    closeContentChannels();
+                    writer.commit();
+                } finally {
+                    writer.close();
+                }
+            } else {
+                contentService.setFileContent(file, in);
+            }
+            written(before);
+        } finally {
+            changed(file);
+        }
+    }
+
+    private boolean isContentInFile() {
+        return (contentService instanceof ContentLengthFileContentService) && ((ContentLengthFileContentService) contentService).isContentInFile();
+    }
+
+    private StreamingFileContentService streamingContentService() {
+        if (contentService instanceof StreamingFileContentService) {
+            return (StreamingFileContentService) contentService;
+        }
+        return new BasicContentServiceAdapter(contentService);
+    }
+
+    private PartialFileContentService partialContentService() {
+        if (contentService instanceof PartialFileContentService) {
+            return (PartialFileContentService) contentService;
+        }
+        return new BasicContentServiceAdapter(contentService);
+    }
+
+    private boolean hasContentChannels() {
+        synchronized (contentChannels) {
+            return !contentChannels.isEmpty();
+        }
+    }
+
+    private void closeContentChannels() {
+        synchronized (contentChannels) {
+            for (FileChannel channel : contentChannels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Couldnt close content channel: " + file.getAbsolutePath(), e);
+                }
+            }
+            contentChannels.clear();
+        }
+    }
+
+    /**
+     * Keep the unique id, and make sure the version token changes even if the
+     * modified time and length havent
+     */
+    private void written(FileAttributes before) {
+        if (factory != null) {
+            factory.fileVersions.written(file, before, FileAttributes.read(file));
+        }
+    }
+
     /**
      * @{@inheritDoc}
      */
@@ -131,4 +265,27 @@ public class FsFileResource extends FsResource implements CopyableResource, Dele
         // MIL-50
         // not implemented. Just to keep MS Office sweet
     }
+
+    /**
+     * Gives a content service which only implements FileContentService the
+     * defaults from AbstractFileContentService
+     */
+    private static class BasicContentServiceAdapter extends AbstractFileContentService {
+
+        private final FileContentService wrapped;
+
+        BasicContentServiceAdapter(FileContentService wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public void setFileContent(File file, InputStream in) throws FileNotFoundException, IOException {
+            wrapped.setFileContent(file, in);
+        }
+
+        @Override
+        public InputStream getFileContent(File file) throws FileNotFoundException {
+            return wrapped.getFileContent(file);
+        }
+    }
 }
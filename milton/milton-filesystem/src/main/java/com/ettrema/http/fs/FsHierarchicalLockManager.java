@@ -0,0 +1,72 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.LockableResource;
+import java.io.File;
+
+/**
+ * A HierarchicalLockManager for FsResource's, keyed on the absolute path of
+ * the file. Unlike FsMemoryLockManager this supports shared and depth infinity
+ * locks.
+ *
+ * If the root of the file system is given, changes are striped by the top
+ * level folders within the root, otherwise by the first folder in the absolute path.
+ *
+ * Remember to call start() so that expired locks are removed.
+ *
+ */
+public class FsHierarchicalLockManager extends HierarchicalLockManager {
+
+    private static final boolean SLASH_SEPARATOR = File.separatorChar == '/';
+
+    public FsHierarchicalLockManager() {
+    }
+
+    /**
+     *
+     * @param root - the root of the file system being served, normally
+     * FileSystemResourceFactory.getRoot()
+     */
+    public FsHierarchicalLockManager( File root ) {
+        super( 64, depth( root ) + 1, 1, 512 );
+    }
+
+    public FsHierarchicalLockManager( int numStripes, int stripeDepth, int tickSeconds, int wheelSize ) {
+        super( numStripes, stripeDepth, tickSeconds, wheelSize );
+    }
+
+    @Override
+    protected String getPath( LockableResource r ) {
+        FsResource resource = (FsResource) r;
+        String s = resource.getFile().getAbsolutePath();
+        return SLASH_SEPARATOR ? s : s.replace( File.separatorChar, '/' );
+    }
+
+    private static int depth( File f ) {
+        int depth = 0;
+        for( File p = f.getAbsoluteFile(); p != null; p = p.getParentFile() ) {
+            if( p.getName().length() > 0 ) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
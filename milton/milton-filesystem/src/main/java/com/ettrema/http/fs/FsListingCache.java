@@ -0,0 +1,516 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.Resource;
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManager;
+import com.ettrema.event.MoveEvent;
+import com.ettrema.event.NewFolderEvent;
+import com.ettrema.event.PutEvent;
+import com.ettrema.event.ResourceEvent;
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches directory listings, including the type, length, modified date and
+ * file key of each file, so that finding a child or listing a directory does
+ * not need to go to the file system each time. This matters most on network file
+ * systems, where listing a directory is slow.
+ *
+ * Set on the FileSystemResourceFactory to use. The FsResource's invalidate
+ * the cache after changing the file system, so changes made through milton
+ * are seen immediately. Registering the cache with the EventManager also
+ * invalidates on milton's resource events, which covers changes made to the
+ * same directories by other resources. Changes made outside of milton are seen
+ * once the listing is older then ttlSeconds, or sooner if watched.
+ *
+ * Each directory has a generation, which invalidating it increments. A
+ * listing is only cached if the generation is the same as before the
+ * directory was listed, so a listing which started before a change can't
+ * replace the invalidated one after it.
+ *
+ * Where java.nio.file is present (Java 7 and later) each directory is
+ * registered with a WatchService before it is listed, and a daemon thread
+ * invalidates the listing when the WatchService reports a change, so outside
+ * changes are usually seen straight away. This is found by reflection since
+ * this must still run on Java 6. WatchService is not reliable on network file
+ * systems, and a directory might not be able to be watched at all, so the TTL
+ * and event invalidation still apply. Call stop to close the WatchService.
+ *
+ * @author brad
+ */
+public class FsListingCache implements EventListener {
+
+    private static final Logger log = LoggerFactory.getLogger( FsListingCache.class );
+    private final ConcurrentSkipListMap<String, Listing> listings = new ConcurrentSkipListMap<String, Listing>();
+    private final ConcurrentSkipListMap<String, Generation> generations = new ConcurrentSkipListMap<String, Generation>();
+    private static Method toPath;
+    private static Object fileSystem;
+    private static Method newWatchService;
+    private static Method register;
+    private static Object watchKinds;
+    private static Method take;
+    private static Method pollEvents;
+    private static Method context;
+    private static Method watchable;
+    private static Method reset;
+    private static Method cancel;
+    private static Method close;
+
+    static {
+        try {
+            Class<?> kindClass = Class.forName( "java.nio.file.WatchEvent$Kind" );
+            Class<?> serviceClass = Class.forName( "java.nio.file.WatchService" );
+            Class<?> keyClass = Class.forName( "java.nio.file.WatchKey" );
+            Class<?> kinds = Class.forName( "java.nio.file.StandardWatchEventKinds" );
+            Object arr = Array.newInstance( kindClass, 3 );
+            Array.set( arr, 0, kinds.getField( "ENTRY_CREATE" ).get( null ) );
+            Array.set( arr, 1, kinds.getField( "ENTRY_DELETE" ).get( null ) );
+            Array.set( arr, 2, kinds.getField( "ENTRY_MODIFY" ).get( null ) );
+            fileSystem = Class.forName( "java.nio.file.FileSystems" ).getMethod( "getDefault" ).invoke( null );
+            newWatchService = Class.forName( "java.nio.file.FileSystem" ).getMethod( "newWatchService" );
+            register = Class.forName( "java.nio.file.Path" ).getMethod( "register", serviceClass, arr.getClass() );
+            take = serviceClass.getMethod( "take" );
+            close = serviceClass.getMethod( "close" );
+            pollEvents = keyClass.getMethod( "pollEvents" );
+            watchable = keyClass.getMethod( "watchable" );
+            reset = keyClass.getMethod( "reset" );
+            cancel = keyClass.getMethod( "cancel" );
+            context = Class.forName( "java.nio.file.WatchEvent" ).getMethod( "context" );
+            watchKinds = arr;
+            toPath = File.class.getMethod( "toPath" );
+        } catch( Exception e ) {
+            log.info( "Directories cant be watched for changes on this platform: " + e );
+            toPath = null;
+        }
+    }
+
+    /**
+     *
+     * @return - true if the platform has a WatchService, ie Java 7 or later
+     */
+    public static boolean isWatchSupported() {
+        return toPath != null;
+    }
+
+    private final ConcurrentHashMap<String, Object> watchKeys = new ConcurrentHashMap<String, Object>();
+    private long ttlMillis = 5000;
+    private int maxDirectories = 10000;
+    private volatile boolean watch = true;
+    private Object watchService;
+
+    /**
+     * Register for the events which change the file system
+     *
+     * @param eventManager
+     */
+    public void register( EventManager eventManager ) {
+        eventManager.registerEventListener( this, PutEvent.class );
+        eventManager.registerEventListener( this, DeleteEvent.class );
+        eventManager.registerEventListener( this, MoveEvent.class );
+        eventManager.registerEventListener( this, NewFolderEvent.class );
+    }
+
+    /**
+     *
+     * @param dir
+     * @return - the entries in the directory keyed by name, or null if it is
+     * not a directory
+     */
+    public Map<String, Entry> getListing( File dir ) {
+        String key = dir.getAbsolutePath();
+        Listing l = listings.get( key );
+        long now = System.currentTimeMillis();
+        if( l == null || now - l.loaded >= ttlMillis ) {
+            if( generations.size() >= maxDirectories ) {
+                log.debug( "listing cache is full, clearing" );
+                invalidateAll();
+            }
+            watch( dir, key );
+            Generation gen = generation( key );
+            long seen;
+            synchronized( gen ) {
+                seen = gen.value;
+            }
+            l = load( dir, now );
+            if( l == null ) {
+                listings.remove( key );
+                return null;
+            }
+            synchronized( gen ) {
+                if( gen.value == seen && generations.get( key ) == gen ) {
+                    listings.put( key, l );
+                } else {
+                    log.trace( "not caching listing, invalidated while loading: " + key );
+                }
+            }
+        }
+        return l.entries;
+    }
+
+    /**
+     *
+     * @param file
+     * @return - the entry for the file, from the listing of its parent, or null
+     * if it does not exist
+     */
+    public Entry getEntry( File file ) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if( parent == null ) {
+            return null;
+        }
+        Map<String, Entry> entries = getListing( parent );
+        return entries == null ? null : entries.get( file.getName() );
+    }
+
+    /**
+     * Discard cached information for the file, its parent, and if it is a
+     * directory everything beneath it
+     *
+     * @param file
+     */
+    public void invalidate( File file ) {
+        String path = file.getAbsolutePath();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if( parent != null ) {
+            invalidate( parent.getAbsolutePath() );
+        }
+        invalidate( path );
+        String from = path + File.separatorChar;
+        String to = path + (char) ( File.separatorChar + 1 );
+        for( Map.Entry<String, Generation> e : generations.subMap( from, to ).entrySet() ) {
+            increment( e.getKey(), e.getValue() );
+        }
+        listings.subMap( from, to ).clear();
+    }
+
+    public void invalidateAll() {
+        for( Map.Entry<String, Generation> e : generations.entrySet() ) {
+            increment( e.getKey(), e.getValue() );
+        }
+        listings.clear();
+        generations.clear();
+        // the directories will be watched again when they are next listed
+        for( String key : watchKeys.keySet() ) {
+            unwatch( key );
+        }
+    }
+
+    /**
+     * Close the WatchService, if one was started. Directories listed after
+     * this will start another
+     */
+    public synchronized void stop() {
+        if( watchService != null ) {
+            try {
+                close.invoke( watchService );
+            } catch( Exception e ) {
+                log.warn( "couldnt close the watch service", e );
+            }
+            watchService = null;
+            watchKeys.clear();
+        }
+    }
+
+    @Override
+    public void onEvent( Event e ) {
+        if( e instanceof ResourceEvent ) {
+            invalidate( ( (ResourceEvent) e ).getResource() );
+        }
+        if( e instanceof MoveEvent ) {
+            invalidate( ( (MoveEvent) e ).getDestCollection() );
+        }
+    }
+
+    private void invalidate( Resource r ) {
+        if( r instanceof FsResource ) {
+            invalidate( ( (FsResource) r ).getFile() );
+        }
+    }
+
+    private void invalidate( String key ) {
+        Generation gen = generations.get( key );
+        if( gen != null ) {
+            increment( key, gen );
+        } else {
+            listings.remove( key );
+        }
+    }
+
+    private void increment( String key, Generation gen ) {
+        synchronized( gen ) {
+            gen.value++;
+            listings.remove( key );
+        }
+    }
+
+    /**
+     * Register the directory with the WatchService, if it isnt already, so
+     * that changes from now on invalidate its listing
+     */
+    private void watch( File dir, String key ) {
+        if( !watch || toPath == null || watchKeys.containsKey( key ) ) {
+            return;
+        }
+        Object ws = watchService();
+        if( ws == null ) {
+            return;
+        }
+        try {
+            watchKeys.put( key, register.invoke( toPath.invoke( dir.getAbsoluteFile() ), ws, watchKinds ) );
+        } catch( InvocationTargetException e ) {
+            // eg doesnt exist, or the limit of watches has been reached
+            log.debug( "couldnt watch directory: " + key + " - " + e.getCause() );
+        } catch( IllegalAccessException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private void unwatch( String key ) {
+        Object watchKey = watchKeys.remove( key );
+        if( watchKey != null ) {
+            try {
+                cancel.invoke( watchKey );
+            } catch( Exception e ) {
+                log.debug( "couldnt cancel watch: " + key + " - " + e );
+            }
+        }
+    }
+
+    /**
+     *
+     * @return - the WatchService, starting it and the thread which takes its
+     * events if not already, or null if it couldnt be started
+     */
+    private synchronized Object watchService() {
+        if( watchService == null ) {
+            final Object ws;
+            try {
+                ws = newWatchService.invoke( fileSystem );
+            } catch( Exception e ) {
+                log.warn( "couldnt start watching directories, will rely on ttlSeconds", e );
+                watch = false;
+                return null;
+            }
+            new DaemonThreadFactory( FsListingCache.class ).newThread( new Runnable() {
+
+                @Override
+                public void run() {
+                    takeEvents( ws );
+                }
+            } ).start();
+            watchService = ws;
+        }
+        return watchService;
+    }
+
+    /**
+     * Invalidate the listings of directories as their changes are reported,
+     * until the WatchService is closed
+     */
+    private void takeEvents( Object ws ) {
+        while( true ) {
+            try {
+                Object watchKey = take.invoke( ws );
+                File dir = new File( watchable.invoke( watchKey ).toString() );
+                for( Object event : (List<?>) pollEvents.invoke( watchKey ) ) {
+                    Object name = context.invoke( event );
+                    if( name == null ) {
+                        // overflow, so some events were lost
+                        invalidate( dir );
+                    } else {
+                        invalidate( new File( dir, name.toString() ) );
+                    }
+                }
+                if( !(Boolean) reset.invoke( watchKey ) ) {
+                    // the directory has gone
+                    watchKeys.remove( dir.getAbsolutePath(), watchKey );
+                }
+            } catch( InvocationTargetException e ) {
+                // closed, or interrupted
+                log.debug( "stopped watching directories: " + e.getCause() );
+                return;
+            } catch( IllegalAccessException e ) {
+                throw new RuntimeException( e );
+            }
+        }
+    }
+
+    private Generation generation( String key ) {
+        Generation gen = generations.get( key );
+        if( gen == null ) {
+            gen = new Generation();
+            Generation existing = generations.putIfAbsent( key, gen );
+            if( existing != null ) {
+                gen = existing;
+            }
+        }
+        return gen;
+    }
+
+    /**
+     * List the directory. Package visible so tests can change the file system
+     * part way through
+     */
+    Listing load( File dir, long now ) {
+        File[] files = dir.listFiles();
+        if( files == null ) {
+            return null;
+        }
+        Map<String, Entry> entries = new HashMap<String, Entry>( files.length * 2 );
+        for( File f : files ) {
+            FileAttributes attrs = FileAttributes.read( f );
+            if( attrs.exists ) {
+                entries.put( f.getName(), new Entry( attrs.directory, attrs.length, attrs.modifiedNanos / 1000000, attrs.modifiedNanos, attrs.fileKey ) );
+            }
+        }
+        return new Listing( now, Collections.unmodifiableMap( entries ) );
+    }
+
+    /**
+     * How long a listing can be used for, if not invalidated. Changes made
+     * outside of milton can take this long to be seen
+     *
+     * @return
+     */
+    public int getTtlSeconds() {
+        return (int) ( ttlMillis / 1000 );
+    }
+
+    public void setTtlSeconds( int ttlSeconds ) {
+        this.ttlMillis = ttlSeconds * 1000l;
+    }
+
+    /**
+     * The maximum number of directories to cache. When reached the cache is
+     * cleared
+     *
+     * @return
+     */
+    public int getMaxDirectories() {
+        return maxDirectories;
+    }
+
+    public void setMaxDirectories( int maxDirectories ) {
+        this.maxDirectories = maxDirectories;
+    }
+
+    /**
+     * Whether to watch listed directories for changes made outside of milton,
+     * where the platform supports it. Defaults to true
+     *
+     * @return
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public void setWatch( boolean watch ) {
+        this.watch = watch;
+    }
+
+    /**
+     * Incremented each time the directory is invalidated. Guarded by itself
+     */
+    private static class Generation {
+
+        private long value;
+    }
+
+    static class Listing {
+
+        private final long loaded;
+        private final Map<String, Entry> entries;
+
+        Listing( long loaded, Map<String, Entry> entries ) {
+            this.loaded = loaded;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * What was known about a file when its directory was listed
+     */
+    public static class Entry {
+
+        private final boolean directory;
+        private final long length;
+        private final long modified;
+        private final long modifiedNanos;
+        private final Object fileKey;
+
+        public Entry( boolean directory, long length, long modified ) {
+            this( directory, length, modified, modified * 1000000l, null );
+        }
+
+        public Entry( boolean directory, long length, long modified, long modifiedNanos, Object fileKey ) {
+            this.directory = directory;
+            this.length = length;
+            this.modified = modified;
+            this.modifiedNanos = modifiedNanos;
+            this.fileKey = fileKey;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * The modified time to the precision of the file system, where the
+         * platform gives it, otherwise to the millisecond
+         *
+         * @return
+         */
+        public long getModifiedNanos() {
+            return modifiedNanos;
+        }
+
+        /**
+         *
+         * @return - the file key, eg the device and inode, or null if the
+         * platform doesnt support them
+         */
+        public Object getFileKey() {
+            return fileKey;
+        }
+    }
+}
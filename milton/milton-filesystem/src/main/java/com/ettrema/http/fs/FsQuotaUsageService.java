@@ -0,0 +1,88 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.quota.QuotaUsageService;
+import com.ettrema.event.EventManager;
+
+/**
+ * A QuotaUsageService for FsResource's.
+ *
+ * To use, create with the resource factory and the EventManager of the
+ * HttpManager, then set it on the resource factory so that directories report
+ * their usage and available quota, and call start()
+ *
+ * If userHomes is set, each folder in the root is taken to be the home folder
+ * of the user of the same name, so that per user limits apply to everything
+ * within it
+ *
+ */
+public class FsQuotaUsageService extends QuotaUsageService {
+
+    private final FileSystemResourceFactory factory;
+    private boolean userHomes;
+
+    public FsQuotaUsageService( FileSystemResourceFactory factory, EventManager eventManager ) {
+        super( eventManager );
+        this.factory = factory;
+    }
+
+    @Override
+    protected String getPath( Resource r ) {
+        if( !( r instanceof FsResource ) ) {
+            return null;
+        }
+        return factory.getRelativePath( ( (FsResource) r ).getFile() );
+    }
+
+    @Override
+    protected CollectionResource getRoot() {
+        FsResource r = factory.resolveFile( null, factory.getRoot() );
+        if( r instanceof CollectionResource ) {
+            return (CollectionResource) r;
+        }
+        return null;
+    }
+
+    @Override
+    protected String getOwner( String path ) {
+        if( !userHomes || path.length() == 0 ) {
+            return null;
+        }
+        int pos = path.indexOf( '/', 1 );
+        return pos < 0 ? path.substring( 1 ) : path.substring( 1, pos );
+    }
+
+    /**
+     * If true, usage is accounted to users by taking each folder in the root
+     * to be the home folder of a user
+     *
+     * @return
+     */
+    public boolean isUserHomes() {
+        return userHomes;
+    }
+
+    public void setUserHomes( boolean userHomes ) {
+        this.userHomes = userHomes;
+    }
+}
@@ -19,6 +19,7 @@
 
 package com.ettrema.http.fs;
 
+import com.bradmcevoy.http.AtomicReplaceMoveableResource;
 import com.bradmcevoy.http.Auth;
 import com.bradmcevoy.http.CollectionResource;
 import com.bradmcevoy.http.CopyableResource;
@@ -27,28 +28,48 @@ import com.bradmcevoy.http.LockInfo;
 import com.bradmcevoy.http.LockResult;
 import com.bradmcevoy.http.LockTimeout;
 import com.bradmcevoy.http.LockToken;
-import com.bradmcevoy.http.LockableResource;
 import com.bradmcevoy.http.MoveableResource;
 import com.bradmcevoy.http.Request;
 import com.bradmcevoy.http.Request.Method;
 import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.SharedLockableResource;
+import com.bradmcevoy.http.VersionedResource;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 import com.bradmcevoy.http.http11.auth.DigestResponse;
+import com.bradmcevoy.io.FileReplacer;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- *
+ * The unique id identifies the file by its file key where the platform has
+ * them, so it follows the file when moved, and otherwise by its path. It
+ * doesnt change when the file is written to, which matters because lock
+ * managers key locks by it. The version token, from the modified time in
+ * nanoseconds and the length, identifies the content. See FileVersions for how
+ * these are kept right across writes.
  */
-public abstract class FsResource implements Resource, MoveableResource, CopyableResource, LockableResource, DigestResource {
+public abstract class FsResource implements Resource, MoveableResource, AtomicReplaceMoveableResource, CopyableResource, SharedLockableResource, DigestResource, VersionedResource {
 
     private static final Logger log = LoggerFactory.getLogger(FsResource.class);
+    /**
+     * Without the Java 7 file API, File.renameTo is used, which only replaces
+     * an existing file on unix like platforms, where it is an atomic rename(2)
+     */
+    private static final boolean RENAME_REPLACES = File.separatorChar == '/';
     File file;
     final FileSystemResourceFactory factory;
     final String host;
     String ssoPrefix;
+    /**
+     * If the resource was created from a cached listing, the attributes of
+     * the file at the time
+     */
+    FsListingCache.Entry stat;
 
     protected abstract void doCopy(File dest);
 
@@ -63,8 +84,13 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
     }
 
     public String getUniqueId() {
-        String s = file.lastModified() + "_" + file.length() + "_" + file.getAbsolutePath();
-        return s.hashCode() + "";
+        FileAttributes attrs = attributes();
+        return factory != null ? factory.fileVersions.getUniqueId(file, attrs) : FileVersions.baseUniqueId(file, attrs);
+    }
+
+    public String getVersionToken() {
+        FileAttributes attrs = attributes();
+        return factory != null ? factory.fileVersions.getVersionToken(file, attrs) : FileVersions.baseVersionToken(attrs);
     }
 
     public String getName() {
@@ -96,7 +122,43 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
     }
 
     public Date getModifiedDate() {
-        return new Date(file.lastModified());
+        return new Date(lastModified());
+    }
+
+    long lastModified() {
+        return stat != null ? stat.getModified() : file.lastModified();
+    }
+
+    long length() {
+        return stat != null ? stat.getLength() : file.length();
+    }
+
+    FileAttributes attributes() {
+        return stat != null ? FileAttributes.of(stat) : FileAttributes.read(file);
+    }
+
+    /**
+     * Called after the file system has been changed
+     *
+     * @param f - the file or directory which was created, changed or removed
+     */
+    void changed(File f) {
+        stat = null;
+        if (factory != null) {
+            factory.invalidate(f);
+        }
+    }
+
+    /**
+     * Called after this has been renamed to dest
+     */
+    private void moved(File dest) {
+        if (factory != null) {
+            factory.fileVersions.moved(this.file, dest);
+        }
+        changed(this.file);
+        this.file = dest;
+        changed(dest);
     }
 
     public Date getCreateDate() {
@@ -115,7 +177,47 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
             if (!ok) {
                 throw new RuntimeException("Failed to move to: " + dest.getAbsolutePath());
             }
-            this.file = dest;
+            moved(dest);
+        } else {
+            throw new RuntimeException("Destination is an unknown type. Must be a FsDirectoryResource, is a: " + newParent.getClass());
+        }
+    }
+
+    /**
+     * A file can replace a file, and a directory can replace an empty
+     * directory, as that is what an atomic move or rename allows
+     */
+    public boolean canReplace(Resource existing) {
+        if (!(FileReplacer.isAtomicMoveSupported() || RENAME_REPLACES) || !(existing instanceof FsResource)) {
+            return false;
+        }
+        File existingFile = ((FsResource) existing).getFile();
+        if (file.isDirectory()) {
+            String[] children = existingFile.list();
+            return existingFile.isDirectory() && children != null && children.length == 0;
+        } else {
+            return existingFile.isFile();
+        }
+    }
+
+    /**
+     * Uses Files.move with ATOMIC_MOVE where available, otherwise a rename,
+     * which canReplace only allows where it is atomic
+     */
+    public void moveToReplacing(CollectionResource newParent, String newName) {
+        if (newParent instanceof FsDirectoryResource) {
+            FsDirectoryResource newFsParent = (FsDirectoryResource) newParent;
+            File dest = new File(newFsParent.getFile(), newName);
+            boolean ok;
+            try {
+                ok = FileReplacer.moveAtomically(this.file, dest) || (RENAME_REPLACES && this.file.renameTo(dest));
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to move to: " + dest.getAbsolutePath(), ex);
+            }
+            if (!ok) {
+                throw new RuntimeException("Failed to move to: " + dest.getAbsolutePath());
+            }
+            moved(dest);
         } else {
             throw new RuntimeException("Destination is an unknown type. Must be a FsDirectoryResource, is a: " + newParent.getClass());
         }
@@ -126,6 +228,7 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
             FsDirectoryResource newFsParent = (FsDirectoryResource) newParent;
             File dest = new File(newFsParent.getFile(), newName);
             doCopy(dest);
+            changed(dest);
         } else {
             throw new RuntimeException("Destination is an unknown type. Must be a FsDirectoryResource, is a: " + newParent.getClass());
         }
@@ -133,9 +236,13 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
 
     public void delete() {
         boolean ok = file.delete();
+        changed(file);
         if (!ok) {
             throw new RuntimeException("Failed to delete");
         }
+        if (factory != null) {
+            factory.fileVersions.deleted(file);
+        }
     }
 
     public LockResult lock(LockTimeout timeout, LockInfo lockInfo) throws NotAuthorizedException {
@@ -158,4 +265,17 @@ public abstract class FsResource implements Resource, MoveableResource, Copyable
             return null;
         }
     }
+
+    public List<LockToken> getCurrentLocks() {
+        LockManager lockManager = factory.getLockManager();
+        if (lockManager instanceof SharedLockManager) {
+            return ((SharedLockManager) lockManager).getCurrentTokens(this);
+        }
+        LockToken token = getCurrentLock();
+        if (token == null) {
+            return Collections.emptyList();
+        } else {
+            return Collections.singletonList(token);
+        }
+    }
 }
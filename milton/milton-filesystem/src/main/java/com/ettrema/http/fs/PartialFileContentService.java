@@ -0,0 +1,50 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A FileContentService which can overwrite part of the content of a file.
+ *
+ * FsFileResource uses this for partial PUTs. For other services the whole
+ * content is rewritten with the range replaced.
+ *
+ * @author brad
+ */
+public interface PartialFileContentService extends FileContentService {
+
+	/**
+	 * Overwrite part of the content of an existing file, without rewriting the
+	 * rest of it. The file is extended if the position is beyond its end.
+	 *
+	 * Unlike setFileContent this need not be atomic, readers can see the new
+	 * content as it is written.
+	 *
+	 * @param file
+	 * @param position - the position of the first byte to write
+	 * @param length - the number of bytes to write
+	 * @param in - the new content, must provide at least length bytes
+	 * @throws IOException
+	 */
+	void setPartialFileContent(File file, long position, long length, InputStream in) throws IOException;
+}
@@ -19,23 +19,97 @@
 
 package com.ettrema.http.fs;
 
+import com.bradmcevoy.io.FileReplacer;
 import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Stores content directly in the given files.
+ *
+ * New content is written to a temporary file in the same directory, which is
+ * then renamed over the file. So readers never see partly written content,
+ * and a failed upload leaves the previous content in place. See FileReplacer
+ * for when the rename is atomic.
+ *
+ * The syncPolicy says what is forced to disk before the rename, and so what
+ * survives the machine crashing: nothing, the content of the file, or the file
+ * and the directory entry which makes the new content visible.
  *
  * @author brad
  */
-public class SimpleFileContentService implements FileContentService {
+public class SimpleFileContentService extends AbstractFileContentService {
+
+    private static final Logger log = LoggerFactory.getLogger(SimpleFileContentService.class);
+    /**
+     * Temporary files start with this, so they can be excluded from listings, as
+     * are backups left by an interrupted replace
+     */
+    public static final String TEMP_PREFIX = ".milton-upload-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum SyncPolicy {
+        /**
+         * Leave it to the operating system to write to disk
+         */
+        NONE,
+        /**
+         * Force the content of the file to disk before renaming it into place
+         */
+        FILE,
+        /**
+         * As for FILE, and also force the directory to disk after the rename.
+         * Requires Java 7 or later, otherwise only the file is forced
+         */
+        FILE_AND_DIRECTORY
+    }
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
 
     @Override
     public void setFileContent(File file, InputStream in) throws FileNotFoundException, IOException {
-        FileOutputStream out = null;
+        FileContentWriter writer = openFileContent(file);
         try {
-            out = new FileOutputStream(file);
-            IOUtils.copy(in, out);
+            IOUtils.copy(in, writer.getOutputStream());
+            writer.commit();
         } finally {
-            IOUtils.closeQuietly(out);
+            writer.close();
+        }
+    }
+
+    @Override
+    public void setPartialFileContent(File file, long position, long length, InputStream in) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+            long pos = position;
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buf.array(), 0, (int) Math.min(buf.capacity(), remaining));
+                if (n < 0) {
+                    throw new EOFException("Content ended " + remaining + " bytes before the end of the range");
+                }
+                buf.position(0);
+                buf.limit(n);
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+                remaining -= n;
+            }
+            if (syncPolicy != SyncPolicy.NONE) {
+                channel.force(false);
+            }
+        } finally {
+            raf.close();
         }
     }
 
@@ -44,4 +118,125 @@ public class SimpleFileContentService implements FileContentService {
         FileInputStream fin = new FileInputStream(file);
         return fin;
     }
+
+    @Override
+    public long getFileContentLength(File file) {
+        return file.length();
+    }
+
+    @Override
+    public boolean isContentInFile() {
+        return true;
+    }
+
+    @Override
+    public FileContentWriter openFileContent(File file) throws IOException {
+        return new TempFileWriter(file);
+    }
+
+    public static boolean isTempFile(String name) {
+        return name.startsWith(TEMP_PREFIX) || FileReplacer.isBackupFile(name);
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    private class TempFileWriter implements FileContentWriter {
+
+        private final File file;
+        private final File temp;
+        private final FileOutputStream fout;
+        private final OutputStream out;
+        private boolean closed;
+
+        TempFileWriter(File file) throws IOException {
+            this.file = file;
+            this.temp = File.createTempFile(TEMP_PREFIX, ".tmp", file.getAbsoluteFile().getParentFile());
+            this.fout = new FileOutputStream(temp);
+            this.out = new BufferedOutputStream(fout, 64 * 1024);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException("Already closed: " + file.getAbsolutePath());
+            }
+            out.flush();
+            if (syncPolicy != SyncPolicy.NONE) {
+                fout.getFD().sync();
+            }
+            closed = true;
+            fout.close();
+            try {
+                FileReplacer.replace(temp, file);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            if (syncPolicy == SyncPolicy.FILE_AND_DIRECTORY) {
+                syncDirectory(file.getAbsoluteFile().getParentFile());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                IOUtils.closeQuietly(fout);
+                if (!temp.delete()) {
+                    log.warn("Couldnt delete temporary file: " + temp.getAbsolutePath());
+                }
+            }
+        }
+    }
+    private static Method toPath;
+    private static Method openChannel;
+    private static Object readOptions;
+
+    static {
+        // Directories can only be opened, and so synced, with the Java 7 file API
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+            Class<?> stdOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+            Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, stdOptionClass.getField("READ").get(null));
+            toPath = File.class.getMethod("toPath");
+            openChannel = FileChannel.class.getMethod("open", pathClass, options.getClass());
+            readOptions = options;
+        } catch (Exception e) {
+            log.info("Directory sync is not supported on this platform: " + e);
+        }
+    }
+
+    private static void syncDirectory(File dir) throws IOException {
+        if (openChannel == null) {
+            return;
+        }
+        FileChannel ch;
+        try {
+            ch = (FileChannel) openChannel.invoke(null, toPath.invoke(dir), readOptions);
+        } catch (InvocationTargetException e) {
+            // eg windows cant open directories
+            log.debug("couldnt open directory to sync: " + dir.getAbsolutePath() + " - " + e.getCause());
+            return;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+    }
 }
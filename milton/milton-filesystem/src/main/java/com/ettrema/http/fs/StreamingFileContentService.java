@@ -0,0 +1,47 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A FileContentService which can stream new content for a file, with readers
+ * continuing to see the existing content until it is committed.
+ *
+ * FsFileResource uses this to write new content while the existing content is
+ * being read through a channel from openContentChannel, eg for a zsync upload.
+ * For other services it buffers the new content in a temporary file, then
+ * closes the channels and calls setFileContent.
+ *
+ * @author brad
+ */
+public interface StreamingFileContentService extends FileContentService {
+
+	/**
+	 * Open a handle to stream new content for the file. Readers continue to see
+	 * the existing content, if any, until the handle is committed.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	FileContentWriter openFileContent(File file) throws IOException;
+}
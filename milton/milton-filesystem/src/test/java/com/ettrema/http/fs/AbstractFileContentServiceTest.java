@@ -0,0 +1,106 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class AbstractFileContentServiceTest extends TestCase {
+
+    File file;
+    MemoryContentService service;
+
+    @Override
+    protected void setUp() throws Exception {
+        File dir = new File( "target/abstractcontenttest" );
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+        file = new File( dir, "a.txt" );
+        service = new MemoryContentService();
+    }
+
+    public void testDefaults() throws Exception {
+        FileContentWriter writer = service.openFileContent( file );
+        try {
+            writer.getOutputStream().write( "0123456789".getBytes() );
+            assertNull( service.content.get( file ) );
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        assertEquals( "0123456789", read() );
+        assertEquals( 10, service.getFileContentLength( file ) );
+        assertFalse( service.isContentInFile() );
+
+        file.createNewFile(); // setPartialFileContent requires the file to exist
+        service.setPartialFileContent( file, 2, 3, new ByteArrayInputStream( "abcdef".getBytes() ) );
+        assertEquals( "01abc56789", read() );
+        service.setPartialFileContent( file, 12, 2, new ByteArrayInputStream( "xy".getBytes() ) );
+        assertEquals( "01abc56789\0\0xy", read() );
+        assertEquals( 14, service.getFileContentLength( file ) );
+    }
+
+    public void testUncommittedContentIsDiscarded() throws Exception {
+        service.setFileContent( file, new ByteArrayInputStream( "old".getBytes() ) );
+        FileContentWriter writer = service.openFileContent( file );
+        writer.getOutputStream().write( "new".getBytes() );
+        writer.close();
+        assertEquals( "old", read() );
+    }
+
+    private String read() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copy( service.getFileContent( file ), out );
+        return out.toString();
+    }
+
+    /**
+     * Implements only the original methods
+     */
+    private static class MemoryContentService extends AbstractFileContentService {
+
+        final Map<File, byte[]> content = new HashMap<File, byte[]>();
+
+        public void setFileContent( File file, InputStream in ) throws IOException {
+            content.put( file, IOUtils.toByteArray( in ) );
+        }
+
+        public InputStream getFileContent( File file ) throws FileNotFoundException {
+            byte[] arr = content.get( file );
+            if( arr == null ) {
+                throw new FileNotFoundException( file.getAbsolutePath() );
+            }
+            return new ByteArrayInputStream( arr );
+        }
+    }
+}
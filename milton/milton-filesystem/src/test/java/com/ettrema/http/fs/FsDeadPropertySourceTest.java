@@ -0,0 +1,260 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.Filter;
+import com.bradmcevoy.http.FilterChain;
+import com.bradmcevoy.http.HttpManager;
+import com.bradmcevoy.http.PropFindableResource;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.Response;
+import com.bradmcevoy.http.Response.Status;
+import com.bradmcevoy.http.webdav.DeadPropertyPatchSetter;
+import com.bradmcevoy.http.webdav.PropFindPropertyBuilder;
+import com.bradmcevoy.http.webdav.PropFindResponse;
+import com.bradmcevoy.http.webdav.PropPatchRequestParser.ParseResult;
+import com.bradmcevoy.http.webdav.PropertiesRequest;
+import com.bradmcevoy.http.webdav.PropertySourcePatchSetter;
+import com.bradmcevoy.property.DeadPropertyStore;
+import com.bradmcevoy.property.FileDeadPropertyStore;
+import com.bradmcevoy.property.PropertySource;
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.MoveEvent;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FsDeadPropertySourceTest extends TestCase {
+
+    static final QName AUTHOR = new QName( "http://example.com/ns", "author" );
+    File root;
+    File storeFile;
+    FileSystemResourceFactory factory;
+    FileDeadPropertyStore store;
+    FsDeadPropertySource source;
+    DeadPropertyPatchSetter patchSetter;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File( "target/deadproptest/content" );
+        storeFile = new File( "target/deadproptest/props" );
+        FileUtils.deleteDirectory( root.getParentFile() );
+        new File( root, "a/b" ).mkdirs();
+        FileUtils.writeStringToFile( new File( root, "a/b/file.txt" ), "x" );
+        factory = new FileSystemResourceFactory( root, null );
+        store = new FileDeadPropertyStore( storeFile );
+        source = new FsDeadPropertySource( factory, store );
+        List<PropertySource> sources = new ArrayList<PropertySource>();
+        sources.add( source );
+        patchSetter = new DeadPropertyPatchSetter( new PropertySourcePatchSetter( sources ), source );
+    }
+
+    public void testSetAndPersist() throws Exception {
+        Resource file = factory.getResource( "localhost", "/a/b/file.txt" );
+        PropFindResponse resp = patchSetter.setProperties( "/a/b/file.txt", set( AUTHOR, "brad" ), file );
+        assertTrue( resp.getKnownProperties().containsKey( AUTHOR ) );
+        assertNull( resp.getErrorProperties().get( Status.SC_NOT_FOUND ) );
+        assertEquals( "brad", source.getProperty( AUTHOR, file ) );
+        assertTrue( source.getPropertyMetaData( AUTHOR, file ).isWritable() );
+        assertTrue( source.getPropertyMetaData( new QName( "x", "other" ), file ).isUnknown() );
+        store.close();
+
+        FsDeadPropertySource reloaded = new FsDeadPropertySource( factory, new FileDeadPropertyStore( storeFile ) );
+        assertEquals( "brad", reloaded.getProperty( AUTHOR, file ) );
+        assertEquals( Collections.singletonList( AUTHOR ), reloaded.getAllPropertyNames( file ) );
+
+        // removing, including a property which doesnt exist
+        ParseResult remove = new ParseResult( new LinkedHashMap<QName, String>(), new HashSet<QName>( java.util.Arrays.asList( AUTHOR, new QName( "x", "none" ) ) ) );
+        resp = patchSetter.setProperties( "/a/b/file.txt", remove, file );
+        assertNull( resp.getErrorProperties().get( Status.SC_NOT_FOUND ) );
+        assertNull( source.getProperty( AUTHOR, file ) );
+    }
+
+    public void testMoveCopyAndDeleteFollowResources() throws Exception {
+        Resource a = factory.getResource( "localhost", "/a" );
+        Resource file = factory.getResource( "localhost", "/a/b/file.txt" );
+        CollectionResource rootCol = (CollectionResource) factory.getResource( "localhost", "/" );
+        patchSetter.setProperties( "/a/", set( AUTHOR, "folder" ), a );
+        patchSetter.setProperties( "/a/b/file.txt", set( AUTHOR, "file" ), file );
+
+        source.onEvent( new CopyEvent( a, rootCol, "copy" ) );
+        assertEquals( "folder", store.getProperties( "/copy" ).get( AUTHOR ) );
+        assertEquals( "file", store.getProperties( "/copy/b/file.txt" ).get( AUTHOR ) );
+        assertEquals( "file", store.getProperties( "/a/b/file.txt" ).get( AUTHOR ) );
+
+        source.onEvent( new MoveEvent( a, rootCol, "moved" ) );
+        assertNull( store.getProperties( "/a" ) );
+        assertNull( store.getProperties( "/a/b/file.txt" ) );
+        assertEquals( "file", store.getProperties( "/moved/b/file.txt" ).get( AUTHOR ) );
+
+        new File( root, "copy" ).mkdirs();
+        source.onEvent( new DeleteEvent( factory.getResource( "localhost", "/copy" ) ) );
+        assertNull( store.getProperties( "/copy" ) );
+        assertNull( store.getProperties( "/copy/b/file.txt" ) );
+        assertEquals( 2, store.size() );
+    }
+
+    public void testCorruptRecordIsKeptAside() throws Exception {
+        for( int i = 1; i <= 3; i++ ) {
+            store.setProperties( "/k" + i, Collections.singletonMap( AUTHOR, "value" + i ), null );
+        }
+        store.close();
+        long length = storeFile.length();
+        // each record is the same length, so the middle of the file is in the second
+        RandomAccessFile raf = new RandomAccessFile( storeFile, "rw" );
+        raf.seek( length / 2 );
+        int b = raf.read();
+        raf.seek( length / 2 );
+        raf.write( b ^ 0xFF );
+        raf.close();
+
+        FileDeadPropertyStore reloaded = new FileDeadPropertyStore( storeFile );
+        assertEquals( "value1", reloaded.getProperties( "/k1" ).get( AUTHOR ) );
+        assertNull( reloaded.getProperties( "/k2" ) );
+        assertNull( reloaded.getProperties( "/k3" ) );
+        reloaded.close();
+
+        File[] aside = storeFile.getParentFile().listFiles();
+        File kept = null;
+        for( File f : aside ) {
+            if( f.getName().startsWith( storeFile.getName() + ".corrupt-" ) ) {
+                kept = f;
+            }
+        }
+        assertNotNull( kept );
+        assertEquals( length, kept.length() );
+
+        // the rewritten store only has what could be read, and reads cleanly
+        reloaded = new FileDeadPropertyStore( storeFile );
+        assertEquals( 1, reloaded.size() );
+        reloaded.close();
+    }
+
+    public void testPropFindPrefetchesMembers() throws Exception {
+        FileUtils.writeStringToFile( new File( root, "a/b/other.txt" ), "y" );
+        patchSetter.setProperties( "/a/b/file.txt", set( AUTHOR, "file" ), factory.getResource( "localhost", "/a/b/file.txt" ) );
+        patchSetter.setProperties( "/a/b/other.txt", set( AUTHOR, "other" ), factory.getResource( "localhost", "/a/b/other.txt" ) );
+
+        final int[] singleReads = new int[1];
+        final int[] batchReads = new int[1];
+        DeadPropertyStore counting = new DeadPropertyStore() {
+
+            public Map<QName, String> getProperties( String key ) {
+                singleReads[0]++;
+                return store.getProperties( key );
+            }
+
+            public Map<String, Map<QName, String>> getProperties( Collection<String> keys ) {
+                batchReads[0]++;
+                return store.getProperties( keys );
+            }
+
+            public void setProperties( String key, Map<QName, String> toSet, Collection<QName> toRemove ) {
+                store.setProperties( key, toSet, toRemove );
+            }
+
+            public void move( String key, String destKey ) {
+                store.move( key, destKey );
+            }
+
+            public void copy( String key, String destKey ) {
+                store.copy( key, destKey );
+            }
+
+            public void delete( String key ) {
+                store.delete( key );
+            }
+        };
+        List<PropertySource> sources = new ArrayList<PropertySource>();
+        sources.add( new FsDeadPropertySource( factory, counting ) );
+        final PropFindPropertyBuilder builder = new PropFindPropertyBuilder( sources );
+        final PropertiesRequest propertiesRequest = new PropertiesRequest( Collections.singleton( new PropertiesRequest.Property( AUTHOR, null ) ) );
+        final List<PropFindResponse> responses = new ArrayList<PropFindResponse>();
+
+        // prefetched properties are kept in the current request, so build them inside one
+        HttpManager manager = new HttpManager( factory );
+        manager.addFilter( 0, new Filter() {
+
+            public void process( FilterChain chain, Request request, Response response ) {
+                try {
+                    PropFindableResource col = (PropFindableResource) factory.getResource( "localhost", "/a/b" );
+                    responses.addAll( builder.buildProperties( col, 1, propertiesRequest, "/a/b" ) );
+                } catch( Exception e ) {
+                    throw new RuntimeException( e );
+                }
+            }
+        } );
+        manager.process( request(), null );
+
+        assertEquals( 3, responses.size() );
+        Map<String, Object> values = new HashMap<String, Object>();
+        for( PropFindResponse resp : responses ) {
+            if( resp.getKnownProperties().containsKey( AUTHOR ) ) {
+                values.put( resp.getHref(), resp.getKnownProperties().get( AUTHOR ).getValue() );
+            }
+        }
+        assertEquals( "file", values.get( "/a/b/file.txt" ) );
+        assertEquals( "other", values.get( "/a/b/other.txt" ) );
+        assertEquals( 1, batchReads[0] );
+        // only the collection itself, which was not prefetched
+        assertEquals( 1, singleReads[0] );
+    }
+
+    private Request request() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (Request) Proxy.newProxyInstance( Request.class.getClassLoader(), new Class[]{Request.class}, new InvocationHandler() {
+
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                if( method.getName().equals( "getAttributes" ) ) {
+                    return attributes;
+                } else if( method.getName().equals( "getAbsoluteUrl" ) ) {
+                    return "http://localhost/a/b";
+                }
+                return null;
+            }
+        } );
+    }
+
+    private ParseResult set( QName name, String value ) {
+        Map<QName, String> fields = new LinkedHashMap<QName, String>();
+        fields.put( name, value );
+        return new ParseResult( fields, null );
+    }
+}
@@ -0,0 +1,173 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FsListingCacheTest extends TestCase {
+
+    File root;
+    FileSystemResourceFactory factory;
+    FsListingCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File( "target/listingcachetest" );
+        FileUtils.deleteDirectory( root );
+        new File( root, "a" ).mkdirs();
+        FileUtils.writeStringToFile( new File( root, "a/file.txt" ), "hello" );
+        factory = new FileSystemResourceFactory( root, null );
+        factory.setContentService( new SimpleFileContentService() );
+        cache = new FsListingCache();
+        factory.setListingCache( cache );
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.stop();
+    }
+
+    public void testChildFromCache() throws Exception {
+        FsDirectoryResource a = (FsDirectoryResource) factory.getResource( "localhost", "/a" );
+        FsFileResource f = (FsFileResource) a.child( "file.txt" );
+        assertNotNull( f );
+        assertEquals( Long.valueOf( 5 ), f.getContentLength() );
+        assertNull( a.child( "missing.txt" ) );
+        assertEquals( 1, a.getChildren().size() );
+    }
+
+    public void testOutsideChangeSeenAfterTtl() throws Exception {
+        cache.setWatch( false );
+        FsDirectoryResource a = (FsDirectoryResource) factory.getResource( "localhost", "/a" );
+        assertEquals( 1, a.getChildren().size() );
+        FileUtils.writeStringToFile( new File( root, "a/other.txt" ), "x" );
+        assertEquals( 1, a.getChildren().size() );
+        cache.setTtlSeconds( 0 );
+        assertEquals( 2, a.getChildren().size() );
+    }
+
+    public void testOutsideChangeSeenByWatch() throws Exception {
+        if( !FsListingCache.isWatchSupported() ) {
+            return;
+        }
+        cache.setTtlSeconds( 3600 );
+        File dir = new File( root, "a" );
+        assertEquals( 1, cache.getListing( dir ).size() );
+        FileUtils.writeStringToFile( new File( dir, "other.txt" ), "x" );
+        // the WatchService can take a few seconds where it has to poll
+        long until = System.currentTimeMillis() + 30000;
+        while( cache.getListing( dir ).size() == 1 && System.currentTimeMillis() < until ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( 2, cache.getListing( dir ).size() );
+    }
+
+    public void testListingStartedBeforeAChangeIsNotCached() throws Exception {
+        final File dir = new File( root, "a" );
+        cache = new FsListingCache() {
+
+            boolean changed;
+
+            @Override
+            Listing load( File d, long now ) {
+                Listing l = super.load( d, now );
+                if( !changed ) {
+                    changed = true;
+                    // another request adds a file after this one has listed the directory
+                    Thread t = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                FileUtils.writeStringToFile( new File( dir, "other.txt" ), "x" );
+                            } catch( Exception e ) {
+                                throw new RuntimeException( e );
+                            }
+                            invalidate( dir );
+                        }
+                    };
+                    t.start();
+                    try {
+                        t.join();
+                    } catch( InterruptedException e ) {
+                        throw new RuntimeException( e );
+                    }
+                }
+                return l;
+            }
+        };
+        cache.setTtlSeconds( 3600 );
+        assertEquals( 1, cache.getListing( dir ).size() );
+        assertEquals( 2, cache.getListing( dir ).size() );
+        assertEquals( 2, cache.getListing( dir ).size() );
+    }
+
+    public void testConcurrentChangesAreAllSeen() throws Exception {
+        cache.setTtlSeconds( 3600 );
+        final File dir = new File( root, "a" );
+        final FsDirectoryResource a = (FsDirectoryResource) factory.getResource( "localhost", "/a" );
+        Thread[] threads = new Thread[4];
+        for( int i = 0; i < threads.length; i++ ) {
+            final int n = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for( int j = 0; j < 25; j++ ) {
+                            a.createNew( "f" + n + "-" + j + ".txt", new ByteArrayInputStream( "abc".getBytes() ), 3L, "text/plain" );
+                            cache.getListing( dir );
+                        }
+                    } catch( IOException e ) {
+                        throw new RuntimeException( e );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals( 101, cache.getListing( dir ).size() );
+    }
+
+    public void testChangesThroughResourcesInvalidate() throws Exception {
+        cache.setTtlSeconds( 3600 );
+        FsDirectoryResource a = (FsDirectoryResource) factory.getResource( "localhost", "/a" );
+        assertEquals( 1, a.getChildren().size() );
+        a.createNew( "new.txt", new ByteArrayInputStream( "abc".getBytes() ), 3L, "text/plain" );
+        a.createCollection( "sub" );
+        assertEquals( 3, a.getChildren().size() );
+        Resource r = a.child( "new.txt" );
+        assertEquals( Long.valueOf( 3 ), ( (FsFileResource) r ).getContentLength() );
+        ( (FsFileResource) r ).delete();
+        assertNull( a.child( "new.txt" ) );
+        assertEquals( 2, a.getChildren().size() );
+    }
+}
@@ -0,0 +1,144 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.ettrema.event.CopyEvent;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.EventManagerImpl;
+import com.ettrema.event.MoveEvent;
+import com.ettrema.event.PutEvent;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FsQuotaUsageServiceTest extends TestCase {
+
+    File root;
+    FileSystemResourceFactory factory;
+    EventManagerImpl eventManager;
+    FsQuotaUsageService service;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File( "target/quotatest" );
+        FileUtils.deleteDirectory( root );
+        new File( root, "alice/docs" ).mkdirs();
+        new File( root, "bob" ).mkdirs();
+        write( "alice/docs/a.txt", 100 );
+        write( "alice/b.txt", 50 );
+        write( "bob/c.txt", 10 );
+        factory = new FileSystemResourceFactory( root, new NullSecurityManager() );
+        factory.setContentService( new SimpleFileContentService() );
+        eventManager = new EventManagerImpl();
+        service = new FsQuotaUsageService( factory, eventManager );
+        service.setUserHomes( true );
+        service.setReconcileIntervalSeconds( 0 );
+        factory.setQuotaUsageService( service );
+        service.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        service.stop();
+    }
+
+    public void testReconcile() {
+        assertEquals( 160, service.getCollectionUsage( "" ) );
+        assertEquals( 150, service.getCollectionUsage( "/alice" ) );
+        assertEquals( 100, service.getCollectionUsage( "/alice/docs" ) );
+        assertEquals( 150, service.getUserUsage( "alice" ) );
+        assertEquals( 10, service.getUserUsage( "bob" ) );
+    }
+
+    public void testPut() throws IOException {
+        write( "alice/docs/a.txt", 30 );
+        eventManager.fireEvent( new PutEvent( resource( "alice/docs/a.txt" ) ) );
+        write( "bob/d.txt", 5 );
+        eventManager.fireEvent( new PutEvent( resource( "bob/d.txt" ) ) );
+        assertEquals( 30, service.getCollectionUsage( "/alice/docs" ) );
+        assertEquals( 80, service.getUserUsage( "alice" ) );
+        assertEquals( 15, service.getUserUsage( "bob" ) );
+        assertEquals( 95, service.getCollectionUsage( "" ) );
+    }
+
+    public void testMoveAndDelete() {
+        FsDirectoryResource docs = (FsDirectoryResource) resource( "alice/docs" );
+        FsDirectoryResource bob = (FsDirectoryResource) resource( "bob" );
+        eventManager.fireEvent( new MoveEvent( docs, bob, "docs" ) );
+        assertEquals( 0, service.getCollectionUsage( "/alice/docs" ) );
+        assertEquals( 100, service.getCollectionUsage( "/bob/docs" ) );
+        assertEquals( 50, service.getUserUsage( "alice" ) );
+        assertEquals( 110, service.getUserUsage( "bob" ) );
+        assertEquals( 160, service.getCollectionUsage( "" ) );
+
+        eventManager.fireEvent( new DeleteEvent( resource( "alice" ) ) );
+        assertEquals( 0, service.getUserUsage( "alice" ) );
+        assertEquals( 110, service.getCollectionUsage( "" ) );
+    }
+
+    public void testCopy() throws IOException {
+        FsDirectoryResource docs = (FsDirectoryResource) resource( "alice/docs" );
+        FsDirectoryResource bob = (FsDirectoryResource) resource( "bob" );
+        eventManager.fireEvent( new CopyEvent( docs, bob, "docs" ) );
+        assertEquals( 100, service.getCollectionUsage( "/alice/docs" ) );
+        assertEquals( 100, service.getCollectionUsage( "/bob/docs" ) );
+        assertEquals( 150, service.getUserUsage( "alice" ) );
+        assertEquals( 110, service.getUserUsage( "bob" ) );
+        assertEquals( 260, service.getCollectionUsage( "" ) );
+
+        // copying over an existing file only counts the copy
+        eventManager.fireEvent( new CopyEvent( resource( "alice/b.txt" ), bob, "c.txt" ) );
+        assertEquals( 150, service.getUserUsage( "bob" ) );
+        assertEquals( 300, service.getCollectionUsage( "" ) );
+    }
+
+    public void testQuotaAvailable() {
+        FsDirectoryResource alice = (FsDirectoryResource) resource( "alice" );
+        assertNull( alice.getQuotaAvailable() );
+        assertEquals( Long.valueOf( 150 ), alice.getQuotaUsed() );
+
+        service.setDefaultUserLimit( 1000l );
+        assertEquals( Long.valueOf( 850 ), alice.getQuotaAvailable() );
+
+        service.setCollectionLimit( "/alice", 200l );
+        assertEquals( Long.valueOf( 50 ), alice.getQuotaAvailable() );
+        FsDirectoryResource docs = (FsDirectoryResource) resource( "alice/docs" );
+        assertEquals( Long.valueOf( 50 ), docs.getQuotaAvailable() );
+    }
+
+    private FsResource resource( String path ) {
+        return factory.resolveFile( null, new File( root, path ) );
+    }
+
+    private void write( String path, int size ) throws IOException {
+        FileOutputStream out = new FileOutputStream( new File( root, path ) );
+        try {
+            out.write( new byte[size] );
+        } finally {
+            out.close();
+        }
+    }
+}
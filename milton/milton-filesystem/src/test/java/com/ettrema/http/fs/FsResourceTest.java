@@ -0,0 +1,304 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.HandlerHelper;
+import com.bradmcevoy.http.HttpManager;
+import com.bradmcevoy.http.LockInfo;
+import com.bradmcevoy.http.LockResult;
+import com.bradmcevoy.http.LockTimeout;
+import com.bradmcevoy.http.Range;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.http11.DefaultETagGenerator;
+import com.bradmcevoy.http.http11.PutHelper;
+import com.bradmcevoy.http.webdav.MoveHandler;
+import com.bradmcevoy.http.webdav.WebDavResponseHandler;
+import com.ettrema.event.DeleteEvent;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.MoveEvent;
+import com.ettrema.event.ResourceEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class FsResourceTest extends TestCase {
+
+    File root;
+    FileSystemResourceFactory factory;
+    FsDirectoryResource dir;
+    DefaultETagGenerator etagGenerator = new DefaultETagGenerator();
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File( "target/fsresourcetest" );
+        FileUtils.deleteDirectory( root );
+        root.mkdirs();
+        factory = new FileSystemResourceFactory( root, null );
+        factory.setContentService( new SimpleFileContentService() );
+        dir = (FsDirectoryResource) factory.getResource( "localhost", "/" );
+    }
+
+    public void testUniqueIdIsStableAndEtagChanges() throws Exception {
+        FsFileResource r1 = (FsFileResource) dir.createNew( "a.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        String id = r1.getUniqueId();
+        String etag = etagGenerator.generateEtag( r1 );
+
+        // same length, probably within the same second
+        FsFileResource r2 = (FsFileResource) dir.createNew( "a.txt", new ByteArrayInputStream( "bbb".getBytes() ), 3L, "text/plain" );
+        assertEquals( id, r2.getUniqueId() );
+        assertFalse( etag.equals( etagGenerator.generateEtag( r2 ) ) );
+
+        FsFileResource other = (FsFileResource) dir.createNew( "b.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        assertFalse( id.equals( other.getUniqueId() ) );
+    }
+
+    public void testVersionTokensDifferForSameLengthWrites() throws Exception {
+        Set<String> tokens = new HashSet<String>();
+        String id = null;
+        for( String content : new String[]{"aaa", "bbb", "ccc"} ) {
+            FsFileResource r = (FsFileResource) dir.createNew( "same.txt", new ByteArrayInputStream( content.getBytes() ), 3L, "text/plain" );
+            tokens.add( r.getVersionToken() );
+            if( id == null ) {
+                id = r.getUniqueId();
+            }
+            assertEquals( id, r.getUniqueId() );
+        }
+        assertEquals( 3, tokens.size() );
+    }
+
+    public void testVersionCountedWhenModifiedTimeUnchanged() {
+        FileVersions versions = new FileVersions();
+        File f = new File( root, "coarse.txt" );
+        // a file system which only records seconds, with each write renaming a new file into place
+        FileAttributes v1 = new FileAttributes( true, false, 3, 1000000000l, "key1" );
+        FileAttributes v2 = new FileAttributes( true, false, 3, 1000000000l, "key2" );
+        FileAttributes v3 = new FileAttributes( true, false, 3, 1000000000l, "key3" );
+        String id = versions.getUniqueId( f, v1 );
+        String t1 = versions.getVersionToken( f, v1 );
+        versions.written( f, v1, v2 );
+        String t2 = versions.getVersionToken( f, v2 );
+        versions.written( f, v2, v3 );
+        String t3 = versions.getVersionToken( f, v3 );
+        assertFalse( t1.equals( t2 ) );
+        assertFalse( t1.equals( t3 ) );
+        assertFalse( t2.equals( t3 ) );
+        assertEquals( id, versions.getUniqueId( f, v3 ) );
+
+        // then changed outside of milton
+        FileAttributes outside = new FileAttributes( true, false, 3, 2000000000l, "key3" );
+        assertEquals( FileVersions.baseVersionToken( outside ), versions.getVersionToken( f, outside ) );
+        assertEquals( id, versions.getUniqueId( f, outside ) );
+
+        versions.deleted( f );
+        assertEquals( FileVersions.baseUniqueId( f, v3 ), versions.getUniqueId( f, v3 ) );
+    }
+
+    public void testUniqueIdFollowsMove() throws Exception {
+        FsFileResource r = (FsFileResource) dir.createNew( "moving.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        r = (FsFileResource) dir.createNew( "moving.txt", new ByteArrayInputStream( "bbb".getBytes() ), 3L, "text/plain" );
+        String id = r.getUniqueId();
+        r.moveTo( dir, "moved.txt" );
+        if( FileAttributes.read( r.getFile() ).fileKey != null ) {
+            assertEquals( id, r.getUniqueId() );
+        }
+        FsFileResource created = (FsFileResource) dir.createNew( "moving.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        assertFalse( r.getUniqueId().equals( created.getUniqueId() ) );
+    }
+
+    public void testLockSurvivesWrite() throws Exception {
+        SimpleLockManager lockManager = new SimpleLockManager();
+        FsFileResource r = (FsFileResource) dir.createNew( "locked.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        LockInfo info = new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "user", LockInfo.LockDepth.ZERO );
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), info, r );
+        assertTrue( res.isSuccessful() );
+
+        r = (FsFileResource) dir.createNew( "locked.txt", new ByteArrayInputStream( "longer content".getBytes() ), 14L, "text/plain" );
+        assertNotNull( lockManager.getCurrentToken( r ) );
+        assertEquals( res.getLockToken().tokenId, lockManager.getCurrentToken( r ).tokenId );
+    }
+
+    public void testPartialUpdateInPlace() throws Exception {
+        FsFileResource r = (FsFileResource) dir.createNew( "partial.txt", new ByteArrayInputStream( "0123456789".getBytes() ), 10L, "text/plain" );
+        String etag = etagGenerator.generateEtag( r );
+        r.replacePartialContent( new Range( 2, 4 ), new ByteArrayInputStream( "abcdef".getBytes() ) );
+        assertEquals( "01abc56789", FileUtils.readFileToString( r.getFile() ) );
+        assertFalse( etag.equals( etagGenerator.generateEtag( r ) ) );
+
+        r.replacePartialContent( new Range( 12, 13 ), new ByteArrayInputStream( "xy".getBytes() ) );
+        assertEquals( "01abc56789\0\0xy", FileUtils.readFileToString( r.getFile() ) );
+    }
+
+    public void testContentChannelClosedBeforeReplace() throws Exception {
+        FsFileResource r = (FsFileResource) dir.createNew( "channel.txt", new ByteArrayInputStream( "0123456789".getBytes() ), 10L, "text/plain" );
+        FileChannel channel = r.openContentChannel();
+        assertNotNull( channel );
+        // read the old content through the channel while writing the new
+        r.replaceContent( Channels.newInputStream( channel ), 10L );
+        assertFalse( channel.isOpen() );
+        assertEquals( "0123456789", FileUtils.readFileToString( r.getFile() ) );
+
+        r.replaceContent( new ByteArrayInputStream( "abc".getBytes() ), 3L );
+        assertEquals( "abc", FileUtils.readFileToString( r.getFile() ) );
+    }
+
+    public void testGenericPartialUpdate() throws Exception {
+        FsFileResource r = (FsFileResource) dir.createNew( "generic.txt", new ByteArrayInputStream( "0123456789".getBytes() ), 10L, "text/plain" );
+        PutHelper putHelper = new PutHelper( null );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        putHelper.applyPartialUpdate( r, request( "abc" ), new Range( 8, 10 ), out );
+        assertEquals( "01234567abc", out.toString() );
+
+        out = new ByteArrayOutputStream();
+        putHelper.applyPartialUpdate( r, request( "ab" ), new Range( 0, 1 ), out );
+        assertEquals( "ab23456789", out.toString() );
+
+        out = new ByteArrayOutputStream();
+        putHelper.applyPartialUpdate( r, request( "z" ), new Range( 11, 11 ), out );
+        assertEquals( "0123456789\0z", out.toString() );
+    }
+
+    public void testMoveOverwriteReplacesInOneStep() throws Exception {
+        FsFileResource source = (FsFileResource) dir.createNew( "source.txt", new ByteArrayInputStream( "new".getBytes() ), 3L, "text/plain" );
+        FsFileResource existing = (FsFileResource) dir.createNew( "existing.txt", new ByteArrayInputStream( "old content".getBytes() ), 11L, "text/plain" );
+        assertTrue( source.canReplace( existing ) );
+
+        final List<String> responses = new ArrayList<String>();
+        WebDavResponseHandler responseHandler = (WebDavResponseHandler) Proxy.newProxyInstance( WebDavResponseHandler.class.getClassLoader(), new Class[]{WebDavResponseHandler.class}, new InvocationHandler() {
+
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                responses.add( method.getName() );
+                return null;
+            }
+        } );
+        MoveHandler handler = new MoveHandler( responseHandler, new HandlerHelper( null ), null );
+        HttpManager manager = new HttpManager( factory );
+        final List<String> events = new ArrayList<String>();
+        EventListener listener = new EventListener() {
+
+            public void onEvent( Event e ) {
+                // fired after the move, but about the source as it was
+                File f = ( (FsResource) ( (ResourceEvent) e ).getResource() ).getFile();
+                events.add( e.getClass().getSimpleName() + " " + f.getName() + " " + f.exists() );
+            }
+        };
+        manager.getEventManager().registerEventListener( listener, DeleteEvent.class );
+        manager.getEventManager().registerEventListener( listener, MoveEvent.class );
+        handler.processExistingResource( manager, moveRequest( "/source.txt", "http://localhost/existing.txt" ), null, source );
+
+        assertEquals( "respondNoContent", responses.get( 0 ) );
+        assertEquals( 1, responses.size() );
+        assertFalse( new File( root, "source.txt" ).exists() );
+        assertEquals( "new", FileUtils.readFileToString( new File( root, "existing.txt" ) ) );
+        assertEquals( 2, events.size() );
+        assertEquals( "DeleteEvent existing.txt true", events.get( 0 ) );
+        assertEquals( "MoveEvent source.txt false", events.get( 1 ) );
+    }
+
+    public void testDirectoryOnlyReplacesEmptyDirectory() throws Exception {
+        FsDirectoryResource source = (FsDirectoryResource) dir.createCollection( "source" );
+        FsDirectoryResource empty = (FsDirectoryResource) dir.createCollection( "empty" );
+        FsDirectoryResource full = (FsDirectoryResource) dir.createCollection( "full" );
+        full.createNew( "a.txt", new ByteArrayInputStream( "aaa".getBytes() ), 3L, "text/plain" );
+        FsFileResource file = (FsFileResource) dir.createNew( "b.txt", new ByteArrayInputStream( "bbb".getBytes() ), 3L, "text/plain" );
+
+        assertTrue( source.canReplace( empty ) );
+        assertFalse( source.canReplace( full ) );
+        assertFalse( source.canReplace( file ) );
+        assertFalse( file.canReplace( empty ) );
+    }
+
+    /**
+     * A service written against the original two method interface still works,
+     * with the optional capabilities provided by FsFileResource
+     */
+    public void testBasicContentService() throws Exception {
+        factory.setContentService( new FileContentService() {
+
+            public void setFileContent( File file, InputStream in ) throws IOException {
+                FileUtils.writeByteArrayToFile( file, IOUtils.toByteArray( in ) );
+            }
+
+            public InputStream getFileContent( File file ) throws FileNotFoundException {
+                return new FileInputStream( file );
+            }
+        } );
+        dir = (FsDirectoryResource) factory.getResource( "localhost", "/" );
+        FsFileResource r = (FsFileResource) dir.createNew( "basic.txt", new ByteArrayInputStream( "0123456789".getBytes() ), 10L, "text/plain" );
+        assertEquals( 10, r.getContentLength().longValue() );
+        assertNull( r.openContentChannel() );
+
+        r.replacePartialContent( new Range( 2, 4 ), new ByteArrayInputStream( "abc".getBytes() ) );
+        assertEquals( "01abc56789", FileUtils.readFileToString( r.getFile() ) );
+        r.replaceContent( new ByteArrayInputStream( "xyz".getBytes() ), 3L );
+        assertEquals( "xyz", FileUtils.readFileToString( r.getFile() ) );
+    }
+
+    private Request moveRequest( final String path, final String destination ) {
+        return (Request) Proxy.newProxyInstance( Request.class.getClassLoader(), new Class[]{Request.class}, new InvocationHandler() {
+
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                if( method.getName().equals( "getAbsolutePath" ) ) {
+                    return path;
+                } else if( method.getName().equals( "getHostHeader" ) ) {
+                    return "localhost";
+                } else if( method.getName().equals( "getDestinationHeader" ) ) {
+                    return destination;
+                } else if( method.getName().equals( "getOverwriteHeader" ) ) {
+                    return Boolean.TRUE;
+                }
+                return null;
+            }
+        } );
+    }
+
+    private Request request( final String content ) {
+        return (Request) Proxy.newProxyInstance( Request.class.getClassLoader(), new Class[]{Request.class}, new InvocationHandler() {
+
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                if( method.getName().equals( "getInputStream" ) ) {
+                    return new ByteArrayInputStream( content.getBytes() );
+                }
+                return null;
+            }
+        } );
+    }
+}
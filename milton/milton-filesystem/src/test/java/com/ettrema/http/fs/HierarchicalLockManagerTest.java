@@ -0,0 +1,180 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.Auth;
+import com.bradmcevoy.http.HandlerHelper;
+import com.bradmcevoy.http.LockInfo;
+import com.bradmcevoy.http.LockResult;
+import com.bradmcevoy.http.LockTimeout;
+import com.bradmcevoy.http.LockToken;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author brad
+ */
+public class HierarchicalLockManagerTest extends TestCase {
+
+    FsHierarchicalLockManager lockManager;
+    SimpleFileContentService contentService;
+    FsResource folder;
+    FsResource file;
+    FsResource other;
+
+    @Override
+    protected void setUp() throws Exception {
+        File root = new File( "target/locktest" );
+        new File( root, "folder" ).mkdirs();
+        lockManager = new FsHierarchicalLockManager( root );
+        contentService = new SimpleFileContentService();
+        folder = new FsDirectoryResource( null, null, new File( root, "folder" ), contentService );
+        file = new FsFileResource( null, null, new File( root, "folder/file.doc" ), contentService );
+        other = new FsFileResource( null, null, new File( root, "other.doc" ), contentService );
+    }
+
+    public void testLockUnLock() throws NotAuthorizedException {
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file );
+        assertTrue( res.isSuccessful() );
+
+        LockToken token = lockManager.getCurrentToken( file );
+        assertNotNull( token );
+        assertEquals( token.tokenId, res.getLockToken().tokenId );
+        assertNull( lockManager.getCurrentToken( folder ) );
+        assertNull( lockManager.getCurrentToken( other ) );
+
+        lockManager.unlock( token.tokenId, file );
+        assertNull( lockManager.getCurrentToken( file ) );
+    }
+
+    public void testDepthInfinityLocksMembers() throws NotAuthorizedException {
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.INFINITY ), folder );
+        assertTrue( res.isSuccessful() );
+
+        LockToken token = lockManager.getCurrentToken( file );
+        assertNotNull( token );
+        assertEquals( res.getLockToken().tokenId, token.tokenId );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file ).isSuccessful() );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), other ).isSuccessful() );
+
+        // may be unlocked through a member of the locked collection
+        lockManager.unlock( token.tokenId, file );
+        assertNull( lockManager.getCurrentToken( file ) );
+        assertNull( lockManager.getCurrentToken( folder ) );
+    }
+
+    public void testDepthInfinityConflictsWithMemberLock() {
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file ).isSuccessful() );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.INFINITY ), folder ).isSuccessful() );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), folder ).isSuccessful() );
+    }
+
+    public void testSharedLocks() {
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), shared(), file ).isSuccessful() );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), shared(), file ).isSuccessful() );
+        assertFalse( lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file ).isSuccessful() );
+    }
+
+    public void testSharedLockHoldersNotLockedOut() throws Exception {
+        FileSystemResourceFactory factory = new FileSystemResourceFactory( new File( "target/locktest" ), null );
+        factory.setLockManager( lockManager );
+        File f = new File( "target/locktest/folder/file.doc" );
+        f.createNewFile();
+        FsResource r = factory.resolveFile( null, f );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), shared( "alice" ), r ).isSuccessful() );
+        assertTrue( lockManager.lock( new LockTimeout( 100l ), shared( "bob" ), r ).isSuccessful() );
+        assertEquals( 2, lockManager.getCurrentTokens( r ).size() );
+
+        HandlerHelper handlerHelper = new HandlerHelper( null );
+        assertFalse( handlerHelper.isLockedOut( request( "alice" ), r ) );
+        assertFalse( handlerHelper.isLockedOut( request( "bob" ), r ) );
+        assertTrue( handlerHelper.isLockedOut( request( "carol" ), r ) );
+    }
+
+    public void testUnlockOtherResource() {
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file );
+        try {
+            lockManager.unlock( res.getLockToken().tokenId, other );
+            fail( "should not be able to unlock a resource not in scope of the lock" );
+        } catch( NotAuthorizedException e ) {
+            // expected
+        }
+        assertNotNull( lockManager.getCurrentToken( file ) );
+    }
+
+    public void testRefresh() {
+        LockResult res = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), file );
+        assertTrue( lockManager.refresh( res.getLockToken().tokenId, file ).isSuccessful() );
+        assertFalse( lockManager.refresh( "unknown", file ).isSuccessful() );
+    }
+
+    public void testRestoreFromJournal() throws Exception {
+        File journalFile = new File( "target/locktest/locks.journal" );
+        journalFile.delete();
+        lockManager.setJournal( new LockJournal( journalFile ) );
+        lockManager.start();
+        LockResult kept = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.INFINITY ), folder );
+        LockResult removed = lockManager.lock( new LockTimeout( 100l ), exclusive( LockInfo.LockDepth.ZERO ), other );
+        lockManager.unlock( removed.getLockToken().tokenId, other );
+        lockManager.stop();
+
+        // a new lock manager, as if after a restart
+        lockManager = new FsHierarchicalLockManager();
+        lockManager.setJournal( new LockJournal( journalFile ) );
+        lockManager.start();
+        LockToken token = lockManager.getCurrentToken( file );
+        assertNotNull( token );
+        assertEquals( kept.getLockToken().tokenId, token.tokenId );
+        assertEquals( "me", token.info.lockedByUser );
+        assertNull( lockManager.getCurrentToken( other ) );
+        lockManager.stop();
+    }
+
+    private LockInfo exclusive( LockInfo.LockDepth depth ) {
+        return new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "me", depth );
+    }
+
+    private LockInfo shared() {
+        return shared( "me" );
+    }
+
+    private LockInfo shared( String user ) {
+        return new LockInfo( LockInfo.LockScope.SHARED, LockInfo.LockType.WRITE, user, LockInfo.LockDepth.ZERO );
+    }
+
+    private Request request( final String user ) {
+        return (Request) Proxy.newProxyInstance( Request.class.getClassLoader(), new Class[]{Request.class}, new InvocationHandler() {
+
+            @Override
+            public Object invoke( Object proxy, Method method, Object[] args ) {
+                if( method.getName().equals( "getAuthorization" ) ) {
+                    return new Auth( user, null );
+                }
+                return null;
+            }
+        } );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.LockInfo;
+import com.bradmcevoy.http.LockResult;
+import com.bradmcevoy.http.LockTimeout;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures FsHierarchicalLockManager against FsMemoryLockManager. Not run as
+ * part of the build, run the main method with the test classpath, optionally
+ * giving the number of threads, the number of cycles per thread, and
+ * "memory" or "hierarchical" to only run one of them. Running each in its own
+ * JVM gives the fairest numbers, since the checks are otherwise compiled for
+ * both.
+ *
+ * Each thread locks, checks and unlocks files in its own top level folder, as
+ * clients would with LOCK, PUT and UNLOCK. A PUT checks for locks several
+ * times, so each cycle checks ten times. The cost of a check alone is then
+ * measured on one thread with half of the files locked. The hierarchical lock
+ * manager is started, as it would be in use, so expiry is checked against the
+ * time of its last tick.
+ *
+ * @author brad
+ */
+public class LockManagerBenchmark {
+
+    private static final int FILES = 200;
+    private static final int CHECKS = 10;
+
+    public static void main( String[] args ) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 8;
+        int cycles = args.length > 1 ? Integer.parseInt( args[1] ) : 20000;
+        String only = args.length > 2 ? args[2] : null;
+        SimpleFileContentService contentService = new SimpleFileContentService();
+        File root = new File( "/srv/dav" );
+        FsResource[][] files = new FsResource[threads][FILES];
+        for( int t = 0; t < threads; t++ ) {
+            for( int f = 0; f < FILES; f++ ) {
+                files[t][f] = new FsFileResource( null, null, new File( root, "team" + t + "/docs/file" + f + ".docx" ), contentService );
+            }
+        }
+        for( int round = 0; round < 3; round++ ) {
+            FsHierarchicalLockManager hierarchical = new FsHierarchicalLockManager( root );
+            hierarchical.start();
+            List<LockManager> managers = new ArrayList<LockManager>();
+            if( only == null || only.equals( "memory" ) ) {
+                managers.add( new FsMemoryLockManager() );
+            }
+            if( only == null || only.equals( "hierarchical" ) ) {
+                managers.add( hierarchical );
+            }
+            for( LockManager lm : managers ) {
+                long t = System.nanoTime();
+                cycles( lm, files, cycles );
+                t = System.nanoTime() - t;
+                System.out.println( String.format( "%s: %d threads, %.0f ns per LOCK, %d checks, UNLOCK", lm.getClass().getSimpleName(), threads, (double) t / ( threads * cycles ), CHECKS ) );
+            }
+            for( LockManager lm : managers ) {
+                int n = 5000000;
+                long t = System.nanoTime();
+                int locked = checks( lm, files[0], n );
+                t = System.nanoTime() - t;
+                System.out.println( String.format( "%s: %.0f ns per check, %d locked", lm.getClass().getSimpleName(), (double) t / n, locked ) );
+            }
+            hierarchical.stop();
+        }
+    }
+
+    private static void cycles( final LockManager lm, FsResource[][] files, final int cycles ) throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool( files.length );
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for( final FsResource[] mine : files ) {
+                futures.add( exec.submit( new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        LockInfo info = new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "user", LockInfo.LockDepth.ZERO );
+                        for( int i = 0; i < cycles; i++ ) {
+                            FsResource r = mine[i % mine.length];
+                            LockResult res = lm.lock( new LockTimeout( 600l ), info, r );
+                            for( int k = 0; k < CHECKS; k++ ) {
+                                if( lm.getCurrentToken( r ) == null ) {
+                                    throw new IllegalStateException( "Lock not found" );
+                                }
+                            }
+                            lm.unlock( res.getLockToken().tokenId, r );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for( Future<Void> f : futures ) {
+                f.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static int checks( LockManager lm, FsResource[] files, int n ) throws Exception {
+        LockInfo info = new LockInfo( LockInfo.LockScope.EXCLUSIVE, LockInfo.LockType.WRITE, "user", LockInfo.LockDepth.ZERO );
+        List<String> tokens = new ArrayList<String>();
+        for( int f = 0; f < files.length; f += 2 ) {
+            tokens.add( lm.lock( new LockTimeout( 600l ), info, files[f] ).getLockToken().tokenId );
+        }
+        int locked = 0;
+        for( int i = 0; i < n; i++ ) {
+            if( lm.getCurrentToken( files[i % files.length] ) != null ) {
+                locked++;
+            }
+        }
+        for( int i = 0; i < tokens.size(); i++ ) {
+            lm.unlock( tokens.get( i ), files[i * 2] );
+        }
+        return locked;
+    }
+}
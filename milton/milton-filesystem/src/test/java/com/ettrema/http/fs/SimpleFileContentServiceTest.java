@@ -0,0 +1,94 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.http.fs;
+
+import com.bradmcevoy.http.http11.ContentDigestException;
+import com.bradmcevoy.http.http11.VerifyingInputStream;
+import com.bradmcevoy.io.FileReplacer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * @author brad
+ */
+public class SimpleFileContentServiceTest extends TestCase {
+
+    File dir;
+    File file;
+    SimpleFileContentService contentService;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File( "target/contenttest" );
+        FileUtils.deleteDirectory( dir );
+        dir.mkdirs();
+        file = new File( dir, "file.txt" );
+        FileUtils.writeStringToFile( file, "old" );
+        contentService = new SimpleFileContentService();
+        contentService.setSyncPolicy( SimpleFileContentService.SyncPolicy.FILE_AND_DIRECTORY );
+    }
+
+    public void testCommit() throws IOException {
+        FileContentWriter writer = contentService.openFileContent( file );
+        try {
+            writer.getOutputStream().write( "new".getBytes() );
+            assertEquals( "old", FileUtils.readFileToString( file ) );
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        assertEquals( "new", FileUtils.readFileToString( file ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+    public void testCloseWithoutCommit() throws IOException {
+        FileContentWriter writer = contentService.openFileContent( file );
+        try {
+            writer.getOutputStream().write( "partial".getBytes() );
+        } finally {
+            writer.close();
+        }
+        assertEquals( "old", FileUtils.readFileToString( file ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+    public void testDigestMismatchIsNotCommitted() throws Exception {
+        VerifyingInputStream vin = new VerifyingInputStream( new ByteArrayInputStream( "new".getBytes() ) );
+        vin.addDigest( "MD5", MessageDigest.getInstance( "MD5" ).digest( "other".getBytes() ) );
+        try {
+            contentService.setFileContent( file, vin );
+            fail( "should have thrown" );
+        } catch( ContentDigestException e ) {
+            assertEquals( "MD5", e.getAlgorithm() );
+        }
+        assertEquals( "old", FileUtils.readFileToString( file ) );
+        assertEquals( 1, dir.list().length );
+    }
+
+    public void testReplacerBackupIsTempFile() {
+        // so listings skip a backup left behind by a crash
+        assertTrue( SimpleFileContentService.isTempFile( FileReplacer.getBackupFile( file ).getName() ) );
+    }
+}
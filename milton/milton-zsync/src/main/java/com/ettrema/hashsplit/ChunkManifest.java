@@ -0,0 +1,194 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The content of a file whose chunks are in a ChunkStore: its length, and the
+ * SHA1 and length of each of its chunks, in order.
+ *
+ * Stored as the MAGIC bytes, the content length (a long), the number of
+ * chunks (an int), and then the 20 byte SHA1 and the length (an int) of each
+ * chunk. So a file can be recognised as a manifest by its first bytes.
+ *
+ * @author brad
+ */
+public class ChunkManifest {
+
+    public static final byte[] MAGIC = {'M', 'C', 'H', 'U', 'N', 'K', 'S', '1'};
+    private static final int SHA1_LENGTH = 20;
+    private final List<byte[]> hashes = new ArrayList<byte[]>();
+    private int[] lengths = new int[16];
+    private long contentLength;
+
+    /**
+     * Read the manifest from the file
+     *
+     * @param file
+     * @return - the manifest, or null if the file isn't a manifest
+     * @throws IOException
+     */
+    public static ChunkManifest read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * @param in
+     * @return - the manifest, or null if the stream doesnt start with MAGIC
+     * @throws IOException
+     */
+    public static ChunkManifest read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (!readMagic(din)) {
+            return null;
+        }
+        ChunkManifest m = new ChunkManifest();
+        long length = din.readLong();
+        int count = din.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] sha1 = new byte[SHA1_LENGTH];
+            din.readFully(sha1);
+            m.add(sha1, din.readInt());
+        }
+        if (m.getContentLength() != length) {
+            throw new IOException("Manifest is corrupt, length is " + length + " but chunks add up to " + m.getContentLength());
+        }
+        return m;
+    }
+
+    /**
+     * Read just the content length from the file, without reading the chunks
+     *
+     * @param file
+     * @return - the content length, or -1 if the file isn't a manifest
+     * @throws IOException
+     */
+    public static long readContentLength(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (!readMagic(in)) {
+                return -1;
+            }
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean readMagic(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(MAGIC, magic);
+    }
+
+    /**
+     * Add a chunk to the end of the content
+     *
+     * @param sha1 - is not copied
+     * @param length
+     */
+    public void add(byte[] sha1, int length) {
+        int i = hashes.size();
+        if (i == lengths.length) {
+            lengths = Arrays.copyOf(lengths, i * 2);
+        }
+        hashes.add(sha1);
+        lengths[i] = length;
+        contentLength += length;
+    }
+
+    public int getCount() {
+        return hashes.size();
+    }
+
+    public byte[] getHash(int i) {
+        return hashes.get(i);
+    }
+
+    public String getId(int i) {
+        return ChunkStore.toId(hashes.get(i));
+    }
+
+    public int getLength(int i) {
+        if (i >= hashes.size()) {
+            throw new IndexOutOfBoundsException("" + i);
+        }
+        return lengths[i];
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     *
+     * @return - the ids of the chunks, in order and with repeats
+     */
+    public List<String> getIds() {
+        return new AbstractList<String>() {
+
+            @Override
+            public String get(int index) {
+                return getId(index);
+            }
+
+            @Override
+            public int size() {
+                return getCount();
+            }
+        };
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        dout.write(MAGIC);
+        dout.writeLong(contentLength);
+        dout.writeInt(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            dout.write(hashes.get(i));
+            dout.writeInt(lengths[i]);
+        }
+        dout.flush();
+    }
+}
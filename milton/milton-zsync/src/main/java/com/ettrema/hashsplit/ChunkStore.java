@@ -0,0 +1,260 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content addressed store of chunks, as found by HashSplitService. Each
+ * chunk is stored once, however many files it is in, in a file named by the
+ * hex SHA1 of its content, in a directory named by the first two characters
+ * of that. Chunk files are written to a temporary file and renamed, so are
+ * never seen partly written, and are never changed once written.
+ *
+ * Chunks are deleted by sweep, given the number of references to each chunk
+ * as counted from the manifests which use them. The counts are then kept up
+ * to date as manifests are added and removed, to show when there might be
+ * garbage to collect. They can't be relied on to delete chunks, since
+ * manifests can also be copied or deleted as files, so chunks are only ever
+ * deleted by a sweep after a full count.
+ *
+ * Writers and readers pin the chunks they use, so a sweep never deletes a
+ * chunk which is being read, or which has been written for a manifest which
+ * hasn't been committed yet, or was counted before it was.
+ *
+ * @author brad
+ */
+public class ChunkStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkStore.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final File dir;
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+    /**
+     * When each chunk was last pinned or unpinned, so that a sweep doesn't
+     * delete chunks which have been used since the references were counted
+     */
+    private final Map<String, Long> lastUsed = new HashMap<String, Long>();
+    /**
+     * Null until a sweep has given the counts
+     */
+    private Map<String, Integer> refCounts;
+    private boolean garbageFound;
+
+    public ChunkStore(File dir) {
+        this.dir = dir;
+    }
+
+    public static String toId(byte[] sha1) {
+        return new String(Hex.encodeHex(sha1));
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public File getFile(String id) {
+        return new File(new File(dir, id.substring(0, 2)), id);
+    }
+
+    public boolean contains(String id) {
+        return getFile(id).exists();
+    }
+
+    /**
+     * Store the chunk, unless it is already stored, and pin it. The caller
+     * must unpin it once whatever refers to it has been committed or abandoned
+     *
+     * @param id - the hex SHA1 of the chunk
+     * @return - true if the chunk was stored, false if it was already
+     * @throws IOException
+     */
+    public boolean put(String id, byte[] buf, int off, int len) throws IOException {
+        pin(id);
+        File f = getFile(id);
+        if (f.exists()) {
+            return false;
+        }
+        File parent = f.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Couldnt create chunk directory: " + parent.getAbsolutePath());
+        }
+        File tmp = File.createTempFile(id.substring(0, 8), TEMP_SUFFIX, parent);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buf, off, len);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            // another writer has stored the same chunk
+            tmp.delete();
+            if (!f.exists()) {
+                throw new IOException("Couldnt store chunk: " + f.getAbsolutePath());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public InputStream open(String id) throws FileNotFoundException {
+        return new FileInputStream(getFile(id));
+    }
+
+    public byte[] read(String id) throws IOException {
+        return FileUtils.readFileToByteArray(getFile(id));
+    }
+
+    public synchronized void pin(String id) {
+        Integer n = pins.get(id);
+        pins.put(id, n == null ? 1 : n + 1);
+        lastUsed.put(id, System.currentTimeMillis());
+    }
+
+    public synchronized void unpin(String id) {
+        Integer n = pins.get(id);
+        if (n == null) {
+            return;
+        }
+        if (n <= 1) {
+            pins.remove(id);
+        } else {
+            pins.put(id, n - 1);
+        }
+        lastUsed.put(id, System.currentTimeMillis());
+    }
+
+    /**
+     * Adjust the reference counts for a manifest which has been added (delta
+     * of 1) or removed (delta of -1). Ignored until a sweep has given the counts
+     *
+     * @param ids - the chunks in the manifest, with repeats
+     * @param delta
+     */
+    public synchronized void addReferences(Collection<String> ids, int delta) {
+        if (refCounts == null) {
+            return;
+        }
+        for (String id : ids) {
+            Integer n = refCounts.get(id);
+            int count = (n == null ? 0 : n) + delta;
+            if (count <= 0) {
+                refCounts.remove(id);
+                garbageFound = true;
+            } else {
+                refCounts.put(id, count);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param id
+     * @return - the number of references to the chunk, or -1 if not known
+     * because there hasn't been a sweep yet
+     */
+    public synchronized int getReferenceCount(String id) {
+        if (refCounts == null) {
+            return -1;
+        }
+        Integer n = refCounts.get(id);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     *
+     * @return - true if a chunk has lost its last reference since the last sweep
+     */
+    public synchronized boolean isGarbageFound() {
+        return garbageFound;
+    }
+
+    /**
+     * Delete the chunks which have no references, and aren't pinned, and
+     * haven't been used since the references were counted
+     *
+     * @param counts - the number of references to each chunk, counted from
+     * all of the manifests
+     * @param countStarted - when counting started
+     * @return - the number of chunks deleted
+     */
+    public int sweep(Map<String, Integer> counts, long countStarted) {
+        synchronized (this) {
+            refCounts = new HashMap<String, Integer>(counts);
+            garbageFound = false;
+        }
+        int deleted = 0;
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File f : files) {
+                    String name = f.getName();
+                    if (name.endsWith(TEMP_SUFFIX)) {
+                        // left by a failed write
+                        if (f.lastModified() < countStarted - 3600000L) {
+                            f.delete();
+                        }
+                    } else if (!counts.containsKey(name) && delete(f, name, countStarted)) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            Iterator<Map.Entry<String, Long>> it = lastUsed.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                if (e.getValue() < countStarted && !pins.containsKey(e.getKey())) {
+                    it.remove();
+                }
+            }
+        }
+        log.debug("sweep: deleted " + deleted + " chunks");
+        return deleted;
+    }
+
+    private synchronized boolean delete(File f, String id, long countStarted) {
+        if (pins.containsKey(id)) {
+            return false;
+        }
+        Long used = lastUsed.get(id);
+        if (used != null && used >= countStarted) {
+            return false;
+        }
+        return f.delete();
+    }
+}
@@ -0,0 +1,514 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.common.Service;
+import com.ettrema.http.fs.AbstractFileContentService;
+import com.ettrema.http.fs.FileContentWriter;
+import com.ettrema.http.fs.SimpleFileContentService;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FileContentService which stores each unique chunk of content once, so
+ * files which are copies or near copies of each other, or versions of the same
+ * file, share the storage for the chunks they have in common.
+ *
+ * Content is split into chunks by HashSplitService, and the chunks are kept
+ * in a ChunkStore. The file itself holds a ChunkManifest listing its chunks,
+ * and is written to a temporary file and renamed by SimpleFileContentService
+ * so replacing content is still atomic. Files which are not manifests, eg
+ * because they were written before this service was used, are read as they
+ * are, and are converted when next written.
+ *
+ * Partial updates use the default from AbstractFileContentService, which
+ * rewrites the content through openFileContent. Only the chunks around the
+ * range are new, so only they are stored, but the whole content is read.
+ * Unlike SimpleFileContentService this is atomic.
+ *
+ * Content is read by concatenating the chunks, with the next readAhead chunks
+ * loaded in the background while the current one is read.
+ *
+ * Chunks which are no longer in any manifest are deleted by a background
+ * collection, which counts the references to each chunk from the manifests
+ * under the root directory, and then deletes the chunks with none. This
+ * runs every gcIntervalSeconds, and sooner if the reference counts, which are
+ * kept up to date as content is replaced, show that a chunk has lost its last
+ * reference. Call start to begin collecting, eg from spring's init-method.
+ *
+ * Set this as the content service of a FileSystemResourceFactory. Note that
+ * the store directory should not be under the root directory, or it will be
+ * visible as a folder.
+ *
+ * @author brad
+ */
+public class ChunkStoreFileContentService extends AbstractFileContentService implements Service {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkStoreFileContentService.class);
+    private final ChunkStore store;
+    private final File root;
+    private final SimpleFileContentService manifests = new SimpleFileContentService();
+    private HashSplitService hashSplitService = new HashSplitService();
+    private int readAhead = 4;
+    private int readAheadThreads = 4;
+    private int gcIntervalSeconds = 3600;
+    private int gcCheckSeconds = 60;
+    private ExecutorService readAheadExecutor;
+    private ScheduledExecutorService scheduler;
+    private long lastCollection;
+
+    /**
+     *
+     * @param storeDir - the directory to keep chunks in
+     * @param root - the directory containing all of the files which might
+     * refer to chunks, usually the root of the FileSystemResourceFactory
+     */
+    public ChunkStoreFileContentService(File storeDir, File root) {
+        this.store = new ChunkStore(storeDir);
+        this.root = root;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (scheduler == null && gcCheckSeconds > 0) {
+            scheduler = Executors.newScheduledThreadPool(1, new DaemonThreadFactory(ChunkStoreFileContentService.class));
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        long interval = gcIntervalSeconds * 1000L;
+                        if (store.isGarbageFound() || System.currentTimeMillis() - lastCollection >= interval) {
+                            collectGarbage();
+                        }
+                    } catch (Throwable e) {
+                        log.error("exception collecting unused chunks", e);
+                    }
+                }
+            }, 0, gcCheckSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+        }
+    }
+
+    @Override
+    public void setFileContent(File file, InputStream in) throws FileNotFoundException, IOException {
+        ChunkWriter writer = new ChunkWriter(file);
+        try {
+            writer.splitter.readFrom(in);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public InputStream getFileContent(File file) throws FileNotFoundException {
+        ChunkManifest m = readManifest(file);
+        if (m == null) {
+            return new FileInputStream(file);
+        }
+        return new ChunkInputStream(m);
+    }
+
+    @Override
+    public FileContentWriter openFileContent(File file) throws IOException {
+        return new ChunkWriter(file);
+    }
+
+    @Override
+    public long getFileContentLength(File file) {
+        try {
+            long length = ChunkManifest.readContentLength(file);
+            return length < 0 ? file.length() : length;
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new RuntimeException(file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     *
+     * @return - the manifest, or null if the file isnt a manifest
+     */
+    private ChunkManifest readManifest(File file) throws FileNotFoundException {
+        try {
+            return ChunkManifest.read(file);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Count the references to each chunk from the manifests under the root,
+     * and delete the chunks which have none
+     *
+     * @return - the number of chunks deleted
+     */
+    public synchronized int collectGarbage() {
+        long started = System.currentTimeMillis();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        try {
+            count(root, counts);
+        } catch (IOException e) {
+            log.error("couldnt count chunk references, not deleting anything", e);
+            return 0;
+        }
+        int deleted = store.sweep(counts, started);
+        lastCollection = System.currentTimeMillis();
+        log.info("collected unused chunks: referenced: " + counts.size() + " deleted: " + deleted + " in " + (lastCollection - started) + "ms");
+        return deleted;
+    }
+
+    private void count(File dir, Map<String, Integer> counts) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                if (!f.equals(store.getDir())) {
+                    count(f, counts);
+                }
+            } else {
+                ChunkManifest m;
+                try {
+                    m = ChunkManifest.read(f);
+                } catch (FileNotFoundException e) {
+                    continue; // deleted since listed
+                }
+                if (m != null) {
+                    for (int i = 0; i < m.getCount(); i++) {
+                        String id = m.getId(i);
+                        Integer n = counts.get(id);
+                        counts.put(id, n == null ? 1 : n + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized ExecutorService getReadAheadExecutor() {
+        if (readAheadExecutor == null) {
+            readAheadExecutor = DaemonThreadFactory.newPool(ChunkStoreFileContentService.class, readAheadThreads);
+        }
+        return readAheadExecutor;
+    }
+
+    public ChunkStore getStore() {
+        return store;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public HashSplitService getHashSplitService() {
+        return hashSplitService;
+    }
+
+    public void setHashSplitService(HashSplitService hashSplitService) {
+        this.hashSplitService = hashSplitService;
+    }
+
+    /**
+     * The number of chunks to load ahead of the one being read. If zero each
+     * chunk is loaded when it is reached
+     *
+     * @return
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * The number of threads, shared by all readers, to load chunks with
+     *
+     * @return
+     */
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    public synchronized void setReadAheadThreads(int readAheadThreads) {
+        this.readAheadThreads = readAheadThreads;
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+        }
+    }
+
+    /**
+     * Unused chunks are collected at least this often
+     *
+     * @return
+     */
+    public int getGcIntervalSeconds() {
+        return gcIntervalSeconds;
+    }
+
+    public void setGcIntervalSeconds(int gcIntervalSeconds) {
+        this.gcIntervalSeconds = gcIntervalSeconds;
+    }
+
+    /**
+     * How often to check if a collection is due, either because of
+     * gcIntervalSeconds or because chunks have lost their last reference. If
+     * zero there is no background collection. Must be set before start
+     *
+     * @return
+     */
+    public int getGcCheckSeconds() {
+        return gcCheckSeconds;
+    }
+
+    public void setGcCheckSeconds(int gcCheckSeconds) {
+        this.gcCheckSeconds = gcCheckSeconds;
+    }
+
+    /**
+     * Splits the content written to it into chunks, storing any which aren't
+     * already stored, and on commit writes the manifest. Chunks are pinned
+     * until the writer is closed
+     */
+    private class ChunkWriter implements FileContentWriter, ChunkListener {
+
+        private final File file;
+        private final HashSplitService.Splitter splitter;
+        private final ChunkManifest manifest = new ChunkManifest();
+        private final List<String> pinned = new ArrayList<String>();
+        private boolean closed;
+
+        ChunkWriter(File file) {
+            this.file = file;
+            this.splitter = hashSplitService.newSplitter(this);
+        }
+
+        @Override
+        public void onChunk(HashNode chunk, byte[] sha1, byte[] buf, int off, int len) throws IOException {
+            String id = ChunkStore.toId(sha1);
+            pinned.add(id);
+            store.put(id, buf, off, len);
+            manifest.add(sha1.clone(), len);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return splitter;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException("Already closed: " + file.getAbsolutePath());
+            }
+            splitter.close();
+            ChunkManifest previous = file.exists() ? ChunkManifest.read(file) : null;
+            FileContentWriter writer = manifests.openFileContent(file);
+            try {
+                manifest.write(writer.getOutputStream());
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+            store.addReferences(manifest.getIds(), 1);
+            if (previous != null) {
+                store.addReferences(previous.getIds(), -1);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                for (String id : pinned) {
+                    store.unpin(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the chunks of a manifest in order, loading the next readAhead
+     * chunks in the background. The chunks are pinned until it is closed
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private final ChunkManifest manifest;
+        private final LinkedList<Future<byte[]>> ahead = new LinkedList<Future<byte[]>>();
+        private final int readAhead = ChunkStoreFileContentService.this.readAhead;
+        private int next;
+        private byte[] current;
+        private int pos;
+        private boolean closed;
+
+        ChunkInputStream(ChunkManifest manifest) {
+            this.manifest = manifest;
+            for (int i = 0; i < manifest.getCount(); i++) {
+                store.pin(manifest.getId(i));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!available(1)) {
+                return -1;
+            }
+            return current[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!available(1)) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && available(1)) {
+                int s = (int) Math.min(n - skipped, current.length - pos);
+                pos += s;
+                skipped += s;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                for (Future<byte[]> f : ahead) {
+                    f.cancel(false);
+                }
+                ahead.clear();
+                for (int i = 0; i < manifest.getCount(); i++) {
+                    store.unpin(manifest.getId(i));
+                }
+            }
+        }
+
+        private boolean available(int n) throws IOException {
+            if (closed) {
+                throw new IOException("Closed");
+            }
+            while (current == null || pos == current.length) {
+                if (!nextChunk()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (readAhead <= 0) {
+                if (next >= manifest.getCount()) {
+                    return false;
+                }
+                current = load(next++);
+            } else {
+                while (ahead.size() <= readAhead && next < manifest.getCount()) {
+                    final int i = next++;
+                    ahead.add(getReadAheadExecutor().submit(new Callable<byte[]>() {
+
+                        @Override
+                        public byte[] call() throws IOException {
+                            return load(i);
+                        }
+                    }));
+                }
+                if (ahead.isEmpty()) {
+                    return false;
+                }
+                try {
+                    current = ahead.removeFirst().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading chunks");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            pos = 0;
+            return true;
+        }
+
+        private byte[] load(int i) throws IOException {
+            String id = manifest.getId(i);
+            byte[] data;
+            try {
+                data = store.read(id);
+            } catch (FileNotFoundException e) {
+                throw new IOException("Missing chunk: " + id);
+            }
+            if (data.length != manifest.getLength(i)) {
+                throw new IOException("Chunk is corrupt: " + id + " expected length " + manifest.getLength(i) + " but is " + data.length);
+            }
+            return data;
+        }
+    }
+}
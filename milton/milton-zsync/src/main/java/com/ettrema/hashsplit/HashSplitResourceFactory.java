@@ -0,0 +1,317 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.bradmcevoy.common.Path;
+import com.bradmcevoy.http.*;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.http.exceptions.NotFoundException;
+import com.bradmcevoy.io.StreamUtils;
+import com.ettrema.common.LogUtils;
+import com.ettrema.zsync.AdapterResource;
+import com.ettrema.zsync.Util;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This resource factory allows resources to be updated by uploading only the
+ * chunks of the new content which the server doesnt already have. It is the
+ * server side of HashSplitClient, and works alongside ZSyncResourceFactory in
+ * the same way, ie by wrapping another resource factory.
+ *
+ * Assuming the remote file is at path /somefile:
+ *
+ * GET /somefile/.hashsplit returns the hash tree of the current content, in
+ * HashTreeFormat
+ *
+ * POST /somefile/.hashsplit with a parameter "hashes", being a comma separated
+ * list of hash values in hex, returns those of the hashes which are not of any
+ * node in the tree, one per line. So a client can negotiate what to send a
+ * level of its own tree at a time, rather then fetch the whole tree
+ *
+ * PUT /somefile/.hashsplit with the deltas from HashSplitDeltaGenerator
+ * replaces the content, assembling it from the existing content and the
+ * uploaded chunks
+ *
+ * The tree of each version of the content is cached in the hashTreeCache, if
+ * set, which it is by default. Otherwise it is computed from the content on
+ * each request. The HashSplitService must be configured the same as the
+ * clients'
+ *
+ * @author brad
+ */
+public class HashSplitResourceFactory implements ResourceFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(HashSplitResourceFactory.class);
+    private String suffix = ".hashsplit";
+    private final ResourceFactory wrapped;
+    private HashSplitService hashSplitService = new HashSplitService();
+    private boolean assembleToTempFile = true;
+    private HashTreeCache hashTreeCache = new HashTreeCache();
+
+    public HashSplitResourceFactory(ResourceFactory wrapped) {
+        this.wrapped = wrapped;
+    }
+
+    @Override
+    public Resource getResource(String host, String path) throws NotAuthorizedException, BadRequestException {
+        if (path.endsWith("/" + suffix)) {
+            Path p = Path.path(path);
+            String realPath = p.getParent().toString();
+            Resource r = wrapped.getResource(host, realPath);
+            if (r instanceof GetableResource) {
+                LogUtils.trace(log, "Found existing compatible resource at", realPath);
+                return new HashSplitAdapterResource((GetableResource) r, realPath, host);
+            } else {
+                return new HashSplitAdapterResource(null, realPath, host); // will throw bad request
+            }
+        } else {
+            return wrapped.getResource(host, path);
+        }
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public ResourceFactory getWrapped() {
+        return wrapped;
+    }
+
+    public HashSplitService getHashSplitService() {
+        return hashSplitService;
+    }
+
+    public void setHashSplitService(HashSplitService hashSplitService) {
+        this.hashSplitService = hashSplitService;
+    }
+
+    /**
+     * As for ZSyncResourceFactory, if true, the default, new content is
+     * assembled into a temporary file before being written to resources which
+     * arent AtomicReplaceableResource's
+     *
+     * @return
+     */
+    public boolean isAssembleToTempFile() {
+        return assembleToTempFile;
+    }
+
+    public void setAssembleToTempFile(boolean assembleToTempFile) {
+        this.assembleToTempFile = assembleToTempFile;
+    }
+
+    /**
+     * Caches the tree of each version of the content. Set to null to compute
+     * the tree on each request
+     *
+     * @return
+     */
+    public HashTreeCache getHashTreeCache() {
+        return hashTreeCache;
+    }
+
+    public void setHashTreeCache(HashTreeCache hashTreeCache) {
+        this.hashTreeCache = hashTreeCache;
+    }
+
+    public class HashSplitAdapterResource extends AdapterResource implements PostableResource {
+
+        public HashSplitAdapterResource(GetableResource r, String realPath, String host) {
+            super(HashSplitResourceFactory.this.wrapped, r, realPath, host);
+        }
+
+        @Override
+        public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+            if (r == null) {
+                throw new BadRequestException(this, "No existing resource was found to map the hashsplit operation to");
+            }
+            HashTreeCache.Tree tree = getTree();
+            String hashes = params == null ? null : params.get("hashes");
+            if (hashes != null) {
+                sendNeeded(tree, hashes, out);
+            } else {
+                HashTreeFormat.write(tree.getRootNodes(), out);
+            }
+        }
+
+        @Override
+        public String processForm(Map<String, String> parameters, Map<String, FileItem> files) throws BadRequestException, NotAuthorizedException, ConflictException {
+            if (r == null) {
+                throw new BadRequestException(this, "No existing resource was found to map the hashsplit operation to");
+            }
+            if (parameters.get("hashes") == null) {
+                throw new BadRequestException(this, "The hashes parameter is required");
+            }
+            return null;
+        }
+
+        /**
+         * Assembles the new content as it is written to the resource. If the
+         * resource is a SeekableResource only the chunks which are referred to
+         * are read from the existing content, otherwise it is first copied to
+         * a temporary file. The chunks are found from the cached tree, if
+         * the resource is a SeekableResource and the tree of its current
+         * version is cached, otherwise the existing content is read to find
+         * them.
+         *
+         * As for ZSyncResourceFactory, the SHA1 checksum is checked at the end
+         * of the content and a mismatch fails the write, so unless the
+         * resource is an AtomicReplaceableResource, or assembleToTempFile is
+         * false, the content is assembled into a temporary file first
+         */
+        @Override
+        public void replaceContent(InputStream in, Long length) throws BadRequestException, ConflictException, NotAuthorizedException {
+            if (r == null) {
+                throw new BadRequestException(this, "No existing resource was found to map the hashsplit operation to");
+            }
+            log.trace("HashSplit Replace Content: uploaded bytes " + length);
+
+            File prevFile = null;
+            FileChannel source = null;
+            InputStream assembled = null;
+            try {
+                List<HashNode> tree;
+                if (r instanceof SeekableResource) {
+                    source = ((SeekableResource) r).openContentChannel();
+                }
+                if (source != null) {
+                    if (hashTreeCache != null) {
+                        tree = getTree().getRootNodes();
+                    } else {
+                        // dont close the stream, as that would close the channel
+                        HashSplitService.Splitter splitter = hashSplitService.newSplitter(null);
+                        splitter.readFrom(Channels.newInputStream(source));
+                        splitter.close();
+                        tree = splitter.getRootNodes();
+                    }
+                } else {
+                    prevFile = File.createTempFile("milton-hashsplit", "prevFile");
+                    tree = parse(prevFile);
+                    source = new RandomAccessFile(prevFile, "r").getChannel();
+                }
+
+                HashSplitUploadReader reader;
+                try {
+                    reader = new HashSplitUploadReader(new BufferedInputStream(in));
+                } catch (IOException e) {
+                    throw new BadRequestException(this, e.getMessage());
+                }
+                assembled = reader.assemble(source, tree);
+                updateResourceContent(assembled, reader.getContentLength(), assembleToTempFile);
+                if (hashTreeCache != null) {
+                    hashTreeCache.remove(realPath);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } catch (NotFoundException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                StreamUtils.close(assembled);
+                Util.close(source);
+                deleteTempFile(prevFile);
+            }
+        }
+
+        /**
+         * Get the tree for the current content, from the cache if there is one
+         */
+        private HashTreeCache.Tree getTree() throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+            if (hashTreeCache == null) {
+                return new HashTreeCache.Tree(parse(null));
+            }
+            return hashTreeCache.getTree(realPath, r, new Callable<List<HashNode>>() {
+
+                @Override
+                public List<HashNode> call() throws Exception {
+                    return parse(null);
+                }
+            });
+        }
+
+        private void sendNeeded(HashTreeCache.Tree tree, String hashes, OutputStream out) throws BadRequestException {
+            PrintWriter pw = new PrintWriter(out);
+            for (String s : hashes.split(",")) {
+                s = s.trim();
+                if (s.length() == 0) {
+                    continue;
+                }
+                long hash;
+                try {
+                    // parsed as unsigned, since the top bit is often set
+                    hash = new BigInteger(s, 16).longValue();
+                } catch (NumberFormatException e) {
+                    throw new BadRequestException(this, "Invalid hash: " + s);
+                }
+                if (!tree.contains(hash)) {
+                    pw.println(s);
+                }
+            }
+            pw.flush();
+        }
+
+        /**
+         * Find the tree for the current content
+         *
+         * @param copyTo - if not null, the content is also copied to this file
+         */
+        private List<HashNode> parse(File copyTo) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+            HashSplitService.Splitter splitter = hashSplitService.newSplitter(null);
+            OutputStream fout = null;
+            try {
+                OutputStream out = splitter;
+                if (copyTo != null) {
+                    fout = new BufferedOutputStream(new FileOutputStream(copyTo));
+                    out = new TeeOutputStream(fout, splitter);
+                }
+                r.sendContent(out, null, null, null);
+                out.flush();
+            } finally {
+                StreamUtils.close(fout);
+            }
+            splitter.close();
+            return splitter.getRootNodes();
+        }
+
+        @Override
+        public String getContentType(String accepts) {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return suffix;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the deltas written by HashSplitDeltaGenerator, and assembles the new
+ * content from them and the existing content.
+ *
+ * The content is assembled a chunk at a time as it is read, so the upload is
+ * never held in memory or written to a temporary file.
+ *
+ * @author brad
+ */
+public class HashSplitUploadReader {
+
+    /**
+     * Chunks are limited by HashSplitService.maxChunkSize, this just stops
+     * a bad upload from making us allocate a huge buffer
+     */
+    private static final int MAX_CHUNK_LENGTH = 16 * 1024 * 1024;
+    private final DataInputStream in;
+    private final long contentLength;
+
+    /**
+     * Reads the header of the upload
+     *
+     * @param upload - should be buffered
+     * @throws IOException - if the upload isnt in the right format
+     */
+    public HashSplitUploadReader(InputStream upload) throws IOException {
+        this.in = new DataInputStream(upload);
+        byte[] magic = new byte[HashSplitDeltaGenerator.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, HashSplitDeltaGenerator.MAGIC)) {
+            throw new IOException("Not a hashsplit upload");
+        }
+        contentLength = in.readLong();
+        if (contentLength < 0) {
+            throw new IOException("Invalid content length: " + contentLength);
+        }
+    }
+
+    /**
+     *
+     * @return - the length of the new content
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns a stream of the new content. The SHA1 of the content is checked
+     * when the end is reached, and if it doesnt match the final read throws an
+     * IOException
+     *
+     * @param source - the existing content. Only positional reads are used
+     * @param sourceTree - the tree for the existing content, as returned by
+     * HashSplitService
+     * @return
+     */
+    public InputStream assemble(FileChannel source, List<HashNode> sourceTree) {
+        Map<Long, HashNode> chunks = new HashMap<Long, HashNode>();
+        addChunks(sourceTree, chunks);
+        return new AssemblingInputStream(source, chunks);
+    }
+
+    private void addChunks(List<HashNode> nodes, Map<Long, HashNode> chunks) {
+        for (HashNode n : nodes) {
+            if (n.isLeaf()) {
+                chunks.put(n.getHashValue(), n);
+            } else {
+                addChunks(n.getChildNodes(), chunks);
+            }
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private class AssemblingInputStream extends InputStream {
+
+        private final FileChannel source;
+        private final Map<Long, HashNode> chunks;
+        private final MessageDigest sha1 = sha1();
+        private byte[] buf = new byte[65536];
+        private int pos;
+        private int len;
+        private long total;
+        private boolean finished;
+
+        AssemblingInputStream(FileChannel source, Map<Long, HashNode> chunks) {
+            this.source = source;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            n = Math.min(n, len - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         *
+         * @return - false if at the end of the content
+         */
+        private boolean fill() throws IOException {
+            while (pos == len) {
+                if (finished) {
+                    return false;
+                }
+                nextEntry();
+            }
+            return true;
+        }
+
+        private void nextEntry() throws IOException {
+            pos = 0;
+            len = 0;
+            byte type = in.readByte();
+            if (type == HashSplitDeltaGenerator.END) {
+                byte[] expected = new byte[sha1.getDigestLength()];
+                in.readFully(expected);
+                finished = true;
+                if (total != contentLength) {
+                    throw new IOException("Content length is " + total + " but the upload said " + contentLength);
+                }
+                if (!Arrays.equals(expected, sha1.digest())) {
+                    throw new IOException("Checksum of the assembled content does not match the upload");
+                }
+                return;
+            }
+            long hash = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_CHUNK_LENGTH || total + length > contentLength) {
+                throw new IOException("Invalid chunk length: " + length + " at: " + total);
+            }
+            if (buf.length < length) {
+                buf = new byte[length];
+            }
+            if (type == HashSplitDeltaGenerator.DATA) {
+                in.readFully(buf, 0, length);
+            } else if (type == HashSplitDeltaGenerator.REF) {
+                HashNode chunk = chunks.get(hash);
+                if (chunk == null) {
+                    throw new IOException("The upload refers to a chunk which isnt in the existing content: " + Long.toHexString(hash));
+                }
+                if (chunk.getLength() != length) {
+                    throw new IOException("Chunk length mismatch: " + Long.toHexString(hash) + " is " + chunk.getLength() + " but the upload said " + length);
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+                long position = chunk.getOffset();
+                while (bb.hasRemaining()) {
+                    int n = source.read(bb, position);
+                    if (n < 0) {
+                        throw new EOFException("Existing content ended before chunk: " + Long.toHexString(hash));
+                    }
+                    position += n;
+                }
+            } else {
+                throw new IOException("Unknown entry type: " + type);
+            }
+            sha1.update(buf, 0, length);
+            total += length;
+            len = length;
+        }
+    }
+}
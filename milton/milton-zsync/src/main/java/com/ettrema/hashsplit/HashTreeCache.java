@@ -0,0 +1,270 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.VersionedResource;
+import com.bradmcevoy.http.http11.DefaultETagGenerator;
+import com.bradmcevoy.http.http11.ETagGenerator;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the hash tree of resources, so that each version is only read and
+ * split once, rather then on every GET and POST of the tree and on each
+ * upload. As for the zsync MetaDataCache, entries are keyed on the path and
+ * the version of the resource, being its ETag, and resources with no content
+ * length or no way of telling versions apart are not cached. Only the latest
+ * version of each path is kept.
+ *
+ * Trees are held in memory, up to maxNodes in total, evicting the least
+ * recently used first. Concurrent requests for a tree which is not yet cached
+ * wait for a single split.
+ *
+ * @author brad
+ */
+public class HashTreeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(HashTreeCache.class);
+    /**
+     * The latest tree cached for each path
+     */
+    private final Map<String, Tree> trees = new LinkedHashMap<String, Tree>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<Tree>> inFlight = new ConcurrentHashMap<String, FutureTask<Tree>>();
+    private long nodes;
+    private long maxNodes = 1000000;
+    private ETagGenerator eTagGenerator = new DefaultETagGenerator();
+    private volatile long generatedCount;
+
+    /**
+     * Get the tree for the current version of the resource, splitting it with
+     * the given splitter if not cached
+     *
+     * @param path
+     * @param r
+     * @param splitter - reads the resource and returns its root nodes
+     * @return
+     */
+    public Tree getTree(final String path, GetableResource r, final Callable<List<HashNode>> splitter) throws IOException {
+        final String version = getVersion(r);
+        if (version == null) {
+            log.trace("getTree: resource is not cacheable: " + path);
+            return split(splitter);
+        }
+        Tree tree = get(path, version);
+        if (tree != null) {
+            return tree;
+        }
+        String key = path + "\n" + version;
+        FutureTask<Tree> task = new FutureTask<Tree>(new Callable<Tree>() {
+
+            @Override
+            public Tree call() throws Exception {
+                Tree tree = get(path, version);
+                if (tree == null) {
+                    tree = split(splitter);
+                    tree.version = version;
+                    put(path, tree);
+                }
+                return tree;
+            }
+        });
+        FutureTask<Tree> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            log.trace("getTree: waiting for tree being split by another thread");
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for hash tree: " + path);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param r
+     * @return - the version of the resource, or null if it cant be cached
+     */
+    public String getVersion(GetableResource r) {
+        Long length = r.getContentLength();
+        if (length == null) {
+            return null;
+        }
+        boolean versioned = r instanceof VersionedResource && ((VersionedResource) r).getVersionToken() != null;
+        if (!versioned && r.getModifiedDate() == null) {
+            return null;
+        }
+        return eTagGenerator.generateEtag(r) + "\n" + length;
+    }
+
+    /**
+     * Discard the tree cached for the given path
+     *
+     * @param path
+     */
+    public synchronized void remove(String path) {
+        Tree tree = trees.remove(path);
+        if (tree != null) {
+            nodes -= tree.size();
+        }
+    }
+
+    private synchronized Tree get(String path, String version) {
+        Tree tree = trees.get(path);
+        if (tree != null && version.equals(tree.version)) {
+            return tree;
+        }
+        return null;
+    }
+
+    private synchronized void put(String path, Tree tree) {
+        remove(path);
+        if (tree.size() > maxNodes) {
+            return;
+        }
+        trees.put(path, tree);
+        nodes += tree.size();
+        Iterator<Tree> it = trees.values().iterator();
+        while (nodes > maxNodes && it.hasNext()) {
+            nodes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    private Tree split(Callable<List<HashNode>> splitter) throws IOException {
+        long tm = System.currentTimeMillis();
+        List<HashNode> roots;
+        try {
+            roots = splitter.call();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        generatedCount++;
+        if (log.isDebugEnabled()) {
+            log.debug("split content into hash tree in " + (System.currentTimeMillis() - tm) + "ms");
+        }
+        return new Tree(roots);
+    }
+
+    /**
+     *
+     * @return - the number of times a tree has been split, ie the number of
+     * cache misses
+     */
+    public long getGeneratedCount() {
+        return generatedCount;
+    }
+
+    /**
+     * The maximum number of nodes, over all trees, to hold in memory
+     *
+     * @return
+     */
+    public long getMaxNodes() {
+        return maxNodes;
+    }
+
+    public void setMaxNodes(long maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    public ETagGenerator getETagGenerator() {
+        return eTagGenerator;
+    }
+
+    public void setETagGenerator(ETagGenerator eTagGenerator) {
+        this.eTagGenerator = eTagGenerator;
+    }
+
+    /**
+     * The tree of a version of a resource, with the hashes of all of its nodes
+     */
+    public static class Tree {
+
+        private final List<HashNode> rootNodes;
+        private final Set<Long> hashes = new HashSet<Long>();
+        private String version;
+
+        Tree(List<HashNode> rootNodes) {
+            this.rootNodes = Collections.unmodifiableList(rootNodes);
+            addHashes(rootNodes);
+        }
+
+        private void addHashes(List<HashNode> nodes) {
+            for (HashNode n : nodes) {
+                hashes.add(n.getHashValue());
+                if (!n.isLeaf()) {
+                    addHashes(n.getChildNodes());
+                }
+            }
+        }
+
+        public List<HashNode> getRootNodes() {
+            return rootNodes;
+        }
+
+        /**
+         *
+         * @param hash
+         * @return - true if any node in the tree has the given hash
+         */
+        public boolean contains(long hash) {
+            return hashes.contains(hash);
+        }
+
+        int size() {
+            return hashes.size();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import com.bradmcevoy.common.Path;
+import com.bradmcevoy.http.*;
+import com.bradmcevoy.http.Request.Method;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.bradmcevoy.http.exceptions.ConflictException;
+import com.bradmcevoy.http.exceptions.NotAuthorizedException;
+import com.bradmcevoy.http.http11.auth.DigestResponse;
+import com.bradmcevoy.io.StreamUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for the resources which ZSyncResourceFactory and
+ * HashSplitResourceFactory map to a path like /somefile/.zsync. Security and
+ * the modified date are delegated to the real resource, and the content
+ * assembled from an upload is written back to it
+ *
+ * @author brad
+ */
+public abstract class AdapterResource implements GetableResource, ReplaceableResource, DigestResource {
+
+    private static final Logger log = LoggerFactory.getLogger(AdapterResource.class);
+    protected final ResourceFactory wrapped;
+    protected final GetableResource r;
+    protected final String realPath;
+    protected final String host;
+
+    /**
+     *
+     * @param wrapped - the factory the real resource came from, used to find
+     * its parent if it isnt replaceable
+     * @param r - the real resource, or null if there isnt one
+     * @param realPath
+     * @param host
+     */
+    public AdapterResource(ResourceFactory wrapped, GetableResource r, String realPath, String host) {
+        this.wrapped = wrapped;
+        this.r = r;
+        this.realPath = realPath;
+        this.host = host;
+    }
+
+    /**
+     *
+     * @return - the resource the operation is mapped to, or null if there
+     * isnt one
+     */
+    public GetableResource getResource() {
+        return r;
+    }
+
+    /**
+     * Writes content which is verified as it is read, ie which fails part way
+     * through if it is bad. If assembleToTempFile is true and the resource
+     * isnt an AtomicReplaceableResource, the content is first copied to a
+     * temporary file, so a failure doesnt leave partial content in the
+     * resource.
+     */
+    protected void updateResourceContent(InputStream content, long contentLength, boolean assembleToTempFile) throws BadRequestException, ConflictException, NotAuthorizedException, IOException {
+        if (!assembleToTempFile || r instanceof AtomicReplaceableResource) {
+            updateResourceContentActual(content, contentLength);
+            return;
+        }
+        File newFile = File.createTempFile("milton-zsync", "newFile");
+        InputStream in = null;
+        try {
+            FileOutputStream fout = new FileOutputStream(newFile);
+            try {
+                IOUtils.copyLarge(content, fout);
+            } finally {
+                StreamUtils.close(fout);
+            }
+            log.trace("Assembled file and saved to " + newFile.getAbsolutePath());
+            in = new FileInputStream(newFile);
+            updateResourceContentActual(in, contentLength);
+        } finally {
+            StreamUtils.close(in);
+            deleteTempFile(newFile);
+        }
+    }
+
+    protected void updateResourceContentActual(InputStream content, long contentLength) throws BadRequestException, ConflictException, NotAuthorizedException, IOException {
+        if (r instanceof ReplaceableResource) {
+            log.trace("updateResourceContentActual: resource is replaceable");
+            ReplaceableResource rr = (ReplaceableResource) r;
+            rr.replaceContent(content, contentLength);
+        } else {
+            log.trace("updateResourceContentActual: resource is NOT replaceable, try to replace through parent");
+            String parentPath = Path.path(realPath).getParent().toString();
+            Resource rParent = wrapped.getResource(host, parentPath);
+            if (rParent == null) {
+                throw new RuntimeException("Failed to locate parent resource to update contents. parent: " + parentPath + " host: " + host);
+            }
+            if (rParent instanceof PutableResource) {
+                log.trace("found parent resource, implements PutableResource");
+                PutableResource putable = (PutableResource) rParent;
+                putable.createNew(r.getName(), content, contentLength, r.getContentType(null));
+            } else {
+                throw new RuntimeException("Tried to update non-replaceable resource by doing createNew on parent, but the parent doesnt implement PutableResource. parent path: " + parentPath + " host: " + host + " parent type: " + rParent.getClass());
+            }
+        }
+    }
+
+    protected void deleteTempFile(File f) {
+        if (f != null && !f.delete()) {
+            log.warn("Couldnt delete temporary file: " + f.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public Long getMaxAgeSeconds(Auth auth) {
+        return null;
+    }
+
+    @Override
+    public Long getContentLength() {
+        return null;
+    }
+
+    @Override
+    public String getUniqueId() {
+        return null;
+    }
+
+    @Override
+    public Object authenticate(String user, String password) {
+        if (r == null) {
+            return "ok"; // will fail with 400 anyway
+        }
+        return r.authenticate(user, password);
+    }
+
+    @Override
+    public boolean authorise(Request request, Method method, Auth auth) {
+        if (r == null) {
+            return true; // will fail anyway
+        }
+        return r.authorise(request, method, auth);
+    }
+
+    @Override
+    public String getRealm() {
+        if (r == null) {
+            return "Realm";
+        }
+        return r.getRealm();
+    }
+
+    @Override
+    public Date getModifiedDate() {
+        if (r == null) {
+            return null;
+        }
+        return r.getModifiedDate();
+    }
+
+    @Override
+    public String checkRedirect(Request request) {
+        return null;
+    }
+
+    @Override
+    public Object authenticate(DigestResponse digestRequest) {
+        return ((DigestResource) r).authenticate(digestRequest);
+    }
+
+    @Override
+    public boolean isDigestAllowed() {
+        return (r instanceof DigestResource) && ((DigestResource) r).isDigestAllowed();
+    }
+}
@@ -45,37 +45,63 @@
 
 package com.ettrema.zsync;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
- * Chaining hash table used to store block checksums loaded from metafile
- * @author Tomáš Hlavnička
+ * Hash table used to store block checksums loaded from metafile
+ *
+ * Originally a chaining hash table of ChecksumPair objects. It is now an
+ * open addressing table of weak sums, where each slot heads a chain of the
+ * entries with that weak sum in the order they were inserted. Weak sums,
+ * chain links and strong sums are held in primitive arrays, with the strong
+ * sums in one flat array, so that MapMatcher can look up every byte position
+ * of a file with findWeak and findMatch without creating any objects.
+ *
+ * Entries are never physically removed, deleted entries are marked as such
+ * and skipped.
+ *
+ * @author Tomáš Hlavnička, brad
  */
 public class ChainingHash {
-    private ArrayList<ArrayList> hashArray;
-    private int arraySize;
-    private int index;
 
+    private static final int EMPTY = -1;
     /**
-     * Initializing chaining hash table of <code>size</code>
-     * @param size Size of the hash table
+     * The pairs, in the order they were inserted
      */
-    public ChainingHash(int size){
-        arraySize=size;
-        hashArray = new ArrayList<ArrayList>(arraySize);
-        for (int i = 0; i < arraySize; i++) {
-            hashArray.add(i, new ArrayList<ChecksumPair>());
-        }
-    }
+    private ChecksumPair[] pairs;
+    private int[] weaks;
+    private byte[] strongs;
+    private int strongLength = -1;
+    /**
+     * The next entry with the same weak sum, or EMPTY
+     */
+    private int[] next;
+    private boolean[] deleted;
+    private int count;
+    /**
+     * Open addressing table of weak sums
+     */
+    private int[] slotWeaks;
+    private int[] slotHeads;
+    private int[] slotTails;
+    /**
+     * The number of entries in each slot which are not deleted
+     */
+    private int[] slotLive;
+    private int mask;
+    private int shift;
 
     /**
-     * Hashing function
-     * @param pKey Key object that will be hashed into the table
-     * @return Index in hash table where the object will be put
+     * Initializing hash table
+     * @param size expected number of entries
      */
-    public int hashFunction(ChecksumPair pKey) {
-        return pKey.hashCode() % arraySize;
+    public ChainingHash(int size){
+        int capacity = Math.max(size, 16);
+        pairs = new ChecksumPair[capacity];
+        weaks = new int[capacity];
+        next = new int[capacity];
+        deleted = new boolean[capacity];
+        allocateSlots(capacity);
     }
 
     /**
@@ -83,8 +109,32 @@ public class ChainingHash {
      * @param pKey Object we are inserting
      */
     public void insert(ChecksumPair pKey){
-        int hashValue = hashFunction(pKey);
-        hashArray.get(hashValue).add(pKey);
+        byte[] strong = pKey.getStrong();
+        int len = strong == null ? 0 : strong.length;
+        if (strongLength < 0) {
+            strongLength = len;
+            strongs = new byte[pairs.length * strongLength];
+        } else if (len != strongLength) {
+            throw new IllegalArgumentException("All strong sums must be the same length. Expected: " + strongLength + " got: " + len);
+        }
+        if (count == pairs.length) {
+            grow();
+        }
+        int i = count++;
+        pairs[i] = pKey;
+        weaks[i] = pKey.getWeak();
+        next[i] = EMPTY;
+        if (len > 0) {
+            System.arraycopy(strong, 0, strongs, i * strongLength, len);
+        }
+        if (count * 2 > slotHeads.length) {
+            allocateSlots(slotHeads.length * 2);
+            for (int j = 0; j < count; j++) {
+                link(j);
+            }
+        } else {
+            link(i);
+        }
     }
 
     /**
@@ -92,8 +142,26 @@ public class ChainingHash {
      * @param pKey Object we want to delete from table
      */
     public void delete(ChecksumPair pKey){
-        int hashValue = hashFunction(pKey);
-        hashArray.get(hashValue).remove(pKey);
+        byte[] strong = pKey.getStrong();
+        if (strong == null || strong.length != strongLength) {
+            return;
+        }
+        int i = findMatch(pKey.getWeak(), strong, 0);
+        if (i != EMPTY) {
+            delete(i);
+        }
+    }
+
+    /**
+     * Delete the entry with the given index, as returned from findMatch
+     *
+     * @param entry
+     */
+    public void delete(int entry) {
+        if (!deleted[entry]) {
+            deleted[entry] = true;
+            slotLive[slot(weaks[entry])]--;
+        }
     }
 
     /**
@@ -102,13 +170,13 @@ public class ChainingHash {
      * @return Object if found, null if not
      */
     public ChecksumPair find(ChecksumPair pKey){
-        int hashValue = hashFunction(pKey);
-        ChecksumPair p = null;
-        for(int i=0;i<hashArray.get(hashValue).size();i++){
-            p = (ChecksumPair) hashArray.get(hashValue).get(i);
-            if(p.getWeak()==pKey.getWeak()){
-                index = i;
-                return p;
+        int s = findWeak(pKey.getWeak());
+        if (s == EMPTY) {
+            return null;
+        }
+        for (int i = slotHeads[s]; i != EMPTY; i = next[i]) {
+            if (!deleted[i]) {
+                return pairs[i];
             }
         }
         return null;
@@ -120,30 +188,153 @@ public class ChainingHash {
      * @return Object if found, null if not
      */
     public ChecksumPair findMatch(ChecksumPair pKey){
-        int hashValue = hashFunction(pKey);
-        ChecksumPair p = (ChecksumPair) hashArray.get(hashValue).get(index);
-        if(p.getWeak()==pKey.getWeak() && Arrays.equals(p.getStrong(), pKey.getStrong())){
-            return p;
-        } else {
-            p = null;
+        byte[] strong = pKey.getStrong();
+        if (strong == null || strong.length != strongLength) {
+            return null;
+        }
+        int i = findMatch(pKey.getWeak(), strong, 0);
+        return i == EMPTY ? null : pairs[i];
+    }
+
+    /**
+     *
+     * @param weak
+     * @return - the slot for the weak sum if there is an entry with that
+     * weak sum which has not been deleted, otherwise -1
+     */
+    public int findWeak(int weak) {
+        int s = slot(weak);
+        if (slotHeads[s] == EMPTY || slotLive[s] == 0) {
+            return EMPTY;
+        }
+        return s;
+    }
+
+    /**
+     * Find the first entry, which has not been deleted, with the given weak sum
+     * and strong sum
+     *
+     * @param weak
+     * @param strong - array holding the strong sum. Only the number of bytes
+     * of the strong sums in the table are compared
+     * @param off - the offset of the strong sum in the array
+     * @return - the index of the entry, or -1 if there is none
+     */
+    public int findMatch(int weak, byte[] strong, int off) {
+        int s = findWeak(weak);
+        if (s == EMPTY) {
+            return EMPTY;
         }
-        for(int i=0;i<hashArray.get(hashValue).size();i++){
-            p = (ChecksumPair) hashArray.get(hashValue).get(i);
-            if(p.getWeak()==pKey.getWeak() && Arrays.equals(p.getStrong(), pKey.getStrong())){
-                return p;
+        return findMatch(s, strong, off, false);
+    }
+
+    /**
+     * As findWeak, but also finds deleted entries. This only reads the table, so
+     * it can be called from other threads while entries are being deleted
+     *
+     * @param weak
+     * @return
+     */
+    public int findWeakIncludingDeleted(int weak) {
+        int s = slot(weak);
+        return slotHeads[s] == EMPTY ? EMPTY : s;
+    }
+
+    /**
+     * As findMatch, but also finds deleted entries. This only reads the table,
+     * so it can be called from other threads while entries are being deleted
+     */
+    public int findMatchIncludingDeleted(int weak, byte[] strong, int off) {
+        int s = findWeakIncludingDeleted(weak);
+        if (s == EMPTY) {
+            return EMPTY;
+        }
+        return findMatch(s, strong, off, true);
+    }
+
+    private int findMatch(int slot, byte[] strong, int off, boolean includeDeleted) {
+        for (int i = slotHeads[slot]; i != EMPTY; i = next[i]) {
+            if ((includeDeleted || !deleted[i]) && strongEquals(i, strong, off)) {
+                return i;
             }
         }
-        return null;
+        return EMPTY;
+    }
+
+    /**
+     *
+     * @param entry - an index returned from findMatch
+     * @return - the pair inserted with that index
+     */
+    public ChecksumPair get(int entry) {
+        return pairs[entry];
     }
 
     /**
      * Simple method used to write out the content of hash table
      */
     public void displayTable(){
-        for(int l=0;l<hashArray.size();l++){
-            for(int i = 0;i<hashArray.get(l).size();i++){
-                System.out.println(l+". list: " +((ChecksumPair) (hashArray.get(l).get(i))).toString());
+        for (int i = 0; i < count; i++) {
+            if (!deleted[i]) {
+                System.out.println(slot(weaks[i]) + ". slot: " + pairs[i].toString());
             }
         }
-    } 
+    }
+
+    private boolean strongEquals(int entry, byte[] strong, int off) {
+        int base = entry * strongLength;
+        for (int j = 0; j < strongLength; j++) {
+            if (strongs[base + j] != strong[off + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return - the slot which holds, or would hold, the given weak sum
+     */
+    private int slot(int weak) {
+        int s = (weak * 0x9E3779B9) >>> shift;
+        while (slotHeads[s] != EMPTY && slotWeaks[s] != weak) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    private void link(int entry) {
+        int s = slot(weaks[entry]);
+        if (slotHeads[s] == EMPTY) {
+            slotWeaks[s] = weaks[entry];
+            slotHeads[s] = entry;
+        } else {
+            next[slotTails[s]] = entry;
+        }
+        next[entry] = EMPTY;
+        slotTails[s] = entry;
+        if (!deleted[entry]) {
+            slotLive[s]++;
+        }
+    }
+
+    private void allocateSlots(int entries) {
+        int capacity = Integer.highestOneBit(Math.max(entries, 8) * 2 - 1) * 2;
+        slotWeaks = new int[capacity];
+        slotHeads = new int[capacity];
+        slotTails = new int[capacity];
+        slotLive = new int[capacity];
+        Arrays.fill(slotHeads, EMPTY);
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void grow() {
+        int capacity = pairs.length * 2;
+        pairs = Arrays.copyOf(pairs, capacity);
+        weaks = Arrays.copyOf(weaks, capacity);
+        next = Arrays.copyOf(next, capacity);
+        deleted = Arrays.copyOf(deleted, capacity);
+        strongs = Arrays.copyOf(strongs, capacity * strongLength);
+    }
 }
@@ -143,7 +143,7 @@ public class Configuration implements Cloneable, java.io.Serializable {
             : null);
       } catch (CloneNotSupportedException cnse) {
          try {
-            this.strongSum = MessageDigest.getInstance(
+            this.strongSum = StrongSums.getInstance(
                that.strongSum.getAlgorithm());
          } catch (NoSuchAlgorithmException nsae) {
             // Fucked up situation. We die now.
@@ -189,7 +189,7 @@ public class Configuration implements Cloneable, java.io.Serializable {
       String s = in.readUTF();
       if (!s.equals("NONE")) {
          try {
-            strongSum = MessageDigest.getInstance(s);
+            strongSum = StrongSums.getInstance(s);
          } catch (NoSuchAlgorithmException nsae) {
             throw new java.io.InvalidObjectException(nsae.getMessage());
          }
@@ -82,7 +82,6 @@ public class FileMaker {
 	private static final Logger log = LoggerFactory.getLogger(FileMaker.class);
 	private MapMatcher mapMatcher = new MapMatcher();
 	private FileUpdater fileUpdater = new FileUpdater();
-	private FileDownloader fileDownloader = new FileDownloader();
 
 	public FileMaker() {
 	}
@@ -109,13 +108,24 @@ public class FileMaker {
 		dest = File.createTempFile("zsyncM_", "_" + inputFile.getName());
 		if (complete == 0) {
 			log.info("local file has no corresponding blocks, so download whole file");
-			fileDownloader.downloadWholeFile(rangeLoader, dest);
-		} else {
-			fileUpdater.update(inputFile, mfr, rangeLoader, makeContext, dest);
 		}
+		fileUpdater.update(inputFile, mfr, rangeLoader, makeContext, dest);
 		return dest;
 	}
 
+	/**
+	 * Configures how missing ranges are loaded, eg batch sizes and parallelism
+	 * 
+	 * @return 
+	 */
+	public FileUpdater getFileUpdater() {
+		return fileUpdater;
+	}
+
+	public void setFileUpdater(FileUpdater fileUpdater) {
+		this.fileUpdater = fileUpdater;
+	}
+
 	/**
 	 * Determine what ranges need to be provided to sync the file. 
 	 * 
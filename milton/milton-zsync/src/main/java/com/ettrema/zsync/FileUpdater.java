@@ -44,20 +44,34 @@ USA
  */
 package com.ettrema.zsync;
 
+import com.ettrema.common.DaemonThreadFactory;
 import com.ettrema.httpclient.zsyncclient.RangeLoader;
 import com.bradmcevoy.http.Range;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Assembles the new file from the blocks of the local file which matched, and
+ * ranges of the remote file for those which didnt.
+ *
+ * Every block is written at its position in the new file, so the local and
+ * remote data can be written in any order. Consecutive missing blocks are
+ * requested as a single range, and the ranges are requested in batches of at
+ * most maxRanges ranges and maxBatchBytes bytes. Up to parallelism batches are
+ * loaded at a time, which matters on high latency links, and the RangeLoader
+ * streams each into the file, so memory use doesnt depend on how much is
+ * missing.
  *
  * @author brad, original work by Tomáš Hlavnička
  */
@@ -68,59 +82,52 @@ public class FileUpdater {
 	 * Maximum ranges to download in the range header
 	 */
 	private int maxRanges = 100;
+	private long maxBatchBytes = 4 * 1024 * 1024;
+	private int parallelism = 4;
+	private ExecutorService executor;
 
 	/**
 	 * Method for completing file
 	 */
 	public void update(File inputFile, MetaFileReader mfr, RangeLoader rangeLoader, MakeContext mc, File newFile) throws Exception  {
 		log.trace("fileMaker: input: " + inputFile.getAbsolutePath());
+		RandomAccessFile raf = null;
+		FileChannel rChannel = null;
 		try {
-			double a = 10;
-			int range = 0;
-			int blockLength = 0;
-			List<Range> rangeList = null;
-			byte[] data = null;
-			FileChannel wChannel = null;
-
-			newFile.createNewFile();
 			log.trace("Writing new file: " + newFile.getAbsolutePath());
-			wChannel = new FileOutputStream(newFile, true).getChannel();
+			raf = new RandomAccessFile(newFile, "rw");
+			FileChannel wChannel = raf.getChannel();
+			wChannel.truncate(0);
 
-			ByteBuffer buffer = ByteBuffer.allocate(mfr.getBlocksize());
 			log.trace("Reading from file: " + inputFile.getAbsolutePath());
-			FileChannel rChannel = new FileInputStream(inputFile).getChannel();
+			rChannel = new RandomAccessFile(inputFile, "r").getChannel();
+			int blocksize = mfr.getBlocksize();
+			long length = mfr.getLength();
+			ByteBuffer buffer = ByteBuffer.allocate(blocksize);
 			log.trace("number of map entries: " + mc.fileMap.length);
 			for (int i = 0; i < mc.fileMap.length; i++) {
-				mc.fileOffset = mc.fileMap[i];
-				if (mc.fileOffset != -1) {
-					log.trace("  read block from local file: " + mc.fileOffset);
-					rChannel.read(buffer, mc.fileOffset);
-					buffer.flip();
-					wChannel.write(buffer);
+				long offset = mc.fileMap[i];
+				if (offset != -1) {
 					buffer.clear();
-				} else {
-					log.trace("   read block from remote file");
-					if (!mc.rangeQueue) {
-						rangeList = rangeLookUp(i, mfr.getBlocksize(), mc);
-						range = rangeList.size();
-						data = rangeLoader.get(rangeList);
-						//System.out.println("got data length: " + data.length);
-					} else {
-						log.trace("     already have queued ranges: " + rangeList.size());
+					buffer.limit((int) Math.min(blocksize, length - (long) i * blocksize));
+					while (buffer.hasRemaining()) {
+						if (rChannel.read(buffer, offset + buffer.position()) < 0) {
+							throw new IOException("Local file ended before the end of block: " + i);
+						}
 					}
-					blockLength = calcBlockLength(i, mfr.getBlocksize(), (int) mfr.getLength());
-					int offset = (range - rangeList.size()) * mfr.getBlocksize();
-					//System.out.println("blockLength: " + blockLength + " data.length: " + data.length + "  offset: " + offset);
-					buffer.put(data, offset, blockLength);
 					buffer.flip();
-					wChannel.write(buffer);
-					buffer.clear();
-					rangeList.remove(0);
-					if (rangeList.isEmpty()) {
-						mc.rangeQueue = false;
+					long pos = (long) i * blocksize;
+					while (buffer.hasRemaining()) {
+						pos += wChannel.write(buffer, pos);
 					}
 				}
 			}
+
+			loadRanges(findMissingRanges(mc, blocksize, length), rangeLoader, wChannel);
+			wChannel.truncate(length);
+			raf.close();
+			raf = null;
+
 			log.info("Completed file: " + newFile.getAbsolutePath());
 			log.info("Checking checksums...");
 			SHA1 sha = new SHA1(newFile);
@@ -129,54 +136,158 @@ public class FileUpdater {
 
 			if (actual.equals(expected)) {
 				log.info("checksum matches OK");
-//				System.out.println("used " + (mfr.getLength() - (mfr.getBlocksize() * missing)) + " " + "local, fetched " + (mfr.getBlocksize() * missing));
-//				new File(mfr.getFilename()).renameTo(new File(mfr.getFilename() + ".zs-old"));
-//				newFile.renameTo(new File(mfr.getFilename()));
-//				allData += mfr.getLengthOfMetafile();
-//				System.out.println("really downloaded " + allData);
-//				double overhead = ((double) (allData - (mfr.getBlocksize() * missing)) / ((double) (mfr.getBlocksize() * missing))) * 100;
-//				System.out.println("overhead: " + df.format(overhead) + "%");
 			} else {
 				log.error("Checksums don't match - expected: " + expected + "  actual: " + actual);
 				throw new RuntimeException("Checksums don't match - expected: " + expected + "  actual: " + actual);
 			}
-		} catch (IOException ex) {
-			throw new RuntimeException("Can't read or write, check your permissions.");
+		} finally {
+			Util.close(rChannel);
+			Util.close(raf);
 		}
 	}
 
 	/**
-	 * Instead of downloading single blocks, we can look into fieMap and collect
-	 * amount of missing blocks or end of map accurs. Single ranges are stored in
-	 * ArrayList
-	 * @param i Offset in fileMap where to start looking
-	 * @return ArrayList with ranges for requesting
+	 * 
+	 * @return - the ranges of the remote file which are needed, with
+	 * consecutive missing blocks combined
 	 */
-	private List<Range> rangeLookUp(int i, int blocksize, MakeContext mc) {
+	private List<Range> findMissingRanges(MakeContext mc, int blocksize, long length) {
 		List<Range> ranges = new ArrayList<Range>();
-		for (; i < mc.fileMap.length; i++) {
-			if (mc.fileMap[i] == -1) {
-				ranges.add(new Range(i * blocksize,(i * blocksize) + blocksize));
+		int i = 0;
+		while (i < mc.fileMap.length) {
+			if (mc.fileMap[i] != -1) {
+				i++;
+				continue;
 			}
-			if (ranges.size() >= maxRanges) {
-				break;
+			int first = i;
+			while (i < mc.fileMap.length && mc.fileMap[i] == -1) {
+				i++;
+			}
+			long start = (long) first * blocksize;
+			long finish = Math.min((long) i * blocksize, length);
+			// split long runs, so they can be loaded in parallel
+			while (start < finish) {
+				long end = Math.min(finish, start + maxBatchBytes);
+				ranges.add(new Range(start, end));
+				start = end;
 			}
-		}
-		if (!ranges.isEmpty()) {
-			mc.rangeQueue = true;
 		}
 		return ranges;
 	}
 
-	private int calcBlockLength(int i, int blockSize, int length) {
-		if ((i+1) * blockSize < length) {
-			return blockSize;
-		} else {
-			return calcBlockLength_b(i, blockSize, length);
+	private void loadRanges(List<Range> ranges, RangeLoader rangeLoader, FileChannel dest) throws Exception {
+		List<List<Range>> batches = new ArrayList<List<Range>>();
+		List<Range> batch = new ArrayList<Range>();
+		long batchBytes = 0;
+		for (Range r : ranges) {
+			long len = r.getFinish() - r.getStart();
+			if (!batch.isEmpty() && (batch.size() >= maxRanges || batchBytes + len > maxBatchBytes)) {
+				batches.add(batch);
+				batch = new ArrayList<Range>();
+				batchBytes = 0;
+			}
+			batch.add(r);
+			batchBytes += len;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		log.info("loading " + ranges.size() + " ranges in " + batches.size() + " batches");
+		if (parallelism <= 1 || batches.size() <= 1) {
+			for (List<Range> b : batches) {
+				rangeLoader.get(b, dest);
+			}
+			return;
+		}
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(batches.size());
+		for (List<Range> b : batches) {
+			futures.add(getExecutor().submit(new LoadTask(rangeLoader, b, dest)));
+		}
+		try {
+			for (Future<Object> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			for (Future<Object> f : futures) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = DaemonThreadFactory.newPool(FileUpdater.class, parallelism);
+		}
+		return executor;
+	}
+
+	/**
+	 * The maximum number of ranges to request at once
+	 * 
+	 * @return 
+	 */
+	public int getMaxRanges() {
+		return maxRanges;
+	}
+
+	public void setMaxRanges(int maxRanges) {
+		this.maxRanges = maxRanges;
+	}
+
+	/**
+	 * The maximum number of bytes to request at once. Longer runs of missing
+	 * blocks are split
+	 * 
+	 * @return 
+	 */
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * The number of batches to load at the same time. If 1 they are loaded
+	 * one after another on the calling thread. The RangeLoader must allow at
+	 * least this many concurrent requests, eg see HttpRangeLoader
+	 * 
+	 * @return 
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
 		}
 	}
 
-	private int calcBlockLength_b(int i, int blockSize, int length) {
-		return blockSize + (length - (i * blockSize + blockSize));
+	private static class LoadTask implements Callable<Object> {
+
+		private final RangeLoader rangeLoader;
+		private final List<Range> ranges;
+		private final FileChannel dest;
+
+		LoadTask(RangeLoader rangeLoader, List<Range> ranges, FileChannel dest) {
+			this.rangeLoader = rangeLoader;
+			this.ranges = ranges;
+			this.dest = dest;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			rangeLoader.get(ranges, dest);
+			return null;
+		}
 	}
 }
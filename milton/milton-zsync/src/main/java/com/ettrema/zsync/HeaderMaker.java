@@ -132,6 +132,7 @@ SHA-1: 5944ec77b9b0f2d6b8212d142970117f5801430a
 		String HashLengths="Hash-Lengths: ";
 		String URL="URL: ";
 		String SHA1="SHA-1: ";
+		String HashAlgorithm="Hash-Algorithm: ";
 		
 		Blocksize+=h.blocksize;			
         MTime+=setMTime("EEE, dd MMM yyyy HH:mm:ss Z", h.mTime);
@@ -146,6 +147,10 @@ SHA-1: 5944ec77b9b0f2d6b8212d142970117f5801430a
         sb.append(Blocksize).append("\n");
         sb.append(Length).append("\n");
         sb.append(HashLengths).append("\n");
+        if (!StrongSums.isDefault(h.hashAlgorithm)) {
+            // only written when not MD4, so zsync can still read our metafiles
+            sb.append(HashAlgorithm).append(h.hashAlgorithm).append("\n");
+        }
         sb.append(URL).append("\n");
         sb.append(SHA1).append("\n\n");
         String header = sb.toString();
@@ -192,6 +197,10 @@ SHA-1: 5944ec77b9b0f2d6b8212d142970117f5801430a
         public final int[] hashLengths = new int[3];
         public String url;
         public String sha1;		
+        /**
+         * The strong checksum algorithm, null means MD4
+         */
+        public String hashAlgorithm;
 		
 		public int getSeqNum() {
 			return hashLengths[0];
@@ -56,9 +56,10 @@ package com.ettrema.zsync;
  */
 public final class JarsyncProvider extends java.security.Provider {
    public JarsyncProvider() {
-      super("JARSYNC", 1.3,"Jarsync provider; implementing MD4, BrokenMD4");
+      super("JARSYNC", 1.3,"Jarsync provider; implementing MD4, BrokenMD4, Murmur3-128");
 
       put("MessageDigest.MD4",       "com.ettrema.zsync.MD4");
       put("MessageDigest.BrokenMD4", "com.ettrema.zsync.BrokenMD4");
+      put("MessageDigest." + Murmur3.ALGORITHM, "com.ettrema.zsync.Murmur3");
    }
 }
@@ -21,67 +21,60 @@ package com.ettrema.zsync;
 
 import com.ettrema.httpclient.zsyncclient.RangeLoader;
 import com.bradmcevoy.http.Range;
-import com.bradmcevoy.http.entity.PartialEntity;
-import com.bradmcevoy.io.StreamUtils;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Loads ranges from a local copy of the "remote" file, eg for testing
  *
  * @author brad
  */
 public class LocalFileRangeLoader implements RangeLoader {
 
     private File file;
-    private long bytesDownloaded;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
 
     public LocalFileRangeLoader(File file) {
         this.file = file;
     }
 
     @Override
-    public byte[] get(List<Range> rangeList) {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        for (Range r : rangeList) {
-            writeRange(r, bout);
-        }
-        //int expectedLength = calcExpectedLength(rangeList);
-        byte[] bytes = bout.toByteArray();
-        return bytes;
-    }
-
-    private void writeRange(Range r, ByteArrayOutputStream bout) {
-        FileInputStream fin = null;
+    public void get(List<Range> rangeList, FileChannel dest) throws IOException {
+        FileChannel in = new RandomAccessFile(file, "r").getChannel();
         try {
-            fin = new FileInputStream(file);
-            BufferedInputStream bufIn = new BufferedInputStream(fin);
-            bytesDownloaded += (r.getFinish() - r.getStart());
-            PartialEntity.writeRange(bufIn, r, bout);
-            //StreamUtils.readTo(bufIn, bout, true, false, r.getStart(), r.getFinish());						
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException(ex);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-//		} catch(ReadingException e) {
-//			throw new RuntimeException(e);
-//		} catch(WritingException e) {
-//			throw new RuntimeException(e);
+            ByteBuffer buf = ByteBuffer.allocate(65536);
+            for (Range r : rangeList) {
+                long pos = r.getStart();
+                while (pos < r.getFinish()) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), r.getFinish() - pos));
+                    if (in.read(buf, pos) < 0) {
+                        throw new EOFException("File ended before the end of range: " + r.getRange());
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        pos += dest.write(buf, pos);
+                    }
+                }
+                bytesDownloaded.addAndGet(r.getFinish() - r.getStart());
+            }
         } finally {
-            StreamUtils.close(fin);
+            Util.close(in);
         }
     }
 
     public long getBytesDownloaded() {
-        return bytesDownloaded;
+        return bytesDownloaded.get();
     }
 
-    public static int calcExpectedLength(List<Range> rangeList) {
-        int l = 0;
+    public static long calcExpectedLength(List<Range> rangeList) {
+        long l = 0;
         for (Range r : rangeList) {
             l += (r.getFinish() - r.getStart());
         }
@@ -28,7 +28,6 @@ public class MakeContext {
 	final ChainingHash hashtable; 
 	final long[] fileMap; 
 	long fileOffset; 
-	boolean rangeQueue;
 
 	public MakeContext(ChainingHash hashtable, long[] fileMap) {
 		this.hashtable = hashtable;
@@ -45,235 +45,223 @@ USA
 package com.ettrema.zsync;
 
 import com.bradmcevoy.io.StreamUtils;
-import java.io.BufferedInputStream;
+import com.ettrema.common.DaemonThreadFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
-import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Finds the blocks of a remote file, described by a MetaFileReader, which
+ * are present in a local file, at any offset.
  *
- * @author brad, original work by TomÃ¡Å¡ HlavniÄ�ka
+ * A window of one block is rolled over the local file a byte at a time. At each
+ * offset the rolling (weak) checksum is looked up in the hash table and only
+ * if there is a block with that weak sum is the strong sum of the window
+ * computed and compared. Once a block is matched no lookups are done for
+ * windows overlapping it. Bytes past the end of the local file are taken to
+ * be zeroes.
+ *
+ * The loop over the file creates no objects, other then a digest on a weak
+ * hit, so it costs the same per byte however large the file.
+ *
+ * Files of at least minParallelLength are matched in parallel when
+ * parallelism is greater then 1. The file is memory mapped in segments, each
+ * overlapping the next by a block so that every window lies within one
+ * mapping. Each segment is scanned on its own thread against the hash table
+ * as it was before matching, recording the windows which match a block and
+ * skipping the rest of each matched window. The candidates are then replayed
+ * in file order on the calling thread, applying the same rules as the
+ * sequential scan: blocks already matched are removed and windows
+ * overlapping a match are skipped. Where a candidate turns out not to match,
+ * the windows its scan skipped are rescanned. So the results are exactly
+ * those of the sequential scan, whatever the number of threads.
+ *
+ * @author brad, original work by Tomáš Hlavnička
  */
 public class MapMatcher {
 	
 	private static final Logger log = LoggerFactory.getLogger(MapMatcher.class);
-	
-    private Generator gen = new Generator();	
+	private static final int BUFFER_SIZE = 1048576;
+	private static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private long minParallelLength = 16 * 1024 * 1024;
+	private ExecutorService executor;
 	
     /**
      * Reads file and map it's data into the fileMap.
      */
     public double mapMatcher(File inputFile, MetaFileReader mfr, MakeContext mc) {
-        int bufferOffset = 0;
-		InputStream is = null;
 		long fileLength = inputFile.length();
         try {
-			is = new FileInputStream(inputFile);
-			InputStream inBuf = new BufferedInputStream(is);
-            Security.addProvider(new JarsyncProvider());
-            Configuration config = new Configuration();
-            config.strongSum = MessageDigest.getInstance("MD4");
-            config.weakSum = new Rsum();
-            config.blockLength = mfr.getBlocksize();
-            config.strongSumLength = mfr.getChecksumBytes();
-            int weakSum;
-            byte[] strongSum;
-            byte[] backBuffer = new byte[mfr.getBlocksize()];
-            byte[] blockBuffer = new byte[mfr.getBlocksize()];
-            byte[] fileBuffer;
-            int mebiByte = 1048576;
-            if (mfr.getLength() < mebiByte && mfr.getBlocksize() < mfr.getLength()) {
-                fileBuffer = new byte[(int) mfr.getLength()];
-            } else if (mfr.getBlocksize() > mfr.getLength() || mfr.getBlocksize() > mebiByte) {
-                fileBuffer = new byte[mfr.getBlocksize()];
+            if (parallelism > 1 && fileLength >= minParallelLength && fileLength > mfr.getBlocksize()) {
+                matchParallel(inputFile, fileLength, mfr, mc);
             } else {
-                fileBuffer = new byte[mebiByte];
-            }
-            int n; // number of bytes read from input stream
-            byte newByte;
-            boolean firstBlock = true;
-            int len = fileBuffer.length;
-            boolean end = false;
-            int blocksize = mfr.getBlocksize();
-            
-            //
-            long lastMatch = 0;
-            //
-            
-            while (mc.fileOffset != fileLength) {
-				//System.out.println("Outer loop: " + mc.fileOffset);
-                n = inBuf.read(fileBuffer, 0, len);
-                if (firstBlock) {
-                    weakSum = gen.generateWeakSum(fileBuffer, 0, config);
-                    bufferOffset = mfr.getBlocksize();
-                    int weak = updateWeakSum(weakSum, mfr);
-                    if (hashLookUp(weak, null, blocksize, mc)) {
-                        strongSum = gen.generateStrongSum(fileBuffer, 0, blocksize, config);
-                        boolean match = hashLookUp(updateWeakSum(weakSum, mfr), strongSum, blocksize, mc);
-                        if ( match ) {
-							lastMatch = mc.fileOffset;
-							//System.out.println("Last match: " + lastMatch);
-						}
-                    }
-                    mc.fileOffset++;
-                    firstBlock = false;
-                }
-
-                for (; bufferOffset < fileBuffer.length; bufferOffset++) {
-                    newByte = fileBuffer[bufferOffset];
-                    if (mc.fileOffset + mfr.getBlocksize() > fileLength) {
-                        newByte = 0;
-                    }
-                    weakSum = gen.generateRollSum(newByte, config);
-                	//System.out.println("Innner Loop: bufferOffset: " + bufferOffset + " - fileBuffer.length: " + fileBuffer.length + " weakSum: " + weakSum + " mc.fileOffset: " + mc.fileOffset + " - lastMatch: " + lastMatch);
-					boolean found = false;
-					if( mc.fileOffset >= lastMatch + blocksize ) {
-						int wSum =  updateWeakSum(weakSum, mfr);
-						if( hashLookUp(wSum, null, blocksize, mc) ) {
-							found = true;
-						} else {
-							//System.out.println("Not found, weaksum: " + wSum);
-						}
-					} else {
-						//System.out.println("Not looking for match because fileOffset not far enough: " + mc.fileOffset + " lastMatch: " + lastMatch + " blockSize: " + blocksize);
-					}
-                    if ( found ) {
-                        if (mc.fileOffset + mfr.getBlocksize() > fileLength) {
-                            if (n > 0) {
-                                Arrays.fill(fileBuffer, n, fileBuffer.length, (byte) 0);
-                            } else {
-                                int offset = fileBuffer.length - mfr.getBlocksize() + bufferOffset + 1;
-                                System.arraycopy(fileBuffer, offset, blockBuffer, 0, fileBuffer.length - offset);
-                                Arrays.fill(blockBuffer, fileBuffer.length - offset, blockBuffer.length, (byte) 0);
-                            }
-                        }
-                        if ((bufferOffset - mfr.getBlocksize() + 1) < 0) {
-                            if (n > 0) {
-                                System.arraycopy(backBuffer, backBuffer.length + bufferOffset - mfr.getBlocksize() + 1, blockBuffer, 0, mfr.getBlocksize() - bufferOffset - 1);
-                                System.arraycopy(fileBuffer, 0, blockBuffer, mfr.getBlocksize() - bufferOffset - 1, bufferOffset + 1);
-                            }
-                            strongSum = gen.generateStrongSum(blockBuffer, 0, blocksize, config);
-							//System.out.println("Look for match: " + new String(blockBuffer));
-                            boolean match = hashLookUp(updateWeakSum(weakSum, mfr), strongSum, blocksize, mc);
-                            if ( match ) lastMatch = mc.fileOffset;
-                        } else {
-                            strongSum = gen.generateStrongSum(fileBuffer, bufferOffset - blocksize + 1, blocksize, config);
-                            boolean match = hashLookUp(updateWeakSum(weakSum, mfr), strongSum, blocksize, mc);
-                            if ( match ) lastMatch = mc.fileOffset;
-                        }
-                    }
-                    
-                    mc.fileOffset++;
-                    if (mc.fileOffset == fileLength) {
-                        end = true;
-                        break;
-                    }
-                }
-                System.arraycopy(fileBuffer, fileBuffer.length - mfr.getBlocksize(), backBuffer, 0, mfr.getBlocksize());
-                bufferOffset = 0;
-                if (end) {
-                    break;
-                }
+                matchSequential(inputFile, fileLength, mfr, mc);
             }
+            mc.fileOffset = fileLength;
 
             double complete = matchControl(mfr, mc);
             mc.removematch( mc.blockcount() - 1 );
-            is.close();
             return complete;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException(ex);
+        }
+    }
+
+    private void matchSequential(File inputFile, long fileLength, MetaFileReader mfr, MakeContext mc) throws IOException, NoSuchAlgorithmException {
+		InputStream is = new FileInputStream(inputFile);
+        try {
+            Configuration config = newConfig(mfr);
+            int blocksize = mfr.getBlocksize();
+            Matcher m = new Matcher(config, mfr.getRsumBytes(), mc);
+            Window w = new Window(is, fileLength, Math.max(BUFFER_SIZE, blocksize * 2));
+
+            if (fileLength > 0) {
+                w.ensure(blocksize);
+                config.weakSum.first(w.buf, w.start, blocksize);
+                long lastMatch = 0;
+                m.lookUp(w.buf, w.start, 0);
+                for (long offset = 1; offset < fileLength; offset++) {
+                    w.ensure(blocksize + 1);
+                    config.weakSum.roll(w.buf[w.start + blocksize]);
+                    w.start++;
+                    if (offset >= lastMatch + blocksize && m.lookUp(w.buf, w.start, offset)) {
+                        lastMatch = offset;
+                    }
+                }
+            }
         } finally {
 			StreamUtils.close(is);
 		}
     }
-	
+
+    private void matchParallel(File inputFile, long fileLength, MetaFileReader mfr, MakeContext mc) throws IOException, NoSuchAlgorithmException {
+        long tm = System.currentTimeMillis();
+        int blocksize = mfr.getBlocksize();
+        long segmentSize = Math.max(blocksize, Math.min(MAX_SEGMENT_SIZE, fileLength / (parallelism * 4L) + 1));
+        Configuration config = newConfig(mfr);
+        RandomAccessFile raf = new RandomAccessFile(inputFile, "r");
+        List<Future<Segment>> futures = new ArrayList<Future<Segment>>();
+        try {
+            FileChannel channel = raf.getChannel();
+            for (long start = 0; start < fileLength; start += segmentSize) {
+                long end = Math.min(fileLength, start + segmentSize);
+                long mapEnd = Math.min(fileLength, end + blocksize - 1);
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, mapEnd - start);
+                futures.add(getExecutor().submit(new Segment(data, start, end, (Configuration) config.clone(), mfr.getRsumBytes(), mc.hashtable)));
+            }
+            Merger merger = new Merger(config, mfr.getRsumBytes(), mc);
+            for (Future<Segment> f : futures) {
+                Segment seg;
+                try {
+                    seg = f.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted matching: " + inputFile.getAbsolutePath());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+                merger.merge(seg);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("matchParallel: matched " + futures.size() + " segments in " + (System.currentTimeMillis() - tm) + "ms");
+            }
+        } finally {
+            for (Future<Segment> f : futures) {
+                f.cancel(false);
+            }
+            raf.close();
+        }
+    }
+
+    private Configuration newConfig(MetaFileReader mfr) throws NoSuchAlgorithmException {
+        Configuration config = new Configuration();
+        config.strongSum = StrongSums.getInstance(mfr.getHashAlgorithm());
+        config.weakSum = new Rsum();
+        config.blockLength = mfr.getBlocksize();
+        config.strongSumLength = mfr.getChecksumBytes();
+        return config;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = DaemonThreadFactory.newPool(MapMatcher.class, parallelism);
+        }
+        return executor;
+    }
+
+    /**
+     * The number of threads to match large files with. Defaults to the number
+     * of processors. If 1 files are always matched sequentially
+     *
+     * @return
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public synchronized void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Files smaller then this are matched sequentially. Default is 16MB
+     *
+     * @return
+     */
+    public long getMinParallelLength() {
+        return minParallelLength;
+    }
+
+    public void setMinParallelLength(long minParallelLength) {
+        this.minParallelLength = minParallelLength;
+    }
 
     /**
-     * Shorten the calculated weakSum according to variable length of weaksum
+     * Shorten the calculated weakSum according to variable length of weaksum,
+     * in the same layout as MetaFileReader reads them from the metafile
      * @param weak Generated full weakSum
      * @return Shortened weakSum
      */
-    private int updateWeakSum(int weak, MetaFileReader mfr) {
-        byte[] rsum;
-        switch (mfr.getRsumBytes()) {
+    private static int updateWeakSum(int weak, int rsumBytes) {
+        switch (rsumBytes) {
             case 2:
-                rsum = new byte[]{(byte) 0,
-                    (byte) 0,
-                    (byte) (weak >> 24), //1
-                    (byte) ((weak << 8) >> 24) //2
-                };
-                break;
+                return (weak >>> 16) & 0xFFFF;
             case 3:
-                rsum = new byte[]{(byte) ((weak << 8) >> 24), //2
-                    (byte) 0, //3
-                    (byte) ((weak << 24) >> 24), //0
-                    (byte) (weak >> 24) //1
-                };
-                break;
+                return (weak & 0x00FF0000) << 8 | (weak & 0xFF) << 8 | (weak >>> 24);
             case 4:
-                rsum = new byte[]{(byte) (weak >> 24), //1
-                    (byte) ((weak << 8) >> 24), //2
-                    (byte) ((weak << 16) >> 24), //3
-                    (byte) ((weak << 24) >> 24) //0
-                };
-                break;
+                return weak;
             default:
-                rsum = new byte[4];
+                return 0;
         }
-        int weakSum = 0;
-        weakSum += (rsum[0] & 0x000000FF) << 24;
-        weakSum += (rsum[1] & 0x000000FF) << 16;
-        weakSum += (rsum[2] & 0x000000FF) << 8;
-        weakSum += (rsum[3] & 0x000000FF);
-        return weakSum;
-    }	
-	
+    }
 
-    /**
-     * Looks into hash table and check if got a hit
-	 * 
-     * @param weakSum Weak rolling checksum
-     * @param strongSum Strong MD4 checksum
-     * @return True if we got a hit
-     */
-    private boolean hashLookUp(int weakSum, byte[] strongSum, int blocksize, MakeContext mc) {
-		//System.out.println("hashLookup: " + weakSum);
-        ChecksumPair p;
-        if (strongSum == null) {
-            p = new ChecksumPair(weakSum);
-            ChecksumPair link = mc.hashtable.find(p);
-            if (link != null) {
-				//System.out.println(" found weak match link: " + link);
-                return true;
-            }
-        } else {
-            p = new ChecksumPair(weakSum, strongSum);
-            ChecksumPair link = mc.hashtable.findMatch(p);
-            int seq;
-            if (link != null) {
-                seq = link.getSequence();
-				//System.out.println(" found matching block, block index: " + seq + " fileoffset: " + mc.fileOffset + " block size: " + blocksize);
-                //mc.fileMap[seq] = mc.fileOffset;
-                mc.put(seq, mc.fileOffset);
-                //mc.hashtable.delete(new ChecksumPair(weakSum, strongSum, blocksize * seq, blocksize, seq));
-                mc.delete(new ChecksumPair(weakSum, strongSum, blocksize * seq, blocksize, seq));
-                return true;
-            }
-        }
-		//System.out.println("No matching block: " + strongSum);
-        return false;
-    }	
-	
-	
     /**
      * Clears non-matching blocks and returns percentage
      * value of how complete is our file
@@ -306,5 +294,265 @@ public class MapMatcher {
         log.trace("matchControl: fileMap.length: " + blockCount + " - missing: " + missing);
         return ((((double) blockCount - missing) / (double) blockCount) * 100);
     }
-	
+
+    /**
+     * Looks up windows in the hash table, recording matches in the MakeContext
+     */
+    private static class Matcher {
+
+        private final Configuration config;
+        private final int rsumBytes;
+        private final MakeContext mc;
+        private final ChainingHash hashtable;
+
+        Matcher(Configuration config, int rsumBytes, MakeContext mc) {
+            this.config = config;
+            this.rsumBytes = rsumBytes;
+            this.mc = mc;
+            this.hashtable = mc.hashtable;
+        }
+
+        /**
+         * Check the window at the given offset, using the current value of the
+         * rolling checksum
+         *
+         * @param buf - holds the window
+         * @param off - the position of the window in buf
+         * @param fileOffset - the position of the window in the file
+         * @return True if we got a hit
+         */
+        boolean lookUp(byte[] buf, int off, long fileOffset) {
+            int weak = updateWeakSum(config.weakSum.getValue(), rsumBytes);
+            if (hashtable.findWeak(weak) < 0) {
+                return false;
+            }
+            // only reached on a weak hit, so the digest array doesnt matter
+            config.strongSum.update(buf, off, config.blockLength);
+            return match(weak, fileOffset);
+        }
+
+        /**
+         * As above, for a window in a mapped segment, which is copied to
+         * the window array on a weak hit
+         */
+        boolean lookUp(ByteBuffer data, int pos, byte[] window, long fileOffset) {
+            int weak = updateWeakSum(config.weakSum.getValue(), rsumBytes);
+            if (hashtable.findWeak(weak) < 0) {
+                return false;
+            }
+            copyWindow(data, pos, window);
+            config.strongSum.update(window, 0, config.blockLength);
+            return match(weak, fileOffset);
+        }
+
+        private boolean match(int weak, long fileOffset) {
+            int entry = hashtable.findMatch(weak, config.strongSum.digest(), 0);
+            if (entry < 0) {
+                return false;
+            }
+            ChecksumPair p = hashtable.get(entry);
+            mc.put(p.getSequence(), fileOffset);
+            mc.delete(p);
+            return true;
+        }
+    }
+
+    /**
+     * Copy the window at pos in data into dest, with zeroes past the end
+     * of data
+     */
+    private static void copyWindow(ByteBuffer data, int pos, byte[] dest) {
+        int n = Math.max(0, Math.min(dest.length, data.limit() - pos));
+        if (n > 0) {
+            ByteBuffer dup = data.duplicate();
+            dup.position(pos);
+            dup.get(dest, 0, n);
+        }
+        Arrays.fill(dest, n, dest.length, (byte) 0);
+    }
+
+    private static byte byteAt(ByteBuffer data, int pos) {
+        return pos < data.limit() ? data.get(pos) : 0;
+    }
+
+    /**
+     * Scans one segment of the file, recording the windows which match a
+     * block in the hash table as it was before matching started, ie including
+     * blocks deleted since by the Merger. The rest of each matched window is
+     * not scanned.
+     */
+    private static class Segment implements Callable<Segment> {
+
+        private final ByteBuffer data;
+        private final long start;
+        private final long end;
+        private final Configuration config;
+        private final int rsumBytes;
+        private final ChainingHash hashtable;
+        private long[] offsets = new long[16];
+        private int[] entries = new int[16];
+        private int count;
+
+        Segment(ByteBuffer data, long start, long end, Configuration config, int rsumBytes, ChainingHash hashtable) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            this.config = config;
+            this.rsumBytes = rsumBytes;
+            this.hashtable = hashtable;
+        }
+
+        @Override
+        public Segment call() {
+            int blocksize = config.blockLength;
+            byte[] window = new byte[blocksize];
+            copyWindow(data, 0, window);
+            config.weakSum.first(window, 0, blocksize);
+            long skipUntil = start;
+            for (long offset = start; offset < end; offset++) {
+                int pos = (int) (offset - start);
+                if (offset > start) {
+                    config.weakSum.roll(byteAt(data, pos + blocksize - 1));
+                }
+                // windows 1 to blocksize-1 are never looked up, see matchSequential
+                if (offset < skipUntil || (offset > 0 && offset < blocksize)) {
+                    continue;
+                }
+                int weak = updateWeakSum(config.weakSum.getValue(), rsumBytes);
+                if (hashtable.findWeakIncludingDeleted(weak) < 0) {
+                    continue;
+                }
+                copyWindow(data, pos, window);
+                config.strongSum.update(window, 0, blocksize);
+                int entry = hashtable.findMatchIncludingDeleted(weak, config.strongSum.digest(), 0);
+                if (entry >= 0) {
+                    add(offset, entry);
+                    skipUntil = offset + blocksize;
+                }
+            }
+            return this;
+        }
+
+        private void add(long offset, int entry) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            offsets[count] = offset;
+            entries[count] = entry;
+            count++;
+        }
+    }
+
+    /**
+     * Replays the candidates from each segment, in order, against the live
+     * hash table and MakeContext
+     */
+    private static class Merger {
+
+        private final Configuration config;
+        private final MakeContext mc;
+        private final ChainingHash hashtable;
+        private final Matcher matcher;
+        private final int blocksize;
+        private final byte[] window;
+        private long lastMatch;
+
+        Merger(Configuration config, int rsumBytes, MakeContext mc) {
+            this.config = config;
+            this.mc = mc;
+            this.hashtable = mc.hashtable;
+            this.matcher = new Matcher(config, rsumBytes, mc);
+            this.blocksize = config.blockLength;
+            this.window = new byte[blocksize];
+        }
+
+        void merge(Segment seg) {
+            for (int i = 0; i < seg.count; i++) {
+                long offset = seg.offsets[i];
+                boolean matched = false;
+                if (offset == 0 || offset >= lastMatch + blocksize) {
+                    ChecksumPair candidate = hashtable.get(seg.entries[i]);
+                    int entry = hashtable.findMatch(candidate.getWeak(), candidate.getStrong(), 0);
+                    if (entry >= 0) {
+                        ChecksumPair p = hashtable.get(entry);
+                        mc.put(p.getSequence(), offset);
+                        mc.delete(p);
+                        lastMatch = offset;
+                        matched = true;
+                    }
+                }
+                if (!matched) {
+                    rescan(seg, offset + 1, Math.min(offset + blocksize, seg.end));
+                }
+            }
+        }
+
+        /**
+         * Look up the windows from 'from' to 'to' (exclusive) which the segment
+         * skipped, and which the sequential scan would look up
+         */
+        private void rescan(Segment seg, long from, long to) {
+            from = Math.max(from, lastMatch + blocksize);
+            if (from >= to) {
+                return;
+            }
+            int pos = (int) (from - seg.start);
+            copyWindow(seg.data, pos, window);
+            config.weakSum.first(window, 0, blocksize);
+            for (long offset = from; offset < to; offset++, pos++) {
+                if (offset > from) {
+                    config.weakSum.roll(byteAt(seg.data, pos + blocksize - 1));
+                }
+                if (matcher.lookUp(seg.data, pos, window, offset)) {
+                    lastMatch = offset;
+                    return; // the rest of the range overlaps the match
+                }
+            }
+        }
+    }
+
+    /**
+     * A buffer over the file, which supplies zeroes past the end of it
+     */
+    private static class Window {
+
+        private final InputStream in;
+        private final byte[] buf;
+        private long unread;
+        private int start;
+        private int limit;
+
+        Window(InputStream in, long length, int bufferSize) {
+            this.in = in;
+            this.unread = length;
+            this.buf = new byte[bufferSize];
+        }
+
+        /**
+         * Make sure at least n bytes are available from start
+         */
+        void ensure(int n) throws IOException {
+            if (start + n <= limit) {
+                return;
+            }
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            start = 0;
+            while (limit < buf.length) {
+                if (unread > 0) {
+                    int read = in.read(buf, limit, (int) Math.min(buf.length - limit, unread));
+                    if (read < 0) {
+                        unread = 0;
+                    } else {
+                        unread -= read;
+                        limit += read;
+                    }
+                } else {
+                    Arrays.fill(buf, limit, buf.length, (byte) 0);
+                    limit = buf.length;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,629 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import com.bradmcevoy.common.Path;
+import com.bradmcevoy.http.CollectionResource;
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.HttpManager;
+import com.bradmcevoy.http.Request;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.VersionedResource;
+import com.bradmcevoy.http.http11.DefaultETagGenerator;
+import com.bradmcevoy.http.http11.ETagGenerator;
+import com.bradmcevoy.io.BufferingOutputStream;
+import com.bradmcevoy.io.FileReplacer;
+import com.bradmcevoy.io.StreamUtils;
+import com.ettrema.common.DaemonThreadFactory;
+import com.ettrema.event.Event;
+import com.ettrema.event.EventListener;
+import com.ettrema.event.EventManager;
+import com.ettrema.event.PutEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the zsync metadata (headers and block checksums) generated for
+ * resources which dont implement ZSyncResource, so that each version of a
+ * resource is only read and hashed once no matter how many clients sync it.
+ *
+ * Entries are keyed on the path, the version of the resource, the blocksize
+ * and the strong checksum algorithm. The version is the ETag, if the resource is a VersionedResource
+ * or has a modified date, otherwise the modified date and length. Resources
+ * with no content length or no way of telling versions apart are not cached.
+ *
+ * Metadata is held in memory, up to maxMemoryBytes, and if a directory is
+ * given also on disk, up to maxDiskBytes. The least recently used entries are
+ * evicted first from each. When a new version of a path is cached the
+ * previous version is discarded, for each algorithm.
+ *
+ * Concurrent requests for metadata which is not yet cached wait for a single
+ * generation rather then each hashing the resource.
+ *
+ * If registered with an EventManager the metadata for new and replaced
+ * resources is generated in the background after each PUT, so the first
+ * client doesnt wait for it. This is done with MD4, and with any other
+ * algorithm which the previous version was cached with. This reads the resource on another thread, so only
+ * register if your resources can be read from any thread.
+ *
+ * @author brad
+ */
+public class MetaDataCache implements EventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MetaDataCache.class);
+    private static final String FILE_SUFFIX = ".zsync";
+    private volatile MetaFileMaker metaFileMaker;
+    private final File dir;
+    private final Map<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    /**
+     * The key of the latest version cached for each path, by algorithm
+     */
+    private final Map<String, Map<String, String>> latest = new HashMap<String, Map<String, String>>();
+    private final ConcurrentMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    private long memoryBytes;
+    private long diskBytes = -1;
+    private long maxMemoryBytes = 32 * 1024 * 1024;
+    private long maxDiskBytes = 1024 * 1024 * 1024;
+    private int maxBufferSize = 100000;
+    private ETagGenerator eTagGenerator = new DefaultETagGenerator();
+    private String suffix = ".zsync";
+    private int precomputeThreads = 1;
+    private ExecutorService executor;
+    private volatile long generatedCount;
+
+    /**
+     * Create a cache which only holds metadata in memory
+     *
+     * @param metaFileMaker
+     */
+    public MetaDataCache(MetaFileMaker metaFileMaker) {
+        this(metaFileMaker, null);
+    }
+
+    /**
+     *
+     * @param metaFileMaker
+     * @param dir - directory to persist metadata in, or null to only cache in
+     * memory
+     */
+    public MetaDataCache(MetaFileMaker metaFileMaker, File dir) {
+        this.metaFileMaker = metaFileMaker;
+        this.dir = dir;
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new RuntimeException("Couldnt create zsync metadata cache directory: " + dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Register for PutEvent's, to generate metadata in the background for
+     * new and replaced resources
+     *
+     * @param eventManager
+     */
+    public void register(EventManager eventManager) {
+        eventManager.registerEventListener(this, PutEvent.class);
+    }
+
+    /**
+     * Get the serialized metadata for the given resource, with MD4 strong
+     * checksums
+     */
+    public byte[] getMetaData(String path, GetableResource r) throws IOException {
+        return getMetaData(path, r, StrongSums.DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * Get the serialized metadata for the given resource, generating and
+     * caching it if it is not already cached
+     *
+     * @param path - the path of the resource, which is also used as the url in
+     * the metadata headers
+     * @param r
+     * @param hashAlgorithm - the strong checksum algorithm, null for MD4
+     * @return - the metadata, or null if the resource cant be cached, in which
+     * case the caller should generate it
+     */
+    public byte[] getMetaData(final String path, final GetableResource r, String hashAlgorithm) throws IOException {
+        final String algorithm = StrongSums.isDefault(hashAlgorithm) ? StrongSums.DEFAULT_ALGORITHM : hashAlgorithm;
+        final String key = getKey(path, r, algorithm);
+        if (key == null) {
+            log.trace("getMetaData: resource is not cacheable: " + path);
+            return null;
+        }
+        byte[] data = get(key);
+        if (data != null) {
+            return data;
+        }
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws Exception {
+                // might have been cached between the check above and this task being registered
+                byte[] data = get(key);
+                if (data == null) {
+                    data = generate(path, r, algorithm);
+                    put(path, algorithm, key, data);
+                }
+                return data;
+            }
+        });
+        FutureTask<byte[]> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            log.trace("getMetaData: waiting for metadata being generated by another thread");
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for zsync metadata: " + path);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return - the cache key for the current version of the resource, with
+     * MD4 strong checksums
+     */
+    public String getKey(String path, GetableResource r) {
+        return getKey(path, r, StrongSums.DEFAULT_ALGORITHM);
+    }
+
+    /**
+     *
+     * @param path
+     * @param r
+     * @param hashAlgorithm - the strong checksum algorithm, null for MD4
+     * @return - the cache key for the current version of the resource, or null
+     * if it cant be cached
+     */
+    public String getKey(String path, GetableResource r, String hashAlgorithm) {
+        Long length = r.getContentLength();
+        if (length == null) {
+            return null;
+        }
+        String version = null;
+        boolean versioned = r instanceof VersionedResource && ((VersionedResource) r).getVersionToken() != null;
+        if (versioned || r.getModifiedDate() != null) {
+            version = eTagGenerator.generateEtag(r);
+        }
+        if (version == null) {
+            if (r.getModifiedDate() == null) {
+                return null;
+            }
+            version = Long.toString(r.getModifiedDate().getTime());
+        }
+        String algorithm = StrongSums.isDefault(hashAlgorithm) ? StrongSums.DEFAULT_ALGORITHM : hashAlgorithm;
+        return path + "\n" + version + "\n" + length + "\n" + metaFileMaker.computeBlockSize(length) + "\n" + algorithm;
+    }
+
+    /**
+     *
+     * @param key
+     * @return - the cached metadata, or null if not cached
+     */
+    public byte[] get(String key) {
+        synchronized (this) {
+            byte[] data = memory.get(key);
+            if (data != null) {
+                return data;
+            }
+        }
+        if (dir == null) {
+            return null;
+        }
+        File f = toFile(key);
+        if (!f.exists()) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = read(f);
+        } catch (IOException ex) {
+            log.warn("Couldnt read cached zsync metadata, will regenerate: " + f.getAbsolutePath(), ex);
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            putInMemory(key, data);
+        }
+        log.trace("get: loaded metadata from disk");
+        return data;
+    }
+
+    /**
+     * Discard everything cached for the given path
+     *
+     * @param path
+     */
+    public void remove(String path) {
+        Map<String, String> keys;
+        synchronized (this) {
+            keys = latest.remove(path);
+        }
+        if (keys != null) {
+            for (String key : keys.values()) {
+                discard(key);
+            }
+        }
+    }
+
+    private void put(String path, String algorithm, String key, byte[] data) {
+        String previous;
+        synchronized (this) {
+            putInMemory(key, data);
+            Map<String, String> keys = latest.get(path);
+            if (keys == null) {
+                keys = new HashMap<String, String>();
+                latest.put(path, keys);
+            }
+            previous = keys.put(algorithm, key);
+        }
+        if (previous != null && !previous.equals(key)) {
+            discard(previous);
+        }
+        if (dir != null) {
+            try {
+                write(key, data);
+            } catch (IOException ex) {
+                log.warn("Couldnt persist zsync metadata", ex);
+            }
+        }
+    }
+
+    private void discard(String key) {
+        synchronized (this) {
+            byte[] data = memory.remove(key);
+            if (data != null) {
+                memoryBytes -= data.length;
+            }
+        }
+        if (dir != null) {
+            File f = toFile(key);
+            long length = f.length();
+            if (f.delete()) {
+                synchronized (this) {
+                    if (diskBytes >= 0) {
+                        diskBytes -= length;
+                    }
+                }
+            }
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        if (data.length > maxMemoryBytes) {
+            return;
+        }
+        byte[] old = memory.put(key, data);
+        if (old != null) {
+            memoryBytes -= old.length;
+        }
+        memoryBytes += data.length;
+        Iterator<byte[]> it = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            memoryBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private void write(String key, byte[] data) throws IOException {
+        File f = toFile(key);
+        File tmp = new File(dir, f.getName() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            fout.write(data);
+        } finally {
+            StreamUtils.close(fout);
+        }
+        long previous = f.length();
+        try {
+            FileReplacer.replace(tmp, f);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        boolean evict;
+        synchronized (this) {
+            if (diskBytes < 0) {
+                diskBytes = sizeOfDir();
+            } else {
+                diskBytes += data.length - previous;
+            }
+            evict = diskBytes > maxDiskBytes;
+        }
+        if (evict) {
+            evictFromDisk();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache is back under
+     * maxDiskBytes
+     */
+    private synchronized void evictFromDisk() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (diskBytes <= maxDiskBytes) {
+                break;
+            }
+            if (f.getName().endsWith(FILE_SUFFIX)) {
+                long length = f.length();
+                if (f.delete()) {
+                    diskBytes -= length;
+                }
+            }
+        }
+        log.debug("evicted zsync metadata from disk, size is now: " + diskBytes);
+    }
+
+    private long sizeOfDir() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(FILE_SUFFIX)) {
+                    total += f.length();
+                }
+            }
+        }
+        return total;
+    }
+
+    private File toFile(String key) {
+        return new File(dir, DigestUtils.shaHex(key) + FILE_SUFFIX);
+    }
+
+    private byte[] read(File f) throws IOException {
+        FileInputStream fin = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream((int) f.length());
+            StreamUtils.readTo(fin, bout);
+            return bout.toByteArray();
+        } finally {
+            StreamUtils.close(fin);
+        }
+    }
+
+    private byte[] generate(String path, GetableResource r, String algorithm) throws IOException {
+        MetaFileMaker maker = metaFileMaker;
+        long tm = System.currentTimeMillis();
+        BufferingOutputStream bufOut = new BufferingOutputStream(maxBufferSize);
+        try {
+            r.sendContent(bufOut, null, null, null);
+            bufOut.flush();
+        } catch (IOException ex) {
+            bufOut.deleteTempFileIfExists();
+            throw ex;
+        } catch (Exception ex) {
+            bufOut.deleteTempFileIfExists();
+            throw new RuntimeException(ex);
+        } finally {
+            StreamUtils.close(bufOut);
+        }
+        long length = bufOut.getSize();
+        MetaFileMaker.MetaData metaData;
+        InputStream in = bufOut.getInputStream();
+        try {
+            metaData = maker.make(path, maker.computeBlockSize(length), length, r.getModifiedDate(), in, algorithm);
+        } finally {
+            StreamUtils.close(in);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        maker.write(metaData, out);
+        generatedCount++;
+        if (log.isDebugEnabled()) {
+            log.debug("generated zsync metadata for: " + path + " in " + (System.currentTimeMillis() - tm) + "ms");
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void onEvent(Event e) {
+        if (!(e instanceof PutEvent)) {
+            return;
+        }
+        Resource res = ((PutEvent) e).getResource();
+        if (res instanceof AdapterResource) {
+            res = ((AdapterResource) res).getResource();
+        }
+        if (!(res instanceof GetableResource) || res instanceof CollectionResource || res instanceof ZSyncResource) {
+            return;
+        }
+        Request request = HttpManager.request();
+        if (request == null) {
+            return;
+        }
+        Path p = Path.path(HttpManager.decodeUrl(request.getAbsolutePath()));
+        if (suffix.equals(p.getName())) {
+            // a zsync upload to /somefile/.zsync replaces /somefile
+            p = p.getParent();
+        }
+        final String path = p.toString();
+        final GetableResource r = (GetableResource) res;
+        final Set<String> algorithms = new HashSet<String>();
+        algorithms.add(StrongSums.DEFAULT_ALGORITHM);
+        synchronized (this) {
+            Map<String, String> keys = latest.get(path);
+            if (keys != null) {
+                algorithms.addAll(keys.keySet());
+            }
+        }
+        getExecutor().submit(new Runnable() {
+
+            @Override
+            public void run() {
+                for (String algorithm : algorithms) {
+                    try {
+                        getMetaData(path, r, algorithm);
+                    } catch (Throwable ex) {
+                        log.warn("Couldnt precompute zsync metadata for: " + path, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = DaemonThreadFactory.newPool(MetaDataCache.class, precomputeThreads);
+        }
+        return executor;
+    }
+
+    /**
+     *
+     * @return - the number of times metadata has been generated, ie the
+     * number of cache misses
+     */
+    public long getGeneratedCount() {
+        return generatedCount;
+    }
+
+    /**
+     * Generates the metadata. ZSyncResourceFactory sets its own maker on the
+     * cache, so the two are configured in one place
+     *
+     * @return
+     */
+    public MetaFileMaker getMetaFileMaker() {
+        return metaFileMaker;
+    }
+
+    public void setMetaFileMaker(MetaFileMaker metaFileMaker) {
+        this.metaFileMaker = metaFileMaker;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Content larger then this is buffered to a temp file, rather then memory,
+     * while it is hashed
+     *
+     * @return
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public void setMaxBufferSize(int maxBufferSize) {
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    public ETagGenerator getETagGenerator() {
+        return eTagGenerator;
+    }
+
+    public void setETagGenerator(ETagGenerator eTagGenerator) {
+        this.eTagGenerator = eTagGenerator;
+    }
+
+    /**
+     * Must match the suffix of the ZSyncResourceFactory, so that zsync uploads
+     * are precomputed for the real path
+     *
+     * @return
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public int getPrecomputeThreads() {
+        return precomputeThreads;
+    }
+
+    public synchronized void setPrecomputeThreads(int precomputeThreads) {
+        this.precomputeThreads = precomputeThreads;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
@@ -55,7 +55,6 @@ import java.io.InputStream;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.Security;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -71,34 +70,66 @@ import java.io.OutputStreamWriter;
  */
 public class MetaFileMaker {
 
-	{
-		Security.addProvider(new JarsyncProvider());
-	}
 	/** Default length of strong checksum (MD4) */
 	private final int STRONG_SUM_LENGTH = 16;
 	private HeaderMaker headerMaker = new HeaderMaker();
 	private Generator gen = new Generator();
+	private ParallelGenerator parallelGen;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private String hashAlgorithm = StrongSums.DEFAULT_ALGORITHM;
 
 	public MetaFileMaker() {
 	}
 
 	public MetaData make(String url, int blocksize, long fileLength, Date lastMod, InputStream fileData) {
+		return make(url, blocksize, fileLength, lastMod, fileData, null, hashAlgorithm);
+	}
+
+	/**
+	 * Make metadata with the given strong checksum algorithm, rather then the
+	 * hashAlgorithm property, eg the one a client asked for
+	 *
+	 * @param hashAlgorithm - the strong checksum algorithm, or null for MD4
+	 */
+	public MetaData make(String url, int blocksize, long fileLength, Date lastMod, InputStream fileData, String hashAlgorithm) {
+		return make(url, blocksize, fileLength, lastMod, fileData, null, hashAlgorithm);
+	}
+
+	/**
+	 *
+	 * @param fileData - the data to checksum, unless file is given
+	 * @param file - if not null the data is read from this file, memory mapped,
+	 * when checksumming in parallel
+	 */
+	private MetaData make(String url, int blocksize, long fileLength, Date lastMod, InputStream fileData, File file, String hashAlgorithm) {
 
 		int[] hashLengths = analyzeFile(blocksize, fileLength);
 
 		HeaderMaker.Headers headers = headerMaker.getFullHeader(lastMod, fileLength, url, blocksize, hashLengths, null);
+		if (!StrongSums.isDefault(hashAlgorithm)) {
+			headers.hashAlgorithm = hashAlgorithm;
+		}
 
 
 		//appending block checksums into the metafile
 		try {
 			Configuration config = new Configuration();
-			config.strongSum = MessageDigest.getInstance("MD4");
+			config.strongSum = StrongSums.getInstance(hashAlgorithm);
 			config.weakSum = new Rsum();
 			config.blockLength = blocksize;
 			config.strongSumLength = hashLengths[2];
 			List<ChecksumPair> list = new ArrayList<ChecksumPair>((int) Math.ceil((double) fileLength / (double) blocksize));
 			MessageDigest sha1Digest = MessageDigest.getInstance("SHA1");
-			list = gen.generateSums(fileData, config, sha1Digest);
+			ParallelGenerator pg = getParallelGenerator();
+			if (pg != null && fileLength > pg.getChunkSize()) {
+				if (file != null) {
+					list = pg.generateSums(file, config, sha1Digest);
+				} else {
+					list = pg.generateSums(fileData, config, sha1Digest);
+				}
+			} else {
+				list = gen.generateSums(fileData, config, sha1Digest);
+			}
 			headers.sha1 = SHA1.toString(sha1Digest);
 			return new MetaData(headers, list);
 		} catch (IOException ioe) {
@@ -114,7 +145,7 @@ public class MetaFileMaker {
 		MetaData metaData;
 		try {
 			fin = new FileInputStream(file);
-			metaData = make(url, blocksize, file.length(), new Date(file.lastModified()), fin);
+			metaData = make(url, blocksize, file.length(), new Date(file.lastModified()), fin, file, hashAlgorithm);
 		} catch(FileNotFoundException e) {
 			throw new RuntimeException(file.getAbsolutePath(), e);
 		} catch (IOException e) {
@@ -186,6 +217,52 @@ public class MetaFileMaker {
 		}
 	}
 
+	private synchronized ParallelGenerator getParallelGenerator() {
+		if (parallelism <= 1) {
+			return null;
+		}
+		if (parallelGen == null) {
+			parallelGen = new ParallelGenerator(parallelism);
+		}
+		return parallelGen;
+	}
+
+	/**
+	 * The number of threads to compute block checksums with. Defaults to the
+	 * number of processors. If 1 checksums are computed on the calling thread
+	 *
+	 * @return
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+		this.parallelGen = null;
+	}
+
+	/**
+	 * The algorithm for block strong checksums, where one isnt given to make.
+	 * Defaults to MD4, which is what zsync uses. Anything else is declared in
+	 * the metafile, and can only be read by this implementation. Murmur3-128
+	 * is much faster
+	 *
+	 * @return
+	 */
+	public String getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	public void setHashAlgorithm(String hashAlgorithm) {
+		try {
+			StrongSums.getInstance(hashAlgorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalArgumentException("Unsupported strong checksum algorithm: " + hashAlgorithm, ex);
+		}
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
 	/**
 	 * File analysis, computing lengths of weak and strong checksums and 
 	 * sequence matches, storing the values into the array for easier handle
@@ -55,6 +55,7 @@ import java.util.List;
 import com.ettrema.zsync.HeaderMaker.Headers;
 import com.ettrema.zsync.MetaFileMaker.MetaData;
 import java.io.FileNotFoundException;
+import java.security.NoSuchAlgorithmException;
 
 
 /**
@@ -122,6 +123,13 @@ public class MetaFileReader {
 				throw new RuntimeException("Nonsensical hash lengths line " + s.substring(colonIndex + 2));
 			}
 
+		} else if (subs.equalsIgnoreCase("Hash-Algorithm")) {
+			headers.hashAlgorithm = s.substring(colonIndex + 2);
+			try {
+				StrongSums.getInstance(headers.hashAlgorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("Unsupported strong checksum algorithm: " + headers.hashAlgorithm, e);
+			}
 		} else if (subs.equalsIgnoreCase("URL")) {
 			headers.url = s.substring(colonIndex + 2);
 		} else if (subs.equalsIgnoreCase("Z-URL")) {
@@ -288,6 +296,14 @@ public class MetaFileReader {
 		return headers.getChecksumBytes();
 	}
 
+	/**
+	 * The algorithm of the strong checksums, as declared in the metafile
+	 * @return Name of the strong sum algorithm, MD4 if not declared
+	 */
+	public String getHashAlgorithm() {
+		return headers.hashAlgorithm == null ? StrongSums.DEFAULT_ALGORITHM : headers.hashAlgorithm;
+	}
+
 	/**
 	 * Returns length of complete file
 	 * @return Length of the file
@@ -0,0 +1,200 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.security.DigestException;
+import java.security.MessageDigestSpi;
+
+/**
+ * A 128 bit MurmurHash3 (the x64 variant, seed 0) as a message digest, so it
+ * can be used as the strong checksum in place of MD4.
+ *
+ * It is not a cryptographic hash, but the strong checksum only has to tell
+ * apart blocks which already have the same rolling checksum, and the
+ * assembled file is still checked against the SHA1 in the metafile. It is
+ * several times faster then MD4.
+ *
+ * Registered as "Murmur3-128" by JarsyncProvider
+ *
+ * @author brad
+ */
+public class Murmur3 extends MessageDigestSpi implements Cloneable {
+
+	public static final String ALGORITHM = "Murmur3-128";
+	public static final int DIGEST_LENGTH = 16;
+	public static final int BLOCK_LENGTH = 16;
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+	private final byte[] buffer = new byte[BLOCK_LENGTH];
+	private long h1;
+	private long h2;
+	private long count;
+
+	public Murmur3() {
+	}
+
+	private Murmur3(Murmur3 that) {
+		this.h1 = that.h1;
+		this.h2 = that.h2;
+		this.count = that.count;
+		System.arraycopy(that.buffer, 0, this.buffer, 0, BLOCK_LENGTH);
+	}
+
+	@Override
+	public Object clone() {
+		return new Murmur3(this);
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return DIGEST_LENGTH;
+	}
+
+	@Override
+	protected void engineUpdate(byte b) {
+		int n = (int) (count & (BLOCK_LENGTH - 1));
+		count++;
+		buffer[n] = b;
+		if (n == BLOCK_LENGTH - 1) {
+			mix(buffer, 0);
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte[] b, int off, int len) {
+		int n = (int) (count & (BLOCK_LENGTH - 1));
+		count += len;
+		int i = 0;
+		if (n > 0) {
+			int part = Math.min(len, BLOCK_LENGTH - n);
+			System.arraycopy(b, off, buffer, n, part);
+			i = part;
+			if (n + part < BLOCK_LENGTH) {
+				return;
+			}
+			mix(buffer, 0);
+		}
+		for (; i + BLOCK_LENGTH <= len; i += BLOCK_LENGTH) {
+			mix(b, off + i);
+		}
+		if (i < len) {
+			System.arraycopy(b, off + i, buffer, 0, len - i);
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		int n = (int) (count & (BLOCK_LENGTH - 1));
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = n - 1; i >= 8; i--) {
+			k2 = (k2 << 8) | (buffer[i] & 0xff);
+		}
+		for (int i = Math.min(n, 8) - 1; i >= 0; i--) {
+			k1 = (k1 << 8) | (buffer[i] & 0xff);
+		}
+		long a = h1;
+		long b = h2;
+		if (n > 8) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			b ^= k2;
+		}
+		if (n > 0) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			a ^= k1;
+		}
+		a ^= count;
+		b ^= count;
+		a += b;
+		b += a;
+		a = fmix(a);
+		b = fmix(b);
+		a += b;
+		b += a;
+		byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < 8; i++) {
+			digest[i] = (byte) (a >>> (8 * i));
+			digest[i + 8] = (byte) (b >>> (8 * i));
+		}
+		engineReset();
+		return digest;
+	}
+
+	@Override
+	protected int engineDigest(byte[] out, int off, int len) throws DigestException {
+		if (len < DIGEST_LENGTH) {
+			throw new DigestException("Need " + DIGEST_LENGTH + " bytes, only have: " + len);
+		}
+		System.arraycopy(engineDigest(), 0, out, off, DIGEST_LENGTH);
+		return DIGEST_LENGTH;
+	}
+
+	@Override
+	protected void engineReset() {
+		h1 = 0;
+		h2 = 0;
+		count = 0;
+	}
+
+	private void mix(byte[] b, int off) {
+		long k1 = getLong(b, off);
+		long k2 = getLong(b, off + 8);
+
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		h1 ^= k1;
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		h2 ^= k2;
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+
+	private static long getLong(byte[] b, int off) {
+		return (b[off] & 0xffL)
+				| (b[off + 1] & 0xffL) << 8
+				| (b[off + 2] & 0xffL) << 16
+				| (b[off + 3] & 0xffL) << 24
+				| (b[off + 4] & 0xffL) << 32
+				| (b[off + 5] & 0xffL) << 40
+				| (b[off + 6] & 0xffL) << 48
+				| (b[off + 7] & 0xffL) << 56;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
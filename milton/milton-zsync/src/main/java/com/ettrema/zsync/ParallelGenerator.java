@@ -0,0 +1,270 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import com.ettrema.common.DaemonThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Generates block checksums on a pool of threads.
+ *
+ * The data is read in chunks of a whole number of blocks. The calling thread
+ * reads each chunk, updates the whole file SHA-1 with it, and hands it to the
+ * pool, where the weak and strong sums of its blocks are computed with a
+ * copy of the configuration, so each task has its own digests. Results are
+ * collected in the order the chunks were read, so the checksums are the same,
+ * and in the same order, as those from Generator.generateSums(InputStream...)
+ *
+ * Files are memory mapped a chunk at a time rather then read through a stream.
+ *
+ * At most twice as many chunks as there are threads are held in memory at once.
+ *
+ * @author brad
+ */
+public class ParallelGenerator {
+
+	private final Generator generator = new Generator();
+	private final int parallelism;
+	private int chunkSize = 1024 * 1024;
+	private ExecutorService executor;
+
+	/**
+	 *
+	 * @param parallelism - the number of threads to compute checksums on
+	 */
+	public ParallelGenerator(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Generate checksums for the data in the stream, updating sha1 with all of
+	 * the data read
+	 */
+	public List<ChecksumPair> generateSums(InputStream in, Configuration config, MessageDigest sha1) throws IOException {
+		int blocksInChunk = blocksInChunk(config);
+		int bytesInChunk = blocksInChunk * config.blockLength;
+		LinkedList<Future<ChecksumPair[]>> pending = new LinkedList<Future<ChecksumPair[]>>();
+		List<ChecksumPair> sums = new ArrayList<ChecksumPair>();
+		long offset = 0;
+		int seq = 0;
+		try {
+			while (true) {
+				byte[] buf = new byte[bytesInChunk];
+				int len = readFully(in, buf);
+				if (len <= 0) {
+					break;
+				}
+				sha1.update(buf, 0, len);
+				pending.add(getExecutor().submit(new ArrayTask(buf, len, offset, seq, config)));
+				offset += len;
+				seq += blocksInChunk;
+				drain(pending, sums, parallelism * 2);
+				if (len < bytesInChunk) {
+					break;
+				}
+			}
+			drain(pending, sums, 0);
+		} finally {
+			cancel(pending);
+		}
+		return sums;
+	}
+
+	/**
+	 * Generate checksums for the whole file, updating sha1 with its content
+	 */
+	public List<ChecksumPair> generateSums(File file, Configuration config, MessageDigest sha1) throws IOException {
+		int blocksInChunk = blocksInChunk(config);
+		long bytesInChunk = (long) blocksInChunk * config.blockLength;
+		LinkedList<Future<ChecksumPair[]>> pending = new LinkedList<Future<ChecksumPair[]>>();
+		List<ChecksumPair> sums = new ArrayList<ChecksumPair>();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			int seq = 0;
+			for (long offset = 0; offset < length; offset += bytesInChunk) {
+				int len = (int) Math.min(bytesInChunk, length - offset);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+				sha1.update(mapped.duplicate());
+				pending.add(getExecutor().submit(new MappedTask(mapped, len, offset, seq, config)));
+				seq += blocksInChunk;
+				drain(pending, sums, parallelism * 2);
+			}
+			drain(pending, sums, 0);
+		} finally {
+			cancel(pending);
+			raf.close();
+		}
+		return sums;
+	}
+
+	private int blocksInChunk(Configuration config) {
+		return Math.max(1, chunkSize / config.blockLength);
+	}
+
+	/**
+	 * Wait for, and collect the results of, the oldest tasks until no more then
+	 * maxPending remain
+	 */
+	private void drain(LinkedList<Future<ChecksumPair[]>> pending, List<ChecksumPair> sums, int maxPending) throws IOException {
+		while (pending.size() > maxPending) {
+			Future<ChecksumPair[]> f = pending.removeFirst();
+			ChecksumPair[] pairs;
+			try {
+				pairs = f.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted generating checksums");
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+			for (ChecksumPair p : pairs) {
+				sums.add(p);
+			}
+		}
+	}
+
+	private void cancel(List<Future<ChecksumPair[]>> pending) {
+		for (Future<ChecksumPair[]> f : pending) {
+			f.cancel(false);
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buf) throws IOException {
+		int total = 0;
+		while (total < buf.length) {
+			int n = in.read(buf, total, buf.length - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = DaemonThreadFactory.newPool(ParallelGenerator.class, parallelism);
+		}
+		return executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * The number of bytes hashed by each task, rounded down to a whole number
+	 * of blocks. Default is 1MB
+	 *
+	 * @return
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Checksum the blocks in a chunk of data
+	 */
+	private ChecksumPair[] sums(byte[] buf, int len, long baseOffset, int firstSeq, Configuration template) {
+		Configuration config = (Configuration) template.clone();
+		int count = (len + config.blockLength - 1) / config.blockLength;
+		ChecksumPair[] pairs = new ChecksumPair[count];
+		int off = 0;
+		for (int i = 0; i < count; i++) {
+			int n = Math.min(len - off, config.blockLength);
+			ChecksumPair pair = generator.generateSum(buf, off, n, baseOffset + off, config);
+			pair.seq = firstSeq + i;
+			pairs[i] = pair;
+			off += n;
+		}
+		return pairs;
+	}
+
+	private class ArrayTask implements Callable<ChecksumPair[]> {
+
+		private final byte[] buf;
+		private final int len;
+		private final long offset;
+		private final int seq;
+		private final Configuration config;
+
+		ArrayTask(byte[] buf, int len, long offset, int seq, Configuration config) {
+			this.buf = buf;
+			this.len = len;
+			this.offset = offset;
+			this.seq = seq;
+			this.config = config;
+		}
+
+		@Override
+		public ChecksumPair[] call() {
+			return sums(buf, len, offset, seq, config);
+		}
+	}
+
+	private class MappedTask implements Callable<ChecksumPair[]> {
+
+		private final ByteBuffer mapped;
+		private final int len;
+		private final long offset;
+		private final int seq;
+		private final Configuration config;
+
+		MappedTask(ByteBuffer mapped, int len, long offset, int seq, Configuration config) {
+			this.mapped = mapped;
+			this.len = len;
+			this.offset = offset;
+			this.seq = seq;
+			this.config = config;
+		}
+
+		@Override
+		public ChecksumPair[] call() {
+			// the rolling checksum works on arrays, so copy the chunk out of the mapping
+			byte[] buf = new byte[len];
+			mapped.duplicate().get(buf);
+			return sums(buf, len, offset, seq, config);
+		}
+	}
+}
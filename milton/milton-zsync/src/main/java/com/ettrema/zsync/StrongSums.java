@@ -0,0 +1,72 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+/**
+ * Creates the message digests used for strong checksums.
+ *
+ * Algorithms implemented in this package (MD4, Murmur3-128) are created from
+ * a private JarsyncProvider instance, so the provider doesnt need to be
+ * registered with java.security.Security. Anything else is looked up from
+ * the installed providers.
+ *
+ * @author brad
+ */
+public class StrongSums {
+
+	/**
+	 * The algorithm used when a metafile doesnt declare one, for
+	 * compatibility with zsync
+	 */
+	public static final String DEFAULT_ALGORITHM = "MD4";
+	private static final Provider provider = new JarsyncProvider();
+
+	/**
+	 *
+	 * @param algorithm - the name of the digest, or null for the default
+	 * @return - a new digest
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static MessageDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+		if (algorithm == null) {
+			algorithm = DEFAULT_ALGORITHM;
+		}
+		if (provider.getService("MessageDigest", algorithm) != null) {
+			return MessageDigest.getInstance(algorithm, provider);
+		}
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 *
+	 * @param algorithm
+	 * @return - true if the algorithm is null (ie the default) or is MD4
+	 */
+	public static boolean isDefault(String algorithm) {
+		return algorithm == null || algorithm.equalsIgnoreCase(DEFAULT_ALGORITHM);
+	}
+
+	private StrongSums() {
+	}
+}
@@ -19,22 +19,29 @@
 
 package com.ettrema.zsync;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import com.bradmcevoy.http.Range;
-import com.bradmcevoy.http.entity.PartialEntity;
 import com.bradmcevoy.io.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,7 +57,9 @@ import org.slf4j.LoggerFactory;
  * 
  * To assemble the file from a ZSync upload, the server should construct an UploadReader, passing to
  * the constructor the file to be updated and an InputStream containing the upload data. It should then invoke the 
- * {@link #assemble()} method, which will return a temporary file that was created.
+ * {@link #assemble()} method, which will return a temporary file that was created. Alternatively, a server which
+ * can write the new file from a stream can use {@link #assemble(FileChannel)}, which reads the upload and the
+ * server's file as the new file is read from it, without any temporary files.
  * 
  * @author Nick
  *
@@ -243,39 +252,6 @@ public class UploadReader {
 		}
 	}
 
-	/**
-	 * Copies the contents of the source file to the destination file and sets the destination
-	 * file's length.
-	 * 
-	 * @param inFile The source file	
-	 * @param outFile The destination file
-	 * @param length The desired length of the destination file
-	 * @throws IOException
-	 */
-	private static void copyFile(File inFile, File outFile, long length) throws IOException {
-
-		InputStream fIn = null;
-		OutputStream fOut = null;
-		RandomAccessFile randAccess = null;
-
-		try {
-
-			fIn = new FileInputStream(inFile);
-			fOut = new FileOutputStream(outFile);
-            PartialEntity.sendBytes(fIn, fOut, inFile.length());
-		} finally {
-			StreamUtils.close(fIn);
-			StreamUtils.close(fOut);
-		}
-
-		try {
-
-			randAccess = new RandomAccessFile(outFile, "rw");
-			randAccess.setLength(length);
-		} finally {
-			Util.close(randAccess);
-		}
-	}
 	private File serverCopy;
 	private File uploadedCopy;
 	private Upload uploadData;
@@ -295,6 +271,18 @@ public class UploadReader {
 		this.uploadedCopy = File.createTempFile("zsync-upload", "newFile");
 	}
 
+	/**
+	 * Constructor that only parses the headers and relocate ranges from the InputStream. The data
+	 * ranges are left in the stream, to be read as the file is assembled by {@link #assemble(FileChannel)}
+	 * 
+	 * @param uploadIn A stream containing the ZSync PUT data. This should be buffered, since the
+	 * headers are parsed a byte at a time
+	 */
+	public UploadReader(InputStream uploadIn) {
+
+		this.uploadData = Upload.parse(uploadIn);
+	}
+
 	/**
 	 * Invokes the methods to put together the uploaded file.
 	 * 
@@ -303,6 +291,44 @@ public class UploadReader {
 	 */
 	public File assemble() throws IOException {
 
+		FileChannel source = null;
+		InputStream assembled = null;
+		OutputStream out = null;
+		try {
+			source = new RandomAccessFile(serverCopy, "r").getChannel();
+			assembled = assemble(source);
+			out = new FileOutputStream(uploadedCopy);
+			IOUtils.copyLarge(assembled, out);
+		} finally {
+			StreamUtils.close(assembled);
+			StreamUtils.close(out);
+			Util.close(source);
+		}
+
+		return uploadedCopy;
+	}
+
+	/**
+	 * Returns a stream of the assembled file, which is put together as it is read, in a single pass. <p/>
+	 * 
+	 * Each part of the file comes from the first of these which covers it: the data ranges in the upload, 
+	 * which are read straight from the upload stream, the relocate ranges, which are read from their
+	 * positions in the source, and otherwise the same position in the source. So only the parts
+	 * of the source which are needed are read, and nothing is written until the caller writes what it reads.<p/>
+	 * 
+	 * The SHA1 checksum is computed as the stream is read, and if it doesn't match the checksum in the
+	 * upload an IOException is thrown instead of reporting the end of the stream. So a caller which only
+	 * commits what it has read once the stream has ended, such as a write to a temporary file which is then
+	 * renamed, will never commit a corrupt file.<p/>
+	 * 
+	 * The data ranges must be in ascending order, which is how UploadMaker and UploadMakerEx create them.
+	 * 
+	 * @param source A channel for the server's current copy of the file. It is not closed by the returned stream
+	 * @return A stream of the assembled file. Closing it closes the upload stream
+	 * @throws IOException
+	 */
+	public InputStream assemble(FileChannel source) throws IOException {
+
 		if (uploadData.getBlocksize() <= 0) {
 			throw new RuntimeException("Invalid blocksize specified: " + uploadData.getBlocksize());
 		}
@@ -315,25 +341,36 @@ public class UploadReader {
 			throw new RuntimeException("No SHA1 checksum provided.");
 		}
 
-		InputStream relocIn = null;
-		InputStream dataIn = null;
+		List<RelocateRange> relocs = new ArrayList<RelocateRange>();
+		InputStream relocIn = uploadData.getRelocStream();
 		try {
-			relocIn = uploadData.getRelocStream();
-			dataIn = uploadData.getDataStream();
-
-			Enumeration<RelocateRange> relocEnum = new RelocateParser(relocIn);
-			Enumeration<ByteRange> dataEnum = new ByteRangeParser(dataIn);
-
-			copyFile(serverCopy, uploadedCopy, uploadData.getFilelength());
-
-			moveBlocks(serverCopy, relocEnum, (int) uploadData.getBlocksize(), uploadedCopy);
-			sendRanges(dataEnum, uploadedCopy);
+			if (relocIn != null) {
+				Enumeration<RelocateRange> relocEnum = new RelocateParser(relocIn);
+				while (relocEnum.hasMoreElements()) {
+					relocs.add(relocEnum.nextElement());
+				}
+			}
 		} finally {
 			StreamUtils.close(relocIn);
-			StreamUtils.close(dataIn);
 		}
+		Collections.sort(relocs, new Comparator<RelocateRange>() {
 
-		return uploadedCopy;
+			@Override
+			public int compare(RelocateRange o1, RelocateRange o2) {
+				return o1.getOffset() < o2.getOffset() ? -1 : (o1.getOffset() == o2.getOffset() ? 0 : 1);
+			}
+		});
+
+		long blocksize = uploadData.getBlocksize();
+		long sourceLength = source.size();
+		for (RelocateRange reloc : relocs) {
+			if (reloc.getBlockRange().getStart() < 0 || reloc.getBlockRange().getFinish() * blocksize > sourceLength) {
+				throw new RuntimeException("Invalid RelocateRange: Source file does not contain blocks "
+						+ reloc.getBlockRange().getRange());
+			}
+		}
+
+		return new AssemblingInputStream(source, sourceLength, relocs, uploadData.getDataStream());
 	}
 
 	/**
@@ -346,6 +383,172 @@ public class UploadReader {
 		return uploadData.getSha1();
 	}
 
+	/**
+	 * Returns the length of the assembled file, as received in the upload
+	 * 
+	 * @return The length of the new file
+	 */
+	public long getFilelength() {
+
+		return uploadData.getFilelength();
+	}
+
+	/**
+	 * The stream returned by {@link UploadReader#assemble(FileChannel)}. The file is read as a sequence 
+	 * of segments, each of which is copied from the upload, copied from the source, or zero filled, 
+	 * which happens where the new file is longer than the source and nothing else covers it.
+	 */
+	private class AssemblingInputStream extends InputStream {
+
+		private static final int UPLOAD = 0;
+		private static final int SOURCE = 1;
+		private static final int ZEROS = 2;
+		private final FileChannel source;
+		private final long sourceLength;
+		private final List<RelocateRange> relocs;
+		private final InputStream dataIn;
+		private final Enumeration<ByteRange> dataEnum;
+		private final MessageDigest sha1;
+		private final long length;
+		private final long blocksize;
+		private final byte[] single = new byte[1];
+		/*The next data range, which has been read from the upload but whose data has not*/
+		private Range nextData;
+		private int relocIndex;
+		/*The position in the new file*/
+		private long pos;
+		private int segment;
+		private long segmentRemaining;
+		private long sourcePos;
+		private String actualChecksum;
+
+		AssemblingInputStream(FileChannel source, long sourceLength, List<RelocateRange> relocs, InputStream dataIn) throws IOException {
+			this.source = source;
+			this.sourceLength = sourceLength;
+			this.relocs = relocs;
+			this.dataIn = dataIn;
+			this.dataEnum = new ByteRangeParser(dataIn);
+			this.length = uploadData.getFilelength();
+			this.blocksize = uploadData.getBlocksize();
+			try {
+				this.sha1 = MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new RuntimeException("Problem with SHA-1 hash", ex);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int n = read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (segmentRemaining == 0) {
+				if (!nextSegment()) {
+					checkSha1();
+					return -1;
+				}
+			}
+			int n = (int) Math.min(len, segmentRemaining);
+			switch (segment) {
+				case UPLOAD:
+					n = dataIn.read(b, off, n);
+					if (n < 0) {
+						throw new EOFException("End of upload reached with " + segmentRemaining + " bytes of range data left");
+					}
+					break;
+				case SOURCE:
+					n = source.read(ByteBuffer.wrap(b, off, n), sourcePos);
+					if (n <= 0) {
+						throw new EOFException("End of source reached at " + sourcePos);
+					}
+					sourcePos += n;
+					break;
+				default:
+					Arrays.fill(b, off, off + n, (byte) 0);
+			}
+			sha1.update(b, off, n);
+			pos += n;
+			segmentRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			dataIn.close();
+		}
+
+		/**
+		 * Works out where the bytes at pos come from, and how many of them come from there
+		 * 
+		 * @return false if the end of the file has been reached
+		 */
+		private boolean nextSegment() throws IOException {
+			if (nextData == null && dataEnum.hasMoreElements()) {
+				nextData = dataEnum.nextElement().getRange();
+				if (nextData.getStart() < pos || nextData.getFinish() < nextData.getStart()) {
+					throw new IOException("Data ranges must be in ascending order. Range " + nextData.getRange()
+							+ " is before " + pos);
+				}
+				if (nextData.getFinish() > length) {
+					throw new IOException("Range " + nextData.getRange() + " is beyond the file length " + length);
+				}
+			}
+			if (pos >= length) {
+				return false;
+			}
+			if (nextData != null && nextData.getStart() == pos) {
+				segment = UPLOAD;
+				segmentRemaining = nextData.getFinish() - nextData.getStart();
+				nextData = null;
+				return true;
+			}
+			long limit = nextData == null ? length : nextData.getStart();
+			while (relocIndex < relocs.size() && relocEnd(relocs.get(relocIndex)) <= pos) {
+				relocIndex++;
+			}
+			RelocateRange reloc = relocIndex < relocs.size() ? relocs.get(relocIndex) : null;
+			if (reloc != null && reloc.getOffset() <= pos) {
+				segment = SOURCE;
+				sourcePos = reloc.getBlockRange().getStart() * blocksize + (pos - reloc.getOffset());
+				segmentRemaining = Math.min(relocEnd(reloc), limit) - pos;
+				return true;
+			}
+			if (reloc != null) {
+				limit = Math.min(limit, reloc.getOffset());
+			}
+			if (pos < sourceLength) {
+				segment = SOURCE;
+				sourcePos = pos;
+				segmentRemaining = Math.min(limit, sourceLength) - pos;
+			} else {
+				segment = ZEROS;
+				segmentRemaining = limit - pos;
+			}
+			return true;
+		}
+
+		private long relocEnd(RelocateRange reloc) {
+			long blocks = reloc.getBlockRange().getFinish() - reloc.getBlockRange().getStart();
+			return reloc.getOffset() + blocks * blocksize;
+		}
+
+		private void checkSha1() throws IOException {
+			if (actualChecksum == null) {
+				actualChecksum = SHA1.toString(sha1);
+			}
+			if (!actualChecksum.equals(uploadData.getSha1())) {
+				throw new IOException("Computed SHA1 checksum doesn't match expected checksum\n" + "\tExpected: "
+						+ uploadData.getSha1() + "\n" + "\tActual: " + actualChecksum);
+			}
+		}
+	}
+
 	/**
 	 * An object that wraps the relocate stream of Upload ( {@link Upload#getRelocStream} )in an 
 	 * Enumeration of RelocateRanges. The relocate stream is expected to contain a comma separated list of RelocateRanges, e.g.<p/>
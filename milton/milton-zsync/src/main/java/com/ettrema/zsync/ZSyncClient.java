@@ -30,6 +30,7 @@ import com.ettrema.httpclient.zsyncclient.FileSyncer;
 import com.ettrema.httpclient.zsyncclient.HttpRangeLoader;
 import java.io.File;
 import java.io.*;
+import java.net.URLEncoder;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -45,6 +46,7 @@ public class ZSyncClient implements FileSyncer{
     private TransferService transferService;
     private final FileMaker fileMaker;
     private int blocksize = 256;
+    private String hashAlgorithm;
 
     public ZSyncClient(TransferService transferService) {
         this.transferService = transferService;
@@ -69,7 +71,7 @@ public class ZSyncClient implements FileSyncer{
         String url = host.getHref(remotePath.child(".zsync"));
         boolean notExisting = false;
         try {
-            transferService.get(url, new StreamReceiver() {
+            transferService.get(metaDataUrl(url), new StreamReceiver() {
 
                 @Override
                 public void receive(InputStream in) throws IOException {
@@ -95,7 +97,8 @@ public class ZSyncClient implements FileSyncer{
             throw new NotFoundException(url);
         } else {
             // Now build local file			
-            HttpRangeLoader rangeLoader = new HttpRangeLoader(remoteFile, listener);
+            int connections = Math.max(1, fileMaker.getFileUpdater().getParallelism());
+            HttpRangeLoader rangeLoader = new HttpRangeLoader(remoteFile, listener, connections);
             try {
                 return fileMaker.make(localFile, fRemoteMeta, rangeLoader);
             } catch (Exception e) {
@@ -106,6 +109,8 @@ public class ZSyncClient implements FileSyncer{
                 } else {
                     throw new RuntimeException(e);
                 }
+            } finally {
+                rangeLoader.shutdown();
             }
 
         }
@@ -126,7 +131,7 @@ public class ZSyncClient implements FileSyncer{
         String baseUrl = host.getHref(remotePath);
         String url = baseUrl + "/.zsync";
         try {
-            transferService.get(url, new StreamReceiver() {
+            transferService.get(metaDataUrl(url), new StreamReceiver() {
 
                 @Override
                 public void receive(InputStream in) throws IOException {
@@ -152,6 +157,28 @@ public class ZSyncClient implements FileSyncer{
         }
     }
 
+    /**
+     *
+     * @param url - the url of the .zsync resource
+     * @return - the url to get the metadata from, asking for the hashAlgorithm
+     * if set
+     */
+    private String metaDataUrl(String url) throws UnsupportedEncodingException {
+        if (StrongSums.isDefault(hashAlgorithm)) {
+            return url;
+        }
+        return url + "?" + ZSyncResourceFactory.HASH_ALGORITHM_PARAM + "=" + URLEncoder.encode(hashAlgorithm, "UTF-8");
+    }
+
+    /**
+     * Eg to configure the batch sizes and parallelism for loading ranges
+     *
+     * @return
+     */
+    public FileMaker getFileMaker() {
+        return fileMaker;
+    }
+
     public int getBlocksize() {
         return blocksize;
     }
@@ -159,4 +186,20 @@ public class ZSyncClient implements FileSyncer{
     public void setBlocksize(int blocksize) {
         this.blocksize = blocksize;
     }
+
+    /**
+     * The strong checksum algorithm to ask the server for. Null, the default,
+     * doesnt ask, so gets MD4, which any server supports. A faster algorithm,
+     * eg Murmur3-128, is only used by a milton server, others ignore the
+     * request
+     *
+     * @return
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
 }
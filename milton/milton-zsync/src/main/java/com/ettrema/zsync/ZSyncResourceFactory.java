@@ -20,17 +20,17 @@
 package com.ettrema.zsync;
 
 import com.bradmcevoy.common.Path;
-import com.bradmcevoy.http.Request.Method;
 import com.bradmcevoy.http.*;
 import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.ConflictException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
-import com.bradmcevoy.http.http11.auth.DigestResponse;
+import com.bradmcevoy.http.exceptions.NotFoundException;
 import com.bradmcevoy.io.BufferingOutputStream;
 import com.bradmcevoy.io.StreamUtils;
 import com.ettrema.common.LogUtils;
 import java.io.*;
-import java.util.Date;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
@@ -52,17 +52,28 @@ import org.slf4j.LoggerFactory;
  * and checksums) GET /somefile/.zsync c) Calculate instructions and range data
  * to send to server, based on the retrieved checksums d) send to server
  *
+ * The metadata uses MD4 strong checksums, which is what zsync expects. A
+ * client which can read other algorithms can ask for one with the
+ * hashAlgorithm query parameter, eg GET /somefile/.zsync?hashAlgorithm=Murmur3-128
+ * An algorithm which isnt supported gets MD4.
  *
  * ....
  */
 public class ZSyncResourceFactory implements ResourceFactory {
 
     private static final Logger log = LoggerFactory.getLogger(ZSyncResourceFactory.class);
+    /**
+     * Query parameter for a client to ask for a strong checksum algorithm
+     * other then MD4
+     */
+    public static final String HASH_ALGORITHM_PARAM = "hashAlgorithm";
     private String suffix = ".zsync";
     private final ResourceFactory wrapped;
     private MetaFileMaker metaFileMaker;
     private int defaultBlockSize = 512;
     private int maxMemorySize = 100000;
+    private MetaDataCache metaDataCache;
+    private boolean assembleToTempFile = true;
 
     public ZSyncResourceFactory(ResourceFactory wrapped) {
         this.wrapped = wrapped;
@@ -98,24 +109,99 @@ public class ZSyncResourceFactory implements ResourceFactory {
         this.suffix = suffix;
     }
 
+    /**
+     * Generates the metafiles, and is also used by the metaDataCache. The
+     * strong checksum algorithm is the one asked for by the client, not the
+     * hashAlgorithm of the maker
+     *
+     * @return
+     */
+    public MetaFileMaker getMetaFileMaker() {
+        return metaFileMaker;
+    }
+
+    public void setMetaFileMaker(MetaFileMaker metaFileMaker) {
+        this.metaFileMaker = metaFileMaker;
+        if (metaDataCache != null) {
+            metaDataCache.setMetaFileMaker(metaFileMaker);
+        }
+    }
+
     public ResourceFactory getWrapped() {
         return wrapped;
     }
 
-    public class ZSyncAdapterResource implements GetableResource, ReplaceableResource, DigestResource {
+    /**
+     * If set, metadata for resources which dont implement ZSyncResource is
+     * cached here rather then generated on every request
+     *
+     * @return
+     */
+    public MetaDataCache getMetaDataCache() {
+        return metaDataCache;
+    }
+
+    /**
+     * The cache is given this factory's metaFileMaker
+     *
+     * @param metaDataCache
+     */
+    public void setMetaDataCache(MetaDataCache metaDataCache) {
+        this.metaDataCache = metaDataCache;
+        if (metaDataCache != null) {
+            metaDataCache.setMetaFileMaker(metaFileMaker);
+        }
+    }
+
+    /**
+     *
+     * @param params - the request parameters
+     * @return - the strong checksum algorithm asked for, if supported,
+     * otherwise MD4
+     */
+    String getHashAlgorithm(Map<String, String> params) {
+        String algorithm = params == null ? null : params.get(HASH_ALGORITHM_PARAM);
+        if (StrongSums.isDefault(algorithm)) {
+            return StrongSums.DEFAULT_ALGORITHM;
+        }
+        try {
+            StrongSums.getInstance(algorithm);
+            return algorithm;
+        } catch (NoSuchAlgorithmException ex) {
+            log.debug("unsupported strong checksum algorithm requested, using MD4: " + algorithm);
+            return StrongSums.DEFAULT_ALGORITHM;
+        }
+    }
+
+    /**
+     * If true, the default, the new content for a zsync upload is assembled
+     * into a temporary file, and only written to the resource once its
+     * checksum has been verified, unless the resource is an
+     * AtomicReplaceableResource. Those are streamed to directly, as a failed
+     * checksum leaves their previous content in place.
+     *
+     * Set to false to stream to all resources, which avoids writing the
+     * content twice but leaves partial content if a resource isnt atomic.
+     *
+     * @return
+     */
+    public boolean isAssembleToTempFile() {
+        return assembleToTempFile;
+    }
+
+    public void setAssembleToTempFile(boolean assembleToTempFile) {
+        this.assembleToTempFile = assembleToTempFile;
+    }
+
+    public class ZSyncAdapterResource extends AdapterResource {
 
-        private final GetableResource r;
-        private final String realPath;
-        private final String host;
         /**
          * populated on POST, then used in sendContent
          */
         private List<Range> ranges;
 
         public ZSyncAdapterResource(GetableResource r, String realPath, String host) {
-            this.r = r;
-            this.realPath = realPath;
-            this.host = host;
+            super(ZSyncResourceFactory.this.wrapped, r, realPath, host);
         }
 
         @Override
@@ -133,6 +219,20 @@ public class ZSyncResourceFactory implements ResourceFactory {
 
         }
 
+        /**
+         * Assembles the new content from the upload and the existing content
+         * in a single pass, as it is written to the resource. If the resource
+         * is a SeekableResource only the parts of the existing content which
+         * are needed are read, otherwise it is first copied to a temporary
+         * file.
+         *
+         * The SHA1 checksum is checked as the content is written, and a
+         * mismatch fails the write before the end of the content is reached.
+         * So the content is only streamed to resources which wont keep content
+         * from a failed write, ie AtomicReplaceableResource's, or to any
+         * resource if assembleToTempFile is false. Otherwise it is assembled
+         * into a temporary file first
+         */
         @Override
         public void replaceContent(InputStream in, Long length) throws BadRequestException, ConflictException, NotAuthorizedException {
             if (r == null) {
@@ -141,48 +241,37 @@ public class ZSyncResourceFactory implements ResourceFactory {
 
             log.trace("ZSync Replace Content: uploaded bytes " + length);
 
+            File prevFile = null;
+            FileChannel source = null;
+            InputStream assembled = null;
             try {
-
-                File prevFile = File.createTempFile("milton-zsync", "prevFile");
-                FileOutputStream fout = new FileOutputStream(prevFile);
-                r.sendContent(fout, null, null, null);
-                StreamUtils.close(fout);
-                log.trace("Saved previous file to " + prevFile.getAbsolutePath());
-
-                File uploadData = File.createTempFile("milton-zsync", "uploadData");
-                fout = new FileOutputStream(uploadData);
-                StreamUtils.readTo(in, fout);
-                StreamUtils.close(fout);
-                log.trace("Saved PUT data to " + uploadData.getAbsolutePath());
-
-                File newFile = null;
-                InputStream fin = null;
-                BufferedInputStream uploadIn = null;
-
-                try {
-                    fin = new FileInputStream(uploadData);
-                    uploadIn = new BufferedInputStream(fin);
-                    UploadReader um = new UploadReader(prevFile, uploadIn);
-                    newFile = um.assemble();
-                    log.trace("Assembled file and saved to " + newFile.getAbsolutePath());
-
-                    String actChecksum = new SHA1(newFile).SHA1sum();
-                    String expChecksum = um.getChecksum();
-
-                    if (!actChecksum.equals(expChecksum)) {
-                        throw new RuntimeException("Computed SHA1 checksum doesn't match expected checksum\n" + "\tExpected: " + expChecksum + "\n" + "\tActual: " + actChecksum + "\n in temp file: " + newFile.getAbsolutePath());
+                if (r instanceof SeekableResource) {
+                    source = ((SeekableResource) r).openContentChannel();
+                }
+                if (source == null) {
+                    prevFile = File.createTempFile("milton-zsync", "prevFile");
+                    FileOutputStream fout = new FileOutputStream(prevFile);
+                    try {
+                        r.sendContent(fout, null, null, null);
+                    } finally {
+                        StreamUtils.close(fout);
                     }
-
-
-                } finally {
-                    StreamUtils.close(uploadIn);
-                    StreamUtils.close(fin);
+                    log.trace("Saved previous file to " + prevFile.getAbsolutePath());
+                    source = new RandomAccessFile(prevFile, "r").getChannel();
                 }
 
-                updateResourceContentActual(newFile);
+                UploadReader um = new UploadReader(new BufferedInputStream(in));
+                assembled = um.assemble(source);
+                updateResourceContent(assembled, um.getFilelength(), assembleToTempFile);
 
-            } catch (Exception ex) {
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } catch (NotFoundException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                StreamUtils.close(assembled);
+                Util.close(source);
+                deleteTempFile(prevFile);
             }
         }
 
@@ -192,7 +281,20 @@ public class ZSyncResourceFactory implements ResourceFactory {
             if (fileLength != null) {
                 blocksize = metaFileMaker.computeBlockSize(fileLength);
             }
+            String hashAlgorithm = getHashAlgorithm(params);
 
+            if (metaDataCache != null && !(r instanceof ZSyncResource)) {
+                byte[] cached;
+                try {
+                    cached = metaDataCache.getMetaData(realPath, r, hashAlgorithm);
+                    if (cached != null) {
+                        out.write(cached);
+                        return;
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
             MetaFileMaker.MetaData metaData;
             if (r instanceof ZSyncResource) {
                 ZSyncResource zr = (ZSyncResource) r;
@@ -210,7 +312,7 @@ public class ZSyncResourceFactory implements ResourceFactory {
                 }
                 InputStream in = bufOut.getInputStream();
                 try {
-                    metaData = metaFileMaker.make(realPath, blocksize, fileLength, r.getModifiedDate(), in);
+                    metaData = metaFileMaker.make(realPath, blocksize, fileLength, r.getModifiedDate(), in, hashAlgorithm);
                 } finally {
                     StreamUtils.close(in);
                 }
@@ -218,114 +320,16 @@ public class ZSyncResourceFactory implements ResourceFactory {
             metaFileMaker.write(metaData, out);
         }
 
-        private void updateResourceContentActual(File mergedFile) throws FileNotFoundException, BadRequestException, ConflictException, NotAuthorizedException, IOException {
-            if (r instanceof ReplaceableResource) {
-                log.trace("updateResourceContentActual: " + mergedFile.getAbsolutePath() + ", resource is replaceable");
-                FileInputStream fin = null;
-                try {
-                    fin = new FileInputStream(mergedFile);
-                    ReplaceableResource rr = (ReplaceableResource) r;
-                    rr.replaceContent(fin, mergedFile.length());
-                } finally {
-                    StreamUtils.close(fin);
-                }
-            } else {
-                log.trace("updateResourceContentActual: " + mergedFile.getAbsolutePath() + ", resource is NOT replaceable, try to replace through parent");
-                String parentPath = Path.path(realPath).getParent().toString();
-                Resource rParent = wrapped.getResource(host, parentPath);
-                if (rParent == null) {
-                    throw new RuntimeException("Failed to locate parent resource to update contents. parent: " + parentPath + " host: " + host);
-                }
-                if (rParent instanceof PutableResource) {
-                    log.trace("found parent resource, implements PutableResource");
-                    FileInputStream fin = null;
-                    try {
-                        fin = new FileInputStream(mergedFile);
-                        PutableResource putable = (PutableResource) rParent;
-                        putable.createNew(r.getName(), fin, mergedFile.length(), r.getContentType(null));
-                    } finally {
-                        StreamUtils.close(fin);
-                    }
-                } else {
-                    throw new RuntimeException("Tried to update non-replaceable resource by doing createNew on parent, but the parent doesnt implement PutableResource. parent path: " + parentPath + " host: " + host + " parent type: " + rParent.getClass());
-                }
-            }
-
-
-        }
-
-        @Override
-        public Long getMaxAgeSeconds(Auth auth) {
-            return null;
-        }
-
         @Override
         public String getContentType(String accepts) {
             return "application/zsyncM";
         }
 
-        @Override
-        public Long getContentLength() {
-            return null;
-        }
-
-        @Override
-        public String getUniqueId() {
-            return null;
-        }
-
         @Override
         public String getName() {
             return suffix;
         }
 
-        @Override
-        public Object authenticate(String user, String password) {
-            if (r == null) {
-                return "ok"; // will fail with 400 anyway
-            }
-            return r.authenticate(user, password);
-        }
-
-        @Override
-        public boolean authorise(Request request, Method method, Auth auth) {
-            if (r == null) {
-                return true; // will fail anyway
-            }
-            return r.authorise(request, method, auth);
-        }
-
-        @Override
-        public String getRealm() {
-            if (r == null) {
-                return "Realm";
-            }
-            return r.getRealm();
-        }
-
-        @Override
-        public Date getModifiedDate() {
-            if (r == null) {
-                return null;
-            }
-            return r.getModifiedDate();
-        }
-
-        @Override
-        public String checkRedirect(Request request) {
-            return null;
-        }
-
-        @Override
-        public Object authenticate(DigestResponse digestRequest) {
-            return ((DigestResource) r).authenticate(digestRequest);
-        }
-
-        @Override
-        public boolean isDigestAllowed() {
-            return (r instanceof DigestResource) && ((DigestResource) r).isDigestAllowed();
-        }
-
         private void sendRangeData(OutputStream out) {
             PrintWriter pw = new PrintWriter(out);
             for (Range range : ranges) {
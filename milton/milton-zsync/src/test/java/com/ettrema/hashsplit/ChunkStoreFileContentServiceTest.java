@@ -0,0 +1,224 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.ettrema.http.fs.FileContentWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class ChunkStoreFileContentServiceTest {
+
+    File dir;
+    File root;
+    ChunkStoreFileContentService service;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("chunkstore-test", "");
+        dir.delete();
+        dir.mkdirs();
+        root = new File(dir, "root");
+        root.mkdirs();
+        service = new ChunkStoreFileContentService(new File(dir, "chunks"), root);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        service.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = random(1, 500000);
+        File f = new File(root, "a.bin");
+        service.setFileContent(f, new ByteArrayInputStream(data));
+        assertEquals(data.length, service.getFileContentLength(f));
+        assertArrayEquals(data, read(f));
+        assertTrue(f.length() < data.length);
+        assertTrue(countChunks() > 10);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File f = new File(root, "empty.bin");
+        service.setFileContent(f, new ByteArrayInputStream(new byte[0]));
+        assertEquals(0, service.getFileContentLength(f));
+        assertEquals(0, read(f).length);
+    }
+
+    @Test
+    public void testPlainFile() throws IOException {
+        byte[] data = "not a manifest".getBytes();
+        File f = new File(root, "plain.txt");
+        FileUtils.writeByteArrayToFile(f, data);
+        assertEquals(data.length, service.getFileContentLength(f));
+        assertArrayEquals(data, read(f));
+    }
+
+    @Test
+    public void testDeduplicates() throws IOException {
+        byte[] data = random(2, 1000000);
+        service.setFileContent(new File(root, "a.bin"), new ByteArrayInputStream(data));
+        int before = countChunks();
+
+        // a copy with a few bytes inserted near the start
+        byte[] modified = new byte[data.length + 3];
+        System.arraycopy(data, 0, modified, 0, 1000);
+        System.arraycopy(data, 1000, modified, 1003, data.length - 1000);
+        File b = new File(root, "b.bin");
+        service.setFileContent(b, new ByteArrayInputStream(modified));
+        int added = countChunks() - before;
+        assertTrue("added chunks: " + added, added <= 2);
+        assertArrayEquals(modified, read(b));
+    }
+
+    @Test
+    public void testWriter() throws IOException {
+        byte[] data = random(3, 100000);
+        File f = new File(root, "a.bin");
+        FileContentWriter writer = service.openFileContent(f);
+        try {
+            writer.getOutputStream().write(data);
+            writer.commit();
+        } finally {
+            writer.close();
+        }
+        assertArrayEquals(data, read(f));
+
+        // not committed, so the content is unchanged
+        writer = service.openFileContent(f);
+        writer.getOutputStream().write(random(4, 1000));
+        writer.close();
+        assertArrayEquals(data, read(f));
+    }
+
+    @Test
+    public void testPartialContent() throws IOException {
+        byte[] data = random(5, 200000);
+        File f = new File(root, "a.bin");
+        service.setFileContent(f, new ByteArrayInputStream(data));
+        byte[] range = random(6, 5000);
+        service.setPartialFileContent(f, 100000, range.length, new ByteArrayInputStream(range));
+        System.arraycopy(range, 0, data, 100000, range.length);
+        assertArrayEquals(data, read(f));
+
+        // extending the file
+        service.setPartialFileContent(f, data.length + 10, range.length, new ByteArrayInputStream(range));
+        byte[] expected = Arrays.copyOf(data, data.length + 10 + range.length);
+        System.arraycopy(range, 0, expected, data.length + 10, range.length);
+        assertArrayEquals(expected, read(f));
+        assertEquals(expected.length, service.getFileContentLength(f));
+    }
+
+    @Test
+    public void testCollectGarbage() throws IOException {
+        File a = new File(root, "a.bin");
+        File b = new File(root, "b.bin");
+        byte[] dataA = random(7, 300000);
+        byte[] dataB = random(8, 300000);
+        service.setFileContent(a, new ByteArrayInputStream(dataA));
+        service.setFileContent(b, new ByteArrayInputStream(dataB));
+        int total = countChunks();
+        assertEquals(0, service.collectGarbage());
+        assertFalse(service.getStore().isGarbageFound());
+
+        // replacing content makes the old chunks garbage
+        service.setFileContent(a, new ByteArrayInputStream(dataB));
+        assertTrue(service.getStore().isGarbageFound());
+
+        // chunks being read arent deleted
+        InputStream in = service.getFileContent(b);
+        b.delete();
+        int deleted = service.collectGarbage();
+        assertTrue(deleted > 0);
+        assertEquals(total - deleted, countChunks());
+        assertArrayEquals(dataB, IOUtils.toByteArray(in));
+        in.close();
+        assertArrayEquals(dataB, read(a));
+
+        // once a is deleted, and nothing is reading, everything goes
+        a.delete();
+        service.collectGarbage();
+        assertEquals(0, countChunks());
+    }
+
+    @Test
+    public void testSplitterMatchesParse() throws IOException {
+        byte[] data = random(9, 300000);
+        HashSplitService hs = new HashSplitService();
+        java.util.List<HashNode> expected = hs.parse(new ByteArrayInputStream(data));
+        HashSplitService.Splitter splitter = hs.newSplitter(null);
+        // write in odd sized pieces
+        for (int i = 0; i < data.length; i += 777) {
+            splitter.write(data, i, Math.min(777, data.length - i));
+        }
+        splitter.close();
+        assertEquals(expected.size(), splitter.getRootNodes().size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getHashValue(), splitter.getRootNodes().get(i).getHashValue());
+        }
+        assertEquals(data.length, splitter.getLength());
+    }
+
+    private byte[] read(File f) throws IOException {
+        InputStream in = service.getFileContent(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private int countChunks() {
+        int count = 0;
+        File[] dirs = service.getStore().getDir().listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                File[] files = d.listFiles();
+                if (files != null) {
+                    count += files.length;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class HashSplitDeltaGeneratorTest {
+
+    HashSplitService service = new HashSplitService();
+    File orig;
+    File deltas;
+
+    @Before
+    public void setUp() throws IOException {
+        orig = File.createTempFile("hashsplit-orig", null);
+        deltas = File.createTempFile("hashsplit-deltas", null);
+    }
+
+    @After
+    public void tearDown() {
+        orig.delete();
+        deltas.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = random(1, 1000000);
+        FileUtils.writeByteArrayToFile(orig, data);
+
+        // change a few bytes in the middle and append some more
+        byte[] modified = new byte[data.length + 5000];
+        System.arraycopy(data, 0, modified, 0, data.length);
+        System.arraycopy(random(2, 100), 0, modified, 500000, 100);
+        System.arraycopy(random(3, 5000), 0, modified, data.length, 5000);
+
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(data));
+        long included = generate(tree, modified);
+        assertTrue("included: " + included, included < 200000);
+        assertTrue(deltas.length() < included + 10000);
+
+        assertArrayEquals(modified, assemble(tree));
+    }
+
+    @Test
+    public void testNothingInCommon() throws IOException {
+        byte[] data = random(4, 100000);
+        FileUtils.writeByteArrayToFile(orig, data);
+        byte[] modified = random(5, 50000);
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(data));
+        assertEquals(modified.length, generate(tree, modified));
+        assertArrayEquals(modified, assemble(tree));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(new byte[0]));
+        assertEquals(0, generate(tree, new byte[0]));
+        assertEquals(0, assemble(tree).length);
+    }
+
+    @Test
+    public void testTreeFormat() throws IOException {
+        byte[] data = random(6, 500000);
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HashTreeFormat.write(tree, out);
+        List<HashNode> read = HashTreeFormat.read(new ByteArrayInputStream(out.toByteArray()));
+        assertSame(tree, read);
+    }
+
+    @Test
+    public void testChecksumMismatch() throws IOException {
+        byte[] data = random(7, 100000);
+        FileUtils.writeByteArrayToFile(orig, data);
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(data));
+        generate(tree, data);
+        // the server's content has changed since the tree was retrieved
+        RandomAccessFile raf = new RandomAccessFile(orig, "rw");
+        raf.seek(50000);
+        raf.write(0xff ^ data[50000]);
+        raf.close();
+        try {
+            assemble(tree);
+            fail("should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnknownChunk() throws IOException {
+        byte[] data = random(8, 100000);
+        FileUtils.writeByteArrayToFile(orig, data);
+        List<HashNode> tree = service.parse(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.write(HashSplitDeltaGenerator.MAGIC);
+        out.writeLong(100);
+        out.writeByte(HashSplitDeltaGenerator.REF);
+        out.writeLong(12345);
+        out.writeInt(100);
+        HashSplitUploadReader reader = new HashSplitUploadReader(new ByteArrayInputStream(bout.toByteArray()));
+        FileChannel source = new RandomAccessFile(orig, "r").getChannel();
+        try {
+            IOUtils.toByteArray(reader.assemble(source, tree));
+            fail("should have failed");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnUpload() throws IOException {
+        new HashSplitUploadReader(new ByteArrayInputStream("not an upload".getBytes()));
+    }
+
+    private long generate(List<HashNode> tree, byte[] modified) throws IOException {
+        HashSplitDeltaGenerator generator = new HashSplitDeltaGenerator(new LocalHashNodeProvider(tree));
+        return generator.generateDeltas(new ByteArrayInputStream(modified), deltas);
+    }
+
+    private byte[] assemble(List<HashNode> tree) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(deltas));
+        FileChannel source = new RandomAccessFile(orig, "r").getChannel();
+        try {
+            HashSplitUploadReader reader = new HashSplitUploadReader(in);
+            byte[] content = IOUtils.toByteArray(reader.assemble(source, tree));
+            assertEquals(reader.getContentLength(), content.length);
+            return content;
+        } finally {
+            in.close();
+            source.close();
+        }
+    }
+
+    private void assertSame(List<HashNode> expected, List<HashNode> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            HashNode e = expected.get(i);
+            HashNode a = actual.get(i);
+            assertEquals(e.getHashValue(), a.getHashValue());
+            assertEquals(e.getOffset(), a.getOffset());
+            assertEquals(e.getLength(), a.getLength());
+            assertEquals(e.isLeaf(), a.isLeaf());
+            if (!e.isLeaf()) {
+                assertSame(e.getChildNodes(), a.getChildNodes());
+            }
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
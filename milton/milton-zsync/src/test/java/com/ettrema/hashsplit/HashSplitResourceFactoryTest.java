@@ -0,0 +1,303 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.hashsplit;
+
+import com.bradmcevoy.http.GetableResource;
+import com.bradmcevoy.http.PostableResource;
+import com.bradmcevoy.http.ReplaceableResource;
+import com.bradmcevoy.http.Resource;
+import com.bradmcevoy.http.ResourceFactory;
+import com.bradmcevoy.http.exceptions.BadRequestException;
+import com.ettrema.http.fs.FileSystemResourceFactory;
+import com.ettrema.http.fs.SimpleFileContentService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Uploads through HashSplitResourceFactory to files on disk, the same as
+ * HashSplitClient would over http
+ *
+ * @author brad
+ */
+public class HashSplitResourceFactoryTest {
+
+    File root;
+    File file;
+    File deltas;
+    FileSystemResourceFactory fsFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("hashsplit-root", null);
+        root.delete();
+        root.mkdir();
+        file = new File(root, "file.bin");
+        deltas = File.createTempFile("hashsplit-deltas", null);
+        fsFactory = new FileSystemResourceFactory(root, null);
+        fsFactory.setContentService(new SimpleFileContentService());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+        deltas.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        byte[] data = random(1, 1000000);
+        FileUtils.writeByteArrayToFile(file, data);
+
+        // change a few bytes in the middle and append some more
+        byte[] modified = new byte[data.length + 5000];
+        System.arraycopy(data, 0, modified, 0, data.length);
+        System.arraycopy(random(2, 100), 0, modified, 500000, 100);
+        System.arraycopy(random(3, 5000), 0, modified, data.length, 5000);
+
+        long included = generate(getTree(factory), modified);
+        assertTrue("included: " + included, included < 200000);
+        put(factory);
+        assertArrayEquals(modified, FileUtils.readFileToByteArray(file));
+    }
+
+    /**
+     * The file changes after the client has got the tree, so the assembled
+     * content fails its checksum. FsFileResource is atomic so is streamed to
+     * directly, and should keep the changed content
+     */
+    @Test
+    public void testChangedSinceTree() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        checkChangedSinceTree(factory);
+    }
+
+    /**
+     * As above, but for a resource which isnt atomic, so the content is
+     * assembled to a temporary file first
+     */
+    @Test
+    public void testChangedSinceTreeNotAtomic() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(new NotAtomicResourceFactory());
+        checkChangedSinceTree(factory);
+    }
+
+    /**
+     * POST with hashes says which of them arent in the server's tree
+     */
+    @Test
+    public void testNeededHashes() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        FileUtils.writeByteArrayToFile(file, random(6, 300000));
+        List<HashNode> tree = getTree(factory);
+        List<Long> hashes = new ArrayList<Long>();
+        for (HashNode n : tree) {
+            hashes.add(n.getHashValue());
+        }
+        hashes.add(0x8000000000000abcL);
+        assertEquals(Collections.singleton(0x8000000000000abcL), needed(factory).getNeeded(hashes));
+    }
+
+    /**
+     * Negotiates the chunks to send as HashSplitClient does, without getting
+     * the whole tree
+     */
+    @Test
+    public void testNegotiatedRoundTrip() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        byte[] data = random(1, 1000000);
+        FileUtils.writeByteArrayToFile(file, data);
+        byte[] modified = data.clone();
+        System.arraycopy(random(7, 100), 0, modified, 500000, 100);
+
+        HashSplitService.Splitter splitter = factory.getHashSplitService().newSplitter(null);
+        splitter.readFrom(new ByteArrayInputStream(modified));
+        splitter.close();
+        Set<Long> known = HashSplitClient.findKnownChunks(splitter.getRootNodes(), needed(factory));
+        assertFalse(known.isEmpty());
+
+        HashSplitDeltaGenerator generator = new HashSplitDeltaGenerator();
+        long included = generator.generateDeltas(new ByteArrayInputStream(modified), deltas, known);
+        assertTrue("included: " + included, included < 200000);
+        put(factory);
+        assertArrayEquals(modified, FileUtils.readFileToByteArray(file));
+    }
+
+    /**
+     * The tree is only generated once for each version of the content
+     */
+    @Test
+    public void testTreeCached() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        byte[] data = random(8, 300000);
+        FileUtils.writeByteArrayToFile(file, data);
+        List<HashNode> tree = getTree(factory);
+        assertEquals(tree.size(), getTree(factory).size());
+        assertEquals(1, factory.getHashTreeCache().getGeneratedCount());
+
+        byte[] modified = data.clone();
+        System.arraycopy(random(9, 100), 0, modified, 1000, 100);
+        generate(tree, modified);
+        put(factory);
+        getTree(factory);
+        assertEquals(2, factory.getHashTreeCache().getGeneratedCount());
+    }
+
+    @Test
+    public void testNoResource() throws Exception {
+        HashSplitResourceFactory factory = new HashSplitResourceFactory(fsFactory);
+        GetableResource r = (GetableResource) factory.getResource("localhost", "/missing.bin/.hashsplit");
+        try {
+            r.sendContent(new ByteArrayOutputStream(), null, null, null);
+            fail("should have failed");
+        } catch (BadRequestException e) {
+            // expected
+        }
+    }
+
+    private void checkChangedSinceTree(HashSplitResourceFactory factory) throws Exception {
+        byte[] data = random(4, 300000);
+        FileUtils.writeByteArrayToFile(file, data);
+        List<HashNode> tree = getTree(factory);
+        byte[] modified = data.clone();
+        System.arraycopy(random(5, 100), 0, modified, 1000, 100);
+        generate(tree, modified);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(200000);
+        raf.write(0xff ^ data[200000]);
+        raf.close();
+        byte[] changed = FileUtils.readFileToByteArray(file);
+        try {
+            put(factory);
+            fail("should have failed");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertArrayEquals(changed, FileUtils.readFileToByteArray(file));
+    }
+
+    private List<HashNode> getTree(HashSplitResourceFactory factory) throws Exception {
+        GetableResource r = (GetableResource) factory.getResource("localhost", "/file.bin/.hashsplit");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.sendContent(out, null, null, null);
+        return HashTreeFormat.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private HashSplitClient.NeededHashes needed(final HashSplitResourceFactory factory) {
+        return new HashSplitClient.NeededHashes() {
+
+            @Override
+            public Set<Long> getNeeded(List<Long> hashes) throws BadRequestException {
+                StringBuilder sb = new StringBuilder();
+                for (Long hash : hashes) {
+                    sb.append(Long.toHexString(hash)).append(',');
+                }
+                Map<String, String> params = new HashMap<String, String>();
+                params.put("hashes", sb.toString());
+                try {
+                    PostableResource r = (PostableResource) factory.getResource("localhost", "/file.bin/.hashsplit");
+                    r.processForm(params, null);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    r.sendContent(out, null, params, null);
+                    Set<Long> needed = new HashSet<Long>();
+                    for (String line : out.toString().split("\n")) {
+                        if (line.trim().length() > 0) {
+                            needed.add(new BigInteger(line.trim(), 16).longValue());
+                        }
+                    }
+                    return needed;
+                } catch (BadRequestException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private long generate(List<HashNode> tree, byte[] modified) throws IOException {
+        HashSplitDeltaGenerator generator = new HashSplitDeltaGenerator(new LocalHashNodeProvider(tree));
+        return generator.generateDeltas(new ByteArrayInputStream(modified), deltas);
+    }
+
+    private void put(HashSplitResourceFactory factory) throws Exception {
+        ReplaceableResource r = (ReplaceableResource) factory.getResource("localhost", "/file.bin/.hashsplit");
+        InputStream in = new FileInputStream(deltas);
+        try {
+            r.replaceContent(in, deltas.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Hides all but GetableResource and ReplaceableResource of the file
+     * resources
+     */
+    private class NotAtomicResourceFactory implements ResourceFactory {
+
+        @Override
+        public Resource getResource(String host, String path) {
+            final Resource r = fsFactory.getResource(host, path);
+            if (r == null) {
+                return null;
+            }
+            return (Resource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{GetableResource.class, ReplaceableResource.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    try {
+                        return method.invoke(r, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        }
+    }
+}
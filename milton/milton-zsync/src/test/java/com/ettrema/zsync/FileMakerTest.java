@@ -0,0 +1,140 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import com.bradmcevoy.http.Range;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class FileMakerTest {
+
+    File remoteFile;
+    File localFile;
+    File meta;
+    File made;
+
+    @Before
+    public void setUp() throws Exception {
+        remoteFile = File.createTempFile("milton-zsync", "remote");
+        localFile = File.createTempFile("milton-zsync", "local");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : new File[]{remoteFile, localFile, meta, made}) {
+            if (f != null) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMakeInParallelBatches() throws Exception {
+        byte[] remote = random(1, 300000);
+        // change some scattered blocks, and the end
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(remote, 0, 200000);
+        bout.write(new byte[5000]);
+        bout.write(remote, 205000, 50000);
+        bout.write(random(2, 10000));
+        FileUtils.writeByteArrayToFile(remoteFile, remote);
+        FileUtils.writeByteArrayToFile(localFile, bout.toByteArray());
+
+        FileMaker fileMaker = new FileMaker();
+        fileMaker.getFileUpdater().setMaxBatchBytes(4096);
+        fileMaker.getFileUpdater().setMaxRanges(2);
+        fileMaker.getFileUpdater().setParallelism(4);
+        RecordingRangeLoader loader = new RecordingRangeLoader(remoteFile);
+        made = make(fileMaker, loader);
+        Assert.assertArrayEquals(remote, FileUtils.readFileToByteArray(made));
+        Assert.assertTrue(loader.batches > 1);
+        Assert.assertTrue(loader.getBytesDownloaded() < 100000);
+        for (List<Range> batch : loader.ranges) {
+            Assert.assertTrue(batch.size() <= 2);
+            Assert.assertTrue(LocalFileRangeLoader.calcExpectedLength(batch) <= 4096);
+        }
+    }
+
+    @Test
+    public void testMakeWithNothingInCommon() throws Exception {
+        byte[] remote = random(3, 100000);
+        FileUtils.writeByteArrayToFile(remoteFile, remote);
+        FileUtils.writeByteArrayToFile(localFile, random(4, 50000));
+        LocalFileRangeLoader loader = new LocalFileRangeLoader(remoteFile);
+        made = make(new FileMaker(), loader);
+        Assert.assertArrayEquals(remote, FileUtils.readFileToByteArray(made));
+        Assert.assertEquals(remote.length, loader.getBytesDownloaded());
+    }
+
+    @Test
+    public void testMakeSequentially() throws Exception {
+        byte[] remote = random(5, 100000);
+        byte[] local = remote.clone();
+        local[50000]++;
+        FileUtils.writeByteArrayToFile(remoteFile, remote);
+        FileUtils.writeByteArrayToFile(localFile, local);
+        FileMaker fileMaker = new FileMaker();
+        fileMaker.getFileUpdater().setParallelism(1);
+        made = make(fileMaker, new LocalFileRangeLoader(remoteFile));
+        Assert.assertArrayEquals(remote, FileUtils.readFileToByteArray(made));
+    }
+
+    private File make(FileMaker fileMaker, LocalFileRangeLoader loader) throws Exception {
+        meta = new MetaFileMaker().make("/remote", 512, remoteFile);
+        return fileMaker.make(localFile, meta, loader);
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static class RecordingRangeLoader extends LocalFileRangeLoader {
+
+        final List<List<Range>> ranges = Collections.synchronizedList(new ArrayList<List<Range>>());
+        volatile int batches;
+
+        RecordingRangeLoader(File file) {
+            super(file);
+        }
+
+        @Override
+        public void get(List<Range> rangeList, FileChannel dest) throws java.io.IOException {
+            ranges.add(rangeList);
+            batches++;
+            super.get(rangeList, dest);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class MapMatcherTest {
+
+    @Test
+    public void testChainingHashFindsFirstLiveMatch() {
+        ChainingHash h = new ChainingHash(4);
+        byte[] s1 = {1, 2, 3};
+        byte[] s2 = {4, 5, 6};
+        // enough entries to force the table to grow and rehash
+        for (int i = 0; i < 100; i++) {
+            h.insert(new ChecksumPair(i % 10, i < 50 ? s1 : s2, i * 10L, 10, i));
+        }
+        Assert.assertEquals(3, h.findMatch(new ChecksumPair(3, s1)).getSequence());
+        Assert.assertEquals(53, h.findMatch(new ChecksumPair(3, s2)).getSequence());
+        Assert.assertNull(h.findMatch(new ChecksumPair(10, s1)));
+        Assert.assertTrue(h.findWeak(7) >= 0);
+        Assert.assertTrue(h.findWeak(10) < 0);
+
+        h.delete(new ChecksumPair(3, s1));
+        Assert.assertEquals(13, h.findMatch(new ChecksumPair(3, s1)).getSequence());
+        for (int i = 13; i < 100; i += 10) {
+            h.delete(h.findMatch(3, i < 50 ? s1 : s2, 0));
+        }
+        Assert.assertTrue(h.findWeak(3) < 0);
+        Assert.assertNull(h.find(new ChecksumPair(3)));
+    }
+
+    @Test
+    public void testMatchesMovedBlocks() throws Exception {
+        checkMatchesMovedBlocks(new MetaFileMaker(), "MD4");
+    }
+
+    @Test
+    public void testMatchesMovedBlocksWithMurmur3() throws Exception {
+        MetaFileMaker maker = new MetaFileMaker();
+        maker.setHashAlgorithm(Murmur3.ALGORITHM);
+        checkMatchesMovedBlocks(maker, Murmur3.ALGORITHM);
+    }
+
+    private void checkMatchesMovedBlocks(MetaFileMaker maker, String expectedAlgorithm) throws Exception {
+        int blocksize = 512;
+        byte[] remote = new byte[blocksize * 200 + 100];
+        new Random(4).nextBytes(remote);
+        // the local file has some extra bytes at the start, and is missing block 10
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(new byte[600]);
+        bout.write(remote, 0, blocksize * 10);
+        bout.write(remote, blocksize * 11, remote.length - blocksize * 11);
+        File remoteFile = File.createTempFile("milton-zsync", "remote");
+        File localFile = File.createTempFile("milton-zsync", "local");
+        File meta = null;
+        try {
+            FileUtils.writeByteArrayToFile(remoteFile, remote);
+            FileUtils.writeByteArrayToFile(localFile, bout.toByteArray());
+            meta = maker.make("/remote", blocksize, remoteFile);
+            MetaFileReader mfr = new MetaFileReader(meta);
+            Assert.assertEquals(expectedAlgorithm, mfr.getHashAlgorithm());
+            MakeContext mc = new MakeContext(mfr.getHashtable(), new long[mfr.getBlockCount()]);
+            Arrays.fill(mc.fileMap, -1);
+            new MapMatcher().mapMatcher(localFile, mfr, mc);
+
+            for (int i = 0; i < 200; i++) {
+                if (i < 10) {
+                    Assert.assertEquals(600 + i * blocksize, mc.fileMap[i]);
+                } else if (i == 10) {
+                    Assert.assertEquals(-1, mc.fileMap[i]);
+                } else {
+                    Assert.assertEquals(600 + (i - 1) * blocksize, mc.fileMap[i]);
+                }
+            }
+            // the last block is always fetched
+            Assert.assertEquals(-1, mc.fileMap[200]);
+        } finally {
+            remoteFile.delete();
+            localFile.delete();
+            if (meta != null) {
+                meta.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws Exception {
+        int blocksize = 512;
+        Random rnd = new Random(5);
+        byte[] remote = new byte[blocksize * 1000 + 77];
+        // low entropy, so there are repeated blocks and many candidate windows
+        for (int i = 0; i < remote.length; i++) {
+            remote[i] = (byte) rnd.nextInt(2);
+        }
+        byte[] local = remote.clone();
+        for (int i = 0; i < 300; i++) {
+            local[rnd.nextInt(local.length)] = 7;
+        }
+        File remoteFile = File.createTempFile("milton-zsync", "remote");
+        File localFile = File.createTempFile("milton-zsync", "local");
+        File meta = null;
+        try {
+            FileUtils.writeByteArrayToFile(remoteFile, remote);
+            FileUtils.writeByteArrayToFile(localFile, local);
+            meta = new MetaFileMaker().make("/remote", blocksize, remoteFile);
+
+            MapMatcher sequential = new MapMatcher();
+            sequential.setParallelism(1);
+            long[] expected = match(sequential, localFile, meta);
+            for (int threads = 2; threads <= 5; threads++) {
+                MapMatcher parallel = new MapMatcher();
+                parallel.setParallelism(threads);
+                parallel.setMinParallelLength(0);
+                Assert.assertArrayEquals(expected, match(parallel, localFile, meta));
+            }
+        } finally {
+            remoteFile.delete();
+            localFile.delete();
+            if (meta != null) {
+                meta.delete();
+            }
+        }
+    }
+
+    private long[] match(MapMatcher matcher, File localFile, File meta) {
+        MetaFileReader mfr = new MetaFileReader(meta);
+        MakeContext mc = new MakeContext(mfr.getHashtable(), new long[mfr.getBlockCount()]);
+        Arrays.fill(mc.fileMap, -1);
+        matcher.mapMatcher(localFile, mfr, mc);
+        return mc.fileMap;
+    }
+}
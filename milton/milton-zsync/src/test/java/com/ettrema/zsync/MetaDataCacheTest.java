@@ -0,0 +1,218 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import com.bradmcevoy.http.GetableResource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class MetaDataCacheTest {
+
+    File dir;
+    MetaFileMaker metaFileMaker;
+    byte[] content;
+    long modified;
+    AtomicInteger reads;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/metadatacache");
+        FileUtils.deleteDirectory(dir);
+        metaFileMaker = new MetaFileMaker();
+        content = new byte[100000];
+        new Random(1).nextBytes(content);
+        modified = 1300000000000L;
+        reads = new AtomicInteger();
+    }
+
+    @Test
+    public void testSameAsUncachedAndHashedOnce() throws Exception {
+        MetaDataCache cache = new MetaDataCache(metaFileMaker, dir);
+        GetableResource r = resource();
+        byte[] data = cache.getMetaData("/files/a.bin", r);
+        Assert.assertArrayEquals(expected("/files/a.bin"), data);
+        Assert.assertArrayEquals(data, cache.getMetaData("/files/a.bin", r));
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(1, cache.getGeneratedCount());
+
+        // a new instance finds it on disk
+        MetaDataCache reloaded = new MetaDataCache(metaFileMaker, dir);
+        Assert.assertArrayEquals(data, reloaded.getMetaData("/files/a.bin", r));
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(0, reloaded.getGeneratedCount());
+    }
+
+    @Test
+    public void testNewVersionReplacesOld() throws Exception {
+        MetaDataCache cache = new MetaDataCache(metaFileMaker, dir);
+        GetableResource r = resource();
+        cache.getMetaData("/a.bin", r);
+        Assert.assertEquals(1, dir.listFiles().length);
+        content[0]++;
+        modified += 1000;
+        byte[] data = cache.getMetaData("/a.bin", r);
+        Assert.assertArrayEquals(expected("/a.bin"), data);
+        Assert.assertEquals(2, reads.get());
+        Assert.assertEquals(1, dir.listFiles().length);
+
+        cache.remove("/a.bin");
+        Assert.assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testConcurrentRequestsGenerateOnce() throws Exception {
+        final MetaDataCache cache = new MetaDataCache(metaFileMaker);
+        final GetableResource r = resource();
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(exec.submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws Exception {
+                    return cache.getMetaData("/a.bin", r);
+                }
+            }));
+        }
+        byte[] expected = expected("/a.bin");
+        for (Future<byte[]> f : results) {
+            Assert.assertArrayEquals(expected, f.get());
+        }
+        exec.shutdown();
+        Assert.assertEquals(1, cache.getGeneratedCount());
+    }
+
+    @Test
+    public void testEvictsFromMemoryAndDisk() throws Exception {
+        MetaDataCache cache = new MetaDataCache(metaFileMaker, dir);
+        GetableResource r = resource();
+        int size = cache.getMetaData("/a", r).length;
+        cache.setMaxMemoryBytes(size * 2);
+        cache.setMaxDiskBytes(size * 2);
+        cache.getMetaData("/b", r);
+        cache.getMetaData("/c", r);
+        Assert.assertEquals(2, dir.listFiles().length);
+        Assert.assertNull(cache.get(cache.getKey("/a", r)));
+        Assert.assertNotNull(cache.get(cache.getKey("/c", r)));
+    }
+
+    @Test
+    public void testCachedPerAlgorithm() throws Exception {
+        MetaDataCache cache = new MetaDataCache(metaFileMaker, dir);
+        GetableResource r = resource();
+        byte[] md4 = cache.getMetaData("/a.bin", r);
+        byte[] murmur = cache.getMetaData("/a.bin", r, Murmur3.ALGORITHM);
+        Assert.assertArrayEquals(expected("/a.bin"), md4);
+        Assert.assertArrayEquals(expected("/a.bin", Murmur3.ALGORITHM), murmur);
+        Assert.assertFalse(cache.getKey("/a.bin", r).equals(cache.getKey("/a.bin", r, Murmur3.ALGORITHM)));
+        Assert.assertEquals(2, cache.getGeneratedCount());
+        Assert.assertEquals(2, dir.listFiles().length);
+
+        Assert.assertArrayEquals(md4, cache.getMetaData("/a.bin", r, null));
+        Assert.assertEquals(2, cache.getGeneratedCount());
+
+        cache.remove("/a.bin");
+        Assert.assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testFactoryNegotiatesAlgorithmAndSharesMaker() {
+        ZSyncResourceFactory factory = new ZSyncResourceFactory(null);
+        factory.getMetaFileMaker().setHashAlgorithm(Murmur3.ALGORITHM);
+        Map<String, String> params = new HashMap<String, String>();
+        // a stock zsync client doesnt ask, so must get MD4
+        Assert.assertEquals(StrongSums.DEFAULT_ALGORITHM, factory.getHashAlgorithm(params));
+        params.put(ZSyncResourceFactory.HASH_ALGORITHM_PARAM, Murmur3.ALGORITHM);
+        Assert.assertEquals(Murmur3.ALGORITHM, factory.getHashAlgorithm(params));
+        params.put(ZSyncResourceFactory.HASH_ALGORITHM_PARAM, "no-such-algorithm");
+        Assert.assertEquals(StrongSums.DEFAULT_ALGORITHM, factory.getHashAlgorithm(params));
+
+        MetaDataCache cache = new MetaDataCache(metaFileMaker);
+        factory.setMetaDataCache(cache);
+        Assert.assertSame(factory.getMetaFileMaker(), cache.getMetaFileMaker());
+        MetaFileMaker other = new MetaFileMaker();
+        factory.setMetaFileMaker(other);
+        Assert.assertSame(other, cache.getMetaFileMaker());
+    }
+
+    @Test
+    public void testNotCachedWithoutVersion() throws Exception {
+        MetaDataCache cache = new MetaDataCache(metaFileMaker);
+        modified = -1;
+        Assert.assertNull(cache.getMetaData("/a.bin", resource()));
+    }
+
+    private byte[] expected(String path) {
+        return expected(path, null);
+    }
+
+    private byte[] expected(String path, String algorithm) {
+        MetaFileMaker.MetaData md = metaFileMaker.make(path, metaFileMaker.computeBlockSize(content.length), content.length, new Date(modified), new ByteArrayInputStream(content), algorithm);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        metaFileMaker.write(md, bout);
+        return bout.toByteArray();
+    }
+
+    private GetableResource resource() {
+        return (GetableResource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{GetableResource.class}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getContentLength")) {
+                    return (long) content.length;
+                } else if (name.equals("getModifiedDate")) {
+                    return modified < 0 ? null : new Date(modified);
+                } else if (name.equals("getUniqueId")) {
+                    return "a";
+                } else if (name.equals("sendContent")) {
+                    reads.incrementAndGet();
+                    ((OutputStream) args[0]).write(content);
+                    return null;
+                }
+                return null;
+            }
+        });
+    }
+}
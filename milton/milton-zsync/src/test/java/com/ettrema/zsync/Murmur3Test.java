@@ -0,0 +1,81 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class Murmur3Test {
+
+    @Test
+    public void testKnownValues() throws Exception {
+        Assert.assertEquals("00000000000000000000000000000000", hash(new byte[0]));
+        Assert.assertEquals("029bbd41b3a7d8cb191dae486a901e5b", hash("hello".getBytes("UTF-8")));
+        Assert.assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", hash("The quick brown fox jumps over the lazy dog".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testIncrementalSameAsWhole() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+        MessageDigest whole = StrongSums.getInstance(Murmur3.ALGORITHM);
+        Random rnd = new Random(4);
+        for (int len = 0; len < data.length; len += 1 + rnd.nextInt(40)) {
+            byte[] expected = whole.digest(Arrays.copyOf(data, len));
+
+            MessageDigest pieces = StrongSums.getInstance(Murmur3.ALGORITHM);
+            int pos = 0;
+            while (pos < len) {
+                if (rnd.nextBoolean()) {
+                    pieces.update(data[pos++]);
+                } else {
+                    int n = Math.min(len - pos, rnd.nextInt(37));
+                    pieces.update(data, pos, n);
+                    pos += n;
+                }
+            }
+            MessageDigest copy = (MessageDigest) pieces.clone();
+            Assert.assertArrayEquals(expected, pieces.digest());
+            Assert.assertArrayEquals(expected, copy.digest());
+        }
+    }
+
+    @Test
+    public void testHeaderOnlyWrittenWhenNotDefault() {
+        HeaderMaker hm = new HeaderMaker();
+        HeaderMaker.Headers h = hm.getFullHeader(new Date(), 1000, "/x", 512, new int[]{2, 2, 16}, "abc");
+        Assert.assertFalse(hm.toString(h).contains("Hash-Algorithm"));
+        h.hashAlgorithm = Murmur3.ALGORITHM;
+        Assert.assertTrue(hm.toString(h).contains("Hash-Algorithm: " + Murmur3.ALGORITHM + "\n"));
+    }
+
+    private String hash(byte[] data) throws Exception {
+        return new String(Hex.encodeHex(StrongSums.getInstance(Murmur3.ALGORITHM).digest(data)));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class ParallelGeneratorTest {
+
+    static {
+        Security.addProvider(new JarsyncProvider());
+    }
+
+    @Test
+    public void testSameSumsAsGenerator() throws Exception {
+        Random rnd = new Random(2);
+        int[] sizes = {1, 511, 512, 4096, 4097, 100000};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            File f = File.createTempFile("milton-zsync", "test");
+            try {
+                FileUtils.writeByteArrayToFile(f, data);
+                ParallelGenerator pg = new ParallelGenerator(3);
+                pg.setChunkSize(4096);
+
+                MessageDigest expSha1 = MessageDigest.getInstance("SHA1");
+                List<ChecksumPair> expected = new Generator().generateSums(new ByteArrayInputStream(data), config(512), expSha1);
+
+                String expHash = SHA1.toString(expSha1);
+
+                MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+                assertSame(expected, pg.generateSums(new ByteArrayInputStream(data), config(512), sha1));
+                Assert.assertEquals(expHash, SHA1.toString(sha1));
+
+                sha1 = MessageDigest.getInstance("SHA1");
+                assertSame(expected, pg.generateSums(f, config(512), sha1));
+                Assert.assertEquals(expHash, SHA1.toString(sha1));
+            } finally {
+                f.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMetaFileIdentical() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(3).nextBytes(data);
+        File f = File.createTempFile("milton-zsync", "test");
+        try {
+            FileUtils.writeByteArrayToFile(f, data);
+            Date modified = new Date(1300000000000L);
+            MetaFileMaker sequential = new MetaFileMaker();
+            sequential.setParallelism(1);
+            MetaFileMaker parallel = new MetaFileMaker();
+            parallel.setParallelism(4);
+            byte[] expected = write(sequential, sequential.make("/a", 2048, data.length, modified, new ByteArrayInputStream(data)));
+            Assert.assertArrayEquals(expected, write(parallel, parallel.make("/a", 2048, data.length, modified, new ByteArrayInputStream(data))));
+
+            File expFile = sequential.make("/a", 2048, f);
+            File actFile = parallel.make("/a", 2048, f);
+            Assert.assertArrayEquals(FileUtils.readFileToByteArray(expFile), FileUtils.readFileToByteArray(actFile));
+            expFile.delete();
+            actFile.delete();
+        } finally {
+            f.delete();
+        }
+    }
+
+    private byte[] write(MetaFileMaker maker, MetaFileMaker.MetaData md) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        maker.write(md, bout);
+        return bout.toByteArray();
+    }
+
+    private Configuration config(int blocksize) throws Exception {
+        Configuration config = new Configuration();
+        config.strongSum = MessageDigest.getInstance("MD4");
+        config.weakSum = new Rsum();
+        config.blockLength = blocksize;
+        config.strongSumLength = 16;
+        return config;
+    }
+
+    private void assertSame(List<ChecksumPair> expected, List<ChecksumPair> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ChecksumPair e = expected.get(i);
+            ChecksumPair a = actual.get(i);
+            Assert.assertEquals(e.getWeak(), a.getWeak());
+            Assert.assertArrayEquals(e.getStrong(), a.getStrong());
+            Assert.assertEquals(e.getOffset(), a.getOffset());
+            Assert.assertEquals(e.getLength(), a.getLength());
+        }
+    }
+}
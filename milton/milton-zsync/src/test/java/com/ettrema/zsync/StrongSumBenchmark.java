@@ -0,0 +1,77 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package com.ettrema.zsync;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures the strong checksums which can be used in zsync metafiles. Not run
+ * as part of the build, run the main method with the test classpath,
+ * optionally giving the number of MB to checksum.
+ *
+ * For each blocksize and algorithm a digest is computed for every block of
+ * the data, 6 times. The first 2 rounds are warmup, and the best of the
+ * rest is reported.
+ *
+ * @author brad
+ */
+public class StrongSumBenchmark {
+
+    private static final int[] BLOCK_SIZES = {512, 2048, 8192};
+    private static final String[] ALGORITHMS = {StrongSums.DEFAULT_ALGORITHM, Murmur3.ALGORITHM};
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 6;
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        byte[] data = new byte[mb * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        for (int blocksize : BLOCK_SIZES) {
+            for (String algorithm : ALGORITHMS) {
+                MessageDigest md = StrongSums.getInstance(algorithm);
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long t = System.nanoTime();
+                    checksum(md, data, blocksize);
+                    t = System.nanoTime() - t;
+                    if (round >= WARMUP_ROUNDS && t < best) {
+                        best = t;
+                    }
+                }
+                double secs = best / 1e9;
+                long blocks = data.length / blocksize;
+                System.out.println(String.format("%-12s blocksize %5d: %,12.0f checksums/s, %,8.0f MB/s", algorithm, blocksize, blocks / secs, mb / secs));
+            }
+        }
+    }
+
+    private static void checksum(MessageDigest md, byte[] data, int blocksize) {
+        int sink = 0;
+        for (int off = 0; off + blocksize <= data.length; off += blocksize) {
+            md.update(data, off, blocksize);
+            sink += md.digest()[0];
+        }
+        if (sink == 42) {
+            System.out.print(""); // so the digests cant be optimised away
+        }
+    }
+}
@@ -19,17 +19,24 @@
 
 package com.ettrema.zsync;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -128,6 +135,88 @@ public class UploadReaderTests {
 		
 		
 	}
+	@Test
+	public void testAssembleStream() throws IOException {
+		
+		int blocksize = 512;
+		Random rnd = new Random(3);
+		byte[] server = new byte[blocksize * 100 + 50];
+		rnd.nextBytes(server);
+		
+		// moved blocks, a changed block, unchanged blocks and a longer file
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		bout.write(server, 0, blocksize * 20);
+		bout.write(new byte[100]);
+		bout.write(server, blocksize * 20, blocksize * 30);
+		byte[] changed = new byte[blocksize];
+		rnd.nextBytes(changed);
+		bout.write(changed);
+		bout.write(server, blocksize * 51, server.length - blocksize * 51);
+		bout.write(server, 0, blocksize * 5);
+		byte[] local = bout.toByteArray();
+		
+		Assert.assertArrayEquals(local, assembleUpload(server, local, false));
+		
+		// and a shorter one
+		byte[] shorter = new byte[blocksize * 40];
+		System.arraycopy(server, blocksize * 10, shorter, 0, shorter.length);
+		Assert.assertArrayEquals(shorter, assembleUpload(server, shorter, false));
+	}
+	
+	@Test
+	public void testAssembleStreamChecksumMismatch() throws IOException {
+		
+		byte[] server = new byte[512 * 10];
+		new Random(4).nextBytes(server);
+		byte[] local = server.clone();
+		local[1000]++;
+		try {
+			assembleUpload(server, local, true);
+			Assert.fail("Expected the checksum to fail");
+		} catch (IOException ex) {
+			Assert.assertTrue(ex.getMessage().contains("SHA1"));
+		}
+	}
+	
+	private byte[] assembleUpload(byte[] server, byte[] local, boolean corrupt) throws IOException {
+		
+		File serverFile = File.createTempFile("milton-zsync", "server");
+		File localFile = File.createTempFile("milton-zsync", "local");
+		File meta = null;
+		File upload = null;
+		FileChannel source = null;
+		InputStream in = null;
+		try {
+			FileUtils.writeByteArrayToFile(serverFile, server);
+			FileUtils.writeByteArrayToFile(localFile, local);
+			meta = new MetaFileMaker().make("/server", 512, serverFile);
+			upload = new UploadMakerEx(localFile, meta).getUploadFile();
+			if (corrupt) {
+				// the server's file changes after the upload was made
+				server[3000]++;
+				FileUtils.writeByteArrayToFile(serverFile, server);
+			}
+			source = new RandomAccessFile(serverFile, "r").getChannel();
+			UploadReader reader = new UploadReader(new BufferedInputStream(new FileInputStream(upload)));
+			Assert.assertEquals(local.length, reader.getFilelength());
+			in = reader.assemble(source);
+			return IOUtils.toByteArray(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+			if (source != null) {
+				source.close();
+			}
+			serverFile.delete();
+			localFile.delete();
+			if (meta != null) {
+				meta.delete();
+			}
+			if (upload != null) {
+				upload.delete();
+			}
+		}
+	}
+	
 	private void createTestFiles() throws IOException {
 		
 		